@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-axis hysteresis that keeps the touch jitter from producing new reports. An axis only moves
+ * when the new value is further than the dead band from the last reported one, or when it reaches
+ * the rest position or one of the ends of the range.
+ *
+ * <p>The dead bands are set in the units of the {@link ReportFormat#STANDARD} 8-bit axes, and are
+ * scaled to the resolution of the selected format.
+ *
+ * <p>The dead bands may be changed from any thread, the filtering itself only happens on the
+ * sender thread. The dead bands are a part of the {@link SendSettings} snapshot, which is replaced
+ * as a whole, so a report is always filtered with one consistent set of them. Every player's
+ * gamepad has its own filter, and they all share the settings, see {@link #newSharedFilter()}.
+ */
+public class AxisFilter {
+    // The axes are numbered in the order of the report fields, see ReportFormat.
+    public static final int AXIS_LX = 0;
+    public static final int AXIS_LY = 1;
+    public static final int AXIS_RX = 2;
+    public static final int AXIS_RY = 3;
+    public static final int AXIS_L2 = 4;
+    public static final int AXIS_R2 = 5;
+
+    private static final int AXIS_COUNT = ReportFormat.AXIS_COUNT;
+    private static final int STANDARD_AXIS_MAXIMUM = 255;
+
+    /** Shared with the schedulers, replaced as a whole. */
+    private final AtomicReference<SendSettings> settings;
+
+    private final int[] lastValues = new int[AXIS_COUNT];
+    private final int[] restValues = new int[AXIS_COUNT];
+    private ReportFormat format;
+    private int axisMaximum;
+
+    AxisFilter() {
+        this(new AtomicReference<>(SendSettings.create(0)));
+    }
+
+    /** @param settings Send settings to take the dead bands from. */
+    AxisFilter(AtomicReference<SendSettings> settings) {
+        this.settings = checkNotNull(settings);
+    }
+
+    /**
+     * Create a filter for another stream of states, e.g. another player's gamepad, that follows
+     * the dead bands of this one.
+     *
+     * @return New filter that shares the dead bands with this one.
+     */
+    AxisFilter newSharedFilter() {
+        return new AxisFilter(settings);
+    }
+
+    /**
+     * Set the dead band for one of the axes.
+     *
+     * @param axis One of the {@code AXIS_*} constants.
+     * @param deadBand Largest change of the value that is ignored, {@code 0} disables filtering.
+     */
+    public void setDeadBand(int axis, int deadBand) {
+        checkArgument(axis >= 0 && axis < AXIS_COUNT, "Invalid axis: %s", axis);
+        checkArgument(deadBand >= 0, "Dead band must not be negative");
+        settings.updateAndGet(s -> s.withDeadBand(axis, deadBand));
+    }
+
+    /**
+     * Set the dead bands of all the axes at once.
+     *
+     * @param stickDeadBand Dead band of the stick axes, {@code 0} disables filtering.
+     * @param triggerDeadBand Dead band of the trigger axes, {@code 0} disables filtering.
+     */
+    public void setDeadBands(int stickDeadBand, int triggerDeadBand) {
+        checkArgument(stickDeadBand >= 0 && triggerDeadBand >= 0, "Dead band must not be negative");
+        settings.updateAndGet(s -> s.withDeadBands(stickDeadBand, triggerDeadBand));
+    }
+
+    /**
+     * Get the dead band of one of the axes.
+     *
+     * @param axis One of the {@code AXIS_*} constants.
+     * @return Largest change of the value that is ignored.
+     */
+    public int getDeadBand(int axis) {
+        return settings.get().getDeadBand(axis);
+    }
+
+    /**
+     * Replace the analog values that didn't move far enough with the previously reported ones.
+     *
+     * @param s The packed gamepad state, filtered in place.
+     * @param format Format that the state was packed with.
+     */
+    void apply(PackedState s, ReportFormat format) {
+        apply(s, format, settings.get());
+    }
+
+    /**
+     * Replace the analog values that didn't move far enough with the previously reported ones.
+     *
+     * @param s The packed gamepad state, filtered in place.
+     * @param format Format that the state was packed with.
+     * @param settings Snapshot of the settings that the report is sent with.
+     */
+    void apply(PackedState s, ReportFormat format, SendSettings settings) {
+        if (!setFormat(format)) {
+            return;
+        }
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            int value = format.getAxis(s, axis);
+            int last = lastValues[axis];
+            int deadBand = settings.getDeadBand(axis);
+            if (hasMoved(deadBand, last, value, restValues[axis], axisMaximum)) {
+                lastValues[axis] = value;
+            } else {
+                format.setAxis(s, axis, last);
+            }
+        }
+    }
+
+    /**
+     * Check whether any of the axes has moved further than its dead band.
+     *
+     * @param from The previous packed gamepad state.
+     * @param to The new packed gamepad state.
+     * @param format Format that the states were packed with.
+     * @return {@code true} if the change is significant enough to be reported.
+     */
+    boolean hasMoved(PackedState from, PackedState to, ReportFormat format) {
+        return hasMoved(from, to, format, settings.get());
+    }
+
+    /**
+     * Check whether any of the axes has moved further than its dead band.
+     *
+     * @param from The previous packed gamepad state.
+     * @param to The new packed gamepad state.
+     * @param format Format that the states were packed with.
+     * @param settings Snapshot of the settings to take the dead bands from.
+     * @return {@code true} if the change is significant enough to be reported.
+     */
+    boolean hasMoved(PackedState from, PackedState to, ReportFormat format, SendSettings settings) {
+        if (!format.hasAxes()) {
+            return false;
+        }
+        int axisMaximum = format.getAxisMaximum();
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            int fromValue = format.getAxis(from, axis);
+            int toValue = format.getAxis(to, axis);
+            int rest = getRestValue(axis, axisMaximum);
+            if (hasMoved(settings.getDeadBand(axis), fromValue, toValue, rest, axisMaximum)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget the filtered values and start from the actual ones.
+     *
+     * @param s The packed gamepad state that is going to be reported unfiltered.
+     * @param format Format that the state was packed with.
+     */
+    void reset(PackedState s, ReportFormat format) {
+        if (!setFormat(format)) {
+            return;
+        }
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            lastValues[axis] = format.getAxis(s, axis);
+        }
+    }
+
+    /**
+     * Switch to the resolution of another format, starting from the rest position.
+     *
+     * @return {@code false} if the format has no axes to filter.
+     */
+    private boolean setFormat(ReportFormat format) {
+        if (format == this.format) {
+            return axisMaximum > 0;
+        }
+        this.format = format;
+        axisMaximum = format.getAxisMaximum();
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            restValues[axis] = getRestValue(axis, axisMaximum);
+            lastValues[axis] = restValues[axis];
+        }
+        return axisMaximum > 0;
+    }
+
+    private static boolean hasMoved(int deadBand, int from, int to, int rest, int maximum) {
+        if (from == to) {
+            return false;
+        }
+        // Scale the dead band to the resolution of the format, rounding down.
+        long scaledDeadBand = (long) deadBand * maximum / STANDARD_AXIS_MAXIMUM;
+        return Math.abs(to - from) > scaledDeadBand || to == rest || to == 0 || to == maximum;
+    }
+
+    private static int getRestValue(int axis, int axisMaximum) {
+        // Sticks are centered, triggers are released.
+        return axis < AXIS_L2 ? (axisMaximum + 1) / 2 : 0;
+    }
+}
@@ -16,10 +16,17 @@
 
 package com.ginkage.gamepad.bluetooth;
 
+import androidx.annotation.AnyThread;
+
 /** Helper class to store the battery state and retrieve the binary report. */
 class BatteryReport {
+    private static final ReportEncoder ENCODER = new ReportEncoder(Constants.BATTERY_LAYOUT);
+    private static final int LEVEL_MAXIMUM =
+            Constants.BATTERY_LAYOUT.getFields().get(0).logicalMaximum;
 
-    private final byte[] batteryData = new byte[] {0};
+    private final int[] values = new int[ENCODER.getSlotCount()];
+    private final byte[] batteryData = new byte[ENCODER.getReportSize()];
+    private final ReportSnapshot snapshot = new ReportSnapshot(batteryData.length);
 
     /**
      * Store the current battery level in the report.
@@ -28,13 +35,20 @@ class BatteryReport {
      * @return Byte array that represents the report
      */
     byte[] setValue(float level) {
-        int val = (int) Math.ceil(level * 255);
-        batteryData[0] = (byte) (val & 0xff);
+        values[0] = (int) Math.ceil(level * LEVEL_MAXIMUM);
+        ENCODER.encode(values, batteryData);
+        snapshot.publish(batteryData);
         return batteryData;
     }
 
+    /**
+     * Get a consistent copy of the last completed report, safe to call from any thread.
+     *
+     * @return Byte array that represents the report
+     */
+    @AnyThread
     byte[] getReport() {
-        return batteryData;
+        return snapshot.read();
     }
 
     /** Interface to send the Battery data with. */
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * User mapping of the gamepad buttons, for the hosts that expect A/B, X/Y or Start/Back in
+ * different places. Each button of the {@link GamepadState} is reported as one of the buttons of
+ * the report, by default the same one.
+ *
+ * <p>The mapping is only a description, it's compiled into lookup tables when it's selected for
+ * a host, see {@link HidDataSender#setButtonMap}.
+ */
+public final class ButtonMap {
+    // The buttons are numbered in the order of the GamepadState fields.
+    public static final int BUTTON_A = 0;
+    public static final int BUTTON_B = 1;
+    public static final int BUTTON_X = 2;
+    public static final int BUTTON_Y = 3;
+    public static final int BUTTON_L1 = 4;
+    public static final int BUTTON_R1 = 5;
+    public static final int BUTTON_L3 = 6;
+    public static final int BUTTON_R3 = 7;
+    public static final int BUTTON_START = 8;
+    public static final int BUTTON_BACK = 9;
+    public static final int BUTTON_HOME = 10;
+
+    /** Number of the mappable buttons. */
+    public static final int BUTTON_COUNT = 11;
+
+    private final int[] targets = new int[BUTTON_COUNT];
+
+    /** Create the identity mapping. */
+    public ButtonMap() {
+        for (int button = 0; button < BUTTON_COUNT; button++) {
+            targets[button] = button;
+        }
+    }
+
+    /**
+     * Create a copy of another mapping.
+     *
+     * @param map The mapping to copy.
+     */
+    public ButtonMap(ButtonMap map) {
+        System.arraycopy(map.targets, 0, targets, 0, BUTTON_COUNT);
+    }
+
+    /**
+     * Report one of the buttons as another one.
+     *
+     * @param button One of the {@code BUTTON_*} constants.
+     * @param target The {@code BUTTON_*} constant of the report button that it should press.
+     * @return This mapping, for chaining.
+     */
+    public ButtonMap set(int button, int target) {
+        checkButton(button);
+        checkButton(target);
+        targets[button] = target;
+        return this;
+    }
+
+    /**
+     * Exchange the report buttons of two buttons, e.g. {@code swap(BUTTON_A, BUTTON_B)}.
+     *
+     * @param first One of the {@code BUTTON_*} constants.
+     * @param second Another one of the {@code BUTTON_*} constants.
+     * @return This mapping, for chaining.
+     */
+    public ButtonMap swap(int first, int second) {
+        checkButton(first);
+        checkButton(second);
+        int target = targets[first];
+        targets[first] = targets[second];
+        targets[second] = target;
+        return this;
+    }
+
+    /**
+     * @param button One of the {@code BUTTON_*} constants.
+     * @return The {@code BUTTON_*} constant of the report button that it presses.
+     */
+    public int getTarget(int button) {
+        checkButton(button);
+        return targets[button];
+    }
+
+    /** @return {@code true} if every button is reported as itself. */
+    public boolean isIdentity() {
+        for (int button = 0; button < BUTTON_COUNT; button++) {
+            if (targets[button] != button) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ButtonMap && Arrays.equals(targets, ((ButtonMap) o).targets);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(targets);
+    }
+
+    private static void checkButton(int button) {
+        checkArgument(button >= 0 && button < BUTTON_COUNT, "Invalid button: %s", button);
+    }
+}
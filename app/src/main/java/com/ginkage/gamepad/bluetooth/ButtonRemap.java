@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+/**
+ * A {@link ButtonMap} compiled for one {@link ReportFormat}. The button bits of the packed state
+ * are split into bytes, and every byte is translated with a 256-entry table into the remapped
+ * bits, so applying any mapping costs one lookup per byte of buttons and never branches on the
+ * individual buttons.
+ */
+final class ButtonRemap {
+    /** Bits of the packed state that are not buttons, e.g. the hat switch and the padding. */
+    private final long keepMask;
+
+    /** Shifts of the bytes that hold the buttons, in the low word. */
+    private final int[] byteShifts;
+
+    /** Remapped button bits for every value of every button byte, 256 entries per byte. */
+    private final long[] tables;
+
+    /**
+     * @param map The button mapping to compile.
+     * @param format Format of the report that the mapping is applied to.
+     */
+    ButtonRemap(ButtonMap map, ReportFormat format) {
+        long buttonMask = 0;
+        int firstByte = Integer.MAX_VALUE;
+        int lastByte = 0;
+        for (int button = 0; button < ButtonMap.BUTTON_COUNT; button++) {
+            long bit = format.getButtonBit(button);
+            int byteIndex = Long.numberOfTrailingZeros(bit) / 8;
+            buttonMask |= bit;
+            firstByte = Math.min(firstByte, byteIndex);
+            lastByte = Math.max(lastByte, byteIndex);
+        }
+        keepMask = ~buttonMask;
+
+        byteShifts = new int[lastByte - firstByte + 1];
+        tables = new long[byteShifts.length * 256];
+        for (int i = 0; i < byteShifts.length; i++) {
+            byteShifts[i] = (firstByte + i) * 8;
+        }
+        for (int button = 0; button < ButtonMap.BUTTON_COUNT; button++) {
+            int position = Long.numberOfTrailingZeros(format.getButtonBit(button));
+            int table = (position / 8 - firstByte) * 256;
+            int mask = 1 << (position % 8);
+            long target = format.getButtonBit(map.getTarget(button));
+            for (int value = 0; value < 256; value++) {
+                if ((value & mask) != 0) {
+                    tables[table + value] |= target;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remap the buttons of the packed state in place.
+     *
+     * @param s The packed gamepad state
+     */
+    void apply(PackedState s) {
+        long bits = s.low;
+        long remapped = bits & keepMask;
+        for (int i = 0; i < byteShifts.length; i++) {
+            remapped |= tables[(i << 8) | (int) ((bits >>> byteShifts[i]) & 0xFF)];
+        }
+        s.low = remapped;
+    }
+}
@@ -16,6 +16,43 @@
 
 package com.ginkage.gamepad.bluetooth;
 
+import static com.ginkage.gamepad.bluetooth.ReportLayout.COLLECTION_PHYSICAL;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.INPUT_CONSTANT;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.INPUT_NULL_STATE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.INPUT_VARIABLE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_BUTTON;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_CONSUMER;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_GENERIC_DESKTOP;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_GENERIC_DEVICE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_LED;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_PHYSICAL_INPUT;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_SIMULATION;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_VENDOR;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.UNIT_DEGREES;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.UNIT_NONE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_ACCELERATOR;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_AC_BACK;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_AC_HOME;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_BATTERY_STRENGTH;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_BRAKE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_DURATION;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_GAME_PAD;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_HAT_SWITCH;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_MAGNITUDE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_PLAYER_1;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_PLAYER_2;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_PLAYER_3;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_PLAYER_4;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_RZ;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_COALESCING_WINDOW;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_POLLING_RATE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_STICK_DEAD_BAND;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_TRIGGER_DEAD_BAND;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_X;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_Y;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_Z;
+import static com.google.common.base.Preconditions.checkArgument;
+
 import android.bluetooth.BluetoothHidDevice;
 import android.bluetooth.BluetoothHidDeviceAppQosSettings;
 import android.bluetooth.BluetoothHidDeviceAppSdpSettings;
@@ -25,112 +62,217 @@ class Constants {
     static final byte ID_GAMEPAD = 1;
     static final byte ID_BATTERY = 2;
 
-    private static final byte[] HIDD_REPORT_DESC = {
-        (byte) 0x05, (byte) 0x01, // Usage Page (Generic Desktop Ctrls)
-        (byte) 0x09, (byte) 0x05, // Usage (Game Pad)
-        (byte) 0xA1, (byte) 0x01, // Collection (Application)
-        (byte) 0x85, ID_GAMEPAD,  //   Report ID
-
-        // 11 buttons: A, B, X, Y, L1, R1, L3, R3, Start, Back, Home (1 bit per button)
-
-        (byte) 0x05, (byte) 0x09, //   Usage Page (Button)
-        (byte) 0x09, (byte) 0x01, //   Usage (0x01 - A)
-        (byte) 0x09, (byte) 0x02, //   Usage (0x02 - B)
-        (byte) 0x09, (byte) 0x04, //   Usage (0x04 - X)
-        (byte) 0x09, (byte) 0x05, //   Usage (0x05 - Y)
-        (byte) 0x09, (byte) 0x07, //   Usage (0x07 - L1)
-        (byte) 0x09, (byte) 0x08, //   Usage (0x08 - R1)
-        (byte) 0x09, (byte) 0x0E, //   Usage (0x0E - L3)
-        (byte) 0x09, (byte) 0x0F, //   Usage (0x0F - R3)
-        (byte) 0x09, (byte) 0x0C, //   Usage (0x0D - Start)
-        (byte) 0x05, (byte) 0x0C, //   Usage Page (Consumer)
-        (byte) 0x0A, (byte) 0x24, (byte) 0x02, //   Usage (AC Back)
-        (byte) 0x0A, (byte) 0x23, (byte) 0x02, //   Usage (AC Home)
-        (byte) 0x15, (byte) 0x00, //   Logical Minimum (0)
-        (byte) 0x25, (byte) 0x01, //   Logical Maximum (1)
-        (byte) 0x75, (byte) 0x01, //   Report Size (1)
-        (byte) 0x95, (byte) 0x0B, //   Report Count (11)
-        (byte) 0x81, (byte) 0x02, //   Input (Data,Var,Abs,No Wrap,Linear,Preferred State,No Null Position)
-
-        // 1 bit padding
-
-        (byte) 0x75, (byte) 0x01, //   Report Size (1)
-        (byte) 0x95, (byte) 0x01, //   Report Count (1)
-        (byte) 0x81, (byte) 0x03, //   Input (Const,Var,Abs,No Wrap,Linear,Preferred State,No Null Position)
-
-        // 4 bits for D-pad rotation values 0-7 -> 0-315 (360 - 45)
-        // 0=up, 2=right, 4=down, 6=left, 8=release
-
-        (byte) 0x05, (byte) 0x01, //   Usage Page (Generic Desktop Ctrls)
-        (byte) 0x75, (byte) 0x04, //   Report Size (4)
-        (byte) 0x95, (byte) 0x01, //   Report Count (1)
-        (byte) 0x25, (byte) 0x07, //   Logical Maximum (7)
-        (byte) 0x46, (byte) 0x3B, (byte) 0x01, //   Physical Maximum (315)
-        (byte) 0x66, (byte) 0x14, (byte) 0x00, //   Unit (System: English Rotation, Length: Centimeter)
-        (byte) 0x09, (byte) 0x39, //   Usage (Hat switch)
-        (byte) 0x81, (byte) 0x42, //   Input (Data,Var,Abs,No Wrap,Linear,Preferred State,Null State)
-
-        // 6x 8-bit values for LX/LY, RX/RY, L2/R2
-        // Sticks: Up=0, Down=FF, Left=0, Right=FF, Center=80
-        // Triggers: Released=0, Pressed=FF
-
-        (byte) 0x66, (byte) 0x00, (byte) 0x00, //   Unit (None)
-        (byte) 0xA1, (byte) 0x00, //   Collection (Physical)
-        (byte) 0x09, (byte) 0x30, //     Usage (X)
-        (byte) 0x09, (byte) 0x31, //     Usage (Y)
-        (byte) 0x09, (byte) 0x32, //     Usage (Z)
-        (byte) 0x09, (byte) 0x35, //     Usage (Rz)
-        (byte) 0x05, (byte) 0x02, //     Usage Page (Sim Ctrls)
-        (byte) 0x09, (byte) 0xC5, //     Usage (Brake)
-        (byte) 0x09, (byte) 0xC4, //     Usage (Accelerator)
-        (byte) 0x15, (byte) 0x00, //     Logical Minimum (0)
-        (byte) 0x26, (byte) 0xFF, (byte) 0x00, //     Logical Maximum (255)
-        (byte) 0x35, (byte) 0x00, //     Physical Minimum (0)
-        (byte) 0x46, (byte) 0xFF, (byte) 0x00, //     Physical Maximum (255)
-        (byte) 0x75, (byte) 0x08, //     Report Size (8)
-        (byte) 0x95, (byte) 0x06, //     Report Count (6)
-        (byte) 0x81, (byte) 0x02, //     Input (Data,Var,Abs,No Wrap,Linear,Preferred State,No Null Position)
-        (byte) 0xC0, //   End Collection
-        (byte) 0xC0, // End Collection
-
-        // Battery level, 1 byte, 0-FF
-
-        (byte) 0x05, (byte) 0x01, // Usage Page (Generic Desktop Ctrls)
-        (byte) 0x09, (byte) 0x05, // Usage (Game Pad)
-        (byte) 0xA1, (byte) 0x01, // Collection (Application)
-        (byte) 0x85, ID_BATTERY,  //   Report ID
-        (byte) 0x05, (byte) 0x06, //   Usage Page (Generic Dev Ctrls)
-        (byte) 0x09, (byte) 0x20, //   Usage (Battery Strength)
-        (byte) 0x15, (byte) 0x00, //   Logical Minimum (0)
-        (byte) 0x26, (byte) 0xFF, (byte) 0x00, //   Logical Maximum (255)
-        (byte) 0x75, (byte) 0x08, //   Report Size (8)
-        (byte) 0x95, (byte) 0x01, //   Report Count (1)
-        (byte) 0x81, (byte) 0x02, //   Input (Data,Var,Abs,No Wrap,Linear,Preferred State,No Null Position)
-        (byte) 0xC0, // End Collection
-    };
+    /** Number of virtual gamepads that one HID Device app may describe. */
+    static final int MAX_PLAYERS = 4;
+
+    // Gamepad buttons, in the Button usage page
+    static final int BUTTON_A = 0x01;
+    static final int BUTTON_B = 0x02;
+    static final int BUTTON_X = 0x04;
+    static final int BUTTON_Y = 0x05;
+    static final int BUTTON_L1 = 0x07;
+    static final int BUTTON_R1 = 0x08;
+    static final int BUTTON_START = 0x0C;
+    static final int BUTTON_L3 = 0x0E;
+    static final int BUTTON_R3 = 0x0F;
+
+    /** Standard gamepad report with 8-bit axes, the one of the first player. */
+    static final ReportLayout GAMEPAD_LAYOUT = createGamepadLayout(0, 8);
+
+    static final ReportLayout BATTERY_LAYOUT =
+            new ReportLayout.Builder(ID_BATTERY, PAGE_GENERIC_DESKTOP, USAGE_GAME_PAD)
+                    // Battery level, 1 byte, 0-FF
+                    .usagePage(PAGE_GENERIC_DEVICE)
+                    .usage(USAGE_BATTERY_STRENGTH)
+                    .logicalMinimum(0)
+                    .logicalMaximum(255)
+                    .reportSize(8)
+                    .reportCount(1)
+                    .input(INPUT_VARIABLE)
+                    .build();
 
     private static final String SDP_NAME = "Android Gamepad";
     private static final String SDP_DESCRIPTION = "Android HID Device";
     private static final String SDP_PROVIDER = "Google Inc.";
-    private static final int QOS_TOKEN_RATE = 800; // 9 bytes * 1000000 us / 11250 us
-    private static final int QOS_TOKEN_BUCKET_SIZE = 9;
     private static final int QOS_PEAK_BANDWIDTH = 0;
-    private static final int QOS_LATENCY = 11250;
-
-    static final BluetoothHidDeviceAppSdpSettings SDP_SETTINGS =
-            new BluetoothHidDeviceAppSdpSettings(
-                    SDP_NAME,
-                    SDP_DESCRIPTION,
-                    SDP_PROVIDER,
-                    BluetoothHidDevice.SUBCLASS2_GAMEPAD,
-                    HIDD_REPORT_DESC);
-
-    static final BluetoothHidDeviceAppQosSettings QOS_SETTINGS =
-            new BluetoothHidDeviceAppQosSettings(
-                    BluetoothHidDeviceAppQosSettings.SERVICE_BEST_EFFORT,
-                    QOS_TOKEN_RATE,
-                    QOS_TOKEN_BUCKET_SIZE,
-                    QOS_PEAK_BANDWIDTH,
-                    QOS_LATENCY,
-                    BluetoothHidDeviceAppQosSettings.MAX);
+
+    /** Latency that we register with, in microseconds, also the default coalescing window. */
+    static final int QOS_LATENCY = 11250;
+
+    /**
+     * Get the report ID of one of the virtual gamepads. The first player keeps the ID that the
+     * single gamepad always had, the others follow the battery report.
+     *
+     * @param player Player index, {@code 0} to {@code MAX_PLAYERS - 1}.
+     * @return Report ID of the player's gamepad.
+     */
+    static byte getGamepadReportId(int player) {
+        checkArgument(player >= 0 && player < MAX_PLAYERS, "Invalid player: %s", player);
+        return (byte) (player == 0 ? ID_GAMEPAD : ID_BATTERY + player);
+    }
+
+    /**
+     * Describe the gamepad report of one of the players. Only the first player's gamepad has the
+     * Output and Feature reports, as there is only one vibrator and one set of settings.
+     *
+     * @param player Player index, {@code 0} to {@code MAX_PLAYERS - 1}.
+     * @param axisBits Size of each analog axis, or {@code 0} to leave the axes out.
+     * @return Layout of the gamepad report.
+     */
+    static ReportLayout createGamepadLayout(int player, int axisBits) {
+        ReportLayout.Builder builder =
+                new ReportLayout.Builder(
+                                getGamepadReportId(player), PAGE_GENERIC_DESKTOP, USAGE_GAME_PAD)
+                        // 11 buttons: A, B, X, Y, L1, R1, L3, R3, Start, Back, Home, 1 bit each
+                        .usagePage(PAGE_BUTTON)
+                        .usage(BUTTON_A, BUTTON_B, BUTTON_X, BUTTON_Y, BUTTON_L1, BUTTON_R1)
+                        .usage(BUTTON_L3, BUTTON_R3, BUTTON_START)
+                        .usagePage(PAGE_CONSUMER)
+                        .usage(USAGE_AC_BACK, USAGE_AC_HOME)
+                        .logicalMinimum(0)
+                        .logicalMaximum(1)
+                        .reportSize(1)
+                        .reportCount(11)
+                        .input(INPUT_VARIABLE)
+
+                        // 1 bit padding
+                        .reportSize(1)
+                        .reportCount(1)
+                        .input(INPUT_CONSTANT | INPUT_VARIABLE)
+
+                        // 4 bits for D-pad rotation values 0-7 -> 0-315 (360 - 45)
+                        // 0=up, 2=right, 4=down, 6=left, 8=release
+                        .usagePage(PAGE_GENERIC_DESKTOP)
+                        .reportSize(4)
+                        .reportCount(1)
+                        .logicalMaximum(7)
+                        .physicalMaximum(315)
+                        .unit(UNIT_DEGREES)
+                        .usage(USAGE_HAT_SWITCH)
+                        .input(INPUT_VARIABLE | INPUT_NULL_STATE)
+                        .unit(UNIT_NONE);
+        if (axisBits > 0) {
+            // 6 values for LX/LY, RX/RY, L2/R2, e.g. 8-bit:
+            // Sticks: Up=0, Down=FF, Left=0, Right=FF, Center=80
+            // Triggers: Released=0, Pressed=FF
+            int axisMaximum = (1 << axisBits) - 1;
+            builder.collection(COLLECTION_PHYSICAL)
+                    .usage(USAGE_X, USAGE_Y, USAGE_Z, USAGE_RZ)
+                    .usagePage(PAGE_SIMULATION)
+                    .usage(USAGE_BRAKE, USAGE_ACCELERATOR)
+                    .logicalMinimum(0)
+                    .logicalMaximum(axisMaximum)
+                    .physicalMinimum(0)
+                    .physicalMaximum(axisMaximum)
+                    .reportSize(axisBits)
+                    .reportCount(6)
+                    .input(INPUT_VARIABLE)
+                    .endCollection();
+        }
+        if (player > 0) {
+            // Don't let the physical range carry over to the next report, see concat().
+            return builder.physicalMaximum(0).build();
+        }
+
+        // Output report, the same for every format:
+        // Rumble strength, 1 byte, 0-FF, 0=stop
+        // Rumble duration in milliseconds, 2 bytes, 0=until the next report
+        // Player indicators 1-4, 1 bit each, and 4 bits padding
+        return builder.usagePage(PAGE_PHYSICAL_INPUT)
+                .usage(USAGE_MAGNITUDE)
+                .logicalMinimum(0)
+                .logicalMaximum(255)
+                .physicalMaximum(0) // Same as the logical range
+                .reportSize(8)
+                .reportCount(1)
+                .output(INPUT_VARIABLE)
+                .usage(USAGE_DURATION)
+                .logicalMaximum(0xFFFF)
+                .reportSize(16)
+                .output(INPUT_VARIABLE)
+                .usagePage(PAGE_LED)
+                .usage(USAGE_PLAYER_1, USAGE_PLAYER_2, USAGE_PLAYER_3, USAGE_PLAYER_4)
+                .logicalMaximum(1)
+                .reportSize(1)
+                .reportCount(4)
+                .output(INPUT_VARIABLE)
+                .output(INPUT_CONSTANT | INPUT_VARIABLE)
+
+                // Feature report with the send path settings, the same for every format:
+                // Polling rate in Hz, 2 bytes, 0=send on change
+                // Coalescing window in microseconds, 2 bytes
+                // Stick and trigger dead bands in the 8-bit axis units, 1 byte each
+                .usagePage(PAGE_VENDOR)
+                .usage(USAGE_VENDOR_POLLING_RATE, USAGE_VENDOR_COALESCING_WINDOW)
+                .logicalMaximum(0xFFFF)
+                .reportSize(16)
+                .reportCount(2)
+                .feature(INPUT_VARIABLE)
+                .usage(USAGE_VENDOR_STICK_DEAD_BAND, USAGE_VENDOR_TRIGGER_DEAD_BAND)
+                .logicalMaximum(255)
+                .reportSize(8)
+                .feature(INPUT_VARIABLE)
+                .build();
+    }
+
+    /**
+     * Create the report descriptor of the gamepads with the specified reports. The first player's
+     * report comes first, so a single gamepad has the same descriptor as before.
+     *
+     * @param gamepadLayouts Layouts of the gamepad reports, one per player.
+     * @return Report descriptor of the gamepads and the battery report.
+     */
+    static byte[] createReportDescriptor(ReportLayout... gamepadLayouts) {
+        ReportLayout[] layouts = new ReportLayout[gamepadLayouts.length + 1];
+        System.arraycopy(gamepadLayouts, 0, layouts, 0, gamepadLayouts.length);
+        layouts[gamepadLayouts.length] = BATTERY_LAYOUT;
+        return ReportLayout.concat(layouts);
+    }
+
+    /**
+     * Create the SDP record that describes the gamepads with the specified reports.
+     *
+     * @param gamepadLayouts Layouts of the gamepad reports, one per player.
+     * @return SDP settings to register the HID Device app with.
+     */
+    static BluetoothHidDeviceAppSdpSettings createSdpSettings(ReportLayout... gamepadLayouts) {
+        return new BluetoothHidDeviceAppSdpSettings(
+                SDP_NAME,
+                SDP_DESCRIPTION,
+                SDP_PROVIDER,
+                BluetoothHidDevice.SUBCLASS2_GAMEPAD,
+                createReportDescriptor(gamepadLayouts));
+    }
+
+    /**
+     * Create the QoS parameters that allow one report of the specified size per latency period
+     * for every player, e.g. 9 bytes * 1000000 us / 11250 us = 800 bytes per second for a single
+     * standard report.
+     *
+     * @param reportSize Size of the report data, not counting the report ID.
+     * @param playerCount Number of the gamepads that send the reports independently.
+     * @return QoS parameters to register the HID Device app with.
+     */
+    static QosParameters createQosParameters(int reportSize, int playerCount) {
+        // Every player may send a report at the same moment.
+        int tokenBucketSize = (reportSize + 1) * playerCount;
+        int tokenRate = (int) ((tokenBucketSize * 1_000_000L + QOS_LATENCY - 1) / QOS_LATENCY);
+        return new QosParameters(tokenRate, tokenBucketSize, QOS_LATENCY, playerCount);
+    }
+
+    /**
+     * Create the QoS settings to register the HID Device app with.
+     *
+     * @param qos The parameters, see {@link #createQosParameters}.
+     * @return QoS settings with the same parameters.
+     */
+    static BluetoothHidDeviceAppQosSettings createQosSettings(QosParameters qos) {
+        return new BluetoothHidDeviceAppQosSettings(
+                BluetoothHidDeviceAppQosSettings.SERVICE_BEST_EFFORT,
+                qos.tokenRate,
+                qos.tokenBucketSize,
+                QOS_PEAK_BANDWIDTH,
+                qos.latencyMicros,
+                BluetoothHidDeviceAppQosSettings.MAX);
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_LED;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_PHYSICAL_INPUT;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_DURATION;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_MAGNITUDE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_PLAYER_1;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import android.bluetooth.BluetoothHidDevice;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
+import androidx.annotation.BinderThread;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays the rumble and player indicator commands that the host sends in the gamepad Output
+ * report.
+ *
+ * <p>The binder thread only decodes the report into a {@code long} and swaps it into a single
+ * atomic slot. A newer command replaces an older one that wasn't played yet, and only the first
+ * one posts to the main thread, so the binder callback never waits for the vibrator or the UI.
+ */
+class FeedbackScheduler {
+    /** Rumble without a duration is stopped after this time, in case the host never stops it. */
+    static final int MAX_RUMBLE_MILLIS = 5000;
+
+    /** Number of the player indicators in the Output report. */
+    static final int PLAYER_LED_COUNT = 4;
+
+    private static final long NO_COMMAND = -1;
+
+    private final ReportStats reportStats;
+    private final ReportDecoder decoder;
+    private final int magnitudeSlot;
+    private final int durationSlot;
+    private final int firstLedSlot;
+    private final TaskRunner mainThreadRunner;
+    private final Runnable playRunnable = this::play;
+    private final Runnable rumbleEndRunnable = this::onRumbleEnd;
+
+    /** Latest command that wasn't played yet, see {@link #onOutputReport}. */
+    private final AtomicLong pendingCommand = new AtomicLong(NO_COMMAND);
+
+    /** Arrival time of the oldest command that wasn't played yet, or {@code 0}. */
+    private final AtomicLong arrivalNanos = new AtomicLong();
+
+    /** Only accessed on the main thread. */
+    @Nullable private Vibrator vibrator;
+
+    /** Only accessed on the main thread. */
+    @Nullable private HidDataSender.FeedbackListener listener;
+
+    /** Only accessed on the main thread. */
+    private int rumble;
+
+    /** Only accessed on the main thread. */
+    private int playerLeds;
+
+    /**
+     * @param layout Layout of the gamepad report that declares the Output report.
+     * @param reportStats Counters to record the feedback latency with.
+     * @param mainThreadRunner Runs the tasks on the main thread.
+     */
+    FeedbackScheduler(ReportLayout layout, ReportStats reportStats, TaskRunner mainThreadRunner) {
+        this.reportStats = checkNotNull(reportStats);
+        this.mainThreadRunner = checkNotNull(mainThreadRunner);
+        decoder = new ReportDecoder(layout.getOutputFields(), layout.getOutputReportSize());
+        magnitudeSlot = decoder.getSlot(PAGE_PHYSICAL_INPUT, USAGE_MAGNITUDE);
+        durationSlot = decoder.getSlot(PAGE_PHYSICAL_INPUT, USAGE_DURATION);
+        firstLedSlot = decoder.getSlot(PAGE_LED, USAGE_PLAYER_1);
+    }
+
+    /**
+     * Set the vibrator to play the rumble with.
+     *
+     * @param vibrator Vibrator, or {@code null} to only report the commands to the listener.
+     */
+    @MainThread
+    void setVibrator(@Nullable Vibrator vibrator) {
+        if (this.vibrator != null && rumble > 0) {
+            this.vibrator.cancel();
+        }
+        this.vibrator = vibrator != null && vibrator.hasVibrator() ? vibrator : null;
+    }
+
+    /**
+     * Set the listener that shows the feedback on the screen.
+     *
+     * @param listener Feedback listener, or {@code null} to remove it.
+     */
+    @MainThread
+    void setListener(@Nullable HidDataSender.FeedbackListener listener) {
+        this.listener = listener;
+        if (listener != null) {
+            listener.onFeedbackChanged(rumble, playerLeds);
+        }
+    }
+
+    /**
+     * Handle the Output report. This is a {@link ReportRegistry.SetReportHandler}.
+     *
+     * @param data Buffer that holds the report data.
+     * @param offset Position of the report data in the buffer.
+     * @return Always {@link BluetoothHidDevice#ERROR_RSP_SUCCESS}.
+     */
+    @BinderThread
+    byte onOutputReport(byte[] data, int offset) {
+        long nowNanos = System.nanoTime();
+        long leds = 0;
+        for (int i = 0; i < PLAYER_LED_COUNT; i++) {
+            leds |= (long) decoder.decode(data, offset, firstLedSlot + i) << i;
+        }
+        long command =
+                decoder.decode(data, offset, magnitudeSlot)
+                        | (long) decoder.decode(data, offset, durationSlot) << 8
+                        | leds << 24;
+        arrivalNanos.compareAndSet(0, nowNanos);
+        if (pendingCommand.getAndSet(command) == NO_COMMAND) {
+            mainThreadRunner.post(playRunnable);
+        }
+        return BluetoothHidDevice.ERROR_RSP_SUCCESS;
+    }
+
+    /** Stop the rumble and turn the player indicators off, e.g. when the host is disconnected. */
+    @MainThread
+    void stop() {
+        pendingCommand.set(NO_COMMAND);
+        arrivalNanos.set(0);
+        mainThreadRunner.remove(playRunnable);
+        mainThreadRunner.remove(rumbleEndRunnable);
+        if (vibrator != null && rumble > 0) {
+            vibrator.cancel();
+        }
+        setState(0, 0);
+    }
+
+    @MainThread
+    private void play() {
+        // The command goes first: the binder thread sets the arrival time before the command, so
+        // the time we take next is never newer than the command. A command that lands in between
+        // finds the arrival time taken, and is played without a latency sample.
+        long command = pendingCommand.getAndSet(NO_COMMAND);
+        long arrival = arrivalNanos.getAndSet(0);
+        if (command == NO_COMMAND) {
+            return;
+        }
+        int magnitude = (int) (command & 0xFF);
+        int durationMillis = (int) ((command >>> 8) & 0xFFFF);
+        int leds = (int) (command >>> 24);
+        if (durationMillis == 0 || durationMillis > MAX_RUMBLE_MILLIS) {
+            durationMillis = MAX_RUMBLE_MILLIS;
+        }
+
+        mainThreadRunner.remove(rumbleEndRunnable);
+        if (vibrator != null) {
+            if (magnitude > 0) {
+                // The amplitude has the same 1-255 range as the magnitude.
+                vibrator.vibrate(VibrationEffect.createOneShot(durationMillis, magnitude));
+                if (arrival != 0) {
+                    reportStats.onFeedbackPlayed(System.nanoTime() - arrival);
+                }
+            } else if (rumble > 0) {
+                vibrator.cancel();
+            }
+        }
+        if (magnitude > 0) {
+            mainThreadRunner.postDelayed(rumbleEndRunnable, durationMillis);
+        }
+        setState(magnitude, leds);
+    }
+
+    @MainThread
+    private void onRumbleEnd() {
+        // The vibrator stops by itself, only the indicator needs to be updated.
+        setState(0, playerLeds);
+    }
+
+    @MainThread
+    private void setState(int rumble, int playerLeds) {
+        boolean changed = rumble != this.rumble || playerLeds != this.playerLeds;
+        this.rumble = rumble;
+        this.playerLeds = playerLeds;
+        if (changed && listener != null) {
+            listener.onFeedbackChanged(rumble, playerLeds);
+        }
+    }
+}
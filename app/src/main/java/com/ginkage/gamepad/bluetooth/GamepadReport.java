@@ -16,51 +16,85 @@
 
 package com.ginkage.gamepad.bluetooth;
 
-import java.util.Arrays;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.Nullable;
 
 /** Helper class to store the gamepad state and retrieve the binary report. */
 class GamepadReport {
-    private final byte[] gamepadData = "BDLLRRTT".getBytes();
+    private final ReportFormat format;
+    private final byte[] gamepadData;
+    private final ReportSnapshot snapshot;
+
+    /** Only used to avoid allocations when packing the caller's state. */
+    private final PackedState packed = new PackedState();
+
+    /** Only used to avoid remapping the caller's state in place. */
+    private final PackedState remapped = new PackedState();
+
+    @Nullable private volatile ButtonRemap buttonRemap;
+
+    /** @param format Format of the report, see {@link ReportFormat}. */
+    GamepadReport(ReportFormat format) {
+        this.format = checkNotNull(format);
+        this.gamepadData = new byte[format.getReportSize()];
+        this.snapshot = new ReportSnapshot(gamepadData.length);
+    }
+
+    /** @return Format of the report. */
+    ReportFormat getFormat() {
+        return format;
+    }
 
-    GamepadReport() {
-        Arrays.fill(gamepadData, (byte) 0);
+    /**
+     * Select the button mapping that is applied to the following reports.
+     *
+     * @param map Button mapping, or {@code null} to report every button as itself.
+     */
+    @AnyThread
+    void setButtonMap(@Nullable ButtonMap map) {
+        buttonRemap = map == null || map.isIdentity() ? null : new ButtonRemap(map, format);
     }
 
     /**
-     * Convert the state structure to the binary representation.
+     * Convert the state structure to the binary representation. The returned array is only valid
+     * until the next call, use {@link #getReport()} to read the report from another thread.
      *
      * @param s The gamepad state to serialize
      */
     byte[] setValue(GamepadState s) {
-        // 11 buttons: A, B, X, Y, L1, R1, L3, R3, Power, Back, Home (1 bit per button), 1 bit padding
-        // 4 bits for D-pad rotation values 0-7 -> 0-315 (360 - 45)
-        // 6x 8-bit values for LX/LY, RX/RY, L2/R2
-        gamepadData[0] = 0;
-        gamepadData[0] |= (byte) (s.a ? 0x01 : 0);
-        gamepadData[0] |= (byte) (s.b ? 0x02 : 0);
-        gamepadData[0] |= (byte) (s.x ? 0x04 : 0);
-        gamepadData[0] |= (byte) (s.y ? 0x08 : 0);
-        gamepadData[0] |= (byte) (s.l1 ? 0x10 : 0);
-        gamepadData[0] |= (byte) (s.r1 ? 0x20 : 0);
-        gamepadData[0] |= (byte) (s.l3 ? 0x40 : 0);
-        gamepadData[0] |= (byte) (s.r3 ? 0x80 : 0);
-        gamepadData[1] = 0;
-        gamepadData[1] |= (byte) (s.start ? 0x01 : 0);
-        gamepadData[1] |= (byte) (s.back ? 0x02 : 0);
-        gamepadData[1] |= (byte) (s.home ? 0x04 : 0);
-        gamepadData[1] |= (byte) (s.dpad << 4);
-        gamepadData[2] = (byte) s.lx;
-        gamepadData[3] = (byte) s.ly;
-        gamepadData[4] = (byte) s.rx;
-        gamepadData[5] = (byte) s.ry;
-        gamepadData[6] = (byte) s.l2;
-        gamepadData[7] = (byte) s.r2;
+        format.pack(s, packed);
+        return setValue(packed);
+    }
+
+    /**
+     * Convert the packed state to the binary representation. The returned array is only valid
+     * until the next call, use {@link #getReport()} to read the report from another thread.
+     *
+     * @param packed The gamepad state packed with {@link ReportFormat#pack}
+     */
+    byte[] setValue(PackedState packed) {
+        ButtonRemap buttonRemap = this.buttonRemap;
+        if (buttonRemap != null) {
+            remapped.copyFrom(packed);
+            buttonRemap.apply(remapped);
+            packed = remapped;
+        }
+        format.write(packed, gamepadData);
+        snapshot.publish(gamepadData);
         return gamepadData;
     }
 
+    /**
+     * Get a consistent copy of the last completed report, safe to call from any thread.
+     *
+     * @return Byte array that represents the report
+     */
+    @AnyThread
     byte[] getReport() {
-    return gamepadData;
-  }
+        return snapshot.read();
+    }
 
     /** Interface to send the Mouse data with. */
     public interface GamepadDataSender {
@@ -33,13 +33,14 @@ public class GamepadState {
     // 0=up, 2=right, 4=down, 6=left, 8=release
     public int dpad;
 
-    // Sticks: Up=0, Down=255, Left=0, Right=255, Center=128
+    // Sticks: Up=0, Down=max, Left=0, Right=max, Center=(max+1)/2,
+    // where max is ReportFormat.getAxisMaximum(), i.e. 255 for the standard format
     public int lx;
     public int ly;
     public int rx;
     public int ry;
 
-    // Triggers: Released=0, Pressed=255
+    // Triggers: Released=0, Pressed=max
     public int l2;
     public int r2;
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/** Runs the tasks on a {@link Looper}. */
+final class HandlerTaskRunner implements TaskRunner {
+    private final Handler handler;
+
+    /** @param looper Looper of the thread to run the tasks on. */
+    HandlerTaskRunner(Looper looper) {
+        handler = new Handler(checkNotNull(looper));
+    }
+
+    @Override
+    public void post(Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void remove(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return handler.getLooper().isCurrentThread();
+    }
+}
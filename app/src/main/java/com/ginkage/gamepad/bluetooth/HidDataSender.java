@@ -16,7 +16,9 @@
 
 package com.ginkage.gamepad.bluetooth;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothHidDevice;
@@ -26,23 +28,57 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.BatteryManager;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Vibrator;
+import androidx.annotation.AnyThread;
+import androidx.annotation.BinderThread;
 import androidx.annotation.MainThread;
+import androidx.annotation.VisibleForTesting;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import com.ginkage.gamepad.bluetooth.HidDeviceProfile.ServiceStateListener;
+import com.google.common.base.Ticker;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /** Central point for enabling the HID SDP record and sending all data. */
 public class HidDataSender implements GamepadReport.GamepadDataSender {
 
+    /** Maximum number of the virtual gamepads, see {@link #setPlayerCount}. */
+    public static final int MAX_PLAYERS = Constants.MAX_PLAYERS;
+
     private static final String TAG = "HidDataSender";
+    private static final String SENDER_THREAD_NAME = "HidDataSender";
+
+    /** How often the battery level may be reported while idle. */
+    private static final long IDLE_BATTERY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
 
     /** Compound interface that listens to both device and service state changes. */
     public interface ProfileListener
             extends HidDeviceApp.DeviceStateListener, ServiceStateListener {}
 
+    /** Used to show the feedback that the host sends to the gamepad. */
+    public interface FeedbackListener {
+        /**
+         * Callback that receives the new feedback state.
+         *
+         * @param rumble Rumble strength, 0-255, {@code 0} if the rumble is stopped.
+         * @param playerLeds Player indicators, bit 0 for the player 1, etc.
+         */
+        @MainThread
+        void onFeedbackChanged(int rumble, int playerLeds);
+    }
+
     private final ProfileListener profileListener =
             new ProfileListener() {
                 @Override
@@ -109,11 +145,82 @@ public class HidDataSender implements GamepadReport.GamepadDataSender {
                 }
             };
 
+    /**
+     * Immutable snapshot of where the gamepad reports should go and in what format. It is replaced
+     * as a whole every time the connection, the format or the sender thread changes, so neither
+     * the send path nor the getters ever need the lock.
+     */
+    private static final class SendTarget {
+        final ReportFormat reportFormat;
+        final int playerCount;
+
+        /** One scheduler per player, or {@code null} if no host is connected. */
+        @Nullable final ReportScheduler[] reportSchedulers;
+
+        SendTarget(
+                ReportFormat reportFormat,
+                int playerCount,
+                @Nullable ReportScheduler[] reportSchedulers) {
+            this.reportFormat = reportFormat;
+            this.playerCount = playerCount;
+            this.reportSchedulers = reportSchedulers;
+        }
+    }
+
+    /**
+     * Follows the idle state of one set of schedulers, and drops the sender thread priority when
+     * all of them are idle. It is only called on the sender thread and never takes the lock, so a
+     * publishing thread that wakes a scheduler up never waits for the connection management.
+     */
+    private final class IdleTracker implements ReportScheduler.IdleListener {
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final int schedulerCount;
+
+        /** Priority of the dedicated sender thread, or {@code null} if there is none. */
+        @Nullable private final Integer threadPriority;
+
+        IdleTracker(int schedulerCount, @Nullable Integer threadPriority) {
+            this.schedulerCount = schedulerCount;
+            this.threadPriority = threadPriority;
+        }
+
+        @Override
+        @AnyThread
+        public void onIdleChanged(boolean idle) {
+            if (idle) {
+                // Only go idle when the last player does.
+                if (idleCount.incrementAndGet() < schedulerCount) {
+                    return;
+                }
+            } else if (idleCount.getAndDecrement() < schedulerCount) {
+                // Some other player is awake already.
+                return;
+            }
+            if (this != idleTracker) {
+                // The schedulers were replaced, the new ones start awake.
+                return;
+            }
+            if (threadPriority != null) {
+                Process.setThreadPriority(
+                        idle ? Process.THREAD_PRIORITY_DEFAULT : threadPriority);
+            }
+            // Both directions are posted from the same thread, so they arrive in order.
+            mainThreadRunner.post(idle ? enterIdleRunnable : exitIdleRunnable);
+        }
+    }
+
     static final class InstanceHolder {
         static final HidDataSender INSTANCE = createInstance();
 
         private static HidDataSender createInstance() {
-            return new HidDataSender(new HidDeviceApp(), new HidDeviceProfile());
+            ReportStats reportStats = new ReportStats();
+            TaskRunner mainThreadRunner = new HandlerTaskRunner(Looper.getMainLooper());
+            return new HidDataSender(
+                    new HidDeviceApp(reportStats, mainThreadRunner),
+                    new HidDeviceProfile(),
+                    reportStats,
+                    mainThreadRunner,
+                    Ticker.systemTicker());
         }
     }
 
@@ -127,8 +234,21 @@ public class HidDataSender implements GamepadReport.GamepadDataSender {
 
     private final HidDeviceApp hidDeviceApp;
     private final HidDeviceProfile hidDeviceProfile;
+    private final ReportStats reportStats;
+    private final FeedbackScheduler feedbackScheduler;
+    private final SettingsReport settingsReport;
+    private final AxisFilter axisFilter;
+
+    /** One filter per player, they all share the dead bands of {@link #axisFilter}. */
+    private final AxisFilter[] axisFilters = new AxisFilter[MAX_PLAYERS];
 
-    private final Object lock = new Object();
+    private final TaskRunner mainThreadRunner;
+    private final Ticker ticker;
+    private final Runnable enterIdleRunnable = () -> onIdleChanged(true);
+    private final Runnable exitIdleRunnable = () -> onIdleChanged(false);
+
+    /** Guards the connection management, the send path never takes it. */
+    @VisibleForTesting final Object lock = new Object();
 
     @GuardedBy("lock")
     private final Set<ProfileListener> listeners = new ArraySet<>();
@@ -144,13 +264,116 @@ public class HidDataSender implements GamepadReport.GamepadDataSender {
     @GuardedBy("lock")
     private boolean isAppRegistered;
 
+    @GuardedBy("lock")
+    @Nullable
+    private HandlerThread senderThread;
+
+    /** One scheduler per player, replaced as a whole. */
+    @GuardedBy("lock")
+    private ReportScheduler[] reportSchedulers;
+
+    /** Written under the lock, read without it by the current schedulers' idle callbacks. */
+    private volatile IdleTracker idleTracker;
+
+    @GuardedBy("lock")
+    private int senderThreadPriority;
+
+    @GuardedBy("lock")
+    private ReportFormat reportFormat = ReportFormat.STANDARD;
+
+    @GuardedBy("lock")
+    private int playerCount = 1;
+
+    /** Button mappings by the host address. */
+    @GuardedBy("lock")
+    private final Map<String, ButtonMap> buttonMaps = new ArrayMap<>();
+
+    /** Requested polling rate, may be higher than what the QoS settings allow. */
+    @GuardedBy("lock")
+    private int pollingRate;
+
+    @GuardedBy("lock")
+    private int coalescingWindowMicros;
+
+    /**
+     * Settings that the schedulers and the filters run with, replaced as a whole under the lock
+     * and read without it. Every report reads one snapshot, so all the players switch at once and
+     * neither they nor the host ever see the rate of one change with the window of another.
+     */
+    private final AtomicReference<SendSettings> sendSettings;
+
+    /** Sends the reports without a connected host, see {@link #connectForTesting}. */
+    @GuardedBy("lock")
+    private boolean connectedForTesting;
+
+    @GuardedBy("lock")
+    private long idleTimeoutMillis = ReportScheduler.DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    /** Only accessed on the main thread. */
+    private boolean isIdle;
+
+    /** Only accessed on the main thread. */
+    private long lastBatteryReportMillis;
+
+    /** Only accessed on the main thread. */
+    private float pendingBatteryLevel = Float.NaN;
+
+    /** Written under the lock, read without it by {@link #sendGamepad} and the getters. */
+    private volatile SendTarget sendTarget;
+
     /**
      * @param hidDeviceApp HID Device App interface.
      * @param hidDeviceProfile Interface to manage paired HID Host devices.
+     * @param reportStats Counters shared with the HID Device App.
+     * @param mainThreadRunner Runs the tasks on the main thread.
+     * @param ticker Source of the time for the schedulers, in nanoseconds.
      */
-    private HidDataSender(HidDeviceApp hidDeviceApp, HidDeviceProfile hidDeviceProfile) {
+    @VisibleForTesting
+    HidDataSender(
+            HidDeviceApp hidDeviceApp,
+            HidDeviceProfile hidDeviceProfile,
+            ReportStats reportStats,
+            TaskRunner mainThreadRunner,
+            Ticker ticker) {
         this.hidDeviceApp = checkNotNull(hidDeviceApp);
         this.hidDeviceProfile = checkNotNull(hidDeviceProfile);
+        this.reportStats = checkNotNull(reportStats);
+        this.mainThreadRunner = checkNotNull(mainThreadRunner);
+        this.ticker = checkNotNull(ticker);
+        this.coalescingWindowMicros = reportFormat.getQosParameters(playerCount).latencyMicros;
+        this.sendSettings =
+                new AtomicReference<>(
+                        SendSettings.create(
+                                TimeUnit.MICROSECONDS.toNanos(coalescingWindowMicros)));
+        this.axisFilter = new AxisFilter(sendSettings);
+        axisFilters[0] = axisFilter;
+        for (int player = 1; player < MAX_PLAYERS; player++) {
+            axisFilters[player] = axisFilter.newSharedFilter();
+        }
+        this.reportSchedulers = createReportSchedulers(mainThreadRunner);
+        configureReportSchedulers();
+        updateSendTarget();
+        // The Output report is the same in every format.
+        this.feedbackScheduler =
+                new FeedbackScheduler(Constants.GAMEPAD_LAYOUT, reportStats, mainThreadRunner);
+        hidDeviceApp
+                .getReportRegistry()
+                .register(
+                        BluetoothHidDevice.REPORT_TYPE_OUTPUT,
+                        Constants.ID_GAMEPAD,
+                        Constants.GAMEPAD_LAYOUT.getOutputReportSize(),
+                        null,
+                        feedbackScheduler::onOutputReport);
+        this.settingsReport =
+                new SettingsReport(Constants.GAMEPAD_LAYOUT, this::applySettings, mainThreadRunner);
+        hidDeviceApp
+                .getReportRegistry()
+                .register(
+                        BluetoothHidDevice.REPORT_TYPE_FEATURE,
+                        Constants.ID_GAMEPAD,
+                        settingsReport.getReportSize(),
+                        this::getSettingsReport,
+                        settingsReport::onSetReport);
     }
 
     /**
@@ -187,6 +410,7 @@ public class HidDataSender implements GamepadReport.GamepadDataSender {
             hidDeviceApp.registerDeviceListener(profileListener);
             context.registerReceiver(
                     batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            feedbackScheduler.setVibrator(context.getSystemService(Vibrator.class));
         }
         return hidDeviceProfile;
     }
@@ -213,6 +437,8 @@ public class HidDataSender implements GamepadReport.GamepadDataSender {
             context = checkNotNull(context).getApplicationContext();
             context.unregisterReceiver(batteryReceiver);
             hidDeviceApp.unregisterDeviceListener();
+            feedbackScheduler.stop();
+            feedbackScheduler.setVibrator(null);
 
             for (BluetoothDevice device : hidDeviceProfile.getConnectedDevices()) {
                 hidDeviceProfile.disconnect(device);
@@ -225,6 +451,7 @@ public class HidDataSender implements GamepadReport.GamepadDataSender {
 
             connectedDevice = null;
             waitingForDevice = null;
+            updateSendTarget();
         }
     }
 
@@ -255,14 +482,371 @@ public class HidDataSender implements GamepadReport.GamepadDataSender {
         }
     }
 
-    /** Send the Gamepad data to the connected HID Host device. */
-    @Override
+    /**
+     * Start encoding and sending the Gamepad reports on a dedicated thread instead of the calling
+     * one. After this call, {@link #sendGamepad} only publishes the latest state, so any binder
+     * call delays on the Bluetooth side will never block the UI thread. Callers that want the
+     * reports to be sent at a steady pace should also request the sustained performance mode for
+     * their window.
+     *
+     * @param threadPriority Linux priority of the sender thread, see {@link
+     *     android.os.Process#setThreadPriority(int)}.
+     */
     @MainThread
-    public void sendGamepad(GamepadState state) {
+    public void startSenderThread(int threadPriority) {
+        synchronized (lock) {
+            if (senderThread != null) {
+                // The thread is already running
+                return;
+            }
+            senderThreadPriority = threadPriority;
+            senderThread = new HandlerThread(SENDER_THREAD_NAME, threadPriority);
+            senderThread.start();
+            replaceReportSchedulers();
+            // The new schedulers start awake.
+            onIdleChanged(false);
+        }
+    }
+
+    /** Stop the dedicated sender thread and go back to sending the reports on the calling thread. */
+    @MainThread
+    public void stopSenderThread() {
         synchronized (lock) {
-            if (connectedDevice != null) {
-                hidDeviceApp.sendGamepad(state);
+            if (senderThread == null) {
+                return;
             }
+            senderThread.quitSafely();
+            senderThread = null;
+            replaceReportSchedulers();
+            onIdleChanged(false);
+        }
+    }
+
+    /**
+     * Select how the gamepad reports are sent. By default, a report is sent whenever the state
+     * changes. Some hosts prefer a steady report rate instead, like the one of a USB gamepad that
+     * is polled at a fixed interval; in that mode the current state is sampled and sent on a fixed
+     * schedule, whether it has changed or not.
+     *
+     * @param rateHz Number of reports per second, e.g. 125, 250 or 500, or {@code 0} to go back to
+     *     event-driven sending. The rate is capped to what the QoS settings allow.
+     * @return Actual polling rate, which may be lower than requested.
+     */
+    @MainThread
+    public int setPollingRate(int rateHz) {
+        synchronized (lock) {
+            pollingRate = Math.max(rateHz, 0);
+            return configureReportSchedulers();
+        }
+    }
+
+    /**
+     * Set the shortest time between two reports of the analog changes. The changes that happen
+     * within the window are coalesced, so only the newest state is sent when it ends. Button
+     * presses are never held back by the window.
+     *
+     * @param windowMicros Coalescing window in microseconds, or {@code 0} to send every change
+     *     right away. The QoS latency of the report format is used by default.
+     */
+    @MainThread
+    public void setCoalescingWindow(int windowMicros) {
+        checkArgument(windowMicros >= 0, "Window must not be negative");
+        synchronized (lock) {
+            coalescingWindowMicros = windowMicros;
+            configureReportSchedulers();
+        }
+    }
+
+    /** @return Coalescing window in microseconds, see {@link #setCoalescingWindow}. */
+    @AnyThread
+    public int getCoalescingWindow() {
+        return (int) TimeUnit.NANOSECONDS.toMicros(sendSettings.get().windowNanos);
+    }
+
+    /**
+     * Set the time without any gamepad state changes after which we go idle. While idle, no
+     * gamepad reports are sent, the battery level is reported less often and the sender thread
+     * drops its elevated priority. The next state change wakes everything up and is sent right
+     * away.
+     *
+     * @param timeoutMillis Idle timeout, or {@code 0} to never go idle.
+     */
+    @MainThread
+    public void setIdleTimeout(long timeoutMillis) {
+        synchronized (lock) {
+            idleTimeoutMillis = timeoutMillis;
+            for (ReportScheduler scheduler : reportSchedulers) {
+                scheduler.setIdleTimeout(timeoutMillis);
+            }
+        }
+    }
+
+    /**
+     * Select the format of the gamepad reports. The format is a part of the SDP record, so it can
+     * only be changed before the first {@link #register} call, or after the last listener has been
+     * unregistered.
+     *
+     * @param format Report format, {@link ReportFormat#STANDARD} by default.
+     */
+    @MainThread
+    public void setReportFormat(ReportFormat format) {
+        synchronized (lock) {
+            checkState(listeners.isEmpty(), "The report format must be set before register()");
+            if (reportFormat == checkNotNull(format)) {
+                return;
+            }
+            reportFormat = format;
+            coalescingWindowMicros = format.getQosParameters(playerCount).latencyMicros;
+            hidDeviceApp.setReportFormat(format);
+            replaceReportSchedulers();
+            onIdleChanged(false);
+        }
+    }
+
+    /** @return Format of the gamepad reports, see {@link #setReportFormat}. */
+    @AnyThread
+    public ReportFormat getReportFormat() {
+        return sendTarget.reportFormat;
+    }
+
+    /**
+     * Select the number of the virtual gamepads, e.g. for a split-screen game that two people
+     * play on one device. Every gamepad is a separate application collection with its own report
+     * ID, so the host sees them as separate controllers, but they all share one HID Device app and
+     * one connection. The reports of every player are coalesced and shaped independently, and the
+     * QoS settings leave room for all of them.
+     *
+     * <p>Like the report format, the number of players is a part of the SDP record, so it can
+     * only be changed before the first {@link #register} call, or after the last listener has
+     * been unregistered.
+     *
+     * @param count Number of the players, {@code 1} (the default) to {@link #MAX_PLAYERS}.
+     */
+    @MainThread
+    public void setPlayerCount(int count) {
+        checkArgument(count > 0 && count <= MAX_PLAYERS, "Invalid player count: %s", count);
+        synchronized (lock) {
+            checkState(listeners.isEmpty(), "The player count must be set before register()");
+            if (playerCount == count) {
+                return;
+            }
+            playerCount = count;
+            hidDeviceApp.setPlayerCount(count);
+            replaceReportSchedulers();
+            onIdleChanged(false);
+        }
+    }
+
+    /** @return Number of the virtual gamepads, see {@link #setPlayerCount}. */
+    @AnyThread
+    public int getPlayerCount() {
+        return sendTarget.playerCount;
+    }
+
+    /**
+     * Set the button mapping for one of the hosts. The mapping is selected automatically whenever
+     * that host is connected, and is compiled into lookup tables, so it doesn't slow down the
+     * sending of the reports.
+     *
+     * @param address Bluetooth address of the host, see {@link BluetoothDevice#getAddress()}.
+     * @param map Button mapping, or {@code null} to report every button as itself. The mapping is
+     *     copied, later changes to it have no effect until it's set again.
+     */
+    @MainThread
+    public void setButtonMap(String address, @Nullable ButtonMap map) {
+        synchronized (lock) {
+            if (map == null || map.isIdentity()) {
+                buttonMaps.remove(checkNotNull(address));
+            } else {
+                buttonMaps.put(checkNotNull(address), new ButtonMap(map));
+            }
+            updateButtonMap();
+        }
+    }
+
+    /**
+     * Get the button mapping of one of the hosts.
+     *
+     * @param address Bluetooth address of the host, see {@link BluetoothDevice#getAddress()}.
+     * @return A copy of the button mapping, the identity mapping if none was set.
+     */
+    @MainThread
+    public ButtonMap getButtonMap(String address) {
+        synchronized (lock) {
+            ButtonMap map = buttonMaps.get(checkNotNull(address));
+            return map != null ? new ButtonMap(map) : new ButtonMap();
+        }
+    }
+
+    /**
+     * Set the listener that shows the rumble and the player indicators that the host sends. The
+     * vibrator is driven without it, as long as the app has the {@code VIBRATE} permission.
+     *
+     * @param listener Feedback listener, or {@code null} to remove it.
+     */
+    @MainThread
+    public void setFeedbackListener(@Nullable FeedbackListener listener) {
+        feedbackScheduler.setListener(listener);
+    }
+
+    /**
+     * Get the counters that describe how many gamepad states were published and how many reports
+     * were actually sent after coalescing.
+     *
+     * @return Live report counters.
+     */
+    public ReportStats getReportStats() {
+        return reportStats;
+    }
+
+    /**
+     * Get the hysteresis settings of the analog axes. Changes take effect on the next report.
+     *
+     * @return Live axis filter.
+     */
+    public AxisFilter getAxisFilter() {
+        return axisFilter;
+    }
+
+    /**
+     * Send the Gamepad data to the connected HID Host device. The states published within one
+     * QoS latency window are coalesced, so only the newest one will be sent, and the reports are
+     * shaped to the registered QoS token rate. This never waits for the connection management, so
+     * a slow connection state change doesn't delay the input.
+     */
+    @Override
+    @AnyThread
+    public void sendGamepad(GamepadState state) {
+        sendGamepad(0, state);
+    }
+
+    /**
+     * Send the Gamepad data of one of the players, see {@link #sendGamepad(GamepadState)}. Every
+     * player's reports are sent independently, so one player's stick movements never hold back
+     * another one's button presses.
+     *
+     * @param player Player index, {@code 0} to {@code getPlayerCount() - 1}. The states of the
+     *     players beyond the player count are ignored.
+     * @param state The current state of the player's gamepad.
+     */
+    @AnyThread
+    public void sendGamepad(int player, GamepadState state) {
+        ReportScheduler[] schedulers = sendTarget.reportSchedulers;
+        if (schedulers != null && player >= 0 && player < schedulers.length) {
+            schedulers[player].publish(state);
+        }
+    }
+
+    /**
+     * Send the reports as if a host was connected. The unit tests can't create a {@link
+     * BluetoothDevice}, so they use this instead of the connection callbacks.
+     */
+    @VisibleForTesting
+    void connectForTesting() {
+        synchronized (lock) {
+            connectedForTesting = true;
+            updateSendTarget();
+        }
+    }
+
+    @GuardedBy("lock")
+    private ReportScheduler[] createReportSchedulers(TaskRunner taskRunner) {
+        ReportScheduler[] schedulers = new ReportScheduler[playerCount];
+        IdleTracker tracker =
+                new IdleTracker(playerCount, senderThread != null ? senderThreadPriority : null);
+        idleTracker = tracker;
+        for (int player = 0; player < playerCount; player++) {
+            ReportScheduler scheduler =
+                    new ReportScheduler(
+                            hidDeviceApp::sendGamepad,
+                            reportStats,
+                            axisFilters[player],
+                            sendSettings,
+                            tracker,
+                            taskRunner,
+                            ticker,
+                            reportFormat,
+                            reportFormat.getQosParameters(playerCount),
+                            player);
+            scheduler.setIdleTimeout(idleTimeoutMillis);
+            schedulers[player] = scheduler;
+        }
+        return schedulers;
+    }
+
+    /** Drop the current schedulers and start new ones on the current sender thread. */
+    @GuardedBy("lock")
+    private void replaceReportSchedulers() {
+        for (ReportScheduler scheduler : reportSchedulers) {
+            scheduler.cancel();
+        }
+        reportSchedulers =
+                createReportSchedulers(
+                        senderThread != null
+                                ? new HandlerTaskRunner(senderThread.getLooper())
+                                : mainThreadRunner);
+        configureReportSchedulers();
+        updateSendTarget();
+    }
+
+    /**
+     * Apply the polling rate and the coalescing window to the current schedulers, see {@link
+     * #configureReportSchedulers(UnaryOperator)}.
+     */
+    @GuardedBy("lock")
+    private int configureReportSchedulers() {
+        return configureReportSchedulers(UnaryOperator.identity());
+    }
+
+    /**
+     * Publish the polling rate and the coalescing window, along with any other changes, as one new
+     * snapshot of the settings, and let the current schedulers pick it up.
+     *
+     * @param update Other changes to make in the same snapshot.
+     * @return Actual polling rate, which may be lower than requested, or {@code 0} if the reports
+     *     are sent on change.
+     */
+    @GuardedBy("lock")
+    private int configureReportSchedulers(UnaryOperator<SendSettings> update) {
+        long windowNanos = TimeUnit.MICROSECONDS.toNanos(coalescingWindowMicros);
+        // All the players have the same share of the QoS settings, and so the same period.
+        long periodNanos = reportSchedulers[0].getPollingPeriodNanos(pollingRate, windowNanos);
+        sendSettings.updateAndGet(s -> update.apply(s.withPolling(periodNanos, windowNanos)));
+        for (ReportScheduler scheduler : reportSchedulers) {
+            scheduler.onSettingsChanged();
+        }
+        return getPollingRate(periodNanos);
+    }
+
+    private static int getPollingRate(long periodNanos) {
+        return periodNanos > 0 ? (int) (TimeUnit.SECONDS.toNanos(1) / periodNanos) : 0;
+    }
+
+    /**
+     * Encode the settings that the send path runs with, without waiting for the main thread. The
+     * polling rate is the capped one, not the one that was asked for.
+     */
+    @BinderThread
+    private byte[] getSettingsReport() {
+        SendSettings settings = sendSettings.get();
+        return settingsReport.encode(
+                getPollingRate(settings.pollingPeriodNanos),
+                (int) TimeUnit.NANOSECONDS.toMicros(settings.windowNanos),
+                settings.getDeadBand(AxisFilter.AXIS_LX),
+                settings.getDeadBand(AxisFilter.AXIS_L2));
+    }
+
+    /**
+     * Apply the settings that the host has sent in the Feature report. They take effect together,
+     * with the next report of every player.
+     */
+    @MainThread
+    private void applySettings(
+            int pollingRate, int windowMicros, int stickDeadBand, int triggerDeadBand) {
+        synchronized (lock) {
+            this.pollingRate = pollingRate;
+            coalescingWindowMicros = windowMicros;
+            configureReportSchedulers(s -> s.withDeadBands(stickDeadBand, triggerDeadBand));
         }
     }
 
@@ -299,9 +883,46 @@ public class HidDataSender implements GamepadReport.GamepadDataSender {
                 waitingForDevice = null;
             } else if (connectedDevice != null && connected == null) {
                 connectedDevice = null;
+                feedbackScheduler.stop();
             }
+            updateButtonMap();
             hidDeviceApp.setDevice(connectedDevice);
+            updateSendTarget();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void updateButtonMap() {
+        hidDeviceApp.setButtonMap(
+                connectedDevice != null ? buttonMaps.get(connectedDevice.getAddress()) : null);
+    }
+
+    @GuardedBy("lock")
+    private void updateSendTarget() {
+        boolean connected = connectedDevice != null || connectedForTesting;
+        sendTarget =
+                new SendTarget(reportFormat, playerCount, connected ? reportSchedulers : null);
+    }
+
+    @MainThread
+    private void onIdleChanged(boolean idle) {
+        isIdle = idle;
+        if (!idle && !Float.isNaN(pendingBatteryLevel)) {
+            // Catch up with the battery level changes we have skipped while idle.
+            sendBatteryLevel(pendingBatteryLevel);
+        }
+    }
+
+    @MainThread
+    private void sendBatteryLevel(float batteryLevel) {
+        long nowMillis = SystemClock.elapsedRealtime();
+        if (isIdle && nowMillis - lastBatteryReportMillis < IDLE_BATTERY_INTERVAL_MILLIS) {
+            pendingBatteryLevel = batteryLevel;
+            return;
         }
+        pendingBatteryLevel = Float.NaN;
+        lastBatteryReportMillis = nowMillis;
+        hidDeviceApp.sendBatteryLevel(batteryLevel);
     }
 
     @MainThread
@@ -310,7 +931,7 @@ public class HidDataSender implements GamepadReport.GamepadDataSender {
         int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
         if (level >= 0 && scale > 0) {
             float batteryLevel = (float) level / (float) scale;
-            hidDeviceApp.sendBatteryLevel(batteryLevel);
+            sendBatteryLevel(batteryLevel);
         } else {
             Log.e(TAG, "Bad battery level data received: level=" + level + ", scale=" + scale);
         }
@@ -16,17 +16,19 @@
 
 package com.ginkage.gamepad.bluetooth;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothHidDevice;
 import android.bluetooth.BluetoothProfile;
-import android.os.Handler;
-import android.os.Looper;
+import androidx.annotation.AnyThread;
 import androidx.annotation.BinderThread;
 import androidx.annotation.MainThread;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import android.util.Log;
+import java.util.Objects;
 
 /** Helper class that holds all data about the HID Device's SDP record and wraps data sending. */
 public class HidDeviceApp
@@ -35,6 +37,18 @@ public class HidDeviceApp
 
     private static final String TAG = "HidDeviceApp";
 
+    /** The report was handed over to the Bluetooth stack. */
+    static final int SEND_OK = 0;
+    /** The report was identical to the previous one, so it wasn't sent. */
+    static final int SEND_UNCHANGED = 1;
+    /** There is no HID Host to send the report to. */
+    static final int SEND_NO_DEVICE = 2;
+    /** The Bluetooth stack refused the report, e.g. due to congestion. */
+    static final int SEND_FAILED = 3;
+
+    private static final int MAX_BATTERY_RETRIES = 3;
+    private static final long BATTERY_RETRY_DELAY_MS = 1000;
+
     /** Used to call back when a device connection state has changed. */
     public interface DeviceStateListener {
         /**
@@ -51,11 +65,41 @@ public class HidDeviceApp
         void onAppStatusChanged(boolean registered);
     }
 
-    private final GamepadReport gamepadReport = new GamepadReport();
+    /** Report buffer and the send state of one of the virtual gamepads. */
+    private static final class Player {
+        final GamepadReport gamepadReport;
+        final PackedState lastGamepadState = new PackedState();
+
+        volatile boolean gamepadResendRequired = true;
+
+        Player(ReportFormat format) {
+            gamepadReport = new GamepadReport(format);
+        }
+    }
+
     private final BatteryReport batteryReport = new BatteryReport();
-    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    private final TaskRunner mainThreadRunner;
+    private final Runnable batteryRetryRunnable = this::retryBatteryLevel;
+    private final ReportStats reportStats;
+    private final ReportRegistry reportRegistry = new ReportRegistry();
+    private int batteryRetryCount;
+
+    /** Only accessed on the main thread, used to avoid allocations in {@link #sendGamepad}. */
+    private final PackedState packedState = new PackedState();
+
+    /**
+     * One entry for every possible player, replaced on the main thread while the app is not
+     * registered.
+     */
+    private volatile Player[] players = createPlayers(ReportFormat.STANDARD);
 
-    @Nullable private BluetoothDevice device;
+    /** Only accessed on the main thread. */
+    private int playerCount = 1;
+
+    /** Only accessed on the main thread. */
+    @Nullable private ButtonMap buttonMap;
+
+    @Nullable private volatile BluetoothDevice device;
     @Nullable private DeviceStateListener deviceStateListener;
 
     /** Callback to receive the HID Device's SDP record state. */
@@ -81,14 +125,16 @@ public class HidDeviceApp
                 public void onGetReport(
                         BluetoothDevice device, byte type, byte id, int bufferSize) {
                     super.onGetReport(device, type, id, bufferSize);
-                    if (proxy != null) {
-                        if (type != BluetoothHidDevice.REPORT_TYPE_INPUT) {
-                            proxy.reportError(
-                                    device, BluetoothHidDevice.ERROR_RSP_UNSUPPORTED_REQ);
-                        } else if (!replyReport(device, type, id)) {
-                            proxy.reportError(
-                                    device, BluetoothHidDevice.ERROR_RSP_INVALID_RPT_ID);
-                        }
+                    BluetoothHidDevice proxy = HidDeviceApp.this.proxy;
+                    if (proxy == null) {
+                        return;
+                    }
+                    ReportRegistry.Report report = reportRegistry.find(type, id);
+                    if (report == null || report.getHandler == null) {
+                        Log.e(TAG, "Unsupported GET_REPORT request: " + type + "/" + id);
+                        proxy.reportError(device, reportRegistry.getError(type, id));
+                    } else {
+                        proxy.replyReport(device, type, id, report.getHandler.getReport());
                     }
                 }
 
@@ -96,15 +142,123 @@ public class HidDeviceApp
                 @BinderThread
                 public void onSetReport(BluetoothDevice device, byte type, byte id, byte[] data) {
                     super.onSetReport(device, type, id, data);
-                    if (proxy != null) {
-                        proxy.reportError(device, BluetoothHidDevice.ERROR_RSP_SUCCESS);
+                    BluetoothHidDevice proxy = HidDeviceApp.this.proxy;
+                    if (proxy == null) {
+                        return;
+                    }
+                    ReportRegistry.Report report = reportRegistry.find(type, id);
+                    proxy.reportError(
+                            device,
+                            report != null
+                                    ? report.setReport(data)
+                                    : reportRegistry.getError(type, id));
+                }
+
+                @Override
+                @BinderThread
+                public void onInterruptData(BluetoothDevice device, byte reportId, byte[] data) {
+                    super.onInterruptData(device, reportId, data);
+                    // Output reports may also come over the interrupt channel, without a response.
+                    ReportRegistry.Report report =
+                            reportRegistry.find(BluetoothHidDevice.REPORT_TYPE_OUTPUT, reportId);
+                    if (report != null) {
+                        report.setReport(data);
                     }
                 }
             };
 
-    @Nullable private BluetoothHidDevice proxy;
+    @Nullable private volatile BluetoothHidDevice proxy;
     private boolean registered;
 
+    /**
+     * @param reportStats Counters to update when the Bluetooth stack refuses a report.
+     * @param mainThreadRunner Runs the tasks on the main thread.
+     */
+    HidDeviceApp(ReportStats reportStats, TaskRunner mainThreadRunner) {
+        this.reportStats = checkNotNull(reportStats);
+        this.mainThreadRunner = checkNotNull(mainThreadRunner);
+        registerGamepadReports();
+        reportRegistry.register(
+                BluetoothHidDevice.REPORT_TYPE_INPUT,
+                Constants.ID_BATTERY,
+                Constants.BATTERY_LAYOUT.getReportSize(),
+                batteryReport::getReport,
+                null);
+    }
+
+    /**
+     * Get the reports that the host may read or write. Reports must be registered before {@link
+     * #registerApp}, and must be declared in the report descriptor.
+     *
+     * @return Registry of the reports.
+     */
+    ReportRegistry getReportRegistry() {
+        return reportRegistry;
+    }
+
+    /**
+     * Select the format of the gamepad report. Must be called before {@link #registerApp}, as the
+     * format defines the SDP record and the QoS settings.
+     *
+     * @param format New report format.
+     */
+    @MainThread
+    void setReportFormat(ReportFormat format) {
+        if (format != getReportFormat()) {
+            Player[] players = createPlayers(format);
+            for (Player player : players) {
+                player.gamepadReport.setButtonMap(buttonMap);
+            }
+            this.players = players;
+            registerGamepadReports();
+        }
+    }
+
+    /**
+     * Select the number of the virtual gamepads. Must be called before {@link #registerApp}, as
+     * every gamepad is a separate application collection in the SDP record.
+     *
+     * @param count Number of the players, {@code 1} to {@code MAX_PLAYERS}.
+     */
+    @MainThread
+    void setPlayerCount(int count) {
+        checkArgument(count > 0 && count <= Constants.MAX_PLAYERS, "Invalid player count");
+        if (count != playerCount) {
+            playerCount = count;
+            registerGamepadReports();
+        }
+    }
+
+    /** @return Number of the virtual gamepads. */
+    @MainThread
+    int getPlayerCount() {
+        return playerCount;
+    }
+
+    /**
+     * Select the button mapping of the current host.
+     *
+     * @param map Button mapping, or {@code null} to report every button as itself.
+     */
+    @MainThread
+    void setButtonMap(@Nullable ButtonMap map) {
+        if (Objects.equals(map, buttonMap)) {
+            return;
+        }
+        buttonMap = map;
+        for (Player player : players) {
+            player.gamepadReport.setButtonMap(map);
+            // The same state may now produce a different report.
+            player.gamepadResendRequired = true;
+        }
+    }
+
+    /** @return Format of the gamepad reports. */
+    @AnyThread
+    ReportFormat getReportFormat() {
+        return players[0].gamepadReport.getFormat();
+    }
+
     /**
      * Register the HID Device's SDP record.
      *
@@ -112,11 +266,13 @@ public class HidDeviceApp
      */
     @MainThread
     void registerApp(BluetoothHidDevice proxy) {
+        ReportFormat format = getReportFormat();
+        reportRegistry.checkDescriptor(format.getReportDescriptor(playerCount));
         this.proxy = checkNotNull(proxy);
         this.proxy.registerApp(
-                Constants.SDP_SETTINGS,
+                format.getSdpSettings(playerCount),
                 null,
-                Constants.QOS_SETTINGS,
+                format.getQosSettings(playerCount),
                 Runnable::run,
                 callback);
     }
@@ -154,16 +310,50 @@ public class HidDeviceApp
     @MainThread
     public void setDevice(@Nullable BluetoothDevice device) {
         this.device = device;
+        // A new host doesn't know anything about our state yet.
+        for (Player player : players) {
+            player.gamepadResendRequired = true;
+        }
     }
 
+    /**
+     * Send the Gamepad data of the first player right away, on the main thread. {@link
+     * HidDataSender} doesn't come here, its reports go through a {@link ReportScheduler} per
+     * player instead.
+     */
     @Override
     @MainThread
     public void sendGamepad(GamepadState state) {
+        getReportFormat().pack(state, packedState);
+        sendGamepad(0, packedState, false);
+    }
+
+    /**
+     * Send the Gamepad data of one of the players to the connected HID Host device, unless the
+     * resulting report is identical to the one that was sent for this player before.
+     *
+     * @param player Player index, less than the player count.
+     * @param state The current state of the gamepad, see {@link ReportFormat#pack}.
+     * @param force Send the report even if it didn't change.
+     * @return One of the {@code SEND_*} result codes.
+     */
+    @AnyThread
+    int sendGamepad(int player, PackedState state, boolean force) {
+        Player p = players[player];
         // Store the current values in case the host will try to read them with a GET_REPORT call.
-        byte[] report = gamepadReport.setValue(state);
-        if (proxy != null && device != null) {
-            proxy.sendReport(device, Constants.ID_GAMEPAD, report);
+        byte[] report = p.gamepadReport.setValue(state);
+        // The packed state has the same bytes as the report, no need to compare the arrays.
+        if (!force && !p.gamepadResendRequired && state.sameAs(p.lastGamepadState)) {
+            return SEND_UNCHANGED;
         }
+        p.lastGamepadState.copyFrom(state);
+        int result = sendReport(Constants.getGamepadReportId(player), report);
+        if (result == SEND_FAILED) {
+            reportStats.onReportFailed();
+        }
+        // Unless this one went through, whatever comes next must be sent, even if it's the same.
+        p.gamepadResendRequired = result != SEND_OK;
+        return result;
     }
 
     @Override
@@ -171,14 +361,52 @@ public class HidDeviceApp
     public void sendBatteryLevel(float level) {
         // Store the current values in case the host will try to read them with a GET_REPORT call.
         byte[] report = batteryReport.setValue(level);
-        if (proxy != null && device != null) {
-            proxy.sendReport(device, Constants.ID_BATTERY, report);
+        mainThreadRunner.remove(batteryRetryRunnable);
+        batteryRetryCount = 0;
+        sendBatteryReport(report);
+    }
+
+    @MainThread
+    private void retryBatteryLevel() {
+        reportStats.onReportRetried();
+        sendBatteryReport(batteryReport.getReport());
+    }
+
+    @MainThread
+    private void sendBatteryReport(byte[] report) {
+        if (sendReport(Constants.ID_BATTERY, report) == SEND_FAILED) {
+            reportStats.onReportFailed();
+            // Only the latest level is ever retried, a new one cancels the retries.
+            if (batteryRetryCount < MAX_BATTERY_RETRIES) {
+                batteryRetryCount++;
+                mainThreadRunner.postDelayed(batteryRetryRunnable, BATTERY_RETRY_DELAY_MS);
+            } else {
+                reportStats.onReportDropped();
+            }
         }
     }
 
+    /**
+     * Hand an Input report over to the Bluetooth stack.
+     *
+     * @param id Report ID.
+     * @param report Report data, without the ID.
+     * @return {@link #SEND_OK}, {@link #SEND_NO_DEVICE} or {@link #SEND_FAILED}.
+     */
+    @AnyThread
+    @VisibleForTesting
+    int sendReport(int id, byte[] report) {
+        BluetoothHidDevice proxy = this.proxy;
+        BluetoothDevice device = this.device;
+        if (proxy == null || device == null) {
+            return SEND_NO_DEVICE;
+        }
+        return proxy.sendReport(device, id, report) ? SEND_OK : SEND_FAILED;
+    }
+
     @BinderThread
     private void onConnectionStateChanged(BluetoothDevice device, int state) {
-        mainThreadHandler.post(() -> {
+        mainThreadRunner.post(() -> {
             if (deviceStateListener != null) {
                 deviceStateListener.onConnectionStateChanged(device, state);
             }
@@ -187,40 +415,38 @@ public class HidDeviceApp
 
     @BinderThread
     private void onAppStatusChanged(boolean registered) {
-        mainThreadHandler.post(() -> {
+        mainThreadRunner.post(() -> {
             if (deviceStateListener != null) {
                 deviceStateListener.onAppStatusChanged(registered);
             }
         });
     }
 
-    @BinderThread
-    private boolean replyReport(BluetoothDevice device, byte type, byte id) {
-        @Nullable byte[] report = getReport(id);
-        if (report == null) {
-            return false;
-        }
-
-        if (proxy != null) {
-            proxy.replyReport(device, type, id, report);
+    @MainThread
+    private void registerGamepadReports() {
+        int reportSize = getReportFormat().getReportSize();
+        for (int i = 0; i < Constants.MAX_PLAYERS; i++) {
+            byte id = Constants.getGamepadReportId(i);
+            if (i >= playerCount) {
+                reportRegistry.unregister(BluetoothHidDevice.REPORT_TYPE_INPUT, id);
+                continue;
+            }
+            // The report is read through the field, as it's replaced when the format changes.
+            int player = i;
+            reportRegistry.register(
+                    BluetoothHidDevice.REPORT_TYPE_INPUT,
+                    id,
+                    reportSize,
+                    () -> players[player].gamepadReport.getReport(),
+                    null);
         }
-        return true;
     }
 
-    @BinderThread
-    @Nullable
-    private byte[] getReport(byte id) {
-        switch (id) {
-            case Constants.ID_GAMEPAD:
-                return gamepadReport.getReport();
-
-            case Constants.ID_BATTERY:
-                return batteryReport.getReport();
-
-            default: // fall out
+    private static Player[] createPlayers(ReportFormat format) {
+        Player[] players = new Player[Constants.MAX_PLAYERS];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = new Player(format);
         }
-
-        Log.e(TAG, "Invalid report ID requested: " + id);
-        return null;
+        return players;
     }
 }
@@ -25,6 +25,7 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.ParcelUuid;
 import androidx.annotation.MainThread;
+import androidx.annotation.VisibleForTesting;
 import android.util.Log;
 import java.util.ArrayList;
 import java.util.List;
@@ -50,12 +51,22 @@ public class HidDeviceProfile {
         void onServiceStateChanged(BluetoothHidDevice proxy);
     }
 
-    private final BluetoothAdapter bluetoothAdapter;
+    /** Adapter to get the profile proxy from, or {@code null} if the service never connects. */
+    @Nullable private final BluetoothAdapter bluetoothAdapter;
     @Nullable private ServiceStateListener serviceStateListener;
     @Nullable private BluetoothHidDevice service;
 
     HidDeviceProfile() {
-        this.bluetoothAdapter = checkNotNull(BluetoothAdapter.getDefaultAdapter());
+        this(checkNotNull(BluetoothAdapter.getDefaultAdapter()));
+    }
+
+    /**
+     * @param bluetoothAdapter Adapter to get the profile proxy from, or {@code null} for a profile
+     *     without any connected devices, e.g. in the tests.
+     */
+    @VisibleForTesting
+    HidDeviceProfile(@Nullable BluetoothAdapter bluetoothAdapter) {
+        this.bluetoothAdapter = bluetoothAdapter;
     }
 
     /**
@@ -87,14 +98,16 @@ public class HidDeviceProfile {
     void registerServiceListener(Context context, ServiceStateListener listener) {
         context = checkNotNull(context).getApplicationContext();
         serviceStateListener = checkNotNull(listener);
-        bluetoothAdapter.getProfileProxy(
-                context, new ServiceListener(), BluetoothProfile.HID_DEVICE);
+        if (bluetoothAdapter != null) {
+            bluetoothAdapter.getProfileProxy(
+                    context, new ServiceListener(), BluetoothProfile.HID_DEVICE);
+        }
     }
 
     /** Close the profile service connection. */
     @MainThread
     void unregisterServiceListener() {
-        if (service != null) {
+        if (bluetoothAdapter != null && service != null) {
             try {
                 bluetoothAdapter.closeProfileProxy(BluetoothProfile.HID_DEVICE, service);
             } catch (Throwable t) {
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Running statistics of the time between consecutive events, e.g. the reports sent to the host.
+ * Uses Welford's algorithm, so recording a sample never allocates.
+ */
+public class IntervalStats {
+    @GuardedBy("this")
+    private long count;
+
+    @GuardedBy("this")
+    private double mean;
+
+    @GuardedBy("this")
+    private double m2;
+
+    @GuardedBy("this")
+    private long min = Long.MAX_VALUE;
+
+    @GuardedBy("this")
+    private long max;
+
+    @GuardedBy("this")
+    private long lastEventNanos;
+
+    /**
+     * Record an event. The first event after a reset only starts the measurement.
+     *
+     * @param nowNanos Time of the event, see {@link System#nanoTime()}.
+     */
+    synchronized void onEvent(long nowNanos) {
+        if (lastEventNanos != 0) {
+            record(nowNanos - lastEventNanos);
+        }
+        lastEventNanos = nowNanos;
+    }
+
+    /**
+     * Record an interval directly.
+     *
+     * @param intervalNanos Time between two events.
+     */
+    public synchronized void record(long intervalNanos) {
+        count++;
+        double delta = intervalNanos - mean;
+        mean += delta / count;
+        m2 += delta * (intervalNanos - mean);
+        min = Math.min(min, intervalNanos);
+        max = Math.max(max, intervalNanos);
+    }
+
+    /** @return Number of recorded intervals. */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /** @return Mean interval in nanoseconds, or {@code 0} if nothing was recorded. */
+    public synchronized double getMeanNanos() {
+        return mean;
+    }
+
+    /** @return Standard deviation of the interval (i.e. the jitter) in nanoseconds. */
+    public synchronized double getStdDevNanos() {
+        return count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+    }
+
+    /** @return Shortest interval in nanoseconds, or {@code 0} if nothing was recorded. */
+    public synchronized long getMinNanos() {
+        return count > 0 ? min : 0;
+    }
+
+    /** @return Longest interval in nanoseconds. */
+    public synchronized long getMaxNanos() {
+        return max;
+    }
+
+    /** Forget all recorded intervals. */
+    public synchronized void reset() {
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        lastEventNanos = 0;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Tilt aiming from the gyroscope and the accelerometer. This is plain fixed-point Java, so it can
+ * run on the sensor thread without allocating, and can be replayed against recorded sensor traces
+ * off the device.
+ *
+ * <p>The fusion is a complementary filter on the gravity vector in the device coordinates: the
+ * gyroscope rotates the estimate between the samples, which keeps it responsive and free of the
+ * hand shake that the accelerometer picks up, and every accelerometer sample pulls it slightly
+ * towards the measured gravity, which cancels the gyroscope drift. The tilt of the estimate away
+ * from the neutral pose is then mapped onto a stick. Without a gyroscope, the estimate simply
+ * follows the accelerometer with the same time constant.
+ *
+ * <p>All the values are fixed-point numbers with {@link #FRACTION_BITS} fractional bits: the
+ * angular rates in rad/s, the accelerations in m/s^2. The coordinates are those of the Android
+ * sensors, i.e. x to the right and y to the top of the device in its natural orientation. Not
+ * thread safe, should only be used on the sensor thread.
+ */
+public class MotionFusion {
+    /** Number of fractional bits of the fixed-point values. */
+    public static final int FRACTION_BITS = 16;
+
+    /** The fixed-point {@code 1.0}. */
+    public static final int ONE = 1 << FRACTION_BITS;
+
+    /** Standard gravity, 9.80665 m/s^2. */
+    static final int GRAVITY = (int) (9.80665 * ONE);
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    /** Longer gaps between the samples, e.g. after the sensors were paused, aren't integrated. */
+    private static final long MAX_STEP_NANOS = 100_000_000L;
+
+    // Accelerometer samples further than 1/4 g from the gravity are mostly motion, not gravity.
+    private static final long MIN_GRAVITY_SQUARED = square(GRAVITY * 3L / 4);
+    private static final long MAX_GRAVITY_SQUARED = square(GRAVITY * 5L / 4);
+
+    private final long timeConstantNanos;
+
+    /** Gravity component that deflects the stick all the way. */
+    private final long fullScale;
+
+    // Gravity estimate in the device coordinates.
+    private int gravityX;
+    private int gravityY;
+    private int gravityZ;
+    private boolean hasGravity;
+
+    // Gravity of the neutral pose, in the screen coordinates.
+    private int neutralX;
+    private int neutralY;
+    private boolean hasNeutral;
+
+    private long lastGyroscopeNanos;
+    private long lastAccelerometerNanos;
+    private int rotation;
+
+    /**
+     * @param maxTiltDegrees Tilt away from the neutral pose that deflects the stick all the way.
+     * @param timeConstantMillis How fast the estimate follows the accelerometer. Longer times
+     *     reject more shake, shorter ones correct the gyroscope drift faster.
+     */
+    public MotionFusion(int maxTiltDegrees, int timeConstantMillis) {
+        checkArgument(maxTiltDegrees > 0 && maxTiltDegrees < 90, "Invalid tilt angle");
+        checkArgument(timeConstantMillis > 0, "Time constant must be positive");
+        this.timeConstantNanos = timeConstantMillis * 1_000_000L;
+        this.fullScale = Math.round(GRAVITY * Math.sin(Math.toRadians(maxTiltDegrees)));
+    }
+
+    /**
+     * Set the rotation of the screen, so that the stick follows the tilt as the player sees it.
+     *
+     * @param rotation Quarter turns of the screen from the natural orientation, i.e. one of the
+     *     {@code Surface.ROTATION_*} constants.
+     */
+    public void setRotation(int rotation) {
+        checkArgument(rotation >= 0 && rotation < 4, "Invalid rotation: %s", rotation);
+        this.rotation = rotation;
+        hasNeutral = false;
+    }
+
+    /** Use the current pose as the neutral one, where the stick is centered. */
+    public void resetNeutral() {
+        hasNeutral = false;
+        updateNeutral();
+    }
+
+    /** Forget everything, e.g. when the sensors are paused. */
+    public void reset() {
+        hasGravity = false;
+        hasNeutral = false;
+        lastGyroscopeNanos = 0;
+        lastAccelerometerNanos = 0;
+    }
+
+    /**
+     * Rotate the gravity estimate by the angular rate.
+     *
+     * @param timestampNanos Time of the sample.
+     * @param x Angular rate around the x axis, fixed-point rad/s.
+     * @param y Angular rate around the y axis, fixed-point rad/s.
+     * @param z Angular rate around the z axis, fixed-point rad/s.
+     */
+    public void onGyroscope(long timestampNanos, int x, int y, int z) {
+        long stepNanos = timestampNanos - lastGyroscopeNanos;
+        lastGyroscopeNanos = timestampNanos;
+        if (!hasGravity || stepNanos <= 0 || stepNanos > MAX_STEP_NANOS) {
+            return;
+        }
+        // The gravity is fixed in the world, so in the device coordinates it turns the other way:
+        // dg/dt = g x w. The products have twice the fraction bits, and so does the step.
+        long step = (stepNanos << FRACTION_BITS) / NANOS_PER_SECOND;
+        long dx = (long) gravityY * z - (long) gravityZ * y;
+        long dy = (long) gravityZ * x - (long) gravityX * z;
+        long dz = (long) gravityX * y - (long) gravityY * x;
+        gravityX += (int) ((dx * step) >> (2 * FRACTION_BITS));
+        gravityY += (int) ((dy * step) >> (2 * FRACTION_BITS));
+        gravityZ += (int) ((dz * step) >> (2 * FRACTION_BITS));
+    }
+
+    /**
+     * Pull the gravity estimate towards the measured acceleration.
+     *
+     * @param timestampNanos Time of the sample.
+     * @param x Acceleration along the x axis, fixed-point m/s^2.
+     * @param y Acceleration along the y axis, fixed-point m/s^2.
+     * @param z Acceleration along the z axis, fixed-point m/s^2.
+     */
+    public void onAccelerometer(long timestampNanos, int x, int y, int z) {
+        long stepNanos = timestampNanos - lastAccelerometerNanos;
+        lastAccelerometerNanos = timestampNanos;
+        if (!hasGravity) {
+            gravityX = x;
+            gravityY = y;
+            gravityZ = z;
+            hasGravity = true;
+            updateNeutral();
+            return;
+        }
+        long magnitudeSquared = (long) x * x + (long) y * y + (long) z * z;
+        if (stepNanos <= 0
+                || magnitudeSquared < MIN_GRAVITY_SQUARED
+                || magnitudeSquared > MAX_GRAVITY_SQUARED) {
+            return;
+        }
+        // Weight of the sample, step / (time constant + step).
+        stepNanos = Math.min(stepNanos, MAX_STEP_NANOS);
+        long weight = (stepNanos << FRACTION_BITS) / (timeConstantNanos + stepNanos);
+        gravityX += (int) (((long) (x - gravityX) * weight) >> FRACTION_BITS);
+        gravityY += (int) (((long) (y - gravityY) * weight) >> FRACTION_BITS);
+        gravityZ += (int) (((long) (z - gravityZ) * weight) >> FRACTION_BITS);
+        updateNeutral();
+    }
+
+    /** @return {@code true} once there is a gravity estimate to map onto the stick. */
+    public boolean isReady() {
+        return hasGravity && hasNeutral;
+    }
+
+    /**
+     * Map the tilt to the right or to the left onto a stick axis.
+     *
+     * @param axisMaximum Largest value of the axis, see {@link ReportFormat#getAxisMaximum()}.
+     * @return Axis value, centered in the neutral pose and growing as the right side goes down.
+     */
+    public int getStickX(int axisMaximum) {
+        // Tilting the right side down turns the measured gravity to the left.
+        return toAxis(neutralX - getScreenX(), axisMaximum);
+    }
+
+    /**
+     * Map the tilt forward or backward onto a stick axis.
+     *
+     * @param axisMaximum Largest value of the axis, see {@link ReportFormat#getAxisMaximum()}.
+     * @return Axis value, centered in the neutral pose and shrinking as the top side goes down,
+     *     like a stick pushed up.
+     */
+    public int getStickY(int axisMaximum) {
+        // Tilting the top side down turns the measured gravity to the bottom.
+        return toAxis(getScreenY() - neutralY, axisMaximum);
+    }
+
+    private void updateNeutral() {
+        if (hasGravity && !hasNeutral) {
+            neutralX = getScreenX();
+            neutralY = getScreenY();
+            hasNeutral = true;
+        }
+    }
+
+    private int getScreenX() {
+        switch (rotation) {
+            case 1:
+                return gravityY;
+            case 2:
+                return -gravityX;
+            case 3:
+                return -gravityY;
+            default:
+                return gravityX;
+        }
+    }
+
+    private int getScreenY() {
+        switch (rotation) {
+            case 1:
+                return -gravityX;
+            case 2:
+                return -gravityY;
+            case 3:
+                return gravityX;
+            default:
+                return gravityY;
+        }
+    }
+
+    private static long square(long value) {
+        return value * value;
+    }
+
+    private int toAxis(long tilt, int axisMaximum) {
+        int center = (axisMaximum + 1) / 2;
+        long value = center + tilt * center / fullScale;
+        return (int) Math.max(0, Math.min(value, axisMaximum));
+    }
+}
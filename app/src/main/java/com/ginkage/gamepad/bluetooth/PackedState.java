@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+/**
+ * Gamepad state packed into the bits of the report of the selected {@link ReportFormat}, so that
+ * it can be copied, compared and encoded with a couple of primitive operations. Reports of up to
+ * 16 bytes are supported, the bytes are stored in little-endian order.
+ */
+final class PackedState {
+    /** Maximum size of the report data that fits into the packed state. */
+    static final int MAX_REPORT_SIZE = 16;
+
+    /** Report bytes 0-7. */
+    long low;
+
+    /** Report bytes 8-15. */
+    long high;
+
+    /**
+     * Overwrite this state with the values of another one.
+     *
+     * @param s The packed state to copy from
+     */
+    void copyFrom(PackedState s) {
+        low = s.low;
+        high = s.high;
+    }
+
+    /**
+     * Compare the report bits with another state.
+     *
+     * @param s The packed state to compare with
+     * @return {@code true} if both states would produce the same report
+     */
+    boolean sameAs(PackedState s) {
+        return low == s.low && high == s.high;
+    }
+}
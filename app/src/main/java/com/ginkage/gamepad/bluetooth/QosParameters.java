@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The QoS parameters that the HID Device app registers with, as plain values. The registered
+ * settings are created from them (see {@link Constants#createQosSettings}), and every player's
+ * {@link ReportScheduler} meters its reports against its share of the same values, so the two
+ * never disagree.
+ */
+final class QosParameters {
+    /** Number of bytes per second that all the players together may send. */
+    final int tokenRate;
+
+    /** Number of bytes that all the players together may send in one burst. */
+    final int tokenBucketSize;
+
+    /** Latency in microseconds, also the default coalescing window. */
+    final int latencyMicros;
+
+    /** Number of the gamepads that share the parameters. */
+    final int playerCount;
+
+    /**
+     * @param tokenRate Number of bytes per second that all the players together may send.
+     * @param tokenBucketSize Number of bytes that all the players together may send in one burst.
+     * @param latencyMicros Latency in microseconds.
+     * @param playerCount Number of the gamepads that share the parameters.
+     */
+    QosParameters(int tokenRate, int tokenBucketSize, int latencyMicros, int playerCount) {
+        checkArgument(playerCount > 0, "Invalid player count: %s", playerCount);
+        checkArgument(
+                tokenRate >= playerCount && tokenBucketSize >= playerCount,
+                "Invalid token bucket: %s bytes at %s bytes per second",
+                tokenBucketSize,
+                tokenRate);
+        this.tokenRate = tokenRate;
+        this.tokenBucketSize = tokenBucketSize;
+        this.latencyMicros = latencyMicros;
+        this.playerCount = playerCount;
+    }
+
+    /** @return Number of bytes per second that one player may send. */
+    int getPlayerTokenRate() {
+        return tokenRate / playerCount;
+    }
+
+    /** @return Number of bytes that one player may send in one burst. */
+    int getPlayerTokenBucketSize() {
+        return tokenBucketSize / playerCount;
+    }
+}
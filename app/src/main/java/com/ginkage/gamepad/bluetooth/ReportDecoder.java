@@ -0,0 +1,239 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_BUTTON;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_CONSUMER;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_GENERIC_DESKTOP;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_GENERIC_DEVICE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_LED;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_PHYSICAL_INPUT;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_SIMULATION;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_VENDOR;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_ACCELERATOR;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_AC_BACK;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_AC_HOME;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_BATTERY_STRENGTH;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_BRAKE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_DURATION;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_HAT_SWITCH;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_MAGNITUDE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_PLAYER_1;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_PLAYER_4;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_RZ;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_X;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_Y;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_COALESCING_WINDOW;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_POLLING_RATE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_STICK_DEAD_BAND;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_TRIGGER_DEAD_BAND;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_Z;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns raw report bytes back into field values, the inverse of {@link ReportEncoder}. The slots
+ * are numbered the same way, and the position, mask and signedness of every slot are computed
+ * once, so decoding is a few shifts per value and never allocates.
+ */
+class ReportDecoder {
+    private final int reportSize;
+    private final int[] usages;
+    private final int[] byteIndexes;
+    private final int[] byteCounts;
+    private final int[] shifts;
+    private final long[] masks;
+
+    /** Shift that moves the sign bit of the value to bit 31, or {@code 0} if it's unsigned. */
+    private final int[] signShifts;
+
+    /** @param layout Layout of the Input report to decode. */
+    ReportDecoder(ReportLayout layout) {
+        this(layout.getFields(), layout.getReportSize());
+    }
+
+    /**
+     * @param fields Fields of the report to decode, e.g. {@link ReportLayout#getOutputFields()}.
+     * @param reportSize Size of the report data in bytes.
+     */
+    ReportDecoder(List<ReportLayout.Field> fields, int reportSize) {
+        this.reportSize = reportSize;
+        List<int[]> slots = new ArrayList<>();
+        for (ReportLayout.Field field : fields) {
+            if (field.isConstant()) {
+                continue;
+            }
+            boolean signed = field.logicalMinimum < 0;
+            for (int i = 0; i < field.reportCount; i++) {
+                slots.add(
+                        new int[] {
+                            field.getUsage(i),
+                            field.bitOffset + i * field.reportSize,
+                            field.reportSize,
+                            signed ? 32 - field.reportSize : 0
+                        });
+            }
+        }
+
+        int count = slots.size();
+        usages = new int[count];
+        byteIndexes = new int[count];
+        byteCounts = new int[count];
+        shifts = new int[count];
+        masks = new long[count];
+        signShifts = new int[count];
+        for (int i = 0; i < count; i++) {
+            int[] slot = slots.get(i);
+            usages[i] = slot[0];
+            byteIndexes[i] = slot[1] >>> 3;
+            shifts[i] = slot[1] & 7;
+            byteCounts[i] = (shifts[i] + slot[2] + 7) / 8;
+            masks[i] = (1L << slot[2]) - 1;
+            signShifts[i] = slot[3];
+        }
+    }
+
+    /** @return Size of the report data in bytes, not counting the report ID. */
+    int getReportSize() {
+        return reportSize;
+    }
+
+    /** @return Number of data values in the report. */
+    int getSlotCount() {
+        return usages.length;
+    }
+
+    /**
+     * Find the slot of a value by its usage.
+     *
+     * @param usagePage Usage page of the value.
+     * @param usage Usage ID of the value.
+     * @return Index of the first slot with this usage.
+     */
+    int getSlot(int usagePage, int usage) {
+        int extendedUsage = ReportLayout.usage(usagePage, usage);
+        for (int i = 0; i < usages.length; i++) {
+            if (usages[i] == extendedUsage) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(
+                String.format("No usage %04X:%04X in the report", usagePage, usage));
+    }
+
+    /**
+     * @param slot Index of the value.
+     * @return Extended usage of the value, see {@link ReportLayout#usage(int, int)}.
+     */
+    int getUsage(int slot) {
+        return usages[slot];
+    }
+
+    /**
+     * @param slot Index of the value.
+     * @return Human readable name of the value.
+     */
+    String getName(int slot) {
+        return getUsageName(usages[slot]);
+    }
+
+    /**
+     * Decode a single value.
+     *
+     * @param report Buffer that holds the report data.
+     * @param offset Position of the report data in the buffer, after the report ID if any.
+     * @param slot Index of the value.
+     * @return Value of the field, sign-extended if its logical minimum is negative.
+     */
+    int decode(byte[] report, int offset, int slot) {
+        int index = offset + byteIndexes[slot];
+        long bits = 0;
+        for (int i = 0; i < byteCounts[slot]; i++) {
+            bits |= (report[index + i] & 0xFFL) << (i * 8);
+        }
+        int value = (int) ((bits >>> shifts[slot]) & masks[slot]);
+        int signShift = signShifts[slot];
+        return (value << signShift) >> signShift;
+    }
+
+    /**
+     * Decode all values of the report.
+     *
+     * @param report Buffer that holds the report data.
+     * @param offset Position of the report data in the buffer, after the report ID if any.
+     * @param values Output array, at least {@link #getSlotCount()} long.
+     */
+    void decode(byte[] report, int offset, int[] values) {
+        checkArgument(report.length - offset >= reportSize, "Report is too short");
+        checkArgument(values.length >= usages.length, "Not enough room for the values");
+        for (int i = 0; i < usages.length; i++) {
+            values[i] = decode(report, offset, i);
+        }
+    }
+
+    /**
+     * Get the name of a usage for the reports that we use, and a generic name for the others.
+     *
+     * @param usage Extended usage, see {@link ReportLayout#usage(int, int)}.
+     * @return Human readable name of the usage.
+     */
+    static String getUsageName(int usage) {
+        int page = usage >>> 16;
+        int id = usage & 0xFFFF;
+        if (page == PAGE_BUTTON) {
+            return "Button " + id;
+        } else if (page == PAGE_LED && id >= USAGE_PLAYER_1 && id <= USAGE_PLAYER_4) {
+            return "Player " + (id - USAGE_PLAYER_1 + 1);
+        }
+        if (usage == ReportLayout.usage(PAGE_GENERIC_DESKTOP, USAGE_X)) {
+            return "X";
+        } else if (usage == ReportLayout.usage(PAGE_GENERIC_DESKTOP, USAGE_Y)) {
+            return "Y";
+        } else if (usage == ReportLayout.usage(PAGE_GENERIC_DESKTOP, USAGE_Z)) {
+            return "Z";
+        } else if (usage == ReportLayout.usage(PAGE_GENERIC_DESKTOP, USAGE_RZ)) {
+            return "Rz";
+        } else if (usage == ReportLayout.usage(PAGE_GENERIC_DESKTOP, USAGE_HAT_SWITCH)) {
+            return "Hat switch";
+        } else if (usage == ReportLayout.usage(PAGE_SIMULATION, USAGE_BRAKE)) {
+            return "Brake";
+        } else if (usage == ReportLayout.usage(PAGE_SIMULATION, USAGE_ACCELERATOR)) {
+            return "Accelerator";
+        } else if (usage == ReportLayout.usage(PAGE_CONSUMER, USAGE_AC_BACK)) {
+            return "AC Back";
+        } else if (usage == ReportLayout.usage(PAGE_CONSUMER, USAGE_AC_HOME)) {
+            return "AC Home";
+        } else if (usage == ReportLayout.usage(PAGE_GENERIC_DEVICE, USAGE_BATTERY_STRENGTH)) {
+            return "Battery Strength";
+        } else if (usage == ReportLayout.usage(PAGE_PHYSICAL_INPUT, USAGE_MAGNITUDE)) {
+            return "Magnitude";
+        } else if (usage == ReportLayout.usage(PAGE_PHYSICAL_INPUT, USAGE_DURATION)) {
+            return "Duration";
+        } else if (usage == ReportLayout.usage(PAGE_VENDOR, USAGE_VENDOR_POLLING_RATE)) {
+            return "Polling rate";
+        } else if (usage == ReportLayout.usage(PAGE_VENDOR, USAGE_VENDOR_COALESCING_WINDOW)) {
+            return "Coalescing window";
+        } else if (usage == ReportLayout.usage(PAGE_VENDOR, USAGE_VENDOR_STICK_DEAD_BAND)) {
+            return "Stick dead band";
+        } else if (usage == ReportLayout.usage(PAGE_VENDOR, USAGE_VENDOR_TRIGGER_DEAD_BAND)) {
+            return "Trigger dead band";
+        }
+        return String.format("Usage %04X:%04X", page, id);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_COLLECTION;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_END_COLLECTION;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_FEATURE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_INPUT;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_LOGICAL_MAXIMUM;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_LOGICAL_MINIMUM;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_OUTPUT;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_PHYSICAL_MAXIMUM;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_PHYSICAL_MINIMUM;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_REPORT_COUNT;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_REPORT_ID;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_REPORT_SIZE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_UNIT;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_USAGE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.ITEM_USAGE_PAGE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser of the HID report descriptor items that our descriptors use: usage pages and usages
+ * (including usage ranges), collections, report ID, size and count, logical and physical ranges,
+ * units, and the Input, Output and Feature items. The global and local items that don't affect the
+ * layout of the reports are skipped.
+ *
+ * <p>The result is the same {@link ReportLayout} model that the descriptor is generated from, so
+ * a descriptor can be checked against the reports that we actually send without a device.
+ */
+class ReportDescriptorParser {
+    private static final int ITEM_USAGE_MINIMUM = 0x18;
+    private static final int ITEM_USAGE_MAXIMUM = 0x28;
+    private static final int ITEM_LONG = 0xFE;
+
+    /** Layout of one report ID while it's being parsed. */
+    private static class Report {
+        final List<ReportLayout.Field> fields = new ArrayList<>();
+        final List<ReportLayout.Field> outputFields = new ArrayList<>();
+        final List<ReportLayout.Field> featureFields = new ArrayList<>();
+        int collectionStart;
+        int bitLength;
+        int outputBitLength;
+        int featureBitLength;
+    }
+
+    private final byte[] descriptor;
+    private final Map<Integer, Report> reports = new LinkedHashMap<>();
+
+    // Global items
+    private int usagePage;
+    private int logicalMinimum;
+    private int logicalMaximum;
+    private int logicalMaximumSize;
+    private int physicalMinimum;
+    private int physicalMaximum;
+    private int physicalMaximumSize;
+    private int unit;
+    private int reportSize;
+    private int reportCount;
+    private int reportId;
+
+    // Local items
+    private final List<Integer> usages = new ArrayList<>();
+    private int usageMinimum = -1;
+
+    private int depth;
+
+    /** Start of the current top-level collection, including the items that precede it. */
+    private int collectionStart;
+
+    /** End of the last top-level collection. */
+    private int collectionEnd;
+
+    private ReportDescriptorParser(byte[] descriptor) {
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * Parse the descriptor into the layouts of the reports. Every report ID gets one layout with
+     * its Input, Output and Feature fields, any of which may be empty.
+     *
+     * @param descriptor Report descriptor, e.g. the one we register with the HID Device profile.
+     * @return Report layouts in the order of their first appearance. The descriptor of each layout
+     *     is the application collection in which the report ID was declared, together with the
+     *     items that precede it.
+     * @throws IllegalArgumentException If the descriptor is malformed or uses long items.
+     */
+    static List<ReportLayout> parse(byte[] descriptor) {
+        return new ReportDescriptorParser(descriptor).parse();
+    }
+
+    private List<ReportLayout> parse() {
+        int pos = 0;
+        while (pos < descriptor.length) {
+            int prefix = descriptor[pos] & 0xFF;
+            if (prefix == ITEM_LONG) {
+                throw new IllegalArgumentException("Long items are not supported");
+            }
+            int size = (prefix & 0x03) == 3 ? 4 : prefix & 0x03;
+            if (pos + 1 + size > descriptor.length) {
+                throw new IllegalArgumentException("Truncated item at " + pos);
+            }
+            int value = 0;
+            for (int i = 0; i < size; i++) {
+                value |= (descriptor[pos + 1 + i] & 0xFF) << (i * 8);
+            }
+            onItem(prefix & 0xFC, value, size, pos);
+            pos += 1 + size;
+        }
+        if (depth != 0) {
+            throw new IllegalArgumentException("Unbalanced collections");
+        }
+
+        List<ReportLayout> layouts = new ArrayList<>();
+        for (Map.Entry<Integer, Report> entry : reports.entrySet()) {
+            Report report = entry.getValue();
+            layouts.add(
+                    new ReportLayout(
+                            entry.getKey(),
+                            Arrays.copyOfRange(
+                                    descriptor, report.collectionStart, findCollectionEnd(report)),
+                            report.fields,
+                            report.bitLength,
+                            report.outputFields,
+                            report.outputBitLength,
+                            report.featureFields,
+                            report.featureBitLength));
+        }
+        return layouts;
+    }
+
+    private void onItem(int tag, int value, int size, int pos) {
+        switch (tag) {
+            case ITEM_USAGE_PAGE:
+                usagePage = value;
+                break;
+            case ITEM_LOGICAL_MINIMUM:
+                logicalMinimum = signExtend(value, size);
+                break;
+            case ITEM_LOGICAL_MAXIMUM:
+                logicalMaximum = value;
+                logicalMaximumSize = size;
+                break;
+            case ITEM_PHYSICAL_MINIMUM:
+                physicalMinimum = signExtend(value, size);
+                break;
+            case ITEM_PHYSICAL_MAXIMUM:
+                physicalMaximum = value;
+                physicalMaximumSize = size;
+                break;
+            case ITEM_UNIT:
+                unit = value;
+                break;
+            case ITEM_REPORT_SIZE:
+                reportSize = value;
+                break;
+            case ITEM_REPORT_ID:
+                reportId = value;
+                getReport().collectionStart = collectionStart;
+                break;
+            case ITEM_REPORT_COUNT:
+                reportCount = value;
+                break;
+            case ITEM_USAGE:
+                usages.add(size == 4 ? value : ReportLayout.usage(usagePage, value));
+                break;
+            case ITEM_USAGE_MINIMUM:
+                usageMinimum = size == 4 ? value : ReportLayout.usage(usagePage, value);
+                break;
+            case ITEM_USAGE_MAXIMUM:
+                int usageMaximum = size == 4 ? value : ReportLayout.usage(usagePage, value);
+                if (usageMinimum < 0 || usageMaximum < usageMinimum) {
+                    throw new IllegalArgumentException("Invalid usage range at " + pos);
+                }
+                for (int usage = usageMinimum; usage <= usageMaximum; usage++) {
+                    usages.add(usage);
+                }
+                usageMinimum = -1;
+                break;
+            case ITEM_INPUT:
+            case ITEM_OUTPUT:
+            case ITEM_FEATURE:
+                addField(tag, value);
+                clearLocals();
+                break;
+            case ITEM_COLLECTION:
+                if (depth == 0) {
+                    collectionStart = collectionEnd;
+                }
+                depth++;
+                clearLocals();
+                break;
+            case ITEM_END_COLLECTION:
+                if (depth == 0) {
+                    throw new IllegalArgumentException("Unexpected End Collection at " + pos);
+                }
+                if (--depth == 0) {
+                    collectionEnd = pos + 1 + size;
+                }
+                clearLocals();
+                break;
+            default: // Doesn't affect the report layout.
+        }
+    }
+
+    private void addField(int tag, int flags) {
+        if (reportSize <= 0 || reportSize > 32 || reportCount <= 0) {
+            throw new IllegalArgumentException("Invalid report size or count");
+        }
+        Report report = getReport();
+        List<ReportLayout.Field> fields;
+        int bitOffset;
+        if (tag == ITEM_INPUT) {
+            fields = report.fields;
+            bitOffset = report.bitLength;
+            report.bitLength += reportSize * reportCount;
+        } else if (tag == ITEM_OUTPUT) {
+            fields = report.outputFields;
+            bitOffset = report.outputBitLength;
+            report.outputBitLength += reportSize * reportCount;
+        } else {
+            fields = report.featureFields;
+            bitOffset = report.featureBitLength;
+            report.featureBitLength += reportSize * reportCount;
+        }
+        int[] fieldUsages = new int[usages.size()];
+        for (int i = 0; i < fieldUsages.length; i++) {
+            fieldUsages[i] = usages.get(i);
+        }
+        fields.add(
+                new ReportLayout.Field(
+                        fieldUsages,
+                        bitOffset,
+                        reportSize,
+                        reportCount,
+                        logicalMinimum,
+                        getMaximum(logicalMinimum, logicalMaximum, logicalMaximumSize),
+                        physicalMinimum,
+                        getMaximum(physicalMinimum, physicalMaximum, physicalMaximumSize),
+                        unit,
+                        flags));
+    }
+
+    private Report getReport() {
+        Report report = reports.get(reportId);
+        if (report == null) {
+            report = new Report();
+            report.collectionStart = collectionStart;
+            reports.put(reportId, report);
+        }
+        return report;
+    }
+
+    private int findCollectionEnd(Report report) {
+        // Walk the items from the start of the collection until it's closed.
+        int level = 0;
+        int pos = report.collectionStart;
+        while (pos < descriptor.length) {
+            int prefix = descriptor[pos] & 0xFF;
+            int size = (prefix & 0x03) == 3 ? 4 : prefix & 0x03;
+            if ((prefix & 0xFC) == ITEM_COLLECTION) {
+                level++;
+            } else if ((prefix & 0xFC) == ITEM_END_COLLECTION && --level == 0) {
+                return pos + 1 + size;
+            }
+            pos += 1 + size;
+        }
+        return descriptor.length;
+    }
+
+    private void clearLocals() {
+        usages.clear();
+        usageMinimum = -1;
+    }
+
+    private static int signExtend(int value, int size) {
+        switch (size) {
+            case 1:
+                return (byte) value;
+            case 2:
+                return (short) value;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Hosts read the maximum as unsigned when the minimum isn't negative, e.g. {@code 0x25 0xFF}
+     * means 255 when the minimum is 0.
+     */
+    private static int getMaximum(int minimum, int value, int size) {
+        return minimum < 0 ? signExtend(value, size) : value;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bit packer compiled from a {@link ReportLayout}. Every data value of the report gets a slot,
+ * numbered in the report order, and the position and mask of every slot are computed once, so
+ * encoding a report is a single pass over the slots that never allocates.
+ *
+ * <p>The slot positions may also be used to build the report directly in a {@link PackedState},
+ * see {@link #getBitOffset(int)} and {@link ReportFormat}.
+ */
+class ReportEncoder {
+    private final int reportSize;
+    private final int[] usages;
+    private final int[] bitOffsets;
+    private final int[] bitSizes;
+    private final int[] byteIndexes;
+    private final int[] shifts;
+    private final long[] masks;
+
+    /** @param layout Layout of the report to encode. */
+    ReportEncoder(ReportLayout layout) {
+        this(layout.getFields(), layout.getReportSize());
+    }
+
+    /**
+     * @param fields Fields of the report to encode, e.g. {@link ReportLayout#getFeatureFields()}.
+     * @param reportSize Size of the report data in bytes.
+     */
+    ReportEncoder(List<ReportLayout.Field> fields, int reportSize) {
+        this.reportSize = reportSize;
+        List<int[]> slots = new ArrayList<>();
+        for (ReportLayout.Field field : fields) {
+            if (field.isConstant()) {
+                continue;
+            }
+            for (int i = 0; i < field.reportCount; i++) {
+                slots.add(
+                        new int[] {
+                            field.getUsage(i), field.bitOffset + i * field.reportSize,
+                            field.reportSize
+                        });
+            }
+        }
+
+        int count = slots.size();
+        usages = new int[count];
+        bitOffsets = new int[count];
+        bitSizes = new int[count];
+        byteIndexes = new int[count];
+        shifts = new int[count];
+        masks = new long[count];
+        for (int i = 0; i < count; i++) {
+            int[] slot = slots.get(i);
+            usages[i] = slot[0];
+            bitOffsets[i] = slot[1];
+            bitSizes[i] = slot[2];
+            byteIndexes[i] = slot[1] >>> 3;
+            shifts[i] = slot[1] & 7;
+            masks[i] = (1L << slot[2]) - 1;
+        }
+    }
+
+    /** @return Size of the encoded report in bytes. */
+    int getReportSize() {
+        return reportSize;
+    }
+
+    /** @return Number of data values in the report. */
+    int getSlotCount() {
+        return usages.length;
+    }
+
+    /**
+     * Find the slot of a value by its usage.
+     *
+     * @param usagePage Usage page of the value.
+     * @param usage Usage ID of the value.
+     * @return Index of the first slot with this usage.
+     */
+    int getSlot(int usagePage, int usage) {
+        int slot = findSlot(usagePage, usage);
+        if (slot < 0) {
+            throw new IllegalArgumentException(
+                    String.format("No usage %04X:%04X in the report", usagePage, usage));
+        }
+        return slot;
+    }
+
+    /**
+     * Find the slot of a value by its usage, if the report has it.
+     *
+     * @param usagePage Usage page of the value.
+     * @param usage Usage ID of the value.
+     * @return Index of the first slot with this usage, or {@code -1} if there is none.
+     */
+    int findSlot(int usagePage, int usage) {
+        int extendedUsage = ReportLayout.usage(usagePage, usage);
+        for (int i = 0; i < usages.length; i++) {
+            if (usages[i] == extendedUsage) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param slot Index of the value.
+     * @return Position of the lowest bit of the value in the report.
+     */
+    int getBitOffset(int slot) {
+        return bitOffsets[slot];
+    }
+
+    /**
+     * @param slot Index of the value.
+     * @return Number of bits that the value takes in the report.
+     */
+    int getBitSize(int slot) {
+        return bitSizes[slot];
+    }
+
+    /**
+     * Pack the values into the report. Values that don't fit are truncated to their bit size.
+     *
+     * @param values Values in the slot order, at least {@link #getSlotCount()} of them.
+     * @param report Output buffer, at least {@link #getReportSize()} bytes long.
+     */
+    void encode(int[] values, byte[] report) {
+        checkArgument(values.length >= usages.length, "Not enough values");
+        checkArgument(report.length >= reportSize, "Report buffer is too small");
+        for (int i = 0; i < reportSize; i++) {
+            report[i] = 0;
+        }
+        for (int i = 0; i < usages.length; i++) {
+            long bits = (values[i] & masks[i]) << shifts[i];
+            for (int index = byteIndexes[i]; bits != 0; index++) {
+                report[index] |= (byte) bits;
+                bits >>>= 8;
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_BUTTON;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_CONSUMER;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_GENERIC_DESKTOP;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_SIMULATION;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_ACCELERATOR;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_AC_BACK;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_AC_HOME;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_BRAKE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_HAT_SWITCH;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_RZ;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_X;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_Y;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_Z;
+import static com.google.common.base.Preconditions.checkState;
+
+import android.bluetooth.BluetoothHidDeviceAppQosSettings;
+import android.bluetooth.BluetoothHidDeviceAppSdpSettings;
+import java.util.Arrays;
+
+/**
+ * Format of the gamepad report, selected before the HID Device app is registered. Each format has
+ * its own report descriptor, and QoS settings computed from its report length. All the players'
+ * gamepads share the format, their reports only differ in the report ID. The positions of
+ * the values in the report are taken from the layout once, so packing the state is a short
+ * sequence of shifts.
+ */
+public final class ReportFormat {
+    /** 8-bit axes, the format that works with every host. */
+    public static final ReportFormat STANDARD = new ReportFormat(8);
+
+    /** 16-bit axes, for games that can make use of the touch precision. */
+    public static final ReportFormat HIGH_RESOLUTION = new ReportFormat(16);
+
+    /** Buttons and the hat switch only, for the games that don't use the sticks or triggers. */
+    public static final ReportFormat COMPACT = new ReportFormat(0);
+
+    /** Number of analog axes, see the {@code AxisFilter.AXIS_*} constants. */
+    static final int AXIS_COUNT = 6;
+
+    /** Layouts of the gamepad reports, one per player. They only differ in the report ID. */
+    private final ReportLayout[] layouts = new ReportLayout[Constants.MAX_PLAYERS];
+
+    private final int reportSize;
+
+    // SDP and QoS settings for every number of players, the first one is for a single gamepad.
+    private final BluetoothHidDeviceAppSdpSettings[] sdpSettings =
+            new BluetoothHidDeviceAppSdpSettings[Constants.MAX_PLAYERS];
+    private final QosParameters[] qosParameters = new QosParameters[Constants.MAX_PLAYERS];
+    private final BluetoothHidDeviceAppQosSettings[] qosSettings =
+            new BluetoothHidDeviceAppQosSettings[Constants.MAX_PLAYERS];
+
+    // Bits of the buttons in the low word, in the order of the GamepadState fields.
+    private final long bitA;
+    private final long bitB;
+    private final long bitX;
+    private final long bitY;
+    private final long bitL1;
+    private final long bitR1;
+    private final long bitL3;
+    private final long bitR3;
+    private final long bitStart;
+    private final long bitBack;
+    private final long bitHome;
+
+    /** The same button bits, in the order of the {@code ButtonMap.BUTTON_*} constants. */
+    private final long[] buttonBits;
+
+    private final int hatShift;
+    private final long hatMask;
+    private final long digitalMask;
+
+    /** Bit positions of the axes across both words, or empty if the format has no axes. */
+    private final int[] axisShifts;
+
+    // The same bit positions in the order of the GamepadState fields, zero if there are no axes.
+    private final int shiftLx;
+    private final int shiftLy;
+    private final int shiftRx;
+    private final int shiftRy;
+    private final int shiftL2;
+    private final int shiftR2;
+
+    // Masks that select the word of each axis: all ones for the low word, zero for the high one.
+    private final long lowLx;
+    private final long lowLy;
+    private final long lowRx;
+    private final long lowRy;
+    private final long lowL2;
+    private final long lowR2;
+
+    private final long axisMask;
+    private final int axisMaximum;
+
+    /** @param axisBits Size of each analog axis, or {@code 0} to leave the axes out. */
+    private ReportFormat(int axisBits) {
+        for (int player = 0; player < Constants.MAX_PLAYERS; player++) {
+            layouts[player] = Constants.createGamepadLayout(player, axisBits);
+        }
+        ReportEncoder encoder = new ReportEncoder(layouts[0]);
+        reportSize = encoder.getReportSize();
+        checkState(reportSize <= PackedState.MAX_REPORT_SIZE, "The report is too long");
+        for (int count = 1; count <= Constants.MAX_PLAYERS; count++) {
+            sdpSettings[count - 1] = Constants.createSdpSettings(Arrays.copyOf(layouts, count));
+            qosParameters[count - 1] = Constants.createQosParameters(reportSize, count);
+            qosSettings[count - 1] = Constants.createQosSettings(qosParameters[count - 1]);
+        }
+
+        bitA = getButtonBit(encoder, PAGE_BUTTON, Constants.BUTTON_A);
+        bitB = getButtonBit(encoder, PAGE_BUTTON, Constants.BUTTON_B);
+        bitX = getButtonBit(encoder, PAGE_BUTTON, Constants.BUTTON_X);
+        bitY = getButtonBit(encoder, PAGE_BUTTON, Constants.BUTTON_Y);
+        bitL1 = getButtonBit(encoder, PAGE_BUTTON, Constants.BUTTON_L1);
+        bitR1 = getButtonBit(encoder, PAGE_BUTTON, Constants.BUTTON_R1);
+        bitL3 = getButtonBit(encoder, PAGE_BUTTON, Constants.BUTTON_L3);
+        bitR3 = getButtonBit(encoder, PAGE_BUTTON, Constants.BUTTON_R3);
+        bitStart = getButtonBit(encoder, PAGE_BUTTON, Constants.BUTTON_START);
+        bitBack = getButtonBit(encoder, PAGE_CONSUMER, USAGE_AC_BACK);
+        bitHome = getButtonBit(encoder, PAGE_CONSUMER, USAGE_AC_HOME);
+        buttonBits =
+                new long[] {
+                    bitA, bitB, bitX, bitY, bitL1, bitR1, bitL3, bitR3, bitStart, bitBack, bitHome
+                };
+        int hatSlot = encoder.getSlot(PAGE_GENERIC_DESKTOP, USAGE_HAT_SWITCH);
+        hatShift = encoder.getBitOffset(hatSlot);
+        hatMask = (1L << encoder.getBitSize(hatSlot)) - 1;
+        checkState(hatShift + encoder.getBitSize(hatSlot) <= 64, "The hat must be in the low word");
+        digitalMask =
+                bitA | bitB | bitX | bitY | bitL1 | bitR1 | bitL3 | bitR3 | bitStart | bitBack
+                        | bitHome | hatMask << hatShift;
+
+        if (encoder.findSlot(PAGE_GENERIC_DESKTOP, USAGE_X) < 0) {
+            // Buttons and the hat only.
+            axisShifts = new int[0];
+            axisMask = 0;
+            axisMaximum = 0;
+            shiftLx = shiftLy = shiftRx = shiftRy = shiftL2 = shiftR2 = 0;
+            lowLx = lowLy = lowRx = lowRy = lowL2 = lowR2 = 0;
+            return;
+        }
+
+        // In the order of the AxisFilter.AXIS_* constants.
+        int[] axisSlots = {
+            encoder.getSlot(PAGE_GENERIC_DESKTOP, USAGE_X),
+            encoder.getSlot(PAGE_GENERIC_DESKTOP, USAGE_Y),
+            encoder.getSlot(PAGE_GENERIC_DESKTOP, USAGE_Z),
+            encoder.getSlot(PAGE_GENERIC_DESKTOP, USAGE_RZ),
+            encoder.getSlot(PAGE_SIMULATION, USAGE_BRAKE),
+            encoder.getSlot(PAGE_SIMULATION, USAGE_ACCELERATOR),
+        };
+        axisShifts = new int[AXIS_COUNT];
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            int shift = encoder.getBitOffset(axisSlots[axis]);
+            checkState(
+                    encoder.getBitSize(axisSlots[axis]) == axisBits,
+                    "All axes must have the same size");
+            checkState(
+                    shift / 64 == (shift + axisBits - 1) / 64, "An axis must not span two words");
+            axisShifts[axis] = shift;
+        }
+        axisMask = (1L << axisBits) - 1;
+        axisMaximum = (int) axisMask;
+        shiftLx = axisShifts[AxisFilter.AXIS_LX];
+        shiftLy = axisShifts[AxisFilter.AXIS_LY];
+        shiftRx = axisShifts[AxisFilter.AXIS_RX];
+        shiftRy = axisShifts[AxisFilter.AXIS_RY];
+        shiftL2 = axisShifts[AxisFilter.AXIS_L2];
+        shiftR2 = axisShifts[AxisFilter.AXIS_R2];
+        lowLx = shiftLx < 64 ? -1 : 0;
+        lowLy = shiftLy < 64 ? -1 : 0;
+        lowRx = shiftRx < 64 ? -1 : 0;
+        lowRy = shiftRy < 64 ? -1 : 0;
+        lowL2 = shiftL2 < 64 ? -1 : 0;
+        lowR2 = shiftR2 < 64 ? -1 : 0;
+    }
+
+    /**
+     * Get the largest value of the analog axes. The {@link GamepadState} axes must be in the
+     * {@code [0, getAxisMaximum()]} range, with the sticks centered at {@code (max + 1) / 2}.
+     *
+     * @return Axis maximum, or {@code 0} if the format has no analog axes.
+     */
+    public int getAxisMaximum() {
+        return axisMaximum;
+    }
+
+    /** @return {@code true} if the report has the analog axes. */
+    public boolean hasAxes() {
+        return axisShifts.length > 0;
+    }
+
+    /** @return Layout of the first player's gamepad report. */
+    ReportLayout getLayout() {
+        return layouts[0];
+    }
+
+    /**
+     * @param player Player index, {@code 0} to {@code MAX_PLAYERS - 1}.
+     * @return Layout of the player's gamepad report.
+     */
+    ReportLayout getLayout(int player) {
+        return layouts[player];
+    }
+
+    /** @return Size of the report data, not counting the report ID. */
+    int getReportSize() {
+        return reportSize;
+    }
+
+    /**
+     * @param playerCount Number of the gamepads to describe.
+     * @return Report descriptor of this format, the one in {@link #getSdpSettings(int)}.
+     */
+    byte[] getReportDescriptor(int playerCount) {
+        return Constants.createReportDescriptor(Arrays.copyOf(layouts, playerCount));
+    }
+
+    /**
+     * @param playerCount Number of the gamepads to describe.
+     * @return SDP settings with the report descriptor of this format.
+     */
+    BluetoothHidDeviceAppSdpSettings getSdpSettings(int playerCount) {
+        return sdpSettings[playerCount - 1];
+    }
+
+    /**
+     * @param playerCount Number of the gamepads that send the reports independently.
+     * @return QoS parameters that allow one report of every gamepad per latency period.
+     */
+    QosParameters getQosParameters(int playerCount) {
+        return qosParameters[playerCount - 1];
+    }
+
+    /**
+     * @param playerCount Number of the gamepads that send the reports independently.
+     * @return QoS settings created from {@link #getQosParameters}.
+     */
+    BluetoothHidDeviceAppQosSettings getQosSettings(int playerCount) {
+        return qosSettings[playerCount - 1];
+    }
+
+    /**
+     * Pack the state structure into the report bits, so that it can be copied, compared and
+     * encoded without touching the individual fields. This is straight-line code for every format:
+     * the buttons are masked into place rather than tested, and the axes are shifted into place
+     * and masked into their words.
+     *
+     * @param s The gamepad state to pack
+     * @param out The packed state to overwrite
+     */
+    void pack(GamepadState s, PackedState out) {
+        long digital =
+                mask(s.a, bitA)
+                        | mask(s.b, bitB)
+                        | mask(s.x, bitX)
+                        | mask(s.y, bitY)
+                        | mask(s.l1, bitL1)
+                        | mask(s.r1, bitR1)
+                        | mask(s.l3, bitL3)
+                        | mask(s.r3, bitR3)
+                        | mask(s.start, bitStart)
+                        | mask(s.back, bitBack)
+                        | mask(s.home, bitHome)
+                        | (s.dpad & hatMask) << hatShift;
+
+        // Shifts use the lower 6 bits only, so the same shift works for both words. Without the
+        // axes, the axis mask is zero and so are all of these.
+        long lx = (s.lx & axisMask) << shiftLx;
+        long ly = (s.ly & axisMask) << shiftLy;
+        long rx = (s.rx & axisMask) << shiftRx;
+        long ry = (s.ry & axisMask) << shiftRy;
+        long l2 = (s.l2 & axisMask) << shiftL2;
+        long r2 = (s.r2 & axisMask) << shiftR2;
+        out.low =
+                digital
+                        | (lx & lowLx)
+                        | (ly & lowLy)
+                        | (rx & lowRx)
+                        | (ry & lowRy)
+                        | (l2 & lowL2)
+                        | (r2 & lowR2);
+        out.high =
+                (lx & ~lowLx)
+                        | (ly & ~lowLy)
+                        | (rx & ~lowRx)
+                        | (ry & ~lowRy)
+                        | (l2 & ~lowL2)
+                        | (r2 & ~lowR2);
+    }
+
+    /**
+     * Get the bit of one of the buttons in the low word of the packed state.
+     *
+     * @param button One of the {@code ButtonMap.BUTTON_*} constants
+     * @return Mask with the button bit set
+     */
+    long getButtonBit(int button) {
+        return buttonBits[button];
+    }
+
+    /**
+     * Get the digital part of the packed state, i.e. the button bits and the hat switch.
+     *
+     * @param s The packed gamepad state
+     * @return The low word of the packed state with all the axes cleared
+     */
+    long getDigitalBits(PackedState s) {
+        return s.low & digitalMask;
+    }
+
+    /**
+     * Get one of the analog axes from the packed state.
+     *
+     * @param s The packed gamepad state
+     * @param axis One of the {@code AxisFilter.AXIS_*} constants
+     * @return Axis value, 0 to {@link #getAxisMaximum()}
+     */
+    int getAxis(PackedState s, int axis) {
+        int shift = axisShifts[axis];
+        long word = shift < 64 ? s.low : s.high;
+        return (int) ((word >>> shift) & axisMask);
+    }
+
+    /**
+     * Replace one of the analog axes in the packed state.
+     *
+     * @param s The packed gamepad state
+     * @param axis One of the {@code AxisFilter.AXIS_*} constants
+     * @param value New axis value, 0 to {@link #getAxisMaximum()}
+     */
+    void setAxis(PackedState s, int axis, int value) {
+        // Shifts use the lower 6 bits only, so the same shift works for both words.
+        int shift = axisShifts[axis];
+        long bits = (value & axisMask) << shift;
+        long mask = ~(axisMask << shift);
+        if (shift < 64) {
+            s.low = (s.low & mask) | bits;
+        } else {
+            s.high = (s.high & mask) | bits;
+        }
+    }
+
+    /**
+     * Split the packed state into the report bytes.
+     *
+     * @param s The packed gamepad state
+     * @param report Output buffer, at least {@link #getReportSize()} bytes long
+     */
+    void write(PackedState s, byte[] report) {
+        // The packed state already has the report layout, only the bytes need to be split.
+        int lowBytes = Math.min(reportSize, 8);
+        for (int i = 0; i < lowBytes; i++) {
+            report[i] = (byte) (s.low >>> (i * 8));
+        }
+        for (int i = lowBytes; i < reportSize; i++) {
+            report[i] = (byte) (s.high >>> (i * 8));
+        }
+    }
+
+    /**
+     * Select the bit of a button without a branch: a boolean is either 0 or 1, so {@code b ? 1 : 0}
+     * is the boolean itself to the compiler, and its negation is a mask of all zeros or all ones.
+     */
+    private static long mask(boolean pressed, long bit) {
+        return -(long) (pressed ? 1 : 0) & bit;
+    }
+
+    private static long getButtonBit(ReportEncoder encoder, int usagePage, int usage) {
+        int shift = encoder.getBitOffset(encoder.getSlot(usagePage, usage));
+        checkState(shift < 64, "The buttons must be in the low word");
+        return 1L << shift;
+    }
+}
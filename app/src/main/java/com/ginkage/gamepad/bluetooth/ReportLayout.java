@@ -0,0 +1,500 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Declarative description of one HID report, i.e. one application collection of the report
+ * descriptor. The builder keeps track of the global and local item state the same way the host
+ * parser does, so the descriptor bytes and the position of every field in the report both come
+ * from the same declaration and can't drift apart.
+ */
+class ReportLayout {
+    static final int PAGE_GENERIC_DESKTOP = 0x01;
+    static final int PAGE_SIMULATION = 0x02;
+    static final int PAGE_GENERIC_DEVICE = 0x06;
+    static final int PAGE_LED = 0x08;
+    static final int PAGE_BUTTON = 0x09;
+    static final int PAGE_CONSUMER = 0x0C;
+    static final int PAGE_PHYSICAL_INPUT = 0x0F;
+    static final int PAGE_VENDOR = 0xFF00;
+
+    static final int USAGE_GAME_PAD = 0x05;
+    static final int USAGE_X = 0x30;
+    static final int USAGE_Y = 0x31;
+    static final int USAGE_Z = 0x32;
+    static final int USAGE_RZ = 0x35;
+    static final int USAGE_HAT_SWITCH = 0x39;
+    static final int USAGE_ACCELERATOR = 0xC4;
+    static final int USAGE_BRAKE = 0xC5;
+    static final int USAGE_BATTERY_STRENGTH = 0x20;
+    static final int USAGE_AC_HOME = 0x223;
+    static final int USAGE_AC_BACK = 0x224;
+    static final int USAGE_PLAYER_1 = 0x61;
+    static final int USAGE_PLAYER_2 = 0x62;
+    static final int USAGE_PLAYER_3 = 0x63;
+    static final int USAGE_PLAYER_4 = 0x64;
+    static final int USAGE_DURATION = 0x50;
+    static final int USAGE_MAGNITUDE = 0x70;
+
+    // Vendor page usages of the send path settings
+    static final int USAGE_VENDOR_POLLING_RATE = 0x01;
+    static final int USAGE_VENDOR_COALESCING_WINDOW = 0x02;
+    static final int USAGE_VENDOR_STICK_DEAD_BAND = 0x03;
+    static final int USAGE_VENDOR_TRIGGER_DEAD_BAND = 0x04;
+
+    static final int COLLECTION_PHYSICAL = 0x00;
+    static final int COLLECTION_APPLICATION = 0x01;
+
+    // Input item flags, the Output and Feature items use the same bits
+    static final int INPUT_CONSTANT = 0x01;
+    static final int INPUT_VARIABLE = 0x02;
+    static final int INPUT_NULL_STATE = 0x40;
+
+    // Units, nibble-coded: system in the lowest nibble, then length, mass, time, etc.
+    static final int UNIT_NONE = 0x00;
+    static final int UNIT_DEGREES = 0x14;
+
+    // Item prefixes without the size bits: tag in the high nibble, then the item type.
+    static final int ITEM_INPUT = 0x80;
+    static final int ITEM_OUTPUT = 0x90;
+    static final int ITEM_FEATURE = 0xB0;
+    static final int ITEM_COLLECTION = 0xA0;
+    static final int ITEM_END_COLLECTION = 0xC0;
+    static final int ITEM_USAGE_PAGE = 0x04;
+    static final int ITEM_LOGICAL_MINIMUM = 0x14;
+    static final int ITEM_LOGICAL_MAXIMUM = 0x24;
+    static final int ITEM_PHYSICAL_MINIMUM = 0x34;
+    static final int ITEM_PHYSICAL_MAXIMUM = 0x44;
+    static final int ITEM_UNIT = 0x64;
+    static final int ITEM_REPORT_SIZE = 0x74;
+    static final int ITEM_REPORT_ID = 0x84;
+    static final int ITEM_REPORT_COUNT = 0x94;
+    static final int ITEM_USAGE = 0x08;
+
+    /** One main item of the report, with the global state that was in effect for it. */
+    static class Field {
+        /** Usages of the values, {@code (usage page << 16) | usage ID}. May be empty. */
+        final int[] usages;
+
+        final int bitOffset;
+        final int reportSize;
+        final int reportCount;
+        final int logicalMinimum;
+        final int logicalMaximum;
+        final int physicalMinimum;
+        final int physicalMaximum;
+        final int unit;
+        final int flags;
+
+        Field(
+                int[] usages,
+                int bitOffset,
+                int reportSize,
+                int reportCount,
+                int logicalMinimum,
+                int logicalMaximum,
+                int physicalMinimum,
+                int physicalMaximum,
+                int unit,
+                int flags) {
+            this.usages = usages;
+            this.bitOffset = bitOffset;
+            this.reportSize = reportSize;
+            this.reportCount = reportCount;
+            this.logicalMinimum = logicalMinimum;
+            this.logicalMaximum = logicalMaximum;
+            this.physicalMinimum = physicalMinimum;
+            this.physicalMaximum = physicalMaximum;
+            this.unit = unit;
+            this.flags = flags;
+        }
+
+        /** @return {@code true} if the field is padding that doesn't carry any data. */
+        boolean isConstant() {
+            return (flags & INPUT_CONSTANT) != 0;
+        }
+
+        /**
+         * Get the usage of one of the values. As in the HID spec, the last usage applies to all
+         * the remaining values if there are fewer usages than values.
+         *
+         * @param index Index of the value, less than {@link #reportCount}.
+         * @return Extended usage, or {@code 0} if the field has no usages.
+         */
+        int getUsage(int index) {
+            if (usages.length == 0) {
+                return 0;
+            }
+            return usages[Math.min(index, usages.length - 1)];
+        }
+    }
+
+    private final int reportId;
+    private final byte[] descriptor;
+    private final List<Field> fields;
+    private final int reportSize;
+    private final List<Field> outputFields;
+    private final int outputReportSize;
+    private final List<Field> featureFields;
+    private final int featureReportSize;
+
+    /**
+     * @param reportId Report ID that prefixes the report data.
+     * @param descriptor Descriptor bytes of the report's application collection.
+     * @param fields Input fields of the report, in the report order.
+     * @param bitLength Total size of the fields in bits.
+     */
+    ReportLayout(int reportId, byte[] descriptor, List<Field> fields, int bitLength) {
+        this(
+                reportId,
+                descriptor,
+                fields,
+                bitLength,
+                Collections.emptyList(),
+                0,
+                Collections.emptyList(),
+                0);
+    }
+
+    /**
+     * @param reportId Report ID that prefixes the report data.
+     * @param descriptor Descriptor bytes of the report's application collection.
+     * @param fields Input fields of the report, in the report order.
+     * @param bitLength Total size of the fields in bits.
+     * @param outputFields Fields of the Output report with the same ID, in the report order.
+     * @param outputBitLength Total size of the Output fields in bits.
+     * @param featureFields Fields of the Feature report with the same ID, in the report order.
+     * @param featureBitLength Total size of the Feature fields in bits.
+     */
+    ReportLayout(
+            int reportId,
+            byte[] descriptor,
+            List<Field> fields,
+            int bitLength,
+            List<Field> outputFields,
+            int outputBitLength,
+            List<Field> featureFields,
+            int featureBitLength) {
+        this.reportId = reportId;
+        this.descriptor = descriptor;
+        this.fields = Collections.unmodifiableList(fields);
+        this.reportSize = (bitLength + 7) / 8;
+        this.outputFields = Collections.unmodifiableList(outputFields);
+        this.outputReportSize = (outputBitLength + 7) / 8;
+        this.featureFields = Collections.unmodifiableList(featureFields);
+        this.featureReportSize = (featureBitLength + 7) / 8;
+    }
+
+    /**
+     * Combine the extended usage from the usage page and the usage ID.
+     *
+     * @param usagePage Usage page.
+     * @param usage Usage ID within the page.
+     * @return Extended usage.
+     */
+    static int usage(int usagePage, int usage) {
+        return (usagePage << 16) | (usage & 0xFFFF);
+    }
+
+    /**
+     * Concatenate the descriptors of several reports into the complete report descriptor. Note
+     * that the host carries the global items over from one report to the next, so a layout that
+     * doesn't set e.g. the physical range gets the one of the previous layout.
+     *
+     * @param layouts Reports to describe, in order.
+     * @return Report descriptor that can be registered with the HID Device profile.
+     */
+    static byte[] concat(ReportLayout... layouts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ReportLayout layout : layouts) {
+            out.write(layout.descriptor, 0, layout.descriptor.length);
+        }
+        return out.toByteArray();
+    }
+
+    /** @return Report ID that prefixes the report data. */
+    int getReportId() {
+        return reportId;
+    }
+
+    /** @return Size of the report data in bytes, not counting the report ID. */
+    int getReportSize() {
+        return reportSize;
+    }
+
+    /** @return Input fields of the report, in the report order. */
+    List<Field> getFields() {
+        return fields;
+    }
+
+    /** @return Size of the Output report data in bytes, or {@code 0} if there is none. */
+    int getOutputReportSize() {
+        return outputReportSize;
+    }
+
+    /** @return Fields of the Output report, in the report order. */
+    List<Field> getOutputFields() {
+        return outputFields;
+    }
+
+    /** @return Size of the Feature report data in bytes, or {@code 0} if there is none. */
+    int getFeatureReportSize() {
+        return featureReportSize;
+    }
+
+    /** @return Fields of the Feature report, in the report order. */
+    List<Field> getFeatureFields() {
+        return featureFields;
+    }
+
+    /** @return Copy of the descriptor bytes of this report's application collection. */
+    byte[] getDescriptor() {
+        return Arrays.copyOf(descriptor, descriptor.length);
+    }
+
+    /**
+     * Builder that emits one descriptor item per call. Items are written with the shortest data
+     * size that fits the value, except for the units which are always written as 16-bit.
+     */
+    static class Builder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final List<Field> fields = new ArrayList<>();
+        private final List<Field> outputFields = new ArrayList<>();
+        private final List<Field> featureFields = new ArrayList<>();
+        private final List<Integer> usages = new ArrayList<>();
+        private final int reportId;
+        private int usagePage;
+        private int logicalMinimum;
+        private int logicalMaximum;
+        private int physicalMinimum;
+        private int physicalMaximum;
+        private int unit;
+        private int reportSize;
+        private int reportCount;
+        private int bitLength;
+        private int outputBitLength;
+        private int featureBitLength;
+        private int depth;
+
+        /**
+         * Open the application collection of the report.
+         *
+         * @param reportId Report ID, must not be zero.
+         * @param usagePage Usage page of the application collection.
+         * @param usage Usage of the application collection.
+         */
+        Builder(int reportId, int usagePage, int usage) {
+            checkArgument(reportId > 0 && reportId <= 0xFF, "Invalid report ID: %s", reportId);
+            this.reportId = reportId;
+            usagePage(usagePage);
+            usage(usage);
+            collection(COLLECTION_APPLICATION);
+            unsignedItem(ITEM_REPORT_ID, reportId);
+        }
+
+        Builder usagePage(int usagePage) {
+            this.usagePage = usagePage;
+            unsignedItem(ITEM_USAGE_PAGE, usagePage);
+            return this;
+        }
+
+        /**
+         * Add local usages on the current usage page, one item per usage.
+         *
+         * @param ids Usage IDs in the order of the values they describe.
+         */
+        Builder usage(int... ids) {
+            for (int id : ids) {
+                usages.add(ReportLayout.usage(usagePage, id));
+                unsignedItem(ITEM_USAGE, id);
+            }
+            return this;
+        }
+
+        Builder logicalMinimum(int value) {
+            logicalMinimum = value;
+            signedItem(ITEM_LOGICAL_MINIMUM, value);
+            return this;
+        }
+
+        Builder logicalMaximum(int value) {
+            logicalMaximum = value;
+            signedItem(ITEM_LOGICAL_MAXIMUM, value);
+            return this;
+        }
+
+        Builder physicalMinimum(int value) {
+            physicalMinimum = value;
+            signedItem(ITEM_PHYSICAL_MINIMUM, value);
+            return this;
+        }
+
+        Builder physicalMaximum(int value) {
+            physicalMaximum = value;
+            signedItem(ITEM_PHYSICAL_MAXIMUM, value);
+            return this;
+        }
+
+        Builder unit(int value) {
+            unit = value;
+            item(ITEM_UNIT, value, (value & 0xFFFF0000) == 0 ? 2 : 4);
+            return this;
+        }
+
+        Builder reportSize(int bits) {
+            checkArgument(bits > 0 && bits <= 32, "Unsupported report size: %s", bits);
+            reportSize = bits;
+            unsignedItem(ITEM_REPORT_SIZE, bits);
+            return this;
+        }
+
+        Builder reportCount(int count) {
+            checkArgument(count > 0, "Report count must be positive");
+            reportCount = count;
+            unsignedItem(ITEM_REPORT_COUNT, count);
+            return this;
+        }
+
+        /**
+         * Add an Input item that takes {@code reportSize * reportCount} bits of the report.
+         *
+         * @param flags Combination of the {@code INPUT_*} flags.
+         */
+        Builder input(int flags) {
+            bitLength += addField(fields, bitLength, flags);
+            unsignedItem(ITEM_INPUT, flags);
+            usages.clear();
+            return this;
+        }
+
+        /**
+         * Add an Output item that takes {@code reportSize * reportCount} bits of the Output
+         * report. The Output report has the same report ID as the Input one.
+         *
+         * @param flags Combination of the {@code INPUT_*} flags, which are the same for Output.
+         */
+        Builder output(int flags) {
+            outputBitLength += addField(outputFields, outputBitLength, flags);
+            unsignedItem(ITEM_OUTPUT, flags);
+            usages.clear();
+            return this;
+        }
+
+        /**
+         * Add a Feature item that takes {@code reportSize * reportCount} bits of the Feature
+         * report. The Feature report has the same report ID as the Input one.
+         *
+         * @param flags Combination of the {@code INPUT_*} flags, which are the same for Feature.
+         */
+        Builder feature(int flags) {
+            featureBitLength += addField(featureFields, featureBitLength, flags);
+            unsignedItem(ITEM_FEATURE, flags);
+            usages.clear();
+            return this;
+        }
+
+        Builder collection(int type) {
+            depth++;
+            unsignedItem(ITEM_COLLECTION, type);
+            usages.clear();
+            return this;
+        }
+
+        Builder endCollection() {
+            checkState(depth > 1, "Use build() to close the application collection");
+            depth--;
+            item(ITEM_END_COLLECTION, 0, 0);
+            return this;
+        }
+
+        /** Close the application collection and finish the layout. */
+        ReportLayout build() {
+            checkState(depth == 1, "Unbalanced collections");
+            item(ITEM_END_COLLECTION, 0, 0);
+            depth = 0;
+            return new ReportLayout(
+                    reportId,
+                    out.toByteArray(),
+                    fields,
+                    bitLength,
+                    outputFields,
+                    outputBitLength,
+                    featureFields,
+                    featureBitLength);
+        }
+
+        private int addField(List<Field> fields, int bitOffset, int flags) {
+            checkState(reportSize > 0 && reportCount > 0, "Report size and count must be set");
+            checkArgument(
+                    (flags & INPUT_CONSTANT) != 0 || (flags & INPUT_VARIABLE) != 0,
+                    "Only variable fields are supported");
+            int[] fieldUsages = new int[usages.size()];
+            for (int i = 0; i < fieldUsages.length; i++) {
+                fieldUsages[i] = usages.get(i);
+            }
+            fields.add(
+                    new Field(
+                            fieldUsages,
+                            bitOffset,
+                            reportSize,
+                            reportCount,
+                            logicalMinimum,
+                            logicalMaximum,
+                            physicalMinimum,
+                            physicalMaximum,
+                            unit,
+                            flags));
+            return reportSize * reportCount;
+        }
+
+        private void unsignedItem(int prefix, int value) {
+            if ((value & 0xFFFFFF00) == 0) {
+                item(prefix, value, 1);
+            } else if ((value & 0xFFFF0000) == 0) {
+                item(prefix, value, 2);
+            } else {
+                item(prefix, value, 4);
+            }
+        }
+
+        private void signedItem(int prefix, int value) {
+            if (value == (byte) value) {
+                item(prefix, value, 1);
+            } else if (value == (short) value) {
+                item(prefix, value, 2);
+            } else {
+                item(prefix, value, 4);
+            }
+        }
+
+        private void item(int prefix, int value, int size) {
+            out.write(prefix | (size == 4 ? 3 : size));
+            for (int i = 0; i < size; i++) {
+                out.write(value >>> (i * 8));
+            }
+        }
+    }
+}
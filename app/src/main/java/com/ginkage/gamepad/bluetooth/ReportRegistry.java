@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import android.bluetooth.BluetoothHidDevice;
+import androidx.annotation.BinderThread;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reports that the HID Host may read with GET_REPORT or write with SET_REPORT, indexed by the
+ * report type and ID. The binder callbacks find the handler with a single array lookup, so adding
+ * a report doesn't make the dispatch any slower, and the error responses are the same for every
+ * report.
+ */
+class ReportRegistry {
+    /** Supplies the current data of a report, e.g. from a {@link ReportSnapshot}. */
+    interface GetReportHandler {
+        /** @return Report data, not including the report ID. */
+        @BinderThread
+        byte[] getReport();
+    }
+
+    /** Receives the data of a report written by the host. */
+    interface SetReportHandler {
+        /**
+         * @param data Buffer that holds the report data.
+         * @param offset Position of the report data in the buffer, after the report ID if any.
+         * @return {@link BluetoothHidDevice#ERROR_RSP_SUCCESS}, or one of the other {@code
+         *     ERROR_RSP_*} codes if the report was rejected.
+         */
+        @BinderThread
+        byte setReport(byte[] data, int offset);
+    }
+
+    /** One registered report. */
+    static final class Report {
+        final int id;
+        final int size;
+        @Nullable final GetReportHandler getHandler;
+        @Nullable final SetReportHandler setHandler;
+
+        private Report(
+                int id,
+                int size,
+                @Nullable GetReportHandler getHandler,
+                @Nullable SetReportHandler setHandler) {
+            this.id = id;
+            this.size = size;
+            this.getHandler = getHandler;
+            this.setHandler = setHandler;
+        }
+
+        /**
+         * Validate the length of the report written by the host and pass it to the handler.
+         *
+         * @param data Report data, with or without the report ID.
+         * @return One of the {@code ERROR_RSP_*} codes to respond with.
+         */
+        @BinderThread
+        byte setReport(byte[] data) {
+            if (setHandler == null) {
+                return BluetoothHidDevice.ERROR_RSP_UNSUPPORTED_REQ;
+            }
+            // Some stacks pass the report ID along with the data.
+            int offset = id != 0 && data.length == size + 1 && data[0] == (byte) id ? 1 : 0;
+            if (data.length - offset != size) {
+                return BluetoothHidDevice.ERROR_RSP_INVALID_PARAM;
+            }
+            return setHandler.setReport(data, offset);
+        }
+    }
+
+    private static final int TYPE_COUNT = 3;
+    private static final int ID_COUNT = 256;
+
+    private final AtomicReferenceArray<Report> reports =
+            new AtomicReferenceArray<>(TYPE_COUNT * ID_COUNT);
+
+    /**
+     * Register a report, or replace the one with the same type and ID.
+     *
+     * @param type One of the {@code BluetoothHidDevice.REPORT_TYPE_*} constants.
+     * @param id Report ID, or {@code 0} if the descriptor doesn't use the report IDs.
+     * @param size Size of the report data in bytes, not including the report ID.
+     * @param getHandler Handler of the GET_REPORT requests, or {@code null} if the report can't be
+     *     read.
+     * @param setHandler Handler of the SET_REPORT requests and the Output reports sent over the
+     *     interrupt channel, or {@code null} if the report can't be written.
+     */
+    @MainThread
+    void register(
+            int type,
+            int id,
+            int size,
+            @Nullable GetReportHandler getHandler,
+            @Nullable SetReportHandler setHandler) {
+        checkReport(type, id);
+        checkArgument(size > 0, "Invalid report size: %s", size);
+        checkArgument(getHandler != null || setHandler != null, "The report needs a handler");
+        reports.set(getIndex(type, id), new Report(id, size, getHandler, setHandler));
+    }
+
+    /**
+     * Remove a report.
+     *
+     * @param type One of the {@code BluetoothHidDevice.REPORT_TYPE_*} constants.
+     * @param id Report ID.
+     */
+    @MainThread
+    void unregister(int type, int id) {
+        checkReport(type, id);
+        reports.set(getIndex(type, id), null);
+    }
+
+    /**
+     * Find a report.
+     *
+     * @param type Report type received from the host.
+     * @param id Report ID received from the host.
+     * @return The registered report, or {@code null} if there is none.
+     */
+    @BinderThread
+    @Nullable
+    Report find(byte type, byte id) {
+        if (!isValidType(type)) {
+            return null;
+        }
+        return reports.get(getIndex(type, id & 0xFF));
+    }
+
+    /**
+     * Get the error to respond with when a report can't be found or doesn't support the request.
+     *
+     * @param type Report type received from the host.
+     * @param id Report ID received from the host.
+     * @return {@link BluetoothHidDevice#ERROR_RSP_INVALID_PARAM} for an unknown type, {@link
+     *     BluetoothHidDevice#ERROR_RSP_UNSUPPORTED_REQ} if the report ID exists but not with this
+     *     type or request, or {@link BluetoothHidDevice#ERROR_RSP_INVALID_RPT_ID} otherwise.
+     */
+    @BinderThread
+    byte getError(byte type, byte id) {
+        if (!isValidType(type)) {
+            return BluetoothHidDevice.ERROR_RSP_INVALID_PARAM;
+        }
+        for (int t = BluetoothHidDevice.REPORT_TYPE_INPUT;
+                t <= BluetoothHidDevice.REPORT_TYPE_FEATURE;
+                t++) {
+            if (reports.get(getIndex(t, id & 0xFF)) != null) {
+                return BluetoothHidDevice.ERROR_RSP_UNSUPPORTED_REQ;
+            }
+        }
+        return BluetoothHidDevice.ERROR_RSP_INVALID_RPT_ID;
+    }
+
+    /**
+     * Check that the registered reports are exactly the ones that the descriptor declares, with
+     * the same sizes, so that the host can't see a report that we would refuse or vice versa.
+     *
+     * @param descriptor Report descriptor that the HID Device app is about to be registered with.
+     * @throws IllegalStateException If the reports don't match the descriptor.
+     */
+    @MainThread
+    void checkDescriptor(byte[] descriptor) {
+        int[] sizes = new int[TYPE_COUNT * ID_COUNT];
+        for (ReportLayout layout : ReportDescriptorParser.parse(descriptor)) {
+            int id = layout.getReportId();
+            sizes[getIndex(BluetoothHidDevice.REPORT_TYPE_INPUT, id)] = layout.getReportSize();
+            sizes[getIndex(BluetoothHidDevice.REPORT_TYPE_OUTPUT, id)] =
+                    layout.getOutputReportSize();
+            sizes[getIndex(BluetoothHidDevice.REPORT_TYPE_FEATURE, id)] =
+                    layout.getFeatureReportSize();
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            Report report = reports.get(i);
+            int size = report != null ? report.size : 0;
+            checkState(
+                    size == sizes[i],
+                    "Report %s of type %s has %s bytes in the descriptor, but %s are registered",
+                    i % ID_COUNT,
+                    i / ID_COUNT + BluetoothHidDevice.REPORT_TYPE_INPUT,
+                    sizes[i],
+                    size);
+        }
+    }
+
+    private static boolean isValidType(int type) {
+        return type >= BluetoothHidDevice.REPORT_TYPE_INPUT
+                && type <= BluetoothHidDevice.REPORT_TYPE_FEATURE;
+    }
+
+    private static void checkReport(int type, int id) {
+        checkArgument(isValidType(type), "Invalid report type: %s", type);
+        checkArgument(id >= 0 && id < ID_COUNT, "Invalid report ID: %s", id);
+    }
+
+    private static int getIndex(int type, int id) {
+        return (type - BluetoothHidDevice.REPORT_TYPE_INPUT) * ID_COUNT + id;
+    }
+}
@@ -0,0 +1,645 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import androidx.annotation.AnyThread;
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Hands the latest published gamepad state over to the thread that encodes and sends the reports.
+ * Publishing only packs the state into the report bits (see {@link ReportFormat#pack}), so the
+ * caller never waits for the Bluetooth stack, and the state is copied and compared as a couple of
+ * primitives.
+ *
+ * <p>At most one report is sent per coalescing window. The first state after a quiet period is
+ * sent right away, and any states published during the window are merged so that only the newest
+ * one is sent when the window ends. This keeps the Bluetooth stack from queueing reports that
+ * would arrive late anyway.
+ *
+ * <p>Button and hat transitions don't wait for the window: each of them is queued and sent in
+ * order, so that a short press is never merged away. Analog reports are additionally held back
+ * by a token bucket with the player's share of the QoS parameters we have registered with.
+ *
+ * <p>The analog axes go through the {@link AxisFilter} dead band, and reports that didn't change
+ * are not sent at all. Instead, the last state is repeated once in a while to keep the host in
+ * sync. A report that the stack refuses is retried with an exponential backoff.
+ *
+ * <p>Optionally, the reports may be sent on a fixed schedule instead. Either way, when the state
+ * doesn't change for a while the scheduler goes idle and stops sending anything until the next
+ * change.
+ */
+class ReportScheduler {
+
+    /** Used to call back when the scheduler goes idle or wakes up. */
+    interface IdleListener {
+        /**
+         * Callback that receives the new idle state. Always called on the sender thread, so the
+         * publishing thread never waits for the listener when it wakes the scheduler up.
+         *
+         * @param idle {@code true} if the scheduler has just gone idle.
+         */
+        @AnyThread
+        void onIdleChanged(boolean idle);
+    }
+
+    /** Hands the reports over to the Bluetooth stack, see {@link HidDeviceApp#sendGamepad}. */
+    interface ReportSender {
+        /**
+         * Send the gamepad report of one of the players.
+         *
+         * @param player Player index.
+         * @param state The packed gamepad state.
+         * @param force Send the report even if it didn't change.
+         * @return One of the {@code HidDeviceApp.SEND_*} result codes.
+         */
+        int sendGamepad(int player, PackedState state, boolean force);
+    }
+
+    /** Default time without any state changes before going idle. */
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Longest time the host may go without any reports while we are connected. */
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Number of times a refused report is retried, the delay doubles every time. */
+    private static final int MAX_RETRIES = 4;
+
+    /** Number of button transitions that can wait for the sender thread. */
+    private static final int EDGE_QUEUE_SIZE = 32;
+
+    private final ReportSender reportSender;
+    private final ReportStats reportStats;
+    private final AxisFilter axisFilter;
+    private final AtomicReference<SendSettings> settings;
+    private final IdleListener idleListener;
+    private final ReportFormat format;
+    private final int player;
+    private final TaskRunner taskRunner;
+    private final Ticker ticker;
+    private final Runnable flushRunnable = this::flush;
+    private final Runnable keepAliveRunnable = this::keepAlive;
+    private final Runnable retryRunnable = this::retry;
+    private final Runnable pollRunnable = this::poll;
+    private final Runnable idleRunnable = this::checkIdle;
+    private final Runnable wakeRunnable = this::onWake;
+
+    /** Size of a report on the air, including the report ID. */
+    private final int reportBytes;
+
+    /** Shortest report period that the QoS token rate allows. */
+    private final long tokenPeriodNanos;
+
+    /** Only accessed on the sender thread. */
+    private final TokenBucket tokenBucket;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private final PackedState pendingState = new PackedState();
+
+    /**
+     * The last state that counted as a change. The dead band is measured from it rather than from
+     * the previous state, so a slow drift adds up until it is reported.
+     */
+    @GuardedBy("lock")
+    private final PackedState changedState = new PackedState();
+
+    /** The state that is being published, only used to avoid allocations. */
+    @GuardedBy("lock")
+    private final PackedState publishedState = new PackedState();
+
+    @GuardedBy("lock")
+    private final PackedState[] edgeQueue = new PackedState[EDGE_QUEUE_SIZE];
+
+    @GuardedBy("lock")
+    private int edgeHead;
+
+    @GuardedBy("lock")
+    private int edgeCount;
+
+    /** Digital part of the last published state, see {@link ReportFormat#getDigitalBits}. */
+    @GuardedBy("lock")
+    private long lastDigitalBits = -1;
+
+    /** Whether {@link #pendingState} holds analog changes that weren't sent yet. */
+    @GuardedBy("lock")
+    private boolean statePending;
+
+    @GuardedBy("lock")
+    private boolean flushPending;
+
+    @GuardedBy("lock")
+    private boolean pollPending;
+
+    /** Only accessed on the sender thread. */
+    private long nextPollNanos;
+
+    /** Time without any state changes before going idle, or {@code 0} to never go idle. */
+    @GuardedBy("lock")
+    private long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+    @GuardedBy("lock")
+    private boolean idleCheckPending;
+
+    @GuardedBy("lock")
+    private boolean idle;
+
+    @GuardedBy("lock")
+    private long idleStartNanos;
+
+    @GuardedBy("lock")
+    private long lastChangeNanos;
+
+    /** Time of the first state change after an idle period, until it's sent. */
+    private volatile long wakeNanos;
+
+    /** Time of the last report that was sent, or {@code 0} if nothing was sent yet. */
+    private volatile long lastSendNanos;
+
+    /** Only accessed on the sender thread. */
+    private final PackedState sendingState = new PackedState();
+
+    /** Only accessed on the sender thread. */
+    private boolean keepAlivePending;
+
+    /** Only accessed on the sender thread. */
+    private boolean retryPending;
+
+    /** Only accessed on the sender thread. */
+    private int retryCount;
+
+    /**
+     * @param reportSender Interface that performs the actual sending, see {@link HidDeviceApp}.
+     * @param reportStats Counters to update.
+     * @param axisFilter Hysteresis to apply to the analog axes.
+     * @param settings Polling period, coalescing window and dead bands, shared by all the players.
+     *     Each report reads one snapshot of them, see {@link #onSettingsChanged()}.
+     * @param idleListener Callback that will receive the idle state changes.
+     * @param taskRunner Runs the tasks on the thread that the reports should be sent on.
+     * @param ticker Source of the time, in nanoseconds.
+     * @param format Report format.
+     * @param qos QoS parameters that the app is registered with. The player's share of them is
+     *     the token bucket.
+     * @param player Index of the player whose gamepad reports are sent.
+     */
+    ReportScheduler(
+            ReportSender reportSender,
+            ReportStats reportStats,
+            AxisFilter axisFilter,
+            AtomicReference<SendSettings> settings,
+            IdleListener idleListener,
+            TaskRunner taskRunner,
+            Ticker ticker,
+            ReportFormat format,
+            QosParameters qos,
+            int player) {
+        this.reportSender = checkNotNull(reportSender);
+        this.reportStats = checkNotNull(reportStats);
+        this.axisFilter = checkNotNull(axisFilter);
+        this.settings = checkNotNull(settings);
+        this.idleListener = checkNotNull(idleListener);
+        this.format = checkNotNull(format);
+        this.player = player;
+        this.taskRunner = checkNotNull(taskRunner);
+        this.ticker = checkNotNull(ticker);
+        this.reportBytes = format.getReportSize() + 1;
+        this.tokenBucket = TokenBucket.forPlayer(qos);
+        this.tokenPeriodNanos = TimeUnit.SECONDS.toNanos(reportBytes) / qos.getPlayerTokenRate();
+        format.pack(new GamepadState(), pendingState);
+        changedState.copyFrom(pendingState);
+        for (int i = 0; i < EDGE_QUEUE_SIZE; i++) {
+            edgeQueue[i] = new PackedState();
+        }
+    }
+
+    /**
+     * Store the latest gamepad state and make sure it will be sent soon. If the previous state
+     * wasn't sent yet, it is replaced with the new one.
+     *
+     * @param state The current state of the gamepad.
+     */
+    @AnyThread
+    void publish(GamepadState state) {
+        reportStats.onReportReceived();
+        SendSettings s = settings.get();
+        boolean urgent;
+        boolean woke = false;
+        boolean flushNeeded;
+        synchronized (lock) {
+            format.pack(state, publishedState);
+            long digitalBits = format.getDigitalBits(publishedState);
+            urgent = digitalBits != lastDigitalBits;
+            boolean changed =
+                    urgent || axisFilter.hasMoved(changedState, publishedState, format, s);
+            pendingState.copyFrom(publishedState);
+            if (changed) {
+                changedState.copyFrom(publishedState);
+                woke = onStateChanged(s);
+            } else if (idle) {
+                // Just the touch noise, stay asleep.
+                return;
+            }
+
+            if (urgent) {
+                lastDigitalBits = digitalBits;
+                enqueueEdge(publishedState);
+                statePending = false;
+            } else {
+                statePending = true;
+            }
+
+            if (s.pollingPeriodNanos > 0) {
+                // The next tick will pick it up, just make sure the ticks are running.
+                if (!pollPending) {
+                    pollPending = true;
+                    taskRunner.post(pollRunnable);
+                }
+                flushNeeded = false;
+            } else {
+                // A scheduled flush will pick up the newest analog state by itself.
+                flushNeeded = urgent || !flushPending;
+                flushPending = true;
+            }
+        }
+
+        if (woke) {
+            taskRunner.post(wakeRunnable);
+        }
+        if (!flushNeeded) {
+            return;
+        }
+
+        long delayNanos = urgent ? 0 : getDelayNanos(ticker.read(), s.windowNanos);
+        if (delayNanos > 0) {
+            // Round up, so that we never flush before the window ends.
+            taskRunner.postDelayed(flushRunnable, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+        } else if (taskRunner.isCurrentThread()) {
+            taskRunner.remove(flushRunnable);
+            flush();
+        } else {
+            // A delayed flush may already be waiting, don't let it hold back the button.
+            taskRunner.remove(flushRunnable);
+            taskRunner.post(flushRunnable);
+        }
+    }
+
+    /**
+     * Set the time without any state changes after which the scheduler goes idle.
+     *
+     * @param timeoutMillis Idle timeout, or {@code 0} to never go idle.
+     */
+    @AnyThread
+    void setIdleTimeout(long timeoutMillis) {
+        synchronized (lock) {
+            idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutMillis, 0));
+            if (idleTimeoutNanos > 0 && !idle && !idleCheckPending) {
+                idleCheckPending = true;
+                taskRunner.postDelayed(idleRunnable, timeoutMillis + 1);
+            }
+        }
+    }
+
+    /**
+     * Convert the requested polling rate to the period that the QoS settings allow.
+     *
+     * @param rateHz Number of reports per second, or {@code 0} for event-driven sending.
+     * @param windowNanos Coalescing window that the polling period must not be shorter than.
+     * @return Polling period in nanoseconds, or {@code 0} if polling is disabled.
+     */
+    @AnyThread
+    long getPollingPeriodNanos(int rateHz, long windowNanos) {
+        checkArgument(rateHz >= 0, "Rate must not be negative");
+        long minPeriodNanos = Math.max(windowNanos, tokenPeriodNanos);
+        return rateHz > 0 ? Math.max(minPeriodNanos, TimeUnit.SECONDS.toNanos(1) / rateHz) : 0;
+    }
+
+    /**
+     * Start the polling ticks if the shared settings have just switched to polling. The reports
+     * that are already scheduled pick up the new settings by themselves, as each of them reads the
+     * whole snapshot at once.
+     */
+    @AnyThread
+    void onSettingsChanged() {
+        synchronized (lock) {
+            if (settings.get().pollingPeriodNanos > 0 && !pollPending) {
+                pollPending = true;
+                taskRunner.post(pollRunnable);
+            }
+        }
+    }
+
+    /** @return {@code true} if the state didn't change for the idle timeout. */
+    @AnyThread
+    boolean isIdle() {
+        synchronized (lock) {
+            return idle;
+        }
+    }
+
+    /** Drop any state that wasn't sent yet. */
+    @AnyThread
+    void cancel() {
+        taskRunner.remove(flushRunnable);
+        taskRunner.remove(pollRunnable);
+        taskRunner.remove(keepAliveRunnable);
+        taskRunner.remove(retryRunnable);
+        taskRunner.remove(idleRunnable);
+        taskRunner.remove(wakeRunnable);
+        synchronized (lock) {
+            edgeCount = 0;
+            statePending = false;
+            flushPending = false;
+            pollPending = false;
+            idleCheckPending = false;
+        }
+    }
+
+    /**
+     * Remember the time of the change, and wake up if we were idle.
+     *
+     * @param s Settings that the change was published with.
+     * @return {@code true} if the scheduler has just woken up.
+     */
+    @GuardedBy("lock")
+    private boolean onStateChanged(SendSettings s) {
+        long nowNanos = ticker.read();
+        lastChangeNanos = nowNanos;
+        boolean woke = idle;
+        if (idle) {
+            idle = false;
+            long idleNanos = nowNanos - idleStartNanos;
+            long savedPeriodNanos =
+                    s.pollingPeriodNanos > 0 ? s.pollingPeriodNanos : KEEP_ALIVE_NANOS;
+            reportStats.onIdlePeriod(idleNanos, idleNanos / savedPeriodNanos);
+            wakeNanos = nowNanos;
+        }
+        if (!idleCheckPending && idleTimeoutNanos > 0) {
+            idleCheckPending = true;
+            taskRunner.postDelayed(
+                    idleRunnable, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) + 1);
+        }
+        return woke;
+    }
+
+    private void checkIdle() {
+        synchronized (lock) {
+            idleCheckPending = false;
+            if (idle || idleTimeoutNanos == 0) {
+                return;
+            }
+            long nowNanos = ticker.read();
+            long delayNanos = lastChangeNanos + idleTimeoutNanos - nowNanos;
+            if (delayNanos > 0) {
+                idleCheckPending = true;
+                taskRunner.postDelayed(idleRunnable, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+                return;
+            }
+            idle = true;
+            idleStartNanos = nowNanos;
+        }
+
+        // Nothing is going on, so don't wake the radio up just to repeat the same report.
+        taskRunner.remove(keepAliveRunnable);
+        keepAlivePending = false;
+        idleListener.onIdleChanged(true);
+    }
+
+    private void onWake() {
+        idleListener.onIdleChanged(false);
+    }
+
+    @GuardedBy("lock")
+    private void enqueueEdge(PackedState state) {
+        if (edgeCount == EDGE_QUEUE_SIZE) {
+            // The sender is hopelessly behind. Merge with the newest transition, so that at least
+            // the final state is correct.
+            edgeQueue[(edgeHead + edgeCount - 1) % EDGE_QUEUE_SIZE].copyFrom(state);
+            return;
+        }
+        edgeQueue[(edgeHead + edgeCount) % EDGE_QUEUE_SIZE].copyFrom(state);
+        edgeCount++;
+    }
+
+    private long getDelayNanos(long nowNanos, long windowNanos) {
+        long lastSend = lastSendNanos;
+        if (lastSend == 0) {
+            return 0;
+        }
+        return lastSend + windowNanos - nowNanos;
+    }
+
+    private void flush() {
+        SendSettings s = settings.get();
+        // Button transitions go first, one report per transition.
+        while (true) {
+            synchronized (lock) {
+                if (edgeCount == 0) {
+                    break;
+                }
+                sendingState.copyFrom(edgeQueue[edgeHead]);
+                edgeHead = (edgeHead + 1) % EDGE_QUEUE_SIZE;
+                edgeCount--;
+            }
+            send(sendingState, s);
+        }
+
+        synchronized (lock) {
+            if (!statePending) {
+                flushPending = false;
+                return;
+            }
+
+            long nowNanos = ticker.read();
+            long delayNanos = getDelayNanos(nowNanos, s.windowNanos);
+            long shaperDelayNanos = tokenBucket.getDelayNanos(reportBytes, nowNanos);
+            if (shaperDelayNanos > delayNanos) {
+                reportStats.onReportThrottled();
+                delayNanos = shaperDelayNanos;
+            }
+            if (delayNanos > 0) {
+                // The analog changes can wait, they will be merged with any newer ones.
+                taskRunner.postDelayed(
+                        flushRunnable, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+                return;
+            }
+
+            sendingState.copyFrom(pendingState);
+            statePending = false;
+            flushPending = false;
+        }
+        send(sendingState, s);
+    }
+
+    private void poll() {
+        SendSettings s = settings.get();
+        long periodNanos = s.pollingPeriodNanos;
+        synchronized (lock) {
+            if (periodNanos == 0 || idle) {
+                // Back to event-driven sending, or nothing to send until we wake up.
+                pollPending = false;
+                nextPollNanos = 0;
+                return;
+            }
+            if (edgeCount > 0) {
+                sendingState.copyFrom(edgeQueue[edgeHead]);
+                edgeHead = (edgeHead + 1) % EDGE_QUEUE_SIZE;
+                edgeCount--;
+            } else {
+                sendingState.copyFrom(pendingState);
+                statePending = false;
+            }
+        }
+
+        axisFilter.apply(sendingState, format, s);
+        int result = reportSender.sendGamepad(player, sendingState, true);
+        onSendResult(result, s);
+
+        long nowNanos = ticker.read();
+        synchronized (lock) {
+            if (result == HidDeviceApp.SEND_NO_DEVICE) {
+                // Nobody is listening, the next published state will restart the ticks.
+                pollPending = false;
+                nextPollNanos = 0;
+                return;
+            }
+        }
+
+        if (nextPollNanos == 0 || nowNanos - nextPollNanos > periodNanos) {
+            // First tick, or we fell behind: start a new schedule instead of bursting.
+            nextPollNanos = nowNanos;
+        }
+        nextPollNanos += periodNanos;
+        long delayNanos = Math.max(0, nextPollNanos - nowNanos);
+        // Round to the nearest millisecond, the error doesn't accumulate.
+        taskRunner.postDelayed(pollRunnable, (delayNanos + 500_000) / 1_000_000);
+    }
+
+    private void send(PackedState state, SendSettings s) {
+        axisFilter.apply(state, format, s);
+        onSendResult(reportSender.sendGamepad(player, state, false), s);
+    }
+
+    private void keepAlive() {
+        keepAlivePending = false;
+        long delayNanos = lastSendNanos + KEEP_ALIVE_NANOS - ticker.read();
+        if (delayNanos > 0) {
+            scheduleKeepAlive(delayNanos);
+            return;
+        }
+
+        synchronized (lock) {
+            if (edgeCount > 0) {
+                // The newest state must not overtake the transitions that lead to it. They are
+                // about to be sent, and will schedule the next keep-alive themselves.
+                return;
+            }
+            sendingState.copyFrom(pendingState);
+        }
+        // Resynchronize with the actual state that was hidden by the dead band.
+        axisFilter.reset(sendingState, format);
+        int result = reportSender.sendGamepad(player, sendingState, true);
+        if (result == HidDeviceApp.SEND_OK) {
+            reportStats.onKeepAliveReport();
+        }
+        onSendResult(result, settings.get());
+    }
+
+    private void retry() {
+        retryPending = false;
+        synchronized (lock) {
+            if (flushPending) {
+                // A newer state is on its way, it will take the place of the failed one.
+                return;
+            }
+            sendingState.copyFrom(pendingState);
+        }
+
+        if (retryCount == MAX_RETRIES) {
+            // Give up for now, the keep-alive will try again later.
+            retryCount = 0;
+            reportStats.onReportDropped();
+            return;
+        }
+        retryCount++;
+        reportStats.onReportRetried();
+        SendSettings s = settings.get();
+        axisFilter.apply(sendingState, format, s);
+        onSendResult(reportSender.sendGamepad(player, sendingState, true), s);
+    }
+
+    private void onSendResult(int result, SendSettings s) {
+        switch (result) {
+            case HidDeviceApp.SEND_OK:
+                onReportSent();
+                break;
+
+            case HidDeviceApp.SEND_UNCHANGED:
+                reportStats.onReportSuppressed();
+                break;
+
+            case HidDeviceApp.SEND_FAILED:
+                onReportFailed(s.windowNanos);
+                break;
+
+            default: // Nobody to send to, nothing to do.
+        }
+    }
+
+    private void onReportSent() {
+        long nowNanos = ticker.read();
+        lastSendNanos = nowNanos;
+        // Button reports are never held back, but they still take their share of the bandwidth.
+        tokenBucket.consume(reportBytes, nowNanos);
+        reportStats.onReportTransmitted(nowNanos);
+        long wake = wakeNanos;
+        if (wake != 0) {
+            wakeNanos = 0;
+            reportStats.onWake(nowNanos - wake);
+        }
+        retryCount = 0;
+        if (retryPending) {
+            retryPending = false;
+            taskRunner.remove(retryRunnable);
+        }
+        if (!keepAlivePending) {
+            scheduleKeepAlive(KEEP_ALIVE_NANOS);
+        }
+    }
+
+    private void onReportFailed(long windowNanos) {
+        if (!retryPending) {
+            retryPending = true;
+            // The window may be zero, don't retry faster than the token rate.
+            long delayNanos = Math.max(windowNanos, tokenPeriodNanos) << retryCount;
+            taskRunner.postDelayed(retryRunnable, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+        }
+        if (!keepAlivePending) {
+            scheduleKeepAlive(KEEP_ALIVE_NANOS);
+        }
+    }
+
+    private void scheduleKeepAlive(long delayNanos) {
+        keepAlivePending = true;
+        taskRunner.postDelayed(keepAliveRunnable, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+    }
+}
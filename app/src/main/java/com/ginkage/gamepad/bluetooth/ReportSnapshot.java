@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import androidx.annotation.AnyThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Last completed report, published by a single writer and read by any number of binder threads.
+ * The writer never waits: it marks the snapshot as being updated with an odd sequence number, and
+ * a reader that sees the sequence change while copying simply tries again. This way a GET_REPORT
+ * request always gets a consistent report without taking a lock on the send path.
+ */
+class ReportSnapshot {
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /** @param size Size of the report data in bytes. */
+    ReportSnapshot(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 7) / 8);
+    }
+
+    /**
+     * Replace the snapshot with a new report. Must only be called from one thread at a time.
+     *
+     * @param report Report data, at least {@code size} bytes long.
+     */
+    void publish(byte[] report) {
+        int seq = sequence.get();
+        sequence.set(seq + 1);
+        for (int i = 0; i < words.length(); i++) {
+            long word = 0;
+            for (int j = 0; j < 8 && i * 8 + j < size; j++) {
+                word |= (report[i * 8 + j] & 0xFFL) << (j * 8);
+            }
+            words.set(i, word);
+        }
+        sequence.set(seq + 2);
+    }
+
+    /**
+     * Copy the last completed report.
+     *
+     * @return New array that holds the report data.
+     */
+    @AnyThread
+    byte[] read() {
+        byte[] report = new byte[size];
+        while (true) {
+            int seq = sequence.get();
+            if ((seq & 1) != 0) {
+                // The writer is in the middle of an update, it will be done shortly.
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < words.length(); i++) {
+                long word = words.get(i);
+                for (int j = 0; j < 8 && i * 8 + j < size; j++) {
+                    report[i * 8 + j] = (byte) (word >>> (j * 8));
+                }
+            }
+            if (sequence.get() == seq) {
+                return report;
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters that describe how the gamepad reports flow through the send path. */
+public class ReportStats {
+    private final AtomicLong receivedReports = new AtomicLong();
+    private final AtomicLong transmittedReports = new AtomicLong();
+    private final AtomicLong throttledReports = new AtomicLong();
+    private final AtomicLong suppressedReports = new AtomicLong();
+    private final AtomicLong keepAliveReports = new AtomicLong();
+    private final AtomicLong failedReports = new AtomicLong();
+    private final AtomicLong retriedReports = new AtomicLong();
+    private final AtomicLong droppedReports = new AtomicLong();
+    private final IntervalStats intervalStats = new IntervalStats();
+    private final IntervalStats wakeLatencyStats = new IntervalStats();
+    private final IntervalStats feedbackLatencyStats = new IntervalStats();
+    private final AtomicLong idleTimeNanos = new AtomicLong();
+    private final AtomicLong idleSavedReports = new AtomicLong();
+
+    /**
+     * Get the number of gamepad states published by the UI.
+     *
+     * @return Number of received states.
+     */
+    public long getReceivedReports() {
+        return receivedReports.get();
+    }
+
+    /**
+     * Get the number of gamepad reports that were actually handed over to the Bluetooth stack.
+     *
+     * @return Number of transmitted reports.
+     */
+    public long getTransmittedReports() {
+        return transmittedReports.get();
+    }
+
+    /**
+     * Get the number of times an analog report was held back to stay within the QoS token rate.
+     *
+     * @return Number of throttled reports.
+     */
+    public long getThrottledReports() {
+        return throttledReports.get();
+    }
+
+    /**
+     * Get the number of reports that were not sent because they didn't change after filtering.
+     *
+     * @return Number of suppressed reports.
+     */
+    public long getSuppressedReports() {
+        return suppressedReports.get();
+    }
+
+    /**
+     * Get the number of reports that were repeated to keep the host up to date while idle.
+     *
+     * @return Number of keep-alive reports.
+     */
+    public long getKeepAliveReports() {
+        return keepAliveReports.get();
+    }
+
+    /**
+     * Get the number of reports that the Bluetooth stack refused to send.
+     *
+     * @return Number of failed reports.
+     */
+    public long getFailedReports() {
+        return failedReports.get();
+    }
+
+    /**
+     * Get the number of times the newest state was sent again after a failure.
+     *
+     * @return Number of retried reports.
+     */
+    public long getRetriedReports() {
+        return retriedReports.get();
+    }
+
+    /**
+     * Get the number of times we gave up retrying. The state will still be delivered by the next
+     * report or keep-alive, but possibly later than it should have been.
+     *
+     * @return Number of dropped reports.
+     */
+    public long getDroppedReports() {
+        return droppedReports.get();
+    }
+
+    /**
+     * Get the statistics of the actual time between consecutive transmitted reports.
+     *
+     * @return Live interval statistics.
+     */
+    public IntervalStats getIntervalStats() {
+        return intervalStats;
+    }
+
+    /**
+     * Get the statistics of the time from the first input after an idle period to the first
+     * report sent to the host.
+     *
+     * @return Live wake latency statistics.
+     */
+    public IntervalStats getWakeLatencyStats() {
+        return wakeLatencyStats;
+    }
+
+    /**
+     * Get the statistics of the time from the arrival of an Output report from the host to the
+     * start of the vibration it requested.
+     *
+     * @return Live feedback latency statistics.
+     */
+    public IntervalStats getFeedbackLatencyStats() {
+        return feedbackLatencyStats;
+    }
+
+    /**
+     * Get the total time spent in the idle mode, not counting the current idle period.
+     *
+     * @return Idle time in nanoseconds.
+     */
+    public long getIdleTimeNanos() {
+        return idleTimeNanos.get();
+    }
+
+    /**
+     * Get the number of keep-alive or polling reports that would have been sent if we hadn't
+     * gone idle. Each of them is a radio transmission saved.
+     *
+     * @return Number of reports saved while idle.
+     */
+    public long getIdleSavedReports() {
+        return idleSavedReports.get();
+    }
+
+    /** Reset all counters to zero. */
+    public void reset() {
+        receivedReports.set(0);
+        transmittedReports.set(0);
+        throttledReports.set(0);
+        suppressedReports.set(0);
+        keepAliveReports.set(0);
+        failedReports.set(0);
+        retriedReports.set(0);
+        droppedReports.set(0);
+        intervalStats.reset();
+        wakeLatencyStats.reset();
+        feedbackLatencyStats.reset();
+        idleTimeNanos.set(0);
+        idleSavedReports.set(0);
+    }
+
+    void onReportReceived() {
+        receivedReports.incrementAndGet();
+    }
+
+    void onReportTransmitted(long nowNanos) {
+        transmittedReports.incrementAndGet();
+        intervalStats.onEvent(nowNanos);
+    }
+
+    void onReportThrottled() {
+        throttledReports.incrementAndGet();
+    }
+
+    void onReportSuppressed() {
+        suppressedReports.incrementAndGet();
+    }
+
+    void onKeepAliveReport() {
+        keepAliveReports.incrementAndGet();
+    }
+
+    void onIdlePeriod(long durationNanos, long savedReports) {
+        idleTimeNanos.addAndGet(durationNanos);
+        idleSavedReports.addAndGet(savedReports);
+    }
+
+    void onWake(long latencyNanos) {
+        wakeLatencyStats.record(latencyNanos);
+    }
+
+    void onFeedbackPlayed(long latencyNanos) {
+        feedbackLatencyStats.record(latencyNanos);
+    }
+
+    void onReportFailed() {
+        failedReports.incrementAndGet();
+    }
+
+    void onReportRetried() {
+        retriedReports.incrementAndGet();
+    }
+
+    void onReportDropped() {
+        droppedReports.incrementAndGet();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+/**
+ * Immutable snapshot of the settings that the send path runs with: the polling period, the
+ * coalescing window and the dead bands of the analog axes. All the players share one snapshot,
+ * which is replaced as a whole, and the sender thread reads it once per report. So a report is
+ * never sent with the rate of one change and the dead bands of another, and all the players
+ * switch at the same moment.
+ */
+final class SendSettings {
+    /** Dead band of the stick axes that hides the touch jitter, in the 8-bit axis units. */
+    static final int DEFAULT_STICK_DEAD_BAND = 1;
+
+    /** Polling period, or {@code 0} if the reports are sent when the state changes. */
+    final long pollingPeriodNanos;
+
+    /** Shortest time between two reports of the analog changes, see {@link ReportScheduler}. */
+    final long windowNanos;
+
+    /** Dead band of every axis, in the 8-bit axis units, see {@link AxisFilter}. */
+    private final int[] deadBands;
+
+    private SendSettings(long pollingPeriodNanos, long windowNanos, int[] deadBands) {
+        this.pollingPeriodNanos = pollingPeriodNanos;
+        this.windowNanos = windowNanos;
+        this.deadBands = deadBands;
+    }
+
+    /**
+     * @param windowNanos Coalescing window.
+     * @return Settings for sending on change, with the default dead bands.
+     */
+    static SendSettings create(long windowNanos) {
+        return new SendSettings(0, windowNanos, new int[ReportFormat.AXIS_COUNT])
+                .withDeadBands(DEFAULT_STICK_DEAD_BAND, 0);
+    }
+
+    /**
+     * @param axis One of the {@code AxisFilter.AXIS_*} constants.
+     * @return Largest change of the axis value that is ignored.
+     */
+    int getDeadBand(int axis) {
+        return deadBands[axis];
+    }
+
+    /**
+     * @param pollingPeriodNanos Polling period, or {@code 0} to send on change.
+     * @param windowNanos Coalescing window.
+     * @return Copy of these settings with another polling period and coalescing window.
+     */
+    SendSettings withPolling(long pollingPeriodNanos, long windowNanos) {
+        return new SendSettings(pollingPeriodNanos, windowNanos, deadBands);
+    }
+
+    /**
+     * @param axis One of the {@code AxisFilter.AXIS_*} constants.
+     * @param deadBand Dead band of the axis.
+     * @return Copy of these settings with another dead band of one axis.
+     */
+    SendSettings withDeadBand(int axis, int deadBand) {
+        int[] newDeadBands = deadBands.clone();
+        newDeadBands[axis] = deadBand;
+        return new SendSettings(pollingPeriodNanos, windowNanos, newDeadBands);
+    }
+
+    /**
+     * @param stickDeadBand Dead band of the stick axes.
+     * @param triggerDeadBand Dead band of the trigger axes.
+     * @return Copy of these settings with other dead bands of all the axes.
+     */
+    SendSettings withDeadBands(int stickDeadBand, int triggerDeadBand) {
+        int[] newDeadBands = new int[deadBands.length];
+        for (int axis = 0; axis < newDeadBands.length; axis++) {
+            newDeadBands[axis] = axis < AxisFilter.AXIS_L2 ? stickDeadBand : triggerDeadBand;
+        }
+        return new SendSettings(pollingPeriodNanos, windowNanos, newDeadBands);
+    }
+}
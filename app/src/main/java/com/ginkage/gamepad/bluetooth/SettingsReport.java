@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_VENDOR;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_COALESCING_WINDOW;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_POLLING_RATE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_STICK_DEAD_BAND;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_VENDOR_TRIGGER_DEAD_BAND;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import android.bluetooth.BluetoothHidDevice;
+import androidx.annotation.AnyThread;
+import androidx.annotation.BinderThread;
+import androidx.annotation.MainThread;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes and decodes the gamepad Feature report, through which the host can read and change the
+ * send path settings: the polling rate, the coalescing window and the axis dead bands.
+ *
+ * <p>The binder thread only decodes the report into a {@code long} and swaps it into a single
+ * atomic slot, the same way as {@link FeedbackScheduler} does. Only the latest settings are then
+ * applied on the main thread, where they replace the whole {@link SendSettings} snapshot at once.
+ * Every report reads one snapshot, so no report is sent with the new rate and the old dead bands,
+ * and all the players switch together.
+ */
+class SettingsReport {
+    /** Applies the settings that the host has sent. */
+    interface Listener {
+        /**
+         * Called when the host changes the settings.
+         *
+         * @param pollingRate Number of reports per second, or {@code 0} to send on change.
+         * @param windowMicros Coalescing window in microseconds.
+         * @param stickDeadBand Dead band of the stick axes, in the 8-bit axis units.
+         * @param triggerDeadBand Dead band of the trigger axes, in the 8-bit axis units.
+         */
+        @MainThread
+        void onSettingsChanged(
+                int pollingRate, int windowMicros, int stickDeadBand, int triggerDeadBand);
+    }
+
+    private static final long NO_SETTINGS = -1;
+
+    private final Listener listener;
+    private final ReportEncoder encoder;
+    private final ReportDecoder decoder;
+    private final int pollingRateSlot;
+    private final int windowSlot;
+    private final int stickDeadBandSlot;
+    private final int triggerDeadBandSlot;
+    private final TaskRunner mainThreadRunner;
+    private final Runnable applyRunnable = this::apply;
+
+    /** Latest settings that weren't applied yet, see {@link #onSetReport}. */
+    private final AtomicLong pendingSettings = new AtomicLong(NO_SETTINGS);
+
+    /**
+     * @param layout Layout of the gamepad report that declares the Feature report.
+     * @param listener Listener to apply the settings with.
+     * @param mainThreadRunner Runs the tasks on the main thread.
+     */
+    SettingsReport(ReportLayout layout, Listener listener, TaskRunner mainThreadRunner) {
+        this.listener = checkNotNull(listener);
+        this.mainThreadRunner = checkNotNull(mainThreadRunner);
+        encoder = new ReportEncoder(layout.getFeatureFields(), layout.getFeatureReportSize());
+        decoder = new ReportDecoder(layout.getFeatureFields(), layout.getFeatureReportSize());
+        pollingRateSlot = decoder.getSlot(PAGE_VENDOR, USAGE_VENDOR_POLLING_RATE);
+        windowSlot = decoder.getSlot(PAGE_VENDOR, USAGE_VENDOR_COALESCING_WINDOW);
+        stickDeadBandSlot = decoder.getSlot(PAGE_VENDOR, USAGE_VENDOR_STICK_DEAD_BAND);
+        triggerDeadBandSlot = decoder.getSlot(PAGE_VENDOR, USAGE_VENDOR_TRIGGER_DEAD_BAND);
+    }
+
+    /** @return Size of the Feature report data in bytes. */
+    int getReportSize() {
+        return encoder.getReportSize();
+    }
+
+    /**
+     * Encode the current settings. Values that don't fit into the report are clamped.
+     *
+     * @param pollingRate Number of reports per second, or {@code 0} to send on change.
+     * @param windowMicros Coalescing window in microseconds.
+     * @param stickDeadBand Dead band of the stick axes.
+     * @param triggerDeadBand Dead band of the trigger axes.
+     * @return New Feature report data.
+     */
+    @AnyThread
+    byte[] encode(int pollingRate, int windowMicros, int stickDeadBand, int triggerDeadBand) {
+        int[] values = new int[encoder.getSlotCount()];
+        values[pollingRateSlot] = clamp(pollingRate, pollingRateSlot);
+        values[windowSlot] = clamp(windowMicros, windowSlot);
+        values[stickDeadBandSlot] = clamp(stickDeadBand, stickDeadBandSlot);
+        values[triggerDeadBandSlot] = clamp(triggerDeadBand, triggerDeadBandSlot);
+        byte[] report = new byte[encoder.getReportSize()];
+        encoder.encode(values, report);
+        return report;
+    }
+
+    /**
+     * Handle the Feature report. This is a {@link ReportRegistry.SetReportHandler}.
+     *
+     * @param data Buffer that holds the report data.
+     * @param offset Position of the report data in the buffer.
+     * @return Always {@link BluetoothHidDevice#ERROR_RSP_SUCCESS}.
+     */
+    @BinderThread
+    byte onSetReport(byte[] data, int offset) {
+        // The fields are 16, 16, 8 and 8 bits long, see Constants.createGamepadLayout().
+        long settings =
+                decoder.decode(data, offset, pollingRateSlot)
+                        | (long) decoder.decode(data, offset, windowSlot) << 16
+                        | (long) decoder.decode(data, offset, stickDeadBandSlot) << 32
+                        | (long) decoder.decode(data, offset, triggerDeadBandSlot) << 40;
+        if (pendingSettings.getAndSet(settings) == NO_SETTINGS) {
+            mainThreadRunner.post(applyRunnable);
+        }
+        return BluetoothHidDevice.ERROR_RSP_SUCCESS;
+    }
+
+    @MainThread
+    private void apply() {
+        long settings = pendingSettings.getAndSet(NO_SETTINGS);
+        if (settings == NO_SETTINGS) {
+            return;
+        }
+        listener.onSettingsChanged(
+                (int) (settings & 0xFFFF),
+                (int) ((settings >>> 16) & 0xFFFF),
+                (int) ((settings >>> 32) & 0xFF),
+                (int) ((settings >>> 40) & 0xFF));
+    }
+
+    private int clamp(int value, int slot) {
+        int maximum = (1 << encoder.getBitSize(slot)) - 1;
+        return Math.max(0, Math.min(value, maximum));
+    }
+}
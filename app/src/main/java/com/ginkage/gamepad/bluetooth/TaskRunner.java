@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+/**
+ * Runs the tasks on one thread, like a {@link android.os.Handler} does. The report schedulers run
+ * on the sender thread, the rest of the classes on the main thread.
+ */
+interface TaskRunner {
+    /** @param task Task to run as soon as possible. */
+    void post(Runnable task);
+
+    /**
+     * @param task Task to run later.
+     * @param delayMillis Time to wait before running the task.
+     */
+    void postDelayed(Runnable task, long delayMillis);
+
+    /** @param task Task to remove from the queue, if it is waiting there. */
+    void remove(Runnable task);
+
+    /** @return {@code true} if called on the thread that runs the tasks. */
+    boolean isCurrentThread();
+}
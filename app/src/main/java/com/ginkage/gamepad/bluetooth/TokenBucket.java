@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Token bucket that meters the outgoing reports against the QoS parameters we have registered
+ * with. Tokens are bytes; the bucket fills at the token rate (bytes per second) up to the bucket
+ * size. Not thread safe, should only be used on the sender thread.
+ */
+class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long tokenRate;
+    private final long capacity;
+
+    /** Available tokens, in byte-nanoseconds to keep the arithmetic integer. May be negative. */
+    private long tokens;
+
+    private long lastRefillNanos;
+    private boolean started;
+
+    /**
+     * @param tokenRate Number of bytes per second that we are allowed to send.
+     * @param bucketSize Maximum number of bytes that we are allowed to send in one burst.
+     */
+    TokenBucket(int tokenRate, int bucketSize) {
+        checkArgument(tokenRate > 0, "Token rate must be positive");
+        checkArgument(bucketSize > 0, "Bucket size must be positive");
+        this.tokenRate = tokenRate;
+        this.capacity = bucketSize * NANOS_PER_SECOND;
+        this.tokens = capacity;
+    }
+
+    /**
+     * Create a token bucket with one player's share of the parameters that are advertised to the
+     * HID Host.
+     *
+     * @param qos QoS parameters that the app is registered with.
+     * @return New token bucket that starts full.
+     */
+    static TokenBucket forPlayer(QosParameters qos) {
+        return new TokenBucket(qos.getPlayerTokenRate(), qos.getPlayerTokenBucketSize());
+    }
+
+    /**
+     * Get the time that has to pass until the specified number of bytes can be sent.
+     *
+     * @param bytes Size of the data we want to send.
+     * @param nowNanos Current time, see {@link System#nanoTime()}.
+     * @return Time to wait, or {@code 0} if the data can be sent right away.
+     */
+    long getDelayNanos(int bytes, long nowNanos) {
+        refill(nowNanos);
+        long missing = bytes * NANOS_PER_SECOND - tokens;
+        if (missing <= 0) {
+            return 0;
+        }
+        return (missing + tokenRate - 1) / tokenRate;
+    }
+
+    /**
+     * Take the tokens for data that is being sent. The bucket may go into debt, in which case the
+     * following data will be held back until it is repaid.
+     *
+     * @param bytes Size of the data that is being sent.
+     * @param nowNanos Current time, see {@link System#nanoTime()}.
+     */
+    void consume(int bytes, long nowNanos) {
+        refill(nowNanos);
+        tokens -= bytes * NANOS_PER_SECOND;
+    }
+
+    private void refill(long nowNanos) {
+        if (!started) {
+            started = true;
+            lastRefillNanos = nowNanos;
+            return;
+        }
+
+        long elapsed = nowNanos - lastRefillNanos;
+        lastRefillNanos = nowNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        // Avoid the overflow after long idle periods, the bucket would be full anyway.
+        long fillTime = (capacity - tokens) / tokenRate + 1;
+        tokens = elapsed >= fillTime ? capacity : Math.min(capacity, tokens + elapsed * tokenRate);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.ui;
+
+/**
+ * Spatial index of the control bounds for the touch hit testing. The screen is split into a grid
+ * of cells, and every cell lists the controls that overlap it, topmost first. Finding the control
+ * under a pointer is a lookup of its cell and a bounds check of the few controls listed there, so
+ * it doesn't depend on the number of controls in the layout.
+ */
+final class ControlGrid {
+    /** Control index returned when there's no control under the pointer. */
+    static final int NONE = -1;
+
+    /** Upper limit of the cells per side, so a dense layout can't blow up the index. */
+    private static final int MAX_CELLS = 64;
+
+    private final int[] lefts;
+    private final int[] tops;
+    private final int[] rights;
+    private final int[] bottoms;
+    private final int columns;
+    private final int rows;
+    private final int cellWidth;
+    private final int cellHeight;
+
+    /** Start of each cell's list in {@link #cellControls}, with an extra entry for the end. */
+    private final int[] cellStarts;
+
+    /** Lists of the controls that overlap each cell, topmost first. */
+    private final int[] cellControls;
+
+    /**
+     * Build the index. The arrays are shared with the caller, and the index must be rebuilt if
+     * they change.
+     *
+     * @param lefts Left edges of the controls, inclusive.
+     * @param tops Top edges of the controls, inclusive.
+     * @param rights Right edges of the controls, exclusive.
+     * @param bottoms Bottom edges of the controls, exclusive.
+     */
+    ControlGrid(int[] lefts, int[] tops, int[] rights, int[] bottoms) {
+        this.lefts = lefts;
+        this.tops = tops;
+        this.rights = rights;
+        this.bottoms = bottoms;
+
+        int count = lefts.length;
+        int width = 1;
+        int height = 1;
+        for (int control = 0; control < count; control++) {
+            width = Math.max(width, rights[control]);
+            height = Math.max(height, bottoms[control]);
+        }
+        // About two cells per control in each direction, so most cells hold one or two controls.
+        int cells = Math.min(MAX_CELLS, 2 * (int) Math.ceil(Math.sqrt(count)) + 1);
+        cellWidth = (width + cells - 1) / cells;
+        cellHeight = (height + cells - 1) / cells;
+        columns = (width + cellWidth - 1) / cellWidth;
+        rows = (height + cellHeight - 1) / cellHeight;
+
+        // Count the controls of every cell first, then fill the lists in place.
+        cellStarts = new int[columns * rows + 1];
+        for (int control = 0; control < count; control++) {
+            if (isEmpty(control)) {
+                continue;
+            }
+            for (int row = firstRow(control); row <= lastRow(control); row++) {
+                for (int column = firstColumn(control); column <= lastColumn(control); column++) {
+                    cellStarts[row * columns + column + 1]++;
+                }
+            }
+        }
+        for (int cell = 0; cell < columns * rows; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        cellControls = new int[cellStarts[columns * rows]];
+        int[] fill = new int[columns * rows];
+        for (int control = count - 1; control >= 0; control--) {
+            if (isEmpty(control)) {
+                continue;
+            }
+            for (int row = firstRow(control); row <= lastRow(control); row++) {
+                for (int column = firstColumn(control); column <= lastColumn(control); column++) {
+                    int cell = row * columns + column;
+                    cellControls[cellStarts[cell] + fill[cell]++] = control;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the topmost control under a pointer.
+     *
+     * @param x Horizontal position of the pointer.
+     * @param y Vertical position of the pointer.
+     * @return Index of the control, or {@link #NONE}.
+     */
+    int find(float x, float y) {
+        // Controls that stick out of the screen are listed in the first column or row.
+        int column = x < 0 ? 0 : (int) x / cellWidth;
+        int row = y < 0 ? 0 : (int) y / cellHeight;
+        if (column >= columns || row >= rows) {
+            return NONE;
+        }
+        int cell = row * columns + column;
+        for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+            int control = cellControls[i];
+            if (x >= lefts[control]
+                    && x < rights[control]
+                    && y >= tops[control]
+                    && y < bottoms[control]) {
+                return control;
+            }
+        }
+        return NONE;
+    }
+
+    private boolean isEmpty(int control) {
+        return lefts[control] >= rights[control] || tops[control] >= bottoms[control];
+    }
+
+    private int firstColumn(int control) {
+        return Math.max(lefts[control], 0) / cellWidth;
+    }
+
+    private int lastColumn(int control) {
+        return Math.max(rights[control] - 1, 0) / cellWidth;
+    }
+
+    private int firstRow(int control) {
+        return Math.max(tops[control], 0) / cellHeight;
+    }
+
+    private int lastRow(int control) {
+        return Math.max(bottoms[control] - 1, 0) / cellHeight;
+    }
+}
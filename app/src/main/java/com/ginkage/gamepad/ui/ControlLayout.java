@@ -0,0 +1,253 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.ui;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.ginkage.gamepad.bluetooth.ButtonMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Arrangement of the gamepad controls on the screen, parsed from a text description, so that a
+ * new arrangement doesn't need any changes to the views or the code that handles them.
+ *
+ * <p>Every non-empty line that doesn't start with {@code #} describes one control:
+ *
+ * <pre>
+ * # type   target  left  top  right  bottom  [options]
+ * button   a       75    84   91.67  100
+ * stick    left    25    36   50     100     square
+ * trigger  l2      25    0    50     20      mirrored
+ * </pre>
+ *
+ * <p>The type is one of {@code button}, {@code dpad}, {@code stick} or {@code trigger}, and the
+ * target is the {@link com.ginkage.gamepad.bluetooth.GamepadState} value that the control sets:
+ * a button name ({@code a}, {@code b}, {@code x}, {@code y}, {@code l1}, {@code r1}, {@code l3},
+ * {@code r3}, {@code start}, {@code back}, {@code home}), {@code dpad}, {@code left} or {@code
+ * right} for the sticks, {@code l2} or {@code r2} for the triggers. The edges are in percent of
+ * the width and the height of the screen. The options are {@code square}, which shrinks the
+ * control to the largest centered square, and {@code mirrored}, which makes the trigger grow from
+ * the right to the left.
+ *
+ * <p>The controls that come later in the description are on top of the earlier ones.
+ */
+final class ControlLayout {
+    static final int TYPE_BUTTON = 0;
+    static final int TYPE_DPAD = 1;
+    static final int TYPE_STICK = 2;
+    static final int TYPE_TRIGGER = 3;
+
+    static final int STICK_LEFT = 0;
+    static final int STICK_RIGHT = 1;
+
+    static final int TRIGGER_L2 = 0;
+    static final int TRIGGER_R2 = 1;
+
+    private static final String[] TYPE_NAMES = {"button", "dpad", "stick", "trigger"};
+
+    /** Button names in the order of the {@link ButtonMap} constants. */
+    private static final String[] BUTTON_NAMES = {
+        "a", "b", "x", "y", "l1", "r1", "l3", "r3", "start", "back", "home"
+    };
+
+    private static final String[] BUTTON_LABELS = {
+        "A", "B", "X", "Y", "L1", "R1", "L3", "R3", "Start", "Back", "Home"
+    };
+
+    private static final String[] STICK_NAMES = {"left", "right"};
+    private static final String[] TRIGGER_NAMES = {"l2", "r2"};
+    private static final String[] TRIGGER_LABELS = {"L2", "R2"};
+
+    /** A single control of the layout. */
+    static final class Control {
+        /** One of the {@code TYPE_*} constants. */
+        final int type;
+
+        /**
+         * Value that the control sets: a {@link ButtonMap} button, a {@code STICK_*} or a {@code
+         * TRIGGER_*} constant, depending on the type. Always {@code 0} for the D-pad.
+         */
+        final int target;
+
+        /** Text to show on the control, empty for the D-pad and the sticks. */
+        final String label;
+
+        // Edges in percent of the screen size.
+        final float left;
+        final float top;
+        final float right;
+        final float bottom;
+
+        /** Shrink the control to the largest centered square. */
+        final boolean square;
+
+        /** The trigger grows from the right to the left. */
+        final boolean mirrored;
+
+        Control(
+                int type,
+                int target,
+                String label,
+                float left,
+                float top,
+                float right,
+                float bottom,
+                boolean square,
+                boolean mirrored) {
+            this.type = type;
+            this.target = target;
+            this.label = label;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.square = square;
+            this.mirrored = mirrored;
+        }
+    }
+
+    private final List<Control> controls;
+
+    private ControlLayout(List<Control> controls) {
+        this.controls = Collections.unmodifiableList(controls);
+    }
+
+    /**
+     * Parse the layout description.
+     *
+     * @param text Layout description, see the class documentation.
+     * @return The parsed layout.
+     * @throws IllegalArgumentException If the description is malformed or has no controls.
+     */
+    static ControlLayout parse(String text) {
+        List<Control> controls = new ArrayList<>();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                controls.add(parseControl(line.split("\\s+")));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        checkArgument(!controls.isEmpty(), "The layout has no controls");
+        return new ControlLayout(controls);
+    }
+
+    /** @return The controls in the order of the description. */
+    List<Control> getControls() {
+        return controls;
+    }
+
+    /**
+     * Compute the position of a control on the screen.
+     *
+     * @param control Index of the control.
+     * @param width Width of the screen in pixels.
+     * @param height Height of the screen in pixels.
+     * @param bounds Output array for the left, top, right and bottom edges in pixels.
+     */
+    void getBounds(int control, int width, int height, int[] bounds) {
+        Control c = controls.get(control);
+        int left = Math.round(c.left * width / 100);
+        int top = Math.round(c.top * height / 100);
+        int right = Math.round(c.right * width / 100);
+        int bottom = Math.round(c.bottom * height / 100);
+        if (c.square) {
+            int size = Math.min(right - left, bottom - top);
+            left += (right - left - size) / 2;
+            top += (bottom - top - size) / 2;
+            right = left + size;
+            bottom = top + size;
+        }
+        bounds[0] = left;
+        bounds[1] = top;
+        bounds[2] = right;
+        bounds[3] = bottom;
+    }
+
+    private static Control parseControl(String[] tokens) {
+        checkArgument(tokens.length >= 6, "Expected: type target left top right bottom");
+        int type = indexOf(TYPE_NAMES, tokens[0], "control type");
+        int target;
+        String label;
+        switch (type) {
+            case TYPE_BUTTON:
+                target = indexOf(BUTTON_NAMES, tokens[1], "button");
+                label = BUTTON_LABELS[target];
+                break;
+            case TYPE_DPAD:
+                checkArgument(tokens[1].equals("dpad"), "Unknown D-pad: %s", tokens[1]);
+                target = 0;
+                label = "";
+                break;
+            case TYPE_STICK:
+                target = indexOf(STICK_NAMES, tokens[1], "stick");
+                label = "";
+                break;
+            default:
+                target = indexOf(TRIGGER_NAMES, tokens[1], "trigger");
+                label = TRIGGER_LABELS[target];
+        }
+
+        float left = parsePercent(tokens[2]);
+        float top = parsePercent(tokens[3]);
+        float right = parsePercent(tokens[4]);
+        float bottom = parsePercent(tokens[5]);
+        checkArgument(left < right && top < bottom, "The control has no area");
+
+        boolean square = false;
+        boolean mirrored = false;
+        for (int i = 6; i < tokens.length; i++) {
+            if (tokens[i].equals("square")) {
+                square = true;
+            } else if (tokens[i].equals("mirrored") && type == TYPE_TRIGGER) {
+                mirrored = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + tokens[i]);
+            }
+        }
+        return new Control(type, target, label, left, top, right, bottom, square, mirrored);
+    }
+
+    private static int indexOf(String[] names, String name, String what) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown " + what + ": " + name);
+    }
+
+    private static float parsePercent(String token) {
+        float value;
+        try {
+            value = Float.parseFloat(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + token, e);
+        }
+        checkArgument(value >= 0 && value <= 100, "Out of range: %s", token);
+        return value;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.ui;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Places the control views where the {@link ControlLayout} says. The children must be added in
+ * the order of the layout controls.
+ */
+final class ControlPanel extends ViewGroup {
+    private final ControlLayout layout;
+    private final int[] bounds = new int[4];
+
+    /**
+     * @param context The context to create the view in.
+     * @param layout The arrangement of the controls.
+     */
+    ControlPanel(Context context, ControlLayout layout) {
+        super(context);
+        this.layout = checkNotNull(layout);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec);
+        int height = getDefaultSize(getSuggestedMinimumHeight(), heightMeasureSpec);
+        setMeasuredDimension(width, height);
+        for (int i = 0; i < getChildCount(); i++) {
+            layout.getBounds(i, width, height, bounds);
+            getChildAt(i)
+                    .measure(
+                            MeasureSpec.makeMeasureSpec(
+                                    bounds[2] - bounds[0], MeasureSpec.EXACTLY),
+                            MeasureSpec.makeMeasureSpec(
+                                    bounds[3] - bounds[1], MeasureSpec.EXACTLY));
+        }
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        for (int i = 0; i < getChildCount(); i++) {
+            layout.getBounds(i, right - left, bottom - top, bounds);
+            View child = getChildAt(i);
+            child.layout(bounds[0], bounds[1], bounds[2], bounds[3]);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.ui;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import androidx.annotation.MainThread;
+import com.ginkage.gamepad.bluetooth.IntervalStats;
+import java.util.List;
+
+/**
+ * Draws all controls of a {@link ControlLayout} on a single surface, as an alternative to a view
+ * per control. A state change marks the area of the control as dirty, and the dirty area is
+ * redrawn on the next display frame.
+ */
+final class ControlSurface extends SurfaceView
+        implements SurfaceHolder.Callback, Choreographer.FrameCallback {
+    private static final int COLOR_BACKGROUND = 0xFF202020;
+    private static final int COLOR_CONTROL = 0xFF505050;
+    private static final int COLOR_PRESSED = 0xFF909090;
+    private static final int COLOR_MARK = 0xFF303030;
+    private static final int COLOR_KNOB = 0xFFC0C0C0;
+    private static final int COLOR_TEXT = 0xFFFFFFFF;
+
+    /** Margin around every control, in percent of its smaller side. */
+    private static final int MARGIN_PERCENT = 4;
+
+    private final ControlLayout layout;
+    private final List<ControlLayout.Control> controls;
+    private final IntervalStats frameStats;
+    private final Paint fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF shape = new RectF();
+    private final int[] bounds = new int[4];
+
+    // Screen areas of the controls, updated when the surface changes.
+    private final Rect[] controlRects;
+
+    // State of the controls, only accessed on the main thread.
+    private final boolean[] pressed;
+    private final float[] knobX;
+    private final float[] knobY;
+    private final float[] levels;
+
+    /** Area that needs to be redrawn, only accessed on the main thread. */
+    private final Rect dirty = new Rect();
+
+    /** Area that the surface asks to redraw, may be larger than {@link #dirty}. */
+    private final Rect drawArea = new Rect();
+
+    private boolean surfaceReady;
+    private boolean frameScheduled;
+
+    /**
+     * @param context The context to create the view in.
+     * @param layout The arrangement of the controls.
+     * @param frameStats Statistics that receive the time it takes to draw every frame.
+     */
+    ControlSurface(Context context, ControlLayout layout, IntervalStats frameStats) {
+        super(context);
+        this.layout = checkNotNull(layout);
+        this.controls = layout.getControls();
+        this.frameStats = checkNotNull(frameStats);
+        int count = controls.size();
+        controlRects = new Rect[count];
+        for (int i = 0; i < count; i++) {
+            controlRects[i] = new Rect();
+        }
+        pressed = new boolean[count];
+        knobX = new float[count];
+        knobY = new float[count];
+        levels = new float[count];
+        textPaint.setColor(COLOR_TEXT);
+        textPaint.setTextAlign(Paint.Align.CENTER);
+        getHolder().addCallback(this);
+    }
+
+    /**
+     * Show a button as pressed or released.
+     *
+     * @param control Index of the control.
+     * @param isPressed Whether the button is pressed.
+     */
+    @MainThread
+    void setPressed(int control, boolean isPressed) {
+        if (pressed[control] != isPressed) {
+            pressed[control] = isPressed;
+            invalidateControl(control);
+        }
+    }
+
+    /**
+     * Show the position of the finger on a stick or the D-pad.
+     *
+     * @param control Index of the control.
+     * @param isPressed Whether the control is held, the knob is centered otherwise.
+     * @param x Horizontal position, relative to the left edge of the control.
+     * @param y Vertical position, relative to the top edge of the control.
+     */
+    @MainThread
+    void setKnob(int control, boolean isPressed, float x, float y) {
+        Rect rect = controlRects[control];
+        if (!isPressed) {
+            x = rect.width() / 2f;
+            y = rect.height() / 2f;
+        }
+        x = Math.min(Math.max(x, 0), rect.width());
+        y = Math.min(Math.max(y, 0), rect.height());
+        if (pressed[control] != isPressed || knobX[control] != x || knobY[control] != y) {
+            pressed[control] = isPressed;
+            knobX[control] = x;
+            knobY[control] = y;
+            invalidateControl(control);
+        }
+    }
+
+    /**
+     * Show the level of a trigger.
+     *
+     * @param control Index of the control.
+     * @param level Trigger level from {@code 0} to {@code 1}.
+     */
+    @MainThread
+    void setLevel(int control, float level) {
+        if (levels[control] != level) {
+            levels[control] = level;
+            invalidateControl(control);
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        surfaceReady = true;
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        for (int i = 0; i < controlRects.length; i++) {
+            layout.getBounds(i, width, height, bounds);
+            controlRects[i].set(bounds[0], bounds[1], bounds[2], bounds[3]);
+            if (!pressed[i]) {
+                knobX[i] = controlRects[i].width() / 2f;
+                knobY[i] = controlRects[i].height() / 2f;
+            }
+        }
+        dirty.set(0, 0, width, height);
+        scheduleFrame();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        surfaceReady = false;
+        if (frameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            frameScheduled = false;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameScheduled = false;
+        if (!surfaceReady || dirty.isEmpty()) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        drawArea.set(dirty);
+        // The surface may extend the area, e.g. when the previous buffer can't be reused.
+        Canvas canvas = getHolder().lockCanvas(drawArea);
+        if (canvas == null) {
+            return;
+        }
+        try {
+            canvas.drawColor(COLOR_BACKGROUND);
+            for (int i = 0; i < controlRects.length; i++) {
+                if (Rect.intersects(controlRects[i], drawArea)) {
+                    drawControl(canvas, i);
+                }
+            }
+        } finally {
+            getHolder().unlockCanvasAndPost(canvas);
+        }
+        dirty.setEmpty();
+        frameStats.record(System.nanoTime() - startNanos);
+    }
+
+    private void invalidateControl(int control) {
+        dirty.union(controlRects[control]);
+        scheduleFrame();
+    }
+
+    private void scheduleFrame() {
+        if (!frameScheduled && surfaceReady) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    private void drawControl(Canvas canvas, int index) {
+        ControlLayout.Control control = controls.get(index);
+        Rect rect = controlRects[index];
+        float margin = Math.min(rect.width(), rect.height()) * MARGIN_PERCENT / 100f;
+        shape.set(rect.left + margin, rect.top + margin, rect.right - margin, rect.bottom - margin);
+        float size = Math.min(shape.width(), shape.height());
+
+        switch (control.type) {
+            case ControlLayout.TYPE_BUTTON:
+                fillPaint.setColor(pressed[index] ? COLOR_PRESSED : COLOR_CONTROL);
+                canvas.drawRoundRect(shape, size / 4, size / 4, fillPaint);
+                drawLabel(canvas, control.label, size);
+                break;
+            case ControlLayout.TYPE_DPAD:
+            case ControlLayout.TYPE_STICK:
+                fillPaint.setColor(COLOR_CONTROL);
+                canvas.drawCircle(shape.centerX(), shape.centerY(), size / 2, fillPaint);
+                if (control.type == ControlLayout.TYPE_DPAD) {
+                    fillPaint.setColor(COLOR_MARK);
+                    float arm = size / 6;
+                    canvas.drawRect(
+                            shape.centerX() - arm,
+                            shape.centerY() - size / 2,
+                            shape.centerX() + arm,
+                            shape.centerY() + size / 2,
+                            fillPaint);
+                    canvas.drawRect(
+                            shape.centerX() - size / 2,
+                            shape.centerY() - arm,
+                            shape.centerX() + size / 2,
+                            shape.centerY() + arm,
+                            fillPaint);
+                }
+                if (control.type == ControlLayout.TYPE_STICK || pressed[index]) {
+                    fillPaint.setColor(pressed[index] ? COLOR_KNOB : COLOR_PRESSED);
+                    canvas.drawCircle(
+                            rect.left + knobX[index], rect.top + knobY[index], size / 6, fillPaint);
+                }
+                break;
+            default:
+                fillPaint.setColor(COLOR_CONTROL);
+                canvas.drawRect(shape, fillPaint);
+                fillPaint.setColor(COLOR_PRESSED);
+                float filled = shape.width() * levels[index];
+                if (control.mirrored) {
+                    canvas.drawRect(
+                            shape.right - filled, shape.top, shape.right, shape.bottom, fillPaint);
+                } else {
+                    canvas.drawRect(
+                            shape.left, shape.top, shape.left + filled, shape.bottom, fillPaint);
+                }
+                drawLabel(canvas, control.label, size);
+        }
+    }
+
+    private void drawLabel(Canvas canvas, String label, float size) {
+        textPaint.setTextSize(size / 3);
+        float baseline = shape.centerY() - (textPaint.ascent() + textPaint.descent()) / 2;
+        canvas.drawText(label, shape.centerX(), baseline, textPaint);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.ui;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Resolves the D-pad direction from the position of the finger with a few comparisons. The
+ * position is folded into the first quadrant, and compared against the slope of the boundary
+ * between the straight and the diagonal directions. The slope and the squared dead zone are
+ * computed once in the constructor, so an event costs a few multiplications and comparisons, with
+ * no trigonometry, division or square root.
+ *
+ * <p>With no dead zone and 45 degree diagonals, this gives the same directions as splitting the
+ * circle into 16 equal sectors with {@code atan2}, including the center, which reads as right.
+ * The offsets are compared in double precision rather than rounded to integer thresholds: the
+ * activity measures them in half pixels and the touches themselves are sub-pixel, and a float
+ * offset times the slope is exact enough in a double to match {@code atan2} right next to the
+ * boundaries, see the tests.
+ */
+final class DpadClassifier {
+    /** Hat switch value when the D-pad is released, see {@code GamepadState.dpad}. */
+    static final int RELEASED = 8;
+
+    // Hat switch values of the directions.
+    private static final int UP = 0;
+    private static final int UP_RIGHT = 1;
+    private static final int RIGHT = 2;
+    private static final int DOWN_RIGHT = 3;
+    private static final int DOWN = 4;
+    private static final int DOWN_LEFT = 5;
+    private static final int LEFT = 6;
+    private static final int UP_LEFT = 7;
+
+    /** Tangent of the angle between an axis and the nearest diagonal sector. */
+    private final double slope;
+
+    /** Square of the dead zone radius as a fraction of the D-pad radius. */
+    private final double deadZoneSquared;
+
+    /**
+     * @param deadZone Radius of the center area that leaves the D-pad released, as a fraction of
+     *     the D-pad radius, from {@code 0} (no dead zone) to {@code 1} (exclusive).
+     * @param diagonalDegrees Width of every diagonal sector in degrees, from {@code 0} (no
+     *     diagonals) to {@code 90} (diagonals only), {@code 45} for equal sectors.
+     */
+    DpadClassifier(float deadZone, float diagonalDegrees) {
+        checkArgument(deadZone >= 0 && deadZone < 1, "Invalid dead zone: %s", deadZone);
+        checkArgument(
+                diagonalDegrees >= 0 && diagonalDegrees <= 90,
+                "Invalid diagonal width: %s",
+                diagonalDegrees);
+        this.deadZoneSquared = (double) deadZone * deadZone;
+        double boundary = Math.toRadians(45 - diagonalDegrees / 2.0);
+        this.slope = Math.tan(boundary);
+    }
+
+    /**
+     * Resolve the direction of the D-pad.
+     *
+     * @param dx Horizontal offset of the finger from the center, in pixels.
+     * @param dy Vertical offset of the finger from the center, in pixels, positive is down.
+     * @param radius Radius of the D-pad in pixels, for the dead zone.
+     * @return Hat switch value of the direction, or {@link #RELEASED} within the dead zone.
+     */
+    int classify(float dx, float dy, float radius) {
+        if (deadZoneSquared > 0
+                && (double) dx * dx + (double) dy * dy < deadZoneSquared * radius * radius) {
+            return RELEASED;
+        }
+        if (dx == 0 && dy == 0) {
+            return RIGHT;
+        }
+
+        double ax = Math.abs(dx);
+        double ay = Math.abs(dy);
+        if (ay < ax * slope) {
+            return dx > 0 ? RIGHT : LEFT;
+        } else if (ax < ay * slope) {
+            return dy < 0 ? UP : DOWN;
+        } else if (dx > 0) {
+            return dy < 0 ? UP_RIGHT : DOWN_RIGHT;
+        } else {
+            return dy < 0 ? UP_LEFT : DOWN_LEFT;
+        }
+    }
+}
@@ -19,24 +19,89 @@ package com.ginkage.gamepad.ui;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothHidDevice;
 import android.bluetooth.BluetoothProfile;
+import android.graphics.Rect;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
 import androidx.annotation.MainThread;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.appcompat.app.AppCompatActivity;
+import android.view.FrameMetrics;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.Window;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.ImageView;
 import android.widget.SeekBar;
+import android.widget.TextView;
 import com.ginkage.gamepad.R;
+import com.ginkage.gamepad.bluetooth.ButtonMap;
 import com.ginkage.gamepad.bluetooth.GamepadState;
 import com.ginkage.gamepad.bluetooth.HidDataSender;
+import com.ginkage.gamepad.bluetooth.IntervalStats;
+import com.ginkage.gamepad.bluetooth.ReportFormat;
+import com.google.common.io.CharStreams;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
 
 public class GamepadActivity extends AppCompatActivity {
-    private static final int[] eightWay = {2, 1, 1, 0, 0, 7, 7, 6, 6, 5, 5, 4, 4, 3, 3, 2};
+    private static final String TAG = "GamepadActivity";
+
+    /**
+     * Name of the control layout to show. The layout is read from {@code layouts/<name>.txt} in
+     * the app files directory if it exists, or from the app assets otherwise.
+     */
+    public static final String EXTRA_LAYOUT = "com.ginkage.gamepad.extra.LAYOUT";
+
+    /**
+     * Draw all controls on a single surface instead of creating a view for each of them, see
+     * {@link ControlSurface}. The input and frame times of either mode are logged on pause, so the
+     * two can be compared on a device.
+     */
+    public static final String EXTRA_SINGLE_SURFACE = "com.ginkage.gamepad.extra.SINGLE_SURFACE";
+
+    private static final String DEFAULT_LAYOUT = "standard";
+    private static final String LAYOUT_DIRECTORY = "layouts";
+    private static final String LAYOUT_EXTENSION = ".txt";
+
+    // The D-pad reads the whole area as one of 8 equal sectors.
+    private static final float DPAD_DEAD_ZONE = 0;
+    private static final float DPAD_DIAGONAL_DEGREES = 45;
+
+    // The sticks have a circular gate, and small dead zones at the center and the rim: the
+    // innermost 5% of the deflection reads as centered, and the outermost 5% as full deflection.
+    private static final float STICK_INNER_DEAD_ZONE = 0.05f;
+    private static final float STICK_OUTER_DEAD_ZONE = 0.95f;
+
+    private final DpadClassifier dpadClassifier =
+            new DpadClassifier(DPAD_DEAD_ZONE, DPAD_DIAGONAL_DEGREES);
+
+    /** Axis values of a stick, only accessed while holding the {@link #gamepadState} lock. */
+    private final int[] stickAxes = new int[2];
+
+    /** Stick response curve, or {@code null} if the report format has no axes. */
+    @Nullable private StickCurve stickCurve;
 
     private final GamepadState gamepadState = new GamepadState();
     private HidDataSender hidDataSender;
+
+    /** Format that the sticks, the triggers and the tilt were set up for. */
+    @Nullable private ReportFormat reportFormat;
+
+    /** Maximum value of the sticks and the triggers, {@code 0} if the format has no axes. */
+    private int axisMaximum;
     private HidDataSender.ProfileListener profileListener = new HidDataSender.ProfileListener() {
         @Override
         @MainThread
@@ -58,6 +123,56 @@ public class GamepadActivity extends AppCompatActivity {
         @MainThread
         public void onServiceStateChanged(BluetoothHidDevice proxy) {}
     };
+    private final TouchDispatcher.Callback touchCallback =
+            new TouchDispatcher.Callback() {
+                @Override
+                @MainThread
+                public void onControlTouched(int control, float x, float y) {
+                    setControl(control, true, x, y);
+                }
+
+                @Override
+                @MainThread
+                public void onControlReleased(int control) {
+                    setControl(control, false, 0, 0);
+                }
+
+                @Override
+                @MainThread
+                public void onEventProcessed() {
+                    send();
+                }
+            };
+    private final Rect controlRect = new Rect();
+    private final int[] controlBounds = new int[4];
+    private final int[] surfaceLocation = new int[2];
+    private ControlLayout controlLayout;
+    private int[] controlWidths;
+    private int[] controlHeights;
+    private TouchDispatcher touchDispatcher;
+
+    /** Control views, or {@code null} if the controls are drawn by {@link #controlSurface}. */
+    @Nullable private View[] controls;
+
+    @Nullable private ControlSurface controlSurface;
+
+    // Main thread time spent on the touch events, and the time to draw a frame.
+    private final IntervalStats inputStats = new IntervalStats();
+    private final IntervalStats frameStats = new IntervalStats();
+
+    @Nullable private Window.OnFrameMetricsAvailableListener frameMetricsListener;
+
+    /** Set if the current gesture didn't start on a control, so the views get it instead. */
+    private boolean viewGesture;
+    private TextView playerLeds;
+    private CheckBox toggleMotion;
+
+    /** Tilt sensor of the right stick, or {@code null} if the report format has no axes. */
+    @Nullable private MotionSensor motionSensor;
+
+    /** Set while the right stick is held, so that the tilt doesn't fight the finger. */
+    private volatile boolean rightStickTouched;
+    private final HidDataSender.FeedbackListener feedbackListener = this::onFeedbackChanged;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -67,64 +182,55 @@ public class GamepadActivity extends AppCompatActivity {
         hidDataSender = HidDataSender.getInstance();
         hidDataSender.register(this, profileListener);
 
-        Button buttonA = findViewById(R.id.button_a);
-        Button buttonB = findViewById(R.id.button_b);
-        Button buttonX = findViewById(R.id.button_x);
-        Button buttonY = findViewById(R.id.button_y);
-        Button buttonL1 = findViewById(R.id.button_l1);
-        Button buttonR1 = findViewById(R.id.button_r1);
-        Button buttonL3 = findViewById(R.id.button_l3);
-        Button buttonR3 = findViewById(R.id.button_r3);
-        Button buttonStart = findViewById(R.id.button_start);
-        Button buttonBack = findViewById(R.id.button_back);
-        Button buttonHome = findViewById(R.id.button_home);
-        ImageView dPad = findViewById(R.id.dpad);
-        ImageView stickLeft = findViewById(R.id.stick_left);
-        ImageView stickRight = findViewById(R.id.stick_right);
-        SeekBar seekbarL2 = findViewById(R.id.seekbar_l2);
-        SeekBar seekbarR2 = findViewById(R.id.seekbar_r2);
-
-        buttonA.setOnTouchListener(this::onTouchButton);
-        buttonB.setOnTouchListener(this::onTouchButton);
-        buttonX.setOnTouchListener(this::onTouchButton);
-        buttonY.setOnTouchListener(this::onTouchButton);
-        buttonL1.setOnTouchListener(this::onTouchButton);
-        buttonR1.setOnTouchListener(this::onTouchButton);
-        buttonL3.setOnTouchListener(this::onTouchButton);
-        buttonR3.setOnTouchListener(this::onTouchButton);
-        buttonStart.setOnTouchListener(this::onTouchButton);
-        buttonBack.setOnTouchListener(this::onTouchButton);
-        buttonHome.setOnTouchListener(this::onTouchButton);
-
-        dPad.setOnTouchListener(this::onTouchStick);
-        stickLeft.setOnTouchListener(this::onTouchStick);
-        stickRight.setOnTouchListener(this::onTouchStick);
-
-        SeekBar.OnSeekBarChangeListener listener =
-                new SeekBar.OnSeekBarChangeListener() {
-                    @Override
-                    public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                        int id = seekBar.getId();
-                        if (id == R.id.seekbar_l2) {
-                            gamepadState.l2 = progress;
-                        } else if (id == R.id.seekbar_r2) {
-                            gamepadState.r2 = progress;
-                        }
-                        send();
-                    }
-
-                    @Override
-                    public void onStartTrackingTouch(SeekBar seekBar) {}
-
-                    @Override
-                    public void onStopTrackingTouch(SeekBar seekBar) {
-                        seekBar.setProgress(0);
-                        send();
-                    }
-                };
-
-        seekbarL2.setOnSeekBarChangeListener(listener);
-        seekbarR2.setOnSeekBarChangeListener(listener);
+        // Keep the binder calls off the UI thread, and ask for steady clocks while playing.
+        hidDataSender.startSenderThread(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        PowerManager powerManager = getSystemService(PowerManager.class);
+        if (powerManager != null && powerManager.isSustainedPerformanceModeSupported()) {
+            getWindow().setSustainedPerformanceMode(true);
+        }
+
+        playerLeds = findViewById(R.id.player_leds);
+        toggleMotion = findViewById(R.id.toggle_motion);
+        toggleMotion.setOnCheckedChangeListener((buttonView, isChecked) -> updateMotionSensor());
+
+        controlLayout = loadControlLayout(getIntent().getStringExtra(EXTRA_LAYOUT));
+        List<ControlLayout.Control> layoutControls = controlLayout.getControls();
+        int controlCount = layoutControls.size();
+        controlWidths = new int[controlCount];
+        controlHeights = new int[controlCount];
+        View controlView;
+        if (getIntent().getBooleanExtra(EXTRA_SINGLE_SURFACE, false)) {
+            controlSurface = new ControlSurface(this, controlLayout, frameStats);
+            controlView = controlSurface;
+        } else {
+            ControlPanel controlPanel = new ControlPanel(this, controlLayout);
+            controls = new View[controlCount];
+            for (int i = 0; i < controlCount; i++) {
+                controls[i] = createControlView(layoutControls.get(i));
+                controlPanel.addView(controls[i]);
+            }
+            controlView = controlPanel;
+            frameMetricsListener =
+                    (window, frameMetrics, dropCount) ->
+                            frameStats.record(frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION));
+            getWindow()
+                    .addOnFrameMetricsAvailableListener(
+                            frameMetricsListener, new Handler(Looper.getMainLooper()));
+        }
+        // Under the indicators, so they stay visible.
+        ViewGroup root = findViewById(R.id.gamepad_root);
+        root.addView(
+                controlView,
+                0,
+                new ViewGroup.LayoutParams(
+                        ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        touchDispatcher = new TouchDispatcher(controlCount, touchCallback);
+        root.addOnLayoutChangeListener(
+                (v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) ->
+                        updateControlBounds());
+
+        updateReportFormat();
+        hidDataSender.setFeedbackListener(feedbackListener);
     }
 
     @Override
@@ -135,95 +241,363 @@ public class GamepadActivity extends AppCompatActivity {
                         View.SYSTEM_UI_FLAG_IMMERSIVE_STICKY
                                 | View.SYSTEM_UI_FLAG_HIDE_NAVIGATION
                                 | View.SYSTEM_UI_FLAG_FULLSCREEN);
+        updateReportFormat();
+        updateMotionSensor();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // The sensors keep the device awake, never leave them on in the background.
+        if (motionSensor != null) {
+            motionSensor.stop();
+        }
+        Log.i(
+                TAG,
+                String.format(
+                        Locale.US,
+                        "%s: input %.1f us/event (max %.1f), frame %.2f ms (max %.2f) over %d",
+                        controlSurface != null ? "Single surface" : "Views",
+                        inputStats.getMeanNanos() / 1e3,
+                        inputStats.getMaxNanos() / 1e3,
+                        frameStats.getMeanNanos() / 1e6,
+                        frameStats.getMaxNanos() / 1e6,
+                        frameStats.getCount()));
+        inputStats.reset();
+        frameStats.reset();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (frameMetricsListener != null) {
+            getWindow().removeOnFrameMetricsAvailableListener(frameMetricsListener);
+        }
+        hidDataSender.setFeedbackListener(null);
+        hidDataSender.stopSenderThread();
         hidDataSender.unregister(this, profileListener);
     }
 
-    public boolean onTouchButton(View v, MotionEvent event) {
-        int action = event.getActionMasked();
-        boolean state =
-                !(action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_POINTER_UP);
-        int id = v.getId();
-        if (id == R.id.button_a) {
-            gamepadState.a = state;
-        } else if (id == R.id.button_b) {
-            gamepadState.b = state;
-        } else if (id == R.id.button_x) {
-            gamepadState.x = state;
-        } else if (id == R.id.button_y) {
-            gamepadState.y = state;
-        } else if (id == R.id.button_l1) {
-            gamepadState.l1 = state;
-        } else if (id == R.id.button_r1) {
-            gamepadState.r1 = state;
-        } else if (id == R.id.button_l3) {
-            gamepadState.l3 = state;
-        } else if (id == R.id.button_r3) {
-            gamepadState.r3 = state;
-        } else if (id == R.id.button_start) {
-            gamepadState.start = state;
-        } else if (id == R.id.button_back) {
-            gamepadState.back = state;
-        } else if (id == R.id.button_home) {
-            gamepadState.home = state;
-      } else {
-            return false;
-      }
-        send();
-        return true;
-    }
-
-    public boolean onTouchStick(View v, MotionEvent event) {
-        int action = event.getActionMasked();
-        int w = v.getMeasuredWidth();
-        int h = v.getMeasuredHeight();
-        float x = Math.min(Math.max(event.getX(), 0), w);
-        float y = Math.min(Math.max(event.getY(), 0), h);
-
-        boolean state =
-                !(action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_POINTER_UP);
-        int id = v.getId();
-        if (id == R.id.dpad) {
-            if (state) {
-                int cx = w / 2;
-                int cy = h / 2;
-                float dx = x - cx;
-                float dy = y - cy;
-                double theta = Math.atan2(-dy, dx);
-                if (theta < 0) {
-                    theta += 2 * Math.PI;
-                }
-                int area = (int) (theta / (Math.PI / 8));
-                gamepadState.dpad = eightWay[area];
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        long startNanos = System.nanoTime();
+        boolean consumed;
+        synchronized (gamepadState) {
+            consumed = touchDispatcher.onTouchEvent(event);
+        }
+        inputStats.record(System.nanoTime() - startNanos);
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            viewGesture = !consumed;
+        }
+        // The views never see the pointers that are bound to the controls.
+        return viewGesture && !consumed ? super.dispatchTouchEvent(event) : true;
+    }
+
+    /**
+     * Set the sticks, the triggers and the tilt up for the current report format, unless they
+     * already are. A format without the axes has neither a stick curve nor a tilt sensor.
+     */
+    @MainThread
+    private void updateReportFormat() {
+        ReportFormat format = hidDataSender.getReportFormat();
+        if (format == reportFormat) {
+            return;
+        }
+        reportFormat = format;
+        if (motionSensor != null) {
+            motionSensor.stop();
+        }
+        synchronized (gamepadState) {
+            axisMaximum = format.getAxisMaximum();
+            stickCurve =
+                    format.hasAxes()
+                            ? new StickCurve.Builder()
+                                    .radial(true)
+                                    .innerDeadZone(STICK_INNER_DEAD_ZONE)
+                                    .outerDeadZone(STICK_OUTER_DEAD_ZONE)
+                                    .build(axisMaximum)
+                            : null;
+            gamepadState.lx = gamepadState.ly = (axisMaximum + 1) / 2;
+            gamepadState.rx = gamepadState.ry = (axisMaximum + 1) / 2;
+            gamepadState.l2 = gamepadState.r2 = 0;
+        }
+        motionSensor =
+                format.hasAxes() ? new MotionSensor(this, axisMaximum, this::onTiltChanged) : null;
+        toggleMotion.setVisibility(
+                motionSensor != null && motionSensor.isAvailable() ? View.VISIBLE : View.GONE);
+        List<ControlLayout.Control> layoutControls = controlLayout.getControls();
+        for (int i = 0; i < layoutControls.size(); i++) {
+            if (layoutControls.get(i).type != ControlLayout.TYPE_TRIGGER) {
+                continue;
+            }
+            if (controls != null) {
+                SeekBar seekBar = (SeekBar) controls[i];
+                seekBar.setProgress(0);
+                seekBar.setMax(axisMaximum);
             } else {
-                gamepadState.dpad = 8;
+                controlSurface.setLevel(i, 0);
+            }
+        }
+    }
+
+    @MainThread
+    private void updateControlBounds() {
+        if (controlSurface != null) {
+            controlSurface.getLocationInWindow(surfaceLocation);
+        }
+        for (int i = 0; i < controlWidths.length; i++) {
+            if (controls == null) {
+                controlLayout.getBounds(
+                        i, controlSurface.getWidth(), controlSurface.getHeight(), controlBounds);
+                controlRect.set(
+                        controlBounds[0], controlBounds[1], controlBounds[2], controlBounds[3]);
+                controlRect.offset(surfaceLocation[0], surfaceLocation[1]);
+            } else if (!controls[i].getGlobalVisibleRect(controlRect)) {
+                // The visible rect is in the window coordinates, and accounts for the rotation.
+                controlRect.setEmpty();
             }
-        } else if (id == R.id.stick_left) {
+            touchDispatcher.setBounds(
+                    i, controlRect.left, controlRect.top, controlRect.right, controlRect.bottom);
+            controlWidths[i] = controlRect.width();
+            controlHeights[i] = controlRect.height();
+        }
+    }
+
+    @MainThread
+    private ControlLayout loadControlLayout(@Nullable String name) {
+        if (name == null) {
+            name = DEFAULT_LAYOUT;
+        }
+        String fileName = name + LAYOUT_EXTENSION;
+        File file = new File(new File(getFilesDir(), LAYOUT_DIRECTORY), fileName);
+        try (InputStream in =
+                file.exists()
+                        ? new FileInputStream(file)
+                        : getAssets().open(LAYOUT_DIRECTORY + "/" + fileName)) {
+            return ControlLayout.parse(
+                    CharStreams.toString(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        } catch (IOException | IllegalArgumentException e) {
+            if (name.equals(DEFAULT_LAYOUT)) {
+                throw new IllegalStateException("Failed to load the default layout", e);
+            }
+            Log.e(TAG, "Failed to load layout " + name, e);
+            return loadControlLayout(DEFAULT_LAYOUT);
+        }
+    }
+
+    @MainThread
+    private View createControlView(ControlLayout.Control control) {
+        switch (control.type) {
+            case ControlLayout.TYPE_BUTTON:
+                Button button = new Button(this);
+                button.setText(control.label);
+                return button;
+            case ControlLayout.TYPE_DPAD:
+                ImageView dPad = new ImageView(this);
+                dPad.setBackgroundResource(R.drawable.background_circle);
+                dPad.setImageResource(R.drawable.cross_8_way);
+                return dPad;
+            case ControlLayout.TYPE_STICK:
+                ImageView stick = new ImageView(this);
+                stick.setImageResource(R.drawable.background_circle);
+                return stick;
+            default:
+                // The range is set by updateReportFormat().
+                SeekBar seekBar = new SeekBar(this);
+                seekBar.setContentDescription(control.label);
+                if (control.mirrored) {
+                    seekBar.setRotation(180);
+                }
+                return seekBar;
+        }
+    }
+
+    /** Must be called while holding the {@link #gamepadState} lock. */
+    private void setControl(int index, boolean state, float x, float y) {
+        ControlLayout.Control control = controlLayout.getControls().get(index);
+        int w = controlWidths[index];
+        int h = controlHeights[index];
+        switch (control.type) {
+            case ControlLayout.TYPE_BUTTON:
+                setButton(control.target, state);
+                // The button doesn't get the touches, so show the pressed state for it.
+                if (controls != null) {
+                    controls[index].setPressed(state);
+                } else {
+                    controlSurface.setPressed(index, state);
+                }
+                break;
+            case ControlLayout.TYPE_DPAD:
+                setDpad(state, x, y, w, h);
+                if (controlSurface != null) {
+                    controlSurface.setKnob(index, state, x, y);
+                }
+                break;
+            case ControlLayout.TYPE_STICK:
+                setStick(control.target, state, x, y, w, h);
+                if (controlSurface != null) {
+                    controlSurface.setKnob(index, state, x, y);
+                }
+                break;
+            default:
+                int start = 0;
+                int end = w;
+                if (controls != null) {
+                    // The progress goes between the paddings of the seek bar.
+                    start = controls[index].getPaddingLeft();
+                    end -= controls[index].getPaddingRight();
+                }
+                int value = state ? getTriggerValue(control.mirrored, x, w, start, end) : 0;
+                setTrigger(control.target, value);
+                if (controls != null) {
+                    ((SeekBar) controls[index]).setProgress(value);
+                } else {
+                    controlSurface.setLevel(index, value > 0 ? (float) value / axisMaximum : 0);
+                }
+        }
+    }
+
+    private void setButton(int button, boolean state) {
+        switch (button) {
+            case ButtonMap.BUTTON_A:
+                gamepadState.a = state;
+                break;
+            case ButtonMap.BUTTON_B:
+                gamepadState.b = state;
+                break;
+            case ButtonMap.BUTTON_X:
+                gamepadState.x = state;
+                break;
+            case ButtonMap.BUTTON_Y:
+                gamepadState.y = state;
+                break;
+            case ButtonMap.BUTTON_L1:
+                gamepadState.l1 = state;
+                break;
+            case ButtonMap.BUTTON_R1:
+                gamepadState.r1 = state;
+                break;
+            case ButtonMap.BUTTON_L3:
+                gamepadState.l3 = state;
+                break;
+            case ButtonMap.BUTTON_R3:
+                gamepadState.r3 = state;
+                break;
+            case ButtonMap.BUTTON_START:
+                gamepadState.start = state;
+                break;
+            case ButtonMap.BUTTON_BACK:
+                gamepadState.back = state;
+                break;
+            case ButtonMap.BUTTON_HOME:
+                gamepadState.home = state;
+                break;
+            default: // Not a button.
+        }
+    }
+
+    /** Must be called while holding the {@link #gamepadState} lock. */
+    private int getTriggerValue(boolean mirrored, float x, int w, int start, int end) {
+        if (end <= start) {
+            return 0;
+        }
+        // The touch position is on the screen, the value goes along the (mirrored) trigger.
+        float position = mirrored ? w - x : x;
+        float fraction = Math.min(Math.max((position - start) / (end - start), 0), 1);
+        return Math.round(axisMaximum * fraction);
+    }
+
+    private void setTrigger(int trigger, int value) {
+        if (trigger == ControlLayout.TRIGGER_L2) {
+            gamepadState.l2 = value;
+        } else {
+            gamepadState.r2 = value;
+        }
+    }
+
+    private void setDpad(boolean state, float touchX, float touchY, int w, int h) {
+        if (!state) {
+            gamepadState.dpad = DpadClassifier.RELEASED;
+            return;
+        }
+        float x = Math.min(Math.max(touchX, 0), w);
+        float y = Math.min(Math.max(touchY, 0), h);
+        int cx = w / 2;
+        int cy = h / 2;
+        gamepadState.dpad = dpadClassifier.classify(x - cx, y - cy, Math.min(w, h) / 2f);
+    }
+
+    private void setStick(int stick, boolean state, float x, float y, int w, int h) {
+        if (stickCurve == null) {
+            return;
+        }
+        if (state) {
+            stickCurve.map(x, y, w, h, stickAxes);
+        }
+        if (stick == ControlLayout.STICK_LEFT) {
             if (state) {
-                gamepadState.lx = Math.round(255 * x / w);
-                gamepadState.ly = Math.round(255 * y / h);
+                gamepadState.lx = stickAxes[0];
+                gamepadState.ly = stickAxes[1];
             } else {
-                gamepadState.lx = gamepadState.ly = 128;
+                gamepadState.lx = gamepadState.ly = (axisMaximum + 1) / 2;
             }
-        } else if (id == R.id.stick_right) {
+        } else {
+            rightStickTouched = state;
             if (state) {
-                gamepadState.rx = Math.round(255 * x / w);
-                gamepadState.ry = Math.round(255 * y / h);
+                gamepadState.rx = stickAxes[0];
+                gamepadState.ry = stickAxes[1];
             } else {
-                gamepadState.rx = gamepadState.ry = 128;
+                gamepadState.rx = gamepadState.ry = (axisMaximum + 1) / 2;
+                // Aim from wherever the player holds the device now.
+                if (motionSensor != null) {
+                    motionSensor.resetNeutral();
+                }
+            }
+        }
+    }
+
+    @MainThread
+    private void onFeedbackChanged(int rumble, int leds) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            text.append((leds & (1 << i)) != 0 ? '\u25CF' : '\u25CB');
+        }
+        playerLeds.setText(text);
+        // Light the indicator up while the rumble is on.
+        playerLeds.setAlpha(rumble > 0 ? 1f : 0.5f);
+    }
+
+    @MainThread
+    private void updateMotionSensor() {
+        if (motionSensor == null) {
+            return;
+        }
+        if (toggleMotion.isChecked() && motionSensor.isAvailable()) {
+            motionSensor.start(getWindowManager().getDefaultDisplay().getRotation());
+        } else {
+            motionSensor.stop();
+            synchronized (gamepadState) {
+                if (!rightStickTouched) {
+                    gamepadState.rx = gamepadState.ry = (axisMaximum + 1) / 2;
+                    send();
+                }
             }
-      } else {
-            return false;
-      }
+        }
+    }
 
-        send();
-        return true;
+    @WorkerThread
+    private void onTiltChanged(int x, int y) {
+        synchronized (gamepadState) {
+            if (rightStickTouched) {
+                return;
+            }
+            gamepadState.rx = x;
+            gamepadState.ry = y;
+            send();
+        }
     }
 
+    /** Must be called while holding the {@link #gamepadState} lock. */
     private void send() {
         hidDataSender.sendGamepad(gamepadState);
     }
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.ui;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import com.ginkage.gamepad.bluetooth.MotionFusion;
+
+/**
+ * Feeds the gyroscope and the accelerometer into a {@link MotionFusion} on a dedicated thread,
+ * and reports the resulting stick position from there, so the main thread never sees the sensor
+ * events.
+ *
+ * <p>The sensors are registered with a maximum report latency, so that the hardware FIFO collects
+ * the samples and the application processor is only woken up for a batch of them. Every sample
+ * still carries its own timestamp, so the fusion integrates them as if they came one by one.
+ */
+class MotionSensor implements SensorEventListener {
+    /** Receives the stick position, on the sensor thread. */
+    interface Listener {
+        /**
+         * Called when the stick position changes.
+         *
+         * @param x Horizontal axis value, see {@link MotionFusion#getStickX(int)}.
+         * @param y Vertical axis value, see {@link MotionFusion#getStickY(int)}.
+         */
+        @WorkerThread
+        void onStickMoved(int x, int y);
+    }
+
+    private static final String THREAD_NAME = "MotionSensor";
+
+    /** 200 Hz, faster than the reports are sent. */
+    private static final int SAMPLING_PERIOD_US = 5000;
+
+    /** Batch up to four samples, about one QoS latency period. */
+    private static final int MAX_REPORT_LATENCY_US = 4 * SAMPLING_PERIOD_US;
+
+    private static final int MAX_TILT_DEGREES = 30;
+    private static final int TIME_CONSTANT_MILLIS = 500;
+
+    private final SensorManager sensorManager;
+    @Nullable private final Sensor gyroscope;
+    @Nullable private final Sensor accelerometer;
+    private final Listener listener;
+    private final int axisMaximum;
+
+    /** Only accessed on the sensor thread. */
+    private final MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, TIME_CONSTANT_MILLIS);
+
+    /** Only accessed on the sensor thread. */
+    private int lastX = -1;
+
+    /** Only accessed on the sensor thread. */
+    private int lastY = -1;
+
+    /** Cleared on stop, so that the events still queued on the sensor thread are dropped. */
+    private volatile boolean running;
+
+    /** Only accessed on the main thread. */
+    @Nullable private HandlerThread sensorThread;
+
+    /** Only accessed on the main thread. */
+    @Nullable private Handler handler;
+
+    /**
+     * @param context Context to get the sensor service from.
+     * @param axisMaximum Largest value of the stick axes, see {@code
+     *     ReportFormat.getAxisMaximum()}.
+     * @param listener Callback that receives the stick position.
+     */
+    MotionSensor(Context context, int axisMaximum, Listener listener) {
+        this.sensorManager = checkNotNull(context.getSystemService(SensorManager.class));
+        this.gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        this.accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        this.axisMaximum = axisMaximum;
+        this.listener = checkNotNull(listener);
+    }
+
+    /** @return {@code true} if the device has the sensors for the tilt aiming. */
+    boolean isAvailable() {
+        // The gyroscope only makes it smoother, the accelerometer alone is enough.
+        return accelerometer != null && axisMaximum > 0;
+    }
+
+    /**
+     * Start listening to the sensors. The pose at the start is the neutral one.
+     *
+     * @param rotation Rotation of the screen, one of the {@code Surface.ROTATION_*} constants.
+     */
+    @MainThread
+    void start(int rotation) {
+        if (sensorThread != null || !isAvailable()) {
+            return;
+        }
+        sensorThread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        sensorThread.start();
+        running = true;
+        handler = new Handler(sensorThread.getLooper());
+        handler.post(
+                () -> {
+                    fusion.reset();
+                    fusion.setRotation(rotation);
+                    lastX = -1;
+                    lastY = -1;
+                });
+        if (gyroscope != null) {
+            sensorManager.registerListener(
+                    this, gyroscope, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US, handler);
+        }
+        sensorManager.registerListener(
+                this, accelerometer, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US, handler);
+    }
+
+    /** Stop listening to the sensors and stop the sensor thread. */
+    @MainThread
+    void stop() {
+        if (sensorThread == null) {
+            return;
+        }
+        running = false;
+        sensorManager.unregisterListener(this);
+        sensorThread.quitSafely();
+        sensorThread = null;
+        handler = null;
+    }
+
+    /** Use the current pose as the neutral one, e.g. after the player has moved around. */
+    @MainThread
+    void resetNeutral() {
+        if (handler != null) {
+            handler.post(fusion::resetNeutral);
+        }
+    }
+
+    @Override
+    @WorkerThread
+    public void onSensorChanged(SensorEvent event) {
+        if (!running) {
+            return;
+        }
+        // The fixed-point conversion is the only floating point math on the sample path.
+        float[] values = event.values;
+        int x = (int) (values[0] * MotionFusion.ONE);
+        int y = (int) (values[1] * MotionFusion.ONE);
+        int z = (int) (values[2] * MotionFusion.ONE);
+        if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+            fusion.onGyroscope(event.timestamp, x, y, z);
+        } else {
+            fusion.onAccelerometer(event.timestamp, x, y, z);
+        }
+        if (!fusion.isReady()) {
+            return;
+        }
+        int stickX = fusion.getStickX(axisMaximum);
+        int stickY = fusion.getStickY(axisMaximum);
+        if (stickX != lastX || stickY != lastY) {
+            lastX = stickX;
+            lastY = stickY;
+            listener.onStickMoved(stickX, stickY);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+}
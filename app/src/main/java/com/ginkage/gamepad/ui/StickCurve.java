@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.ui;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Response curve of the on-screen sticks: calibration of the touch area, inner and outer dead
+ * zones, a radial (circular gate) or an axial (square gate) response, and a power or a custom
+ * curve. Everything is compiled into lookup tables when the curve is built. Mapping a touch
+ * converts it to fixed point with a float division by the stick size, a subtraction, a
+ * multiplication and a rounding per axis, then takes a table read and a shift or two per axis. The
+ * radial mode also needs the magnitude, the square root of the sum of the squares, which is a
+ * {@link Math#sqrt} truncated to an integer. The curve is immutable, so the sticks may share it.
+ */
+final class StickCurve {
+    /**
+     * Fixed point resolution of the stick deflection, full deflection is this many steps. That's
+     * finer than a touch on a stick of any practical size.
+     */
+    private static final int RESOLUTION_BITS = 12;
+
+    private static final int RESOLUTION = 1 << RESOLUTION_BITS;
+
+    /** Fraction bits of the radial gains. */
+    private static final int GAIN_BITS = 16;
+
+    private final int axisMaximum;
+    private final float centerX;
+    private final float centerY;
+    private final float scaleX;
+    private final float scaleY;
+    private final boolean radial;
+
+    /**
+     * Output deflection for every input deflection from {@code 0} to {@link #RESOLUTION} in the
+     * axial mode, or the ratio of the output and the input magnitudes in {@link #GAIN_BITS} fixed
+     * point for every input magnitude up to the corner of the square in the radial mode.
+     */
+    private final int[] table;
+
+    /** Builds the {@link StickCurve}. The default curve is linear, with no dead zones. */
+    static class Builder {
+        private float innerDeadZone;
+        private float outerDeadZone = 1;
+        private boolean radial;
+        private float exponent = 1;
+        private float[] points;
+        private float centerX = 0.5f;
+        private float centerY = 0.5f;
+        private float radiusX = 0.5f;
+        private float radiusY = 0.5f;
+
+        /**
+         * @param deadZone Deflection below which the stick stays centered, as a fraction of the
+         *     full deflection.
+         * @return This builder, for chaining.
+         */
+        Builder innerDeadZone(float deadZone) {
+            checkArgument(deadZone >= 0 && deadZone < 1, "Invalid dead zone: %s", deadZone);
+            innerDeadZone = deadZone;
+            return this;
+        }
+
+        /**
+         * @param deadZone Deflection above which the stick is fully deflected, as a fraction of
+         *     the full deflection.
+         * @return This builder, for chaining.
+         */
+        Builder outerDeadZone(float deadZone) {
+            checkArgument(deadZone > 0 && deadZone <= 1, "Invalid dead zone: %s", deadZone);
+            outerDeadZone = deadZone;
+            return this;
+        }
+
+        /**
+         * @param isRadial {@code true} to apply the dead zones and the curve to the distance from
+         *     the center, and limit the stick to a circle, {@code false} to apply them to every
+         *     axis separately.
+         * @return This builder, for chaining.
+         */
+        Builder radial(boolean isRadial) {
+            radial = isRadial;
+            return this;
+        }
+
+        /**
+         * Use a power curve, e.g. {@code 2} for the finer control around the center.
+         *
+         * @param value Exponent of the curve, {@code 1} for the linear response.
+         * @return This builder, for chaining.
+         */
+        Builder exponent(float value) {
+            checkArgument(value > 0, "Invalid exponent: %s", value);
+            exponent = value;
+            points = null;
+            return this;
+        }
+
+        /**
+         * Use a custom curve instead of the power one.
+         *
+         * @param values Output deflection from {@code 0} to {@code 1} at the equally spaced input
+         *     deflections from the inner dead zone to the outer dead zone, linearly interpolated
+         *     in between. At least two values.
+         * @return This builder, for chaining.
+         */
+        Builder curve(float... values) {
+            checkArgument(values.length >= 2, "The curve needs at least two points");
+            for (float value : values) {
+                checkArgument(value >= 0 && value <= 1, "Invalid curve point: %s", value);
+            }
+            points = values.clone();
+            return this;
+        }
+
+        /**
+         * Set the part of the touch area that the stick covers, e.g. as measured for the user.
+         *
+         * @param x Horizontal position of the center, as a fraction of the width.
+         * @param y Vertical position of the center, as a fraction of the height.
+         * @param width Distance from the center to the full deflection, as a fraction of the
+         *     width.
+         * @param height Distance from the center to the full deflection, as a fraction of the
+         *     height.
+         * @return This builder, for chaining.
+         */
+        Builder calibration(float x, float y, float width, float height) {
+            checkArgument(width > 0 && height > 0, "Invalid calibration: %s x %s", width, height);
+            centerX = x;
+            centerY = y;
+            radiusX = width;
+            radiusY = height;
+            return this;
+        }
+
+        /**
+         * Compile the curve.
+         *
+         * @param axisMaximum Largest value of the stick axes, see {@code
+         *     ReportFormat.getAxisMaximum()}.
+         * @return The curve.
+         */
+        StickCurve build(int axisMaximum) {
+            checkArgument(innerDeadZone < outerDeadZone, "The dead zones overlap");
+            checkArgument(axisMaximum > 0, "Invalid axis maximum: %s", axisMaximum);
+            return new StickCurve(this, axisMaximum);
+        }
+
+        private double apply(double deflection) {
+            double t = (deflection - innerDeadZone) / (outerDeadZone - innerDeadZone);
+            t = Math.min(Math.max(t, 0), 1);
+            if (points == null) {
+                return Math.pow(t, exponent);
+            }
+            double position = t * (points.length - 1);
+            int index = Math.min((int) position, points.length - 2);
+            double fraction = position - index;
+            return points[index] + (points[index + 1] - points[index]) * fraction;
+        }
+    }
+
+    private StickCurve(Builder builder, int axisMaximum) {
+        this.axisMaximum = axisMaximum;
+        this.centerX = builder.centerX;
+        this.centerY = builder.centerY;
+        this.scaleX = RESOLUTION / builder.radiusX;
+        this.scaleY = RESOLUTION / builder.radiusY;
+        this.radial = builder.radial;
+
+        if (radial) {
+            // The magnitude goes up to the corners of the square.
+            int maxMagnitude = (int) Math.ceil(RESOLUTION * Math.sqrt(2));
+            table = new int[maxMagnitude + 1];
+            for (int magnitude = 1; magnitude <= maxMagnitude; magnitude++) {
+                // Beyond the full deflection, the stick stays on the circle.
+                double input = Math.min(magnitude, RESOLUTION) / (double) RESOLUTION;
+                double output = builder.apply(input) * RESOLUTION;
+                table[magnitude] = (int) Math.round(output * (1 << GAIN_BITS) / magnitude);
+            }
+        } else {
+            table = new int[RESOLUTION + 1];
+            for (int deflection = 0; deflection <= RESOLUTION; deflection++) {
+                double output = builder.apply(deflection / (double) RESOLUTION) * RESOLUTION;
+                table[deflection] = (int) Math.round(output);
+            }
+        }
+    }
+
+    /**
+     * Map a touch on the stick to the axis values. Only the conversion to fixed point and the
+     * radial magnitude use floating point, the rest is integer arithmetic.
+     *
+     * @param x Horizontal position of the touch, relative to the left edge of the stick.
+     * @param y Vertical position of the touch, relative to the top edge of the stick.
+     * @param width Width of the stick.
+     * @param height Height of the stick.
+     * @param axes Output array for the horizontal and the vertical axis values, from {@code 0}
+     *     to the axis maximum.
+     */
+    void map(float x, float y, int width, int height, int[] axes) {
+        int dx = clamp(Math.round((x / width - centerX) * scaleX));
+        int dy = clamp(Math.round((y / height - centerY) * scaleY));
+        if (radial) {
+            int magnitude = (int) Math.sqrt(dx * dx + dy * dy);
+            long gain = table[magnitude];
+            dx = (int) ((dx * gain + (1 << (GAIN_BITS - 1))) >> GAIN_BITS);
+            dy = (int) ((dy * gain + (1 << (GAIN_BITS - 1))) >> GAIN_BITS);
+        } else {
+            dx = dx < 0 ? -table[-dx] : table[dx];
+            dy = dy < 0 ? -table[-dy] : table[dy];
+        }
+        axes[0] = toAxis(dx);
+        axes[1] = toAxis(dy);
+    }
+
+    /** @return Axis value of the centered stick. */
+    int getCenter() {
+        return toAxis(0);
+    }
+
+    private int toAxis(int deflection) {
+        // Rounds the same way as the plain linear mapping, so the center is (maximum + 1) / 2.
+        long scaled = (long) (deflection + RESOLUTION) * axisMaximum + RESOLUTION;
+        return (int) (scaled >> (RESOLUTION_BITS + 1));
+    }
+
+    private static int clamp(int deflection) {
+        return Math.min(Math.max(deflection, -RESOLUTION), RESOLUTION);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ginkage.gamepad.ui;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import android.view.MotionEvent;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import java.util.Arrays;
+
+/**
+ * Routes the touches of the whole screen to the gamepad controls. Every pointer is bound to the
+ * control it went down on until it goes up, so moving or lifting one finger never affects the
+ * controls held by the other ones, and a control is held by at most one pointer at a time.
+ *
+ * <p>All pointers of an event are processed in a single pass, followed by a single {@link
+ * Callback#onEventProcessed()} call, so the gamepad state may be published once per event no
+ * matter how many fingers are down.
+ */
+class TouchDispatcher {
+    /** Receives the control changes. */
+    interface Callback {
+        /**
+         * Called for every event while the control is held, including the first one.
+         *
+         * @param control Index of the control.
+         * @param x Horizontal position of the pointer, relative to the left edge of the control.
+         * @param y Vertical position of the pointer, relative to the top edge of the control.
+         */
+        @MainThread
+        void onControlTouched(int control, float x, float y);
+
+        /**
+         * Called when the pointer that held the control goes up or the gesture is cancelled.
+         *
+         * @param control Index of the control.
+         */
+        @MainThread
+        void onControlReleased(int control);
+
+        /** Called after all pointers of an event that changed any control have been processed. */
+        @MainThread
+        void onEventProcessed();
+    }
+
+    /** The parts of a {@link MotionEvent} that the dispatcher reads, so that it can be faked. */
+    @VisibleForTesting
+    interface TouchEvent {
+        /** @see MotionEvent#getActionMasked() */
+        int getActionMasked();
+
+        /** @see MotionEvent#getActionIndex() */
+        int getActionIndex();
+
+        /** @see MotionEvent#getPointerCount() */
+        int getPointerCount();
+
+        /** @see MotionEvent#getPointerId(int) */
+        int getPointerId(int pointerIndex);
+
+        /** @see MotionEvent#getX(int) */
+        float getX(int pointerIndex);
+
+        /** @see MotionEvent#getY(int) */
+        float getY(int pointerIndex);
+    }
+
+    /** Reads the current {@link MotionEvent}, reused for every event. */
+    private static final class MotionEventReader implements TouchEvent {
+        @Nullable private MotionEvent event;
+
+        @Override
+        public int getActionMasked() {
+            return event.getActionMasked();
+        }
+
+        @Override
+        public int getActionIndex() {
+            return event.getActionIndex();
+        }
+
+        @Override
+        public int getPointerCount() {
+            return event.getPointerCount();
+        }
+
+        @Override
+        public int getPointerId(int pointerIndex) {
+            return event.getPointerId(pointerIndex);
+        }
+
+        @Override
+        public float getX(int pointerIndex) {
+            return event.getX(pointerIndex);
+        }
+
+        @Override
+        public float getY(int pointerIndex) {
+            return event.getY(pointerIndex);
+        }
+    }
+
+    /** Pointer IDs are small integers, reused as the pointers go up and down. */
+    private static final int MAX_POINTER_ID = 31;
+
+    private static final int NONE = ControlGrid.NONE;
+
+    private final Callback callback;
+    private final MotionEventReader reader = new MotionEventReader();
+
+    // Control bounds in the event coordinates, empty for the controls that can't be touched.
+    private final int[] lefts;
+    private final int[] tops;
+    private final int[] rights;
+    private final int[] bottoms;
+
+    /** Hit test index of the current bounds, built on the first touch after they change. */
+    @Nullable private ControlGrid grid;
+
+    /** Control bound to each pointer ID, or {@link #NONE}. */
+    private final int[] pointerControls = new int[MAX_POINTER_ID + 1];
+
+    /** Pointer ID that holds each control, or {@link #NONE}. */
+    private final int[] controlPointers;
+
+    /**
+     * @param controlCount Number of controls, indexed from {@code 0}.
+     * @param callback Callback that receives the control changes.
+     */
+    TouchDispatcher(int controlCount, Callback callback) {
+        this.callback = checkNotNull(callback);
+        lefts = new int[controlCount];
+        tops = new int[controlCount];
+        rights = new int[controlCount];
+        bottoms = new int[controlCount];
+        controlPointers = new int[controlCount];
+        Arrays.fill(pointerControls, NONE);
+        Arrays.fill(controlPointers, NONE);
+    }
+
+    /**
+     * Set the area of a control. Where the controls overlap, the one with the higher index wins.
+     *
+     * @param control Index of the control.
+     * @param left Left edge in the event coordinates, inclusive.
+     * @param top Top edge in the event coordinates, inclusive.
+     * @param right Right edge in the event coordinates, exclusive.
+     * @param bottom Bottom edge in the event coordinates, exclusive.
+     */
+    @MainThread
+    void setBounds(int control, int left, int top, int right, int bottom) {
+        lefts[control] = left;
+        tops[control] = top;
+        rights[control] = right;
+        bottoms[control] = bottom;
+        grid = null;
+    }
+
+    /**
+     * Process a touch event.
+     *
+     * @param event Event in the coordinates of the control bounds.
+     * @return {@code true} if the pointer that went up or down is bound to a control, so the event
+     *     must not be handled elsewhere. Move events always return {@code false}.
+     */
+    @MainThread
+    boolean onTouchEvent(MotionEvent event) {
+        reader.event = event;
+        try {
+            return onTouchEvent(reader);
+        } finally {
+            reader.event = null;
+        }
+    }
+
+    /**
+     * Process a touch event, see {@link #onTouchEvent(MotionEvent)}.
+     *
+     * @param event Event in the coordinates of the control bounds.
+     * @return {@code true} if the pointer that went up or down is bound to a control.
+     */
+    @MainThread
+    @VisibleForTesting
+    boolean onTouchEvent(TouchEvent event) {
+        int action = event.getActionMasked();
+        int actionIndex = event.getActionIndex();
+        boolean changed = false;
+        boolean consumed = false;
+
+        if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_CANCEL) {
+            // A new gesture means that we missed the end of the previous one.
+            for (int id = 0; id <= MAX_POINTER_ID; id++) {
+                changed |= release(id);
+            }
+        }
+        if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_POINTER_DOWN) {
+            int id = event.getPointerId(actionIndex);
+            int control = findControl(event.getX(actionIndex), event.getY(actionIndex));
+            if (id <= MAX_POINTER_ID && control != NONE && controlPointers[control] == NONE) {
+                changed |= release(id);
+                pointerControls[id] = control;
+                controlPointers[control] = id;
+                consumed = true;
+            }
+        }
+
+        boolean pointerUp =
+                action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_POINTER_UP;
+        int pointerCount = event.getPointerCount();
+        for (int i = 0; i < pointerCount; i++) {
+            int id = event.getPointerId(i);
+            if (id > MAX_POINTER_ID || pointerControls[id] == NONE) {
+                continue;
+            }
+            if (pointerUp && i == actionIndex) {
+                consumed = true;
+                changed |= release(id);
+            } else {
+                int control = pointerControls[id];
+                callback.onControlTouched(
+                        control, event.getX(i) - lefts[control], event.getY(i) - tops[control]);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            callback.onEventProcessed();
+        }
+        return consumed;
+    }
+
+    private boolean release(int id) {
+        int control = pointerControls[id];
+        if (control == NONE) {
+            return false;
+        }
+        pointerControls[id] = NONE;
+        controlPointers[control] = NONE;
+        callback.onControlReleased(control);
+        return true;
+    }
+
+    private int findControl(float x, float y) {
+        if (grid == null) {
+            grid = new ControlGrid(lefts, tops, rights, bottoms);
+        }
+        return grid.find(x, y);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad;
+
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Times a piece of code for the {@link Benchmark} tests, which only run with {@code -Pbenchmark}.
+ * The numbers only make sense relative to each other, as the tests run on the host JVM rather than
+ * on a phone.
+ */
+public final class MicroBenchmark {
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 5;
+
+    /** Keeps the results alive, so that the JIT can't drop the measured code. */
+    private static volatile long sink;
+
+    private MicroBenchmark() {}
+
+    /**
+     * Run the code a few times to let the JIT compile it, then print the best time per operation.
+     *
+     * @param name Name of the benchmark to print.
+     * @param operations Number of operations that one run of the code performs.
+     * @param run Code to time, returns any value that depends on all of its work.
+     * @return Best time per operation, in nanoseconds.
+     */
+    public static double measure(String name, int operations, LongSupplier run) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_RUNS + MEASURED_RUNS; i++) {
+            long startNanos = System.nanoTime();
+            sink += run.getAsLong();
+            long elapsedNanos = System.nanoTime() - startNanos;
+            if (i >= WARMUP_RUNS) {
+                best = Math.min(best, elapsedNanos);
+            }
+        }
+        double nanosPerOperation = (double) best / operations;
+        System.out.printf(Locale.US, "%s: %.1f ns/op%n", name, nanosPerOperation);
+        return nanosPerOperation;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AxisFilter}. */
+@RunWith(JUnit4.class)
+public class AxisFilterTest {
+    private static final ReportFormat FORMAT = ReportFormat.STANDARD;
+
+    private final AxisFilter filter = new AxisFilter();
+
+    @Test
+    public void apply_movesOnlyBeyondTheDeadBand() {
+        filter.setDeadBands(3, 3);
+        assertEquals(100, applyLx(100));
+
+        // At the dead band and just inside it, the axis stays where it was.
+        assertEquals(100, applyLx(103));
+        assertEquals(100, applyLx(102));
+        assertEquals(100, applyLx(97));
+        // Just outside, it moves, and the band follows it.
+        assertEquals(104, applyLx(104));
+        assertEquals(104, applyLx(101));
+        assertEquals(100, applyLx(100));
+    }
+
+    @Test
+    public void apply_alwaysReachesTheRestAndTheEnds() {
+        filter.setDeadBands(10, 10);
+        assertEquals(1, applyLx(1));
+        assertEquals(0, applyLx(0));
+        assertEquals(254, applyLx(254));
+        assertEquals(255, applyLx(255));
+        assertEquals(130, applyLx(130));
+        assertEquals(128, applyLx(128));
+
+        PackedState packed = pack(128, 5);
+        filter.apply(packed, FORMAT);
+        assertEquals(0, FORMAT.getAxis(packed, AxisFilter.AXIS_L2));
+        packed = pack(128, 0);
+        filter.apply(packed, FORMAT);
+        assertEquals(0, FORMAT.getAxis(packed, AxisFilter.AXIS_L2));
+    }
+
+    @Test
+    public void apply_scalesTheDeadBandToTheFormat() {
+        ReportFormat format = ReportFormat.HIGH_RESOLUTION;
+        filter.setDeadBands(3, 0);
+        // 3 * 65535 / 255
+        int deadBand = 771;
+        GamepadState state = new GamepadState();
+        state.lx = state.ly = state.rx = state.ry = 30000;
+        PackedState packed = new PackedState();
+        format.pack(state, packed);
+        filter.apply(packed, format);
+        assertEquals(30000, format.getAxis(packed, AxisFilter.AXIS_LX));
+
+        state.lx = 30000 + deadBand;
+        format.pack(state, packed);
+        filter.apply(packed, format);
+        assertEquals(30000, format.getAxis(packed, AxisFilter.AXIS_LX));
+
+        state.lx = 30000 + deadBand + 1;
+        format.pack(state, packed);
+        filter.apply(packed, format);
+        assertEquals(30000 + deadBand + 1, format.getAxis(packed, AxisFilter.AXIS_LX));
+    }
+
+    @Test
+    public void hasMoved_comparesWithTheDeadBand() {
+        filter.setDeadBands(3, 3);
+        PackedState from = pack(100, 50);
+        assertFalse(filter.hasMoved(from, pack(100, 50), FORMAT));
+        assertFalse(filter.hasMoved(from, pack(103, 50), FORMAT));
+        assertFalse(filter.hasMoved(from, pack(97, 47), FORMAT));
+        assertTrue(filter.hasMoved(from, pack(104, 50), FORMAT));
+        assertTrue(filter.hasMoved(from, pack(100, 46), FORMAT));
+        assertTrue(filter.hasMoved(pack(126, 1), pack(128, 1), FORMAT));
+        assertTrue(filter.hasMoved(pack(100, 2), pack(100, 0), FORMAT));
+        assertFalse(filter.hasMoved(from, pack(200, 200), ReportFormat.COMPACT));
+    }
+
+    @Test
+    public void setDeadBand_changesOneAxis() {
+        filter.setDeadBands(3, 0);
+        filter.setDeadBand(AxisFilter.AXIS_RY, 5);
+        assertEquals(3, filter.getDeadBand(AxisFilter.AXIS_LX));
+        assertEquals(5, filter.getDeadBand(AxisFilter.AXIS_RY));
+        assertEquals(0, filter.getDeadBand(AxisFilter.AXIS_R2));
+        assertThrows(IllegalArgumentException.class, () -> filter.setDeadBand(6, 1));
+        assertThrows(
+                IllegalArgumentException.class, () -> filter.setDeadBand(AxisFilter.AXIS_LX, -1));
+    }
+
+    @Test
+    public void newSharedFilter_followsTheDeadBands() {
+        AxisFilter shared = filter.newSharedFilter();
+        filter.setDeadBands(7, 2);
+        assertEquals(7, shared.getDeadBand(AxisFilter.AXIS_RX));
+        assertEquals(2, shared.getDeadBand(AxisFilter.AXIS_L2));
+
+        // The filtered values are not shared.
+        assertEquals(100, applyLx(100));
+        PackedState packed = pack(120, 0);
+        shared.apply(packed, FORMAT);
+        assertEquals(120, FORMAT.getAxis(packed, AxisFilter.AXIS_LX));
+    }
+
+    @Test
+    public void reset_startsFromTheActualValues() {
+        filter.setDeadBands(3, 3);
+        assertEquals(100, applyLx(100));
+        assertEquals(100, applyLx(102));
+        filter.reset(pack(102, 0), FORMAT);
+        assertEquals(102, applyLx(100));
+    }
+
+    /** Filter a state with the left stick at the specified position. */
+    private int applyLx(int lx) {
+        PackedState packed = pack(lx, 0);
+        filter.apply(packed, FORMAT);
+        return FORMAT.getAxis(packed, AxisFilter.AXIS_LX);
+    }
+
+    private static PackedState pack(int lx, int l2) {
+        GamepadState state = new GamepadState();
+        state.dpad = 8;
+        state.lx = lx;
+        state.ly = state.rx = state.ry = 128;
+        state.l2 = l2;
+        PackedState packed = new PackedState();
+        FORMAT.pack(state, packed);
+        return packed;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+
+import com.ginkage.gamepad.Benchmark;
+import com.ginkage.gamepad.MicroBenchmark;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ButtonRemap}. */
+@RunWith(JUnit4.class)
+public class ButtonRemapTest {
+    private static final int STATE_COUNT = 4096;
+
+    private static final ReportFormat[] ALL_FORMATS = {
+        ReportFormat.STANDARD, ReportFormat.HIGH_RESOLUTION, ReportFormat.COMPACT
+    };
+
+    @Test
+    public void apply_identityKeepsTheState() {
+        for (ReportFormat format : ALL_FORMATS) {
+            assertMatchesReference(format, new ButtonMap());
+        }
+    }
+
+    @Test
+    public void apply_swapsButtons() {
+        ButtonMap map =
+                new ButtonMap()
+                        .swap(ButtonMap.BUTTON_A, ButtonMap.BUTTON_B)
+                        .swap(ButtonMap.BUTTON_X, ButtonMap.BUTTON_Y)
+                        .swap(ButtonMap.BUTTON_START, ButtonMap.BUTTON_BACK);
+        for (ReportFormat format : ALL_FORMATS) {
+            assertMatchesReference(format, map);
+        }
+    }
+
+    @Test
+    public void apply_mergesButtonsOntoOneTarget() {
+        // Buttons of both bytes press the same report button, and some report buttons are unused.
+        ButtonMap map =
+                new ButtonMap()
+                        .set(ButtonMap.BUTTON_L3, ButtonMap.BUTTON_HOME)
+                        .set(ButtonMap.BUTTON_BACK, ButtonMap.BUTTON_HOME)
+                        .set(ButtonMap.BUTTON_A, ButtonMap.BUTTON_START);
+        for (ReportFormat format : ALL_FORMATS) {
+            assertMatchesReference(format, map);
+        }
+    }
+
+    @Test
+    public void apply_matchesReferenceForRandomMappings() {
+        Random random = new Random(15);
+        for (int i = 0; i < 100; i++) {
+            ButtonMap map = new ButtonMap();
+            for (int button = 0; button < ButtonMap.BUTTON_COUNT; button++) {
+                map.set(button, random.nextInt(ButtonMap.BUTTON_COUNT));
+            }
+            for (ReportFormat format : ALL_FORMATS) {
+                assertMatchesReference(format, map);
+            }
+        }
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_apply() {
+        ReportFormat format = ReportFormat.STANDARD;
+        ButtonMap map = new ButtonMap().swap(ButtonMap.BUTTON_A, ButtonMap.BUTTON_B);
+        ButtonRemap remap = new ButtonRemap(map, format);
+        Random random = new Random(16);
+        PackedState[] states = new PackedState[STATE_COUNT];
+        for (int i = 0; i < STATE_COUNT; i++) {
+            states[i] = new PackedState();
+            format.pack(ReportFormatTest.randomState(random, 255), states[i]);
+        }
+        PackedState scratch = new PackedState();
+        int repeats = 200;
+        int operations = repeats * STATE_COUNT;
+
+        MicroBenchmark.measure(
+                "Per-button remap",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (PackedState s : states) {
+                            scratch.low = referenceRemap(format, map, s.low);
+                            sum += scratch.low;
+                        }
+                    }
+                    return sum;
+                });
+        MicroBenchmark.measure(
+                "ButtonRemap.apply",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (PackedState s : states) {
+                            scratch.low = s.low;
+                            remap.apply(scratch);
+                            sum += scratch.low;
+                        }
+                    }
+                    return sum;
+                });
+    }
+
+    /** Check every combination of the buttons, with random hat and axis values. */
+    private static void assertMatchesReference(ReportFormat format, ButtonMap map) {
+        ButtonRemap remap = new ButtonRemap(map, format);
+        Random random = new Random(17);
+        PackedState packed = new PackedState();
+        for (int buttons = 0; buttons < 1 << ButtonMap.BUTTON_COUNT; buttons++) {
+            GamepadState s = ReportFormatTest.randomState(random, format.getAxisMaximum());
+            format.pack(s, packed);
+            long low = packed.low & ~allButtonBits(format);
+            for (int button = 0; button < ButtonMap.BUTTON_COUNT; button++) {
+                if ((buttons & (1 << button)) != 0) {
+                    low |= format.getButtonBit(button);
+                }
+            }
+            packed.low = low;
+            long high = packed.high;
+            long expected = referenceRemap(format, map, low);
+
+            remap.apply(packed);
+            assertEquals(Long.toHexString(low), expected, packed.low);
+            assertEquals(high, packed.high);
+        }
+    }
+
+    private static long referenceRemap(ReportFormat format, ButtonMap map, long low) {
+        long remapped = low & ~allButtonBits(format);
+        for (int button = 0; button < ButtonMap.BUTTON_COUNT; button++) {
+            if ((low & format.getButtonBit(button)) != 0) {
+                remapped |= format.getButtonBit(map.getTarget(button));
+            }
+        }
+        return remapped;
+    }
+
+    private static long allButtonBits(ReportFormat format) {
+        long bits = 0;
+        for (int button = 0; button < ButtonMap.BUTTON_COUNT; button++) {
+            bits |= format.getButtonBit(button);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Records the reports instead of handing them over to the Bluetooth stack. */
+class FakeHidDeviceApp extends HidDeviceApp {
+    final List<Integer> ids = new ArrayList<>();
+    final List<byte[]> reports = new ArrayList<>();
+
+    /** Number of the reports to refuse before accepting them again, like a congested stack. */
+    int failures;
+
+    /** Whether to keep the reports, the allocation tests only count them. */
+    boolean recording = true;
+
+    int sent;
+
+    FakeHidDeviceApp(ReportStats reportStats, TaskRunner mainThreadRunner) {
+        super(reportStats, mainThreadRunner);
+    }
+
+    @Override
+    synchronized int sendReport(int id, byte[] report) {
+        sent++;
+        if (recording) {
+            ids.add(id);
+            reports.add(report.clone());
+        }
+        if (failures > 0) {
+            failures--;
+            return SEND_FAILED;
+        }
+        return SEND_OK;
+    }
+}
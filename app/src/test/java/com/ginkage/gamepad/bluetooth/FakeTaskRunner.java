@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task queue that runs on the test thread, on the time of a {@link FakeTicker}. Like a {@code
+ * Handler}, it runs the tasks in the order of their time, and in the order they were posted if
+ * the time is the same.
+ */
+final class FakeTaskRunner implements TaskRunner {
+    private static final class Task {
+        final Runnable runnable;
+        final long timeNanos;
+
+        Task(Runnable runnable, long timeNanos) {
+            this.runnable = runnable;
+            this.timeNanos = timeNanos;
+        }
+    }
+
+    private final FakeTicker ticker;
+    private final List<Task> tasks = new ArrayList<>();
+    private boolean running;
+
+    FakeTaskRunner(FakeTicker ticker) {
+        this.ticker = ticker;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        long timeNanos = ticker.read() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        int index = tasks.size();
+        while (index > 0 && tasks.get(index - 1).timeNanos > timeNanos) {
+            index--;
+        }
+        tasks.add(index, new Task(task, timeNanos));
+    }
+
+    @Override
+    public void remove(Runnable task) {
+        tasks.removeIf(t -> t.runnable == task);
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return running;
+    }
+
+    /** @return Number of the tasks that are waiting, whether they are due or not. */
+    int size() {
+        return tasks.size();
+    }
+
+    /** Run the tasks that are due, including the ones that they post without a delay. */
+    void runPending() {
+        runUntil(ticker.read());
+    }
+
+    /**
+     * Move the time forward, running the tasks that become due on the way at their time.
+     *
+     * @param delta Time to move forward by.
+     */
+    void advance(long delta, TimeUnit unit) {
+        runUntil(ticker.read() + unit.toNanos(delta));
+    }
+
+    private void runUntil(long endNanos) {
+        while (!tasks.isEmpty() && tasks.get(0).timeNanos <= endNanos) {
+            Task task = tasks.remove(0);
+            ticker.setNanos(task.timeNanos);
+            running = true;
+            try {
+                task.runnable.run();
+            } finally {
+                running = false;
+            }
+        }
+        ticker.setNanos(endNanos);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+
+/** Time source that only moves when the test says so. */
+final class FakeTicker extends Ticker {
+    // Zero means "never" to the schedulers, so start somewhere else.
+    private long nanos = TimeUnit.SECONDS.toNanos(1);
+
+    @Override
+    public long read() {
+        return nanos;
+    }
+
+    /** @param delta Time to move forward by. */
+    void advance(long delta, TimeUnit unit) {
+        nanos += unit.toNanos(delta);
+    }
+
+    /** @param time Time to move forward to, must not be in the past. */
+    void setNanos(long time) {
+        nanos = Math.max(nanos, time);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_LED;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.PAGE_PHYSICAL_INPUT;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_DURATION;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_MAGNITUDE;
+import static com.ginkage.gamepad.bluetooth.ReportLayout.USAGE_PLAYER_1;
+import static org.junit.Assert.assertEquals;
+
+import android.bluetooth.BluetoothHidDevice;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link FeedbackScheduler}. */
+@RunWith(JUnit4.class)
+public class FeedbackSchedulerTest {
+    private static final ReportLayout LAYOUT = Constants.GAMEPAD_LAYOUT;
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final FakeTaskRunner mainThread = new FakeTaskRunner(ticker);
+    private final ReportEncoder encoder =
+            new ReportEncoder(LAYOUT.getOutputFields(), LAYOUT.getOutputReportSize());
+    private final List<String> feedback = new ArrayList<>();
+    private FeedbackScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new FeedbackScheduler(LAYOUT, new ReportStats(), mainThread);
+        scheduler.setListener((rumble, playerLeds) -> feedback.add(rumble + "/" + playerLeds));
+        feedback.clear();
+    }
+
+    @Test
+    public void onOutputReport_decodesTheRumbleAndTheIndicators() {
+        // The report may come at an offset, e.g. after the report ID.
+        byte[] report = encode(200, 100, 0b0101);
+        byte[] data = new byte[report.length + 1];
+        System.arraycopy(report, 0, data, 1, report.length);
+
+        assertEquals(BluetoothHidDevice.ERROR_RSP_SUCCESS, scheduler.onOutputReport(data, 1));
+        mainThread.runPending();
+        assertEquals("[200/5]", feedback.toString());
+
+        // The rumble stops after its duration, the indicators stay on.
+        mainThread.advance(99, TimeUnit.MILLISECONDS);
+        assertEquals(1, feedback.size());
+        mainThread.advance(1, TimeUnit.MILLISECONDS);
+        assertEquals("[200/5, 0/5]", feedback.toString());
+    }
+
+    @Test
+    public void onOutputReport_capsTheRumbleDuration() {
+        // No duration at all, and one that is too long, both stop at the cap.
+        scheduler.onOutputReport(encode(255, 0, 0), 0);
+        mainThread.runPending();
+        mainThread.advance(FeedbackScheduler.MAX_RUMBLE_MILLIS - 1, TimeUnit.MILLISECONDS);
+        assertEquals("[255/0]", feedback.toString());
+        mainThread.advance(1, TimeUnit.MILLISECONDS);
+        assertEquals("[255/0, 0/0]", feedback.toString());
+
+        feedback.clear();
+        scheduler.onOutputReport(encode(255, FeedbackScheduler.MAX_RUMBLE_MILLIS + 1000, 0), 0);
+        mainThread.runPending();
+        mainThread.advance(FeedbackScheduler.MAX_RUMBLE_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals("[255/0, 0/0]", feedback.toString());
+    }
+
+    @Test
+    public void onOutputReport_playsOnlyTheLatestCommand() {
+        // Three commands arrive before the main thread gets to them.
+        scheduler.onOutputReport(encode(50, 100, 0b0001), 0);
+        scheduler.onOutputReport(encode(100, 100, 0b0010), 0);
+        scheduler.onOutputReport(encode(150, 100, 0b0100), 0);
+        assertEquals(1, mainThread.size());
+
+        mainThread.runPending();
+        assertEquals("[150/4]", feedback.toString());
+    }
+
+    @Test
+    public void stop_dropsThePendingCommand() {
+        scheduler.onOutputReport(encode(50, 100, 0b0001), 0);
+        scheduler.stop();
+        mainThread.advance(1, TimeUnit.SECONDS);
+        assertEquals(0, feedback.size());
+
+        // The next command is played as usual.
+        scheduler.onOutputReport(encode(100, 100, 0b0010), 0);
+        mainThread.runPending();
+        assertEquals("[100/2]", feedback.toString());
+    }
+
+    private byte[] encode(int magnitude, int durationMillis, int playerLeds) {
+        int[] values = new int[encoder.getSlotCount()];
+        values[encoder.getSlot(PAGE_PHYSICAL_INPUT, USAGE_MAGNITUDE)] = magnitude;
+        values[encoder.getSlot(PAGE_PHYSICAL_INPUT, USAGE_DURATION)] = durationMillis;
+        int firstLed = encoder.getSlot(PAGE_LED, USAGE_PLAYER_1);
+        for (int i = 0; i < FeedbackScheduler.PLAYER_LED_COUNT; i++) {
+            values[firstLed + i] = (playerLeds >> i) & 1;
+        }
+        byte[] report = new byte[encoder.getReportSize()];
+        encoder.encode(values, report);
+        return report;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothHidDevice;
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link HidDataSender}. */
+@RunWith(JUnit4.class)
+public class HidDataSenderTest {
+    /** The default window is the QoS latency of the standard format, rounded up. */
+    private static final long WINDOW_MILLIS = 12;
+
+    private static final int REPORTS = 10_000;
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final FakeTaskRunner mainThread = new FakeTaskRunner(ticker);
+    private final ReportStats reportStats = new ReportStats();
+    private final GamepadState state = new GamepadState();
+    private ExecutorService publisher;
+    private FakeHidDeviceApp hidDeviceApp;
+    private HidDataSender sender;
+
+    @Before
+    public void setUp() {
+        publisher = Executors.newSingleThreadExecutor();
+        hidDeviceApp = new FakeHidDeviceApp(reportStats, mainThread);
+        sender =
+                new HidDataSender(
+                        hidDeviceApp, new HidDeviceProfile(null), reportStats, mainThread, ticker);
+    }
+
+    @After
+    public void tearDown() {
+        publisher.shutdownNow();
+    }
+
+    /** Every button press goes out right away, so each one is a report. */
+    private void sendButtonPresses(GamepadState[] states, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            for (int player = 0; player < states.length; player++) {
+                states[player].a = !states[player].a;
+                sender.sendGamepad(player, states[player]);
+            }
+        }
+    }
+
+    @Test
+    public void sendGamepad_dropsTheStatesWithoutAHost() {
+        state.a = true;
+        sender.sendGamepad(state);
+        mainThread.runPending();
+
+        assertTrue(hidDeviceApp.reports.isEmpty());
+        assertEquals(0, reportStats.getReceivedReports());
+    }
+
+    @Test
+    public void sendGamepad_sendsEachPlayerUnderItsOwnReportId() {
+        sender.setPlayerCount(4);
+        sender.connectForTesting();
+        GamepadState[] states = new GamepadState[4];
+        for (int player = 0; player < 4; player++) {
+            states[player] = new GamepadState();
+            states[player].lx = 10 * player;
+        }
+
+        for (int player = 0; player < 4; player++) {
+            sender.sendGamepad(player, states[player]);
+        }
+        mainThread.runPending();
+        assertEquals(Arrays.asList(1, 3, 4, 5), hidDeviceApp.ids);
+        for (int player = 0; player < 4; player++) {
+            byte[] expected = new GamepadReport(ReportFormat.STANDARD).setValue(states[player]);
+            assertArrayEquals(expected, hidDeviceApp.reports.get(player));
+        }
+
+        // Player 1's stick movement waits for its window, player 3's button press doesn't.
+        states[1].lx = 200;
+        sender.sendGamepad(1, states[1]);
+        states[3].a = true;
+        sender.sendGamepad(3, states[3]);
+        mainThread.runPending();
+        assertEquals(Arrays.asList(1, 3, 4, 5, 5), hidDeviceApp.ids);
+
+        mainThread.advance(WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(1, 3, 4, 5, 5, 3), hidDeviceApp.ids);
+    }
+
+    @Test
+    public void sendGamepad_allocatesNothingPerReportWithFourPads() {
+        // Runs every report right on the calling thread, and drops the timers.
+        TaskRunner senderThread =
+                new TaskRunner() {
+                    @Override
+                    public void post(Runnable task) {}
+
+                    @Override
+                    public void postDelayed(Runnable task, long delayMillis) {}
+
+                    @Override
+                    public void remove(Runnable task) {}
+
+                    @Override
+                    public boolean isCurrentThread() {
+                        return true;
+                    }
+                };
+        hidDeviceApp = new FakeHidDeviceApp(reportStats, senderThread);
+        hidDeviceApp.recording = false;
+        sender =
+                new HidDataSender(
+                        hidDeviceApp,
+                        new HidDeviceProfile(null),
+                        reportStats,
+                        senderThread,
+                        ticker);
+        sender.setPlayerCount(4);
+        sender.connectForTesting();
+        GamepadState[] states = new GamepadState[4];
+        for (int player = 0; player < 4; player++) {
+            states[player] = new GamepadState();
+        }
+        // Warm up, so that the class loading and the first reports don't count.
+        sendButtonPresses(states, 100);
+        assertEquals(400, hidDeviceApp.sent);
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        sendButtonPresses(states, REPORTS / 4);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(400 + REPORTS, hidDeviceApp.sent);
+        // Less than a byte per report, whatever is left is the measurement itself.
+        assertTrue("Allocated " + allocated + " bytes", allocated < REPORTS);
+    }
+
+    @Test
+    public void settingsReport_appliesAllTheSettingsInOneStep() {
+        ReportRegistry.Report report =
+                hidDeviceApp
+                        .getReportRegistry()
+                        .find(BluetoothHidDevice.REPORT_TYPE_FEATURE, Constants.ID_GAMEPAD);
+        SettingsReport encoder =
+                new SettingsReport(Constants.GAMEPAD_LAYOUT, (r, w, s, t) -> {}, mainThread);
+
+        assertEquals(
+                BluetoothHidDevice.ERROR_RSP_SUCCESS,
+                report.setReport(encoder.encode(100, 20000, 5, 7)));
+        mainThread.runPending();
+
+        // The polling period can't be shorter than the window, so the rate reads back capped.
+        assertArrayEquals(encoder.encode(50, 20000, 5, 7), report.getHandler.getReport());
+        assertEquals(20000, sender.getCoalescingWindow());
+    }
+
+    @Test
+    public void sendGamepad_doesNotWaitForTheConnectionManagement() throws Exception {
+        sender.connectForTesting();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // A connection state callback that takes its time, e.g. in a listener.
+        Thread callback =
+                new Thread(
+                        () -> {
+                            synchronized (sender.lock) {
+                                held.countDown();
+                                try {
+                                    release.await();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        });
+        callback.start();
+        assertTrue(held.await(5, TimeUnit.SECONDS));
+
+        try {
+            state.a = true;
+            Future<?> published =
+                    publisher.submit(
+                            () -> {
+                                sender.sendGamepad(state);
+                                assertEquals(ReportFormat.STANDARD, sender.getReportFormat());
+                                assertEquals(1, sender.getPlayerCount());
+                            });
+            // This would time out if the send path or the getters took the lock.
+            published.get(5, TimeUnit.SECONDS);
+            mainThread.runPending();
+
+            byte[] expected = new GamepadReport(ReportFormat.STANDARD).setValue(state);
+            assertEquals(1, hidDeviceApp.reports.size());
+            assertArrayEquals(expected, hidDeviceApp.reports.get(0));
+            assertTrue(callback.isAlive());
+        } finally {
+            release.countDown();
+            callback.join();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link HidDeviceApp}. */
+@RunWith(JUnit4.class)
+public class HidDeviceAppTest {
+    private final FakeTicker ticker = new FakeTicker();
+    private final FakeTaskRunner mainThread = new FakeTaskRunner(ticker);
+    private final ReportStats reportStats = new ReportStats();
+    private FakeHidDeviceApp app;
+
+    @Before
+    public void setUp() {
+        app = new FakeHidDeviceApp(reportStats, mainThread);
+    }
+
+    @Test
+    public void sendGamepad_resendsAfterAFailure() {
+        PackedState state = new PackedState();
+        ReportFormat.STANDARD.pack(new GamepadState(), state);
+        app.failures = 1;
+
+        assertEquals(HidDeviceApp.SEND_FAILED, app.sendGamepad(0, state, false));
+        assertEquals(1, reportStats.getFailedReports());
+        // The same state must go out again, the host hasn't seen it.
+        assertEquals(HidDeviceApp.SEND_OK, app.sendGamepad(0, state, false));
+        assertEquals(HidDeviceApp.SEND_UNCHANGED, app.sendGamepad(0, state, false));
+        assertEquals(2, app.reports.size());
+    }
+
+    @Test
+    public void sendBatteryLevel_retriesUntilTheStackTakesIt() {
+        app.failures = 2;
+        app.sendBatteryLevel(0.5f);
+        assertEquals(1, app.reports.size());
+
+        mainThread.advance(1, TimeUnit.SECONDS);
+        assertEquals(2, app.reports.size());
+        mainThread.advance(1, TimeUnit.SECONDS);
+        assertEquals(3, app.reports.size());
+        mainThread.advance(10, TimeUnit.SECONDS);
+        assertEquals(3, app.reports.size());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Constants.ID_BATTERY, (int) app.ids.get(i));
+            assertArrayEquals(app.reports.get(0), app.reports.get(i));
+        }
+        assertEquals(2, reportStats.getFailedReports());
+        assertEquals(2, reportStats.getRetriedReports());
+        assertEquals(0, reportStats.getDroppedReports());
+    }
+
+    @Test
+    public void sendBatteryLevel_dropsTheLevelAfterTheLastRetry() {
+        app.failures = 100;
+        app.sendBatteryLevel(0.5f);
+        mainThread.advance(10, TimeUnit.SECONDS);
+
+        // The first attempt and three retries.
+        assertEquals(4, app.reports.size());
+        assertEquals(4, reportStats.getFailedReports());
+        assertEquals(3, reportStats.getRetriedReports());
+        assertEquals(1, reportStats.getDroppedReports());
+        assertEquals(0, mainThread.size());
+    }
+
+    @Test
+    public void sendBatteryLevel_onlyRetriesTheNewestLevel() {
+        app.failures = 1;
+        app.sendBatteryLevel(0.5f);
+        byte[] oldLevel = app.reports.get(0);
+        app.sendBatteryLevel(0.25f);
+        byte[] newLevel = app.reports.get(1);
+        mainThread.advance(10, TimeUnit.SECONDS);
+
+        // The new level went through, so the failed old one is never retried.
+        assertEquals(2, app.reports.size());
+        assertEquals(0, reportStats.getRetriedReports());
+        assertFalse(Arrays.equals(oldLevel, newLevel));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link IntervalStats}. */
+@RunWith(JUnit4.class)
+public class IntervalStatsTest {
+    private static final long START_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final IntervalStats stats = new IntervalStats();
+
+    @Test
+    public void empty_reportsZeros() {
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getMeanNanos(), 0);
+        assertEquals(0, stats.getStdDevNanos(), 0);
+        assertEquals(0, stats.getMinNanos());
+        assertEquals(0, stats.getMaxNanos());
+    }
+
+    @Test
+    public void onEvent_measuresTheIntervalsBetweenTheEvents() {
+        // Intervals of 10, 20 and 30 ms.
+        stats.onEvent(START_NANOS);
+        stats.onEvent(START_NANOS + millis(10));
+        stats.onEvent(START_NANOS + millis(30));
+        stats.onEvent(START_NANOS + millis(60));
+
+        assertEquals(3, stats.getCount());
+        assertEquals(millis(10), stats.getMinNanos());
+        assertEquals(millis(30), stats.getMaxNanos());
+        assertEquals(millis(20), stats.getMeanNanos(), 1e-3);
+        assertEquals(millis(10), stats.getStdDevNanos(), 1e-3);
+    }
+
+    @Test
+    public void record_matchesTheTwoPassStatistics() {
+        long[] intervals = {11, 12, 11, 11, 12, 30, 11, 12};
+        double sum = 0;
+        for (long interval : intervals) {
+            stats.record(millis(interval));
+            sum += millis(interval);
+        }
+        double mean = sum / intervals.length;
+        double squares = 0;
+        for (long interval : intervals) {
+            squares += (millis(interval) - mean) * (millis(interval) - mean);
+        }
+
+        assertEquals(intervals.length, stats.getCount());
+        assertEquals(mean, stats.getMeanNanos(), 1e-3);
+        assertEquals(Math.sqrt(squares / (intervals.length - 1)), stats.getStdDevNanos(), 1e-3);
+        assertEquals(millis(11), stats.getMinNanos());
+        assertEquals(millis(30), stats.getMaxNanos());
+    }
+
+    @Test
+    public void reset_startsANewMeasurement() {
+        stats.onEvent(START_NANOS);
+        stats.onEvent(START_NANOS + millis(10));
+        stats.reset();
+
+        // The first event after the reset doesn't make an interval with the one before it.
+        stats.onEvent(START_NANOS + millis(100));
+        stats.onEvent(START_NANOS + millis(105));
+        assertEquals(1, stats.getCount());
+        assertEquals(millis(5), stats.getMinNanos());
+        assertEquals(millis(5), stats.getMaxNanos());
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
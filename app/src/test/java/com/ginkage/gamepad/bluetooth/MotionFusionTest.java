@@ -0,0 +1,266 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.ginkage.gamepad.Benchmark;
+import com.ginkage.gamepad.MicroBenchmark;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link MotionFusion}, replayed against synthetic sensor traces of a device that is
+ * rolled around its y axis, i.e. with the right side going down for positive angles.
+ */
+@RunWith(JUnit4.class)
+public class MotionFusionTest {
+    private static final int AXIS_MAXIMUM = 255;
+    private static final int CENTER = 128;
+    private static final int MAX_TILT_DEGREES = 30;
+    private static final int RATE_HZ = 200;
+    private static final long STEP_NANOS = 1_000_000_000L / RATE_HZ;
+
+    /** Start of the traces, any non-zero time. */
+    private static final long START_NANOS = 1_000_000_000L;
+
+    @Test
+    public void flatDevice_centersTheStick() {
+        MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, 500);
+        assertFalse(fusion.isReady());
+        replay(fusion, constant(0, 1), START_NANOS, true, 0);
+        assertTrue(fusion.isReady());
+        assertEquals(CENTER, fusion.getStickX(AXIS_MAXIMUM));
+        assertEquals(CENTER, fusion.getStickY(AXIS_MAXIMUM));
+    }
+
+    @Test
+    public void steadyTilt_mapsTheAngleOntoTheStick() {
+        for (int degrees = -40; degrees <= 40; degrees += 5) {
+            MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, 200);
+            long nanos = replay(fusion, constant(0, 0.5), START_NANOS, true, 0);
+            replay(fusion, ramp(0, degrees, 0.25), nanos, true, 0);
+            nanos = replay(fusion, constant(degrees, 2), nanos, true, 0);
+            assertEquals("Tilt " + degrees, expectedX(degrees), fusion.getStickX(AXIS_MAXIMUM), 1);
+            assertEquals("Tilt " + degrees, CENTER, fusion.getStickY(AXIS_MAXIMUM), 1);
+        }
+    }
+
+    @Test
+    public void fastTurn_followsTheGyroscopeWithoutLag() {
+        // With a long time constant, the accelerometer alone would take seconds to catch up.
+        MotionFusion fused = new MotionFusion(MAX_TILT_DEGREES, 2000);
+        MotionFusion accelerometerOnly = new MotionFusion(MAX_TILT_DEGREES, 2000);
+        long nanos = replay(fused, constant(0, 0.5), START_NANOS, true, 0);
+        replay(accelerometerOnly, constant(0, 0.5), START_NANOS, false, 0);
+        replay(fused, ramp(0, 20, 0.1), nanos, true, 0);
+        replay(accelerometerOnly, ramp(0, 20, 0.1), nanos, false, 0);
+
+        assertEquals(expectedX(20), fused.getStickX(AXIS_MAXIMUM), 2);
+        assertTrue(accelerometerOnly.getStickX(AXIS_MAXIMUM) < CENTER + 10);
+    }
+
+    @Test
+    public void gyroscopeBias_isCorrectedByTheAccelerometer() {
+        MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, 500);
+        // 0.02 rad/s is a poorly calibrated gyroscope, it would drift 11 degrees in 10 seconds.
+        replay(fusion, constant(0, 10), START_NANOS, true, 0.02);
+        assertEquals(CENTER, fusion.getStickX(AXIS_MAXIMUM), 4);
+        assertEquals(CENTER, fusion.getStickY(AXIS_MAXIMUM), 1);
+    }
+
+    @Test
+    public void shake_isRejected() {
+        MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, 500);
+        long nanos = replay(fusion, constant(0, 0.5), START_NANOS, true, 0);
+        // Hard sideways jolts, far from 1 g, without any rotation.
+        for (int i = 0; i < RATE_HZ; i++) {
+            nanos += STEP_NANOS;
+            int jolt = (i & 1) == 0 ? 3 * MotionFusion.GRAVITY : -3 * MotionFusion.GRAVITY;
+            fusion.onGyroscope(nanos, 0, 0, 0);
+            fusion.onAccelerometer(nanos, jolt, 0, MotionFusion.GRAVITY);
+        }
+        assertEquals(CENTER, fusion.getStickX(AXIS_MAXIMUM));
+    }
+
+    @Test
+    public void noisyTrace_staysCloseToTheTruth() {
+        MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, 300);
+        Random random = new Random(20);
+        long nanos = replay(fusion, constant(0, 0.5), START_NANOS, true, 0);
+        double[] angles = new double[5 * RATE_HZ];
+        for (int i = 0; i < angles.length; i++) {
+            angles[i] = 15 * Math.sin(2 * Math.PI * 0.5 * i / RATE_HZ);
+        }
+        for (int i = 1; i < angles.length; i++) {
+            nanos += STEP_NANOS;
+            double angle = Math.toRadians(angles[i]);
+            double rate = Math.toRadians(angles[i] - angles[i - 1]) * RATE_HZ;
+            fusion.onGyroscope(nanos, 0, fixed(rate + 0.01 * random.nextGaussian()), 0);
+            fusion.onAccelerometer(
+                    nanos,
+                    fixed(-MotionFusion.GRAVITY * Math.sin(angle) / MotionFusion.ONE
+                            + 0.3 * random.nextGaussian()),
+                    fixed(0.3 * random.nextGaussian()),
+                    fixed(MotionFusion.GRAVITY * Math.cos(angle) / MotionFusion.ONE
+                            + 0.3 * random.nextGaussian()));
+            if (i > RATE_HZ) {
+                assertEquals(
+                        "Sample " + i,
+                        expectedX(angles[i]),
+                        fusion.getStickX(AXIS_MAXIMUM),
+                        6);
+            }
+        }
+    }
+
+    @Test
+    public void rotation_mapsTheTiltAsTheScreenShowsIt() {
+        // In the first quarter turn, the natural right side of the device is at the bottom of the
+        // screen, so rolling it down tilts the screen like a stick pulled down.
+        MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, 200);
+        fusion.setRotation(1);
+        long nanos = replay(fusion, constant(0, 0.5), START_NANOS, true, 0);
+        replay(fusion, ramp(0, 15, 0.25), nanos, true, 0);
+        assertEquals(CENTER, fusion.getStickX(AXIS_MAXIMUM), 1);
+        assertEquals(expectedX(15), fusion.getStickY(AXIS_MAXIMUM), 1);
+    }
+
+    @Test
+    public void resetNeutral_centersTheCurrentPose() {
+        MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, 200);
+        long nanos = replay(fusion, constant(0, 0.5), START_NANOS, true, 0);
+        nanos = replay(fusion, ramp(0, 20, 0.25), nanos, true, 0);
+        assertEquals(expectedX(20), fusion.getStickX(AXIS_MAXIMUM), 1);
+        fusion.resetNeutral();
+        assertEquals(CENTER, fusion.getStickX(AXIS_MAXIMUM));
+        replay(fusion, ramp(20, 0, 0.25), nanos, true, 0);
+        assertEquals(2 * CENTER - expectedX(20), fusion.getStickX(AXIS_MAXIMUM), 1);
+    }
+
+    @Test
+    public void longGap_isNotIntegrated() {
+        MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, 60_000);
+        long nanos = replay(fusion, constant(0, 0.5), START_NANOS, true, 0);
+        // A gyroscope sample after a pause would turn the estimate by 1 rad/s over 2 seconds.
+        fusion.onGyroscope(nanos + 2_000_000_000L, 0, MotionFusion.ONE, 0);
+        assertEquals(CENTER, fusion.getStickX(AXIS_MAXIMUM));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_fusion() {
+        int samples = 10 * RATE_HZ;
+        int[] gyroscope = new int[samples];
+        int[][] accelerometer = new int[samples][3];
+        Random random = new Random(21);
+        for (int i = 0; i < samples; i++) {
+            // A full swing between -15 and 15 degrees every second.
+            double phase = 2 * Math.PI * i / RATE_HZ;
+            double angle = Math.toRadians(15) * Math.sin(phase);
+            gyroscope[i] = fixed(Math.toRadians(15) * 2 * Math.PI * Math.cos(phase));
+            accelerometer[i][0] = fixed(-9.8 * Math.sin(angle) + 0.3 * random.nextGaussian());
+            accelerometer[i][1] = fixed(0.3 * random.nextGaussian());
+            accelerometer[i][2] = fixed(9.8 * Math.cos(angle) + 0.3 * random.nextGaussian());
+        }
+        MotionFusion fusion = new MotionFusion(MAX_TILT_DEGREES, 300);
+        int repeats = 200;
+
+        MicroBenchmark.measure(
+                "MotionFusion, gyroscope and accelerometer sample",
+                repeats * samples,
+                () -> {
+                    long sum = 0;
+                    long nanos = START_NANOS;
+                    fusion.reset();
+                    for (int r = 0; r < repeats; r++) {
+                        for (int i = 0; i < samples; i++) {
+                            nanos += STEP_NANOS;
+                            int[] a = accelerometer[i];
+                            fusion.onGyroscope(nanos, 0, gyroscope[i], 0);
+                            fusion.onAccelerometer(nanos, a[0], a[1], a[2]);
+                            sum += fusion.getStickX(AXIS_MAXIMUM);
+                        }
+                    }
+                    return sum;
+                });
+    }
+
+    /**
+     * Feed the samples of a roll trace, one gyroscope and one accelerometer sample per angle
+     * after the first one.
+     *
+     * @param fusion Fusion to feed.
+     * @param angles Roll angles in degrees, the pose before the trace and then one per sample.
+     * @param startNanos Time of the pose before the trace.
+     * @param withGyroscope Whether to feed the gyroscope samples.
+     * @param gyroscopeBias Rate to add to every gyroscope sample, rad/s.
+     * @return Time of the last sample.
+     */
+    private static long replay(
+            MotionFusion fusion,
+            double[] angles,
+            long startNanos,
+            boolean withGyroscope,
+            double gyroscopeBias) {
+        long nanos = startNanos;
+        for (int i = 1; i < angles.length; i++) {
+            double degrees = angles[i];
+            double previous = angles[i - 1];
+            nanos += STEP_NANOS;
+            double angle = Math.toRadians(degrees);
+            if (withGyroscope) {
+                double rate = Math.toRadians(degrees - previous) * RATE_HZ;
+                fusion.onGyroscope(nanos, 0, fixed(rate + gyroscopeBias), 0);
+            }
+            fusion.onAccelerometer(
+                    nanos,
+                    (int) Math.round(-MotionFusion.GRAVITY * Math.sin(angle)),
+                    0,
+                    (int) Math.round(MotionFusion.GRAVITY * Math.cos(angle)));
+        }
+        return nanos;
+    }
+
+    private static double[] constant(double degrees, double seconds) {
+        return ramp(degrees, degrees, seconds);
+    }
+
+    private static double[] ramp(double fromDegrees, double toDegrees, double seconds) {
+        int count = (int) Math.round(seconds * RATE_HZ);
+        double[] angles = new double[count + 1];
+        for (int i = 0; i <= count; i++) {
+            angles[i] = fromDegrees + (toDegrees - fromDegrees) * i / count;
+        }
+        return angles;
+    }
+
+    private static int expectedX(double degrees) {
+        double deflection =
+                Math.sin(Math.toRadians(degrees)) / Math.sin(Math.toRadians(MAX_TILT_DEGREES));
+        return (int) Math.max(0, Math.min(Math.round(CENTER + CENTER * deflection), AXIS_MAXIMUM));
+    }
+
+    private static int fixed(double value) {
+        return (int) Math.round(value * MotionFusion.ONE);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.ginkage.gamepad.Benchmark;
+import com.ginkage.gamepad.MicroBenchmark;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReportDecoder}. */
+@RunWith(JUnit4.class)
+public class ReportDecoderTest {
+    private static final int REPORT_COUNT = 4096;
+
+    @Test
+    public void decode_roundTripsTheEncodedReports() {
+        Random random = new Random(13);
+        ReportFormat[] formats = {
+            ReportFormat.STANDARD, ReportFormat.HIGH_RESOLUTION, ReportFormat.COMPACT
+        };
+        for (ReportFormat format : formats) {
+            ReportLayout layout = format.getLayout();
+            assertRoundTrip(random, layout.getFields(), layout.getReportSize());
+            assertRoundTrip(random, layout.getOutputFields(), layout.getOutputReportSize());
+            assertRoundTrip(random, layout.getFeatureFields(), layout.getFeatureReportSize());
+        }
+        ReportLayout battery = Constants.BATTERY_LAYOUT;
+        assertRoundTrip(random, battery.getFields(), battery.getReportSize());
+    }
+
+    @Test
+    public void decode_readsThePackedGamepadState() {
+        ReportFormat format = ReportFormat.HIGH_RESOLUTION;
+        ReportDecoder decoder = new ReportDecoder(format.getLayout());
+        int lxSlot = decoder.getSlot(ReportLayout.PAGE_GENERIC_DESKTOP, ReportLayout.USAGE_X);
+        int hatSlot =
+                decoder.getSlot(ReportLayout.PAGE_GENERIC_DESKTOP, ReportLayout.USAGE_HAT_SWITCH);
+        int r2Slot = decoder.getSlot(ReportLayout.PAGE_SIMULATION, ReportLayout.USAGE_ACCELERATOR);
+        int homeSlot = decoder.getSlot(ReportLayout.PAGE_CONSUMER, ReportLayout.USAGE_AC_HOME);
+
+        Random random = new Random(14);
+        PackedState packed = new PackedState();
+        // One extra byte in front, as if the buffer started with the report ID.
+        byte[] report = new byte[format.getReportSize() + 1];
+        byte[] data = new byte[format.getReportSize()];
+        for (int i = 0; i < 10_000; i++) {
+            GamepadState s = ReportFormatTest.randomState(random, format.getAxisMaximum());
+            format.pack(s, packed);
+            format.write(packed, data);
+            System.arraycopy(data, 0, report, 1, data.length);
+            assertEquals(s.lx, decoder.decode(report, 1, lxSlot));
+            assertEquals(s.dpad, decoder.decode(report, 1, hatSlot));
+            assertEquals(s.r2, decoder.decode(report, 1, r2Slot));
+            assertEquals(s.home ? 1 : 0, decoder.decode(report, 1, homeSlot));
+        }
+    }
+
+    @Test
+    public void decode_signExtendsNegativeRanges() {
+        ReportLayout layout =
+                new ReportLayout.Builder(
+                                5, ReportLayout.PAGE_GENERIC_DESKTOP, ReportLayout.USAGE_GAME_PAD)
+                        .usage(ReportLayout.USAGE_X, ReportLayout.USAGE_Y)
+                        .logicalMinimum(-2048)
+                        .logicalMaximum(2047)
+                        .reportSize(12)
+                        .reportCount(2)
+                        .input(ReportLayout.INPUT_VARIABLE)
+                        .build();
+        ReportEncoder encoder = new ReportEncoder(layout);
+        ReportDecoder decoder = new ReportDecoder(layout);
+        byte[] report = new byte[encoder.getReportSize()];
+        int[] values = new int[2];
+        for (int x = -2048; x <= 2047; x += 7) {
+            encoder.encode(new int[] {x, -1 - x}, report);
+            decoder.decode(report, 0, values);
+            assertArrayEquals(new int[] {x, -1 - x}, values);
+        }
+    }
+
+    @Test
+    public void getName_namesTheGamepadUsages() {
+        ReportDecoder decoder = new ReportDecoder(ReportFormat.STANDARD.getLayout());
+        String[] expected = {
+            "Button 1", "Button 2", "Button 4", "Button 5", "Button 7", "Button 8", "Button 14",
+            "Button 15", "Button 12", "AC Back", "AC Home", "Hat switch", "X", "Y", "Z", "Rz",
+            "Brake", "Accelerator"
+        };
+        assertEquals(expected.length, decoder.getSlotCount());
+        for (int slot = 0; slot < expected.length; slot++) {
+            assertEquals(expected[slot], decoder.getName(slot));
+        }
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_decode() {
+        ReportFormat format = ReportFormat.HIGH_RESOLUTION;
+        Random random = new Random(15);
+        byte[][] reports = new byte[REPORT_COUNT][format.getReportSize()];
+        PackedState packed = new PackedState();
+        for (byte[] report : reports) {
+            format.pack(ReportFormatTest.randomState(random, format.getAxisMaximum()), packed);
+            format.write(packed, report);
+        }
+        ReportDecoder decoder = new ReportDecoder(format.getLayout());
+        int[] values = new int[decoder.getSlotCount()];
+        int repeats = 200;
+
+        MicroBenchmark.measure(
+                "ReportDecoder.decode, high resolution report",
+                repeats * REPORT_COUNT,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (byte[] report : reports) {
+                            decoder.decode(report, 0, values);
+                            sum += values[values.length - 1];
+                        }
+                    }
+                    return sum;
+                });
+    }
+
+    private static void assertRoundTrip(
+            Random random, List<ReportLayout.Field> fields, int reportSize) {
+        ReportEncoder encoder = new ReportEncoder(fields, reportSize);
+        ReportDecoder decoder = new ReportDecoder(fields, reportSize);
+        assertEquals(encoder.getSlotCount(), decoder.getSlotCount());
+        assertEquals(encoder.getReportSize(), decoder.getReportSize());
+        int[] values = new int[encoder.getSlotCount()];
+        int[] decoded = new int[decoder.getSlotCount()];
+        byte[] report = new byte[encoder.getReportSize()];
+        for (int i = 0; i < 1000; i++) {
+            for (int slot = 0; slot < values.length; slot++) {
+                values[slot] = random.nextInt(1 << encoder.getBitSize(slot));
+            }
+            encoder.encode(values, report);
+            decoder.decode(report, 0, decoded);
+            assertArrayEquals(values, decoded);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReportDescriptorParser}. */
+@RunWith(JUnit4.class)
+public class ReportDescriptorParserTest {
+    private static final ReportFormat[] ALL_FORMATS = {
+        ReportFormat.STANDARD, ReportFormat.HIGH_RESOLUTION, ReportFormat.COMPACT
+    };
+
+    @Test
+    public void parse_returnsTheGeneratedLayouts() {
+        for (ReportFormat format : ALL_FORMATS) {
+            for (int playerCount = 1; playerCount <= Constants.MAX_PLAYERS; playerCount++) {
+                List<ReportLayout> layouts =
+                        ReportDescriptorParser.parse(format.getReportDescriptor(playerCount));
+                assertEquals(playerCount + 1, layouts.size());
+                for (int player = 0; player < playerCount; player++) {
+                    assertLayoutEquals(format.getLayout(player), layouts.get(player));
+                }
+                assertLayoutEquals(Constants.BATTERY_LAYOUT, layouts.get(playerCount));
+            }
+        }
+    }
+
+    @Test
+    public void parse_readsTheOutputAndFeatureReports() {
+        List<ReportLayout> layouts =
+                ReportDescriptorParser.parse(ReportFormat.STANDARD.getReportDescriptor(2));
+        ReportLayout first = layouts.get(0);
+        assertEquals(Constants.ID_GAMEPAD, first.getReportId());
+        assertEquals(8, first.getReportSize());
+        // Magnitude, duration, 4 LEDs and the padding.
+        assertEquals(4, first.getOutputReportSize());
+        assertEquals(4, first.getOutputFields().size());
+        // Polling rate, window and the two dead bands.
+        assertEquals(6, first.getFeatureReportSize());
+        assertEquals(2, first.getFeatureFields().size());
+
+        ReportLayout second = layouts.get(1);
+        assertEquals(Constants.getGamepadReportId(1), second.getReportId());
+        assertEquals(0, second.getOutputReportSize());
+        assertEquals(0, second.getFeatureReportSize());
+    }
+
+    @Test
+    public void parse_returnsTheCollectionOfEachReport() {
+        byte[] descriptor = ReportFormat.HIGH_RESOLUTION.getReportDescriptor(3);
+        List<ReportLayout> layouts = ReportDescriptorParser.parse(descriptor);
+        assertArrayEquals(
+                descriptor,
+                ReportLayout.concat(layouts.toArray(new ReportLayout[0])));
+    }
+
+    @Test
+    public void parse_rejectsMalformedDescriptors() {
+        // Truncated Logical Maximum (255).
+        assertParseFails(0x26, 0xFF);
+        // Long item.
+        assertParseFails(0xFE, 0x00, 0x00);
+        // Collection (Application) without End Collection.
+        assertParseFails(0xA1, 0x01);
+        // End Collection without Collection.
+        assertParseFails(0xC0);
+        // Usage Maximum without Usage Minimum.
+        assertParseFails(0x05, 0x09, 0x29, 0x04);
+        // Input with Report Count (0).
+        assertParseFails(0x75, 0x08, 0x95, 0x00, 0x81, 0x02);
+        // Output with Report Size (33).
+        assertParseFails(0x75, 0x21, 0x95, 0x01, 0x91, 0x02);
+    }
+
+    @Test
+    public void parse_expandsUsageRanges() {
+        byte[] descriptor =
+                bytes(
+                        0x05, 0x01, // Usage Page (Generic Desktop Ctrls)
+                        0x09, 0x05, // Usage (Game Pad)
+                        0xA1, 0x01, // Collection (Application)
+                        0x85, 0x07, //   Report ID (7)
+                        0x05, 0x09, //   Usage Page (Button)
+                        0x19, 0x01, //   Usage Minimum (0x01)
+                        0x29, 0x04, //   Usage Maximum (0x04)
+                        0x15, 0x00, //   Logical Minimum (0)
+                        0x25, 0x01, //   Logical Maximum (1)
+                        0x75, 0x01, //   Report Size (1)
+                        0x95, 0x04, //   Report Count (4)
+                        0xB1, 0x02, //   Feature (Data,Var,Abs)
+                        0xC0); // End Collection
+        List<ReportLayout> layouts = ReportDescriptorParser.parse(descriptor);
+        assertEquals(1, layouts.size());
+        ReportLayout layout = layouts.get(0);
+        assertEquals(7, layout.getReportId());
+        assertEquals(0, layout.getReportSize());
+        assertEquals(1, layout.getFeatureReportSize());
+        ReportLayout.Field field = layout.getFeatureFields().get(0);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(
+                    ReportLayout.usage(ReportLayout.PAGE_BUTTON, i + 1), field.getUsage(i));
+        }
+    }
+
+    private static void assertLayoutEquals(ReportLayout expected, ReportLayout actual) {
+        assertEquals(expected.getReportId(), actual.getReportId());
+        assertEquals(expected.getReportSize(), actual.getReportSize());
+        assertFieldsEqual(expected.getFields(), actual.getFields());
+        assertEquals(expected.getOutputReportSize(), actual.getOutputReportSize());
+        assertFieldsEqual(expected.getOutputFields(), actual.getOutputFields());
+        assertEquals(expected.getFeatureReportSize(), actual.getFeatureReportSize());
+        assertFieldsEqual(expected.getFeatureFields(), actual.getFeatureFields());
+    }
+
+    private static void assertFieldsEqual(
+            List<ReportLayout.Field> expected, List<ReportLayout.Field> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            ReportLayout.Field e = expected.get(i);
+            ReportLayout.Field a = actual.get(i);
+            assertArrayEquals(e.usages, a.usages);
+            assertEquals(e.bitOffset, a.bitOffset);
+            assertEquals(e.reportSize, a.reportSize);
+            assertEquals(e.reportCount, a.reportCount);
+            assertEquals(e.logicalMinimum, a.logicalMinimum);
+            assertEquals(e.logicalMaximum, a.logicalMaximum);
+            assertEquals(e.physicalMinimum, a.physicalMinimum);
+            assertEquals(e.physicalMaximum, a.physicalMaximum);
+            assertEquals(e.unit, a.unit);
+            assertEquals(e.flags, a.flags);
+        }
+    }
+
+    private static void assertParseFails(int... descriptor) {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> ReportDescriptorParser.parse(bytes(descriptor)));
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.ginkage.gamepad.Benchmark;
+import com.ginkage.gamepad.MicroBenchmark;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReportFormat}. */
+@RunWith(JUnit4.class)
+public class ReportFormatTest {
+    private static final int STATE_COUNT = 4096;
+
+    private static final ReportFormat[] ANALOG_FORMATS = {
+        ReportFormat.STANDARD, ReportFormat.HIGH_RESOLUTION
+    };
+
+    private static final ReportFormat[] ALL_FORMATS = {
+        ReportFormat.STANDARD, ReportFormat.HIGH_RESOLUTION, ReportFormat.COMPACT
+    };
+
+    @Test
+    public void write_matchesBaselineReport() {
+        Random random = new Random(11);
+        byte[] expected = new byte[8];
+        byte[] actual = new byte[ReportFormat.STANDARD.getReportSize()];
+        PackedState packed = new PackedState();
+        for (int i = 0; i < 100_000; i++) {
+            GamepadState s = randomState(random, 255);
+            baselineSetValue(s, expected);
+            ReportFormat.STANDARD.pack(s, packed);
+            ReportFormat.STANDARD.write(packed, actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void getAxis_returnsPackedValues() {
+        for (ReportFormat format : ANALOG_FORMATS) {
+            Random random = new Random(format.getAxisMaximum());
+            PackedState packed = new PackedState();
+            for (int i = 0; i < 10_000; i++) {
+                GamepadState s = randomState(random, format.getAxisMaximum());
+                format.pack(s, packed);
+                assertEquals(s.lx, format.getAxis(packed, AxisFilter.AXIS_LX));
+                assertEquals(s.ly, format.getAxis(packed, AxisFilter.AXIS_LY));
+                assertEquals(s.rx, format.getAxis(packed, AxisFilter.AXIS_RX));
+                assertEquals(s.ry, format.getAxis(packed, AxisFilter.AXIS_RY));
+                assertEquals(s.l2, format.getAxis(packed, AxisFilter.AXIS_L2));
+                assertEquals(s.r2, format.getAxis(packed, AxisFilter.AXIS_R2));
+            }
+        }
+    }
+
+    @Test
+    public void setAxis_onlyChangesThatAxis() {
+        ReportFormat format = ReportFormat.HIGH_RESOLUTION;
+        GamepadState s = randomState(new Random(1), format.getAxisMaximum());
+        PackedState packed = new PackedState();
+        format.pack(s, packed);
+        long digitalBits = format.getDigitalBits(packed);
+
+        format.setAxis(packed, AxisFilter.AXIS_R2, 12345);
+        s.r2 = 12345;
+        PackedState expected = new PackedState();
+        format.pack(s, expected);
+        assertTrue(expected.sameAs(packed));
+        assertEquals(digitalBits, format.getDigitalBits(packed));
+    }
+
+    @Test
+    public void getDigitalBits_ignoresTheAxes() {
+        for (ReportFormat format : ALL_FORMATS) {
+            GamepadState s = randomState(new Random(2), format.getAxisMaximum());
+            PackedState first = new PackedState();
+            format.pack(s, first);
+            s.lx = s.ly = s.rx = s.ry = s.l2 = s.r2 = format.getAxisMaximum() / 3;
+            PackedState second = new PackedState();
+            format.pack(s, second);
+            assertEquals(format.getDigitalBits(first), format.getDigitalBits(second));
+        }
+    }
+
+    @Test
+    public void compact_hasNoAxes() {
+        assertFalse(ReportFormat.COMPACT.hasAxes());
+        assertEquals(0, ReportFormat.COMPACT.getAxisMaximum());
+        assertEquals(2, ReportFormat.COMPACT.getReportSize());
+        assertEquals(255, ReportFormat.STANDARD.getAxisMaximum());
+        assertEquals(8, ReportFormat.STANDARD.getReportSize());
+        assertEquals(65535, ReportFormat.HIGH_RESOLUTION.getAxisMaximum());
+        assertEquals(14, ReportFormat.HIGH_RESOLUTION.getReportSize());
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_packAndWrite() {
+        Random random = new Random(3);
+        GamepadState[] states = new GamepadState[STATE_COUNT];
+        for (int i = 0; i < STATE_COUNT; i++) {
+            states[i] = randomState(random, 255);
+        }
+        byte[] report = new byte[8];
+        int repeats = 200;
+        int operations = repeats * STATE_COUNT;
+
+        MicroBenchmark.measure(
+                "Baseline setValue",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (GamepadState s : states) {
+                            baselineSetValue(s, report);
+                            sum += report[1];
+                        }
+                    }
+                    return sum;
+                });
+        PackedState packed = new PackedState();
+        MicroBenchmark.measure(
+                "ReportFormat.pack",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (GamepadState s : states) {
+                            ReportFormat.STANDARD.pack(s, packed);
+                            sum += packed.low;
+                        }
+                    }
+                    return sum;
+                });
+        MicroBenchmark.measure(
+                "ReportFormat.pack and write",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (GamepadState s : states) {
+                            ReportFormat.STANDARD.pack(s, packed);
+                            ReportFormat.STANDARD.write(packed, report);
+                            sum += report[1];
+                        }
+                    }
+                    return sum;
+                });
+    }
+
+    static GamepadState randomState(Random random, int axisMaximum) {
+        GamepadState s = new GamepadState();
+        int buttons = random.nextInt();
+        s.a = (buttons & 0x001) != 0;
+        s.b = (buttons & 0x002) != 0;
+        s.x = (buttons & 0x004) != 0;
+        s.y = (buttons & 0x008) != 0;
+        s.l1 = (buttons & 0x010) != 0;
+        s.r1 = (buttons & 0x020) != 0;
+        s.l3 = (buttons & 0x040) != 0;
+        s.r3 = (buttons & 0x080) != 0;
+        s.start = (buttons & 0x100) != 0;
+        s.back = (buttons & 0x200) != 0;
+        s.home = (buttons & 0x400) != 0;
+        s.dpad = random.nextInt(9);
+        s.lx = random.nextInt(axisMaximum + 1);
+        s.ly = random.nextInt(axisMaximum + 1);
+        s.rx = random.nextInt(axisMaximum + 1);
+        s.ry = random.nextInt(axisMaximum + 1);
+        s.l2 = random.nextInt(axisMaximum + 1);
+        s.r2 = random.nextInt(axisMaximum + 1);
+        return s;
+    }
+
+    /** The encoder that the gamepad report had before the report formats, as the reference. */
+    static void baselineSetValue(GamepadState s, byte[] gamepadData) {
+        gamepadData[0] = 0;
+        gamepadData[0] |= (byte) (s.a ? 0x01 : 0);
+        gamepadData[0] |= (byte) (s.b ? 0x02 : 0);
+        gamepadData[0] |= (byte) (s.x ? 0x04 : 0);
+        gamepadData[0] |= (byte) (s.y ? 0x08 : 0);
+        gamepadData[0] |= (byte) (s.l1 ? 0x10 : 0);
+        gamepadData[0] |= (byte) (s.r1 ? 0x20 : 0);
+        gamepadData[0] |= (byte) (s.l3 ? 0x40 : 0);
+        gamepadData[0] |= (byte) (s.r3 ? 0x80 : 0);
+        gamepadData[1] = 0;
+        gamepadData[1] |= (byte) (s.start ? 0x01 : 0);
+        gamepadData[1] |= (byte) (s.back ? 0x02 : 0);
+        gamepadData[1] |= (byte) (s.home ? 0x04 : 0);
+        gamepadData[1] |= (byte) (s.dpad << 4);
+        gamepadData[2] = (byte) s.lx;
+        gamepadData[3] = (byte) s.ly;
+        gamepadData[4] = (byte) s.rx;
+        gamepadData[5] = (byte) s.ry;
+        gamepadData[6] = (byte) s.l2;
+        gamepadData[7] = (byte) s.r2;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReportLayout}. */
+@RunWith(JUnit4.class)
+public class ReportLayoutTest {
+    /** The hand-written descriptor of the gamepad and the battery reports before the layouts. */
+    static final byte[] BASELINE_DESCRIPTOR = {
+        (byte) 0x05, (byte) 0x01, // Usage Page (Generic Desktop Ctrls)
+        (byte) 0x09, (byte) 0x05, // Usage (Game Pad)
+        (byte) 0xA1, (byte) 0x01, // Collection (Application)
+        (byte) 0x85, (byte) 0x01, //   Report ID (1)
+        (byte) 0x05, (byte) 0x09, //   Usage Page (Button)
+        (byte) 0x09, (byte) 0x01, //   Usage (0x01 - A)
+        (byte) 0x09, (byte) 0x02, //   Usage (0x02 - B)
+        (byte) 0x09, (byte) 0x04, //   Usage (0x04 - X)
+        (byte) 0x09, (byte) 0x05, //   Usage (0x05 - Y)
+        (byte) 0x09, (byte) 0x07, //   Usage (0x07 - L1)
+        (byte) 0x09, (byte) 0x08, //   Usage (0x08 - R1)
+        (byte) 0x09, (byte) 0x0E, //   Usage (0x0E - L3)
+        (byte) 0x09, (byte) 0x0F, //   Usage (0x0F - R3)
+        (byte) 0x09, (byte) 0x0C, //   Usage (0x0C - Start)
+        (byte) 0x05, (byte) 0x0C, //   Usage Page (Consumer)
+        (byte) 0x0A, (byte) 0x24, (byte) 0x02, //   Usage (AC Back)
+        (byte) 0x0A, (byte) 0x23, (byte) 0x02, //   Usage (AC Home)
+        (byte) 0x15, (byte) 0x00, //   Logical Minimum (0)
+        (byte) 0x25, (byte) 0x01, //   Logical Maximum (1)
+        (byte) 0x75, (byte) 0x01, //   Report Size (1)
+        (byte) 0x95, (byte) 0x0B, //   Report Count (11)
+        (byte) 0x81, (byte) 0x02, //   Input (Data,Var,Abs)
+        (byte) 0x75, (byte) 0x01, //   Report Size (1)
+        (byte) 0x95, (byte) 0x01, //   Report Count (1)
+        (byte) 0x81, (byte) 0x03, //   Input (Const,Var,Abs)
+        (byte) 0x05, (byte) 0x01, //   Usage Page (Generic Desktop Ctrls)
+        (byte) 0x75, (byte) 0x04, //   Report Size (4)
+        (byte) 0x95, (byte) 0x01, //   Report Count (1)
+        (byte) 0x25, (byte) 0x07, //   Logical Maximum (7)
+        (byte) 0x46, (byte) 0x3B, (byte) 0x01, //   Physical Maximum (315)
+        (byte) 0x66, (byte) 0x14, (byte) 0x00, //   Unit (English Rotation: Degrees)
+        (byte) 0x09, (byte) 0x39, //   Usage (Hat switch)
+        (byte) 0x81, (byte) 0x42, //   Input (Data,Var,Abs,Null State)
+        (byte) 0x66, (byte) 0x00, (byte) 0x00, //   Unit (None)
+        (byte) 0xA1, (byte) 0x00, //   Collection (Physical)
+        (byte) 0x09, (byte) 0x30, //     Usage (X)
+        (byte) 0x09, (byte) 0x31, //     Usage (Y)
+        (byte) 0x09, (byte) 0x32, //     Usage (Z)
+        (byte) 0x09, (byte) 0x35, //     Usage (Rz)
+        (byte) 0x05, (byte) 0x02, //     Usage Page (Sim Ctrls)
+        (byte) 0x09, (byte) 0xC5, //     Usage (Brake)
+        (byte) 0x09, (byte) 0xC4, //     Usage (Accelerator)
+        (byte) 0x15, (byte) 0x00, //     Logical Minimum (0)
+        (byte) 0x26, (byte) 0xFF, (byte) 0x00, //     Logical Maximum (255)
+        (byte) 0x35, (byte) 0x00, //     Physical Minimum (0)
+        (byte) 0x46, (byte) 0xFF, (byte) 0x00, //     Physical Maximum (255)
+        (byte) 0x75, (byte) 0x08, //     Report Size (8)
+        (byte) 0x95, (byte) 0x06, //     Report Count (6)
+        (byte) 0x81, (byte) 0x02, //     Input (Data,Var,Abs)
+        (byte) 0xC0, //   End Collection
+        (byte) 0xC0, // End Collection
+        (byte) 0x05, (byte) 0x01, // Usage Page (Generic Desktop Ctrls)
+        (byte) 0x09, (byte) 0x05, // Usage (Game Pad)
+        (byte) 0xA1, (byte) 0x01, // Collection (Application)
+        (byte) 0x85, (byte) 0x02, //   Report ID (2)
+        (byte) 0x05, (byte) 0x06, //   Usage Page (Generic Dev Ctrls)
+        (byte) 0x09, (byte) 0x20, //   Usage (Battery Strength)
+        (byte) 0x15, (byte) 0x00, //   Logical Minimum (0)
+        (byte) 0x26, (byte) 0xFF, (byte) 0x00, //   Logical Maximum (255)
+        (byte) 0x75, (byte) 0x08, //   Report Size (8)
+        (byte) 0x95, (byte) 0x01, //   Report Count (1)
+        (byte) 0x81, (byte) 0x02, //   Input (Data,Var,Abs)
+        (byte) 0xC0, // End Collection
+    };
+
+    /** Size of the baseline gamepad collection, up to and including its End Collection. */
+    private static final int BASELINE_GAMEPAD_SIZE = 107;
+
+    private static final int ITEM_INPUT = 0x80;
+    private static final int ITEM_OUTPUT = 0x90;
+    private static final int ITEM_FEATURE = 0xB0;
+    private static final int ITEM_COLLECTION = 0xA0;
+    private static final int ITEM_END_COLLECTION = 0xC0;
+    private static final int ITEM_REPORT_ID = 0x84;
+
+    @Test
+    public void standardDescriptor_onlyAddsOutputAndFeatureItemsToTheBaseline() {
+        byte[] descriptor =
+                ReportLayout.concat(Constants.GAMEPAD_LAYOUT, Constants.BATTERY_LAYOUT);
+        assertEquals((byte) 0xC0, BASELINE_DESCRIPTOR[BASELINE_GAMEPAD_SIZE - 1]);
+
+        // Everything up to the End Collection of the gamepad is unchanged.
+        int prefixSize = BASELINE_GAMEPAD_SIZE - 1;
+        assertArrayEquals(
+                Arrays.copyOf(BASELINE_DESCRIPTOR, prefixSize),
+                Arrays.copyOf(descriptor, prefixSize));
+
+        // So are the End Collection and the battery report.
+        int suffixSize = BASELINE_DESCRIPTOR.length - prefixSize;
+        int suffixStart = descriptor.length - suffixSize;
+        assertArrayEquals(
+                Arrays.copyOfRange(BASELINE_DESCRIPTOR, prefixSize, BASELINE_DESCRIPTOR.length),
+                Arrays.copyOfRange(descriptor, suffixStart, descriptor.length));
+
+        // The items in between may only describe the Output and Feature reports.
+        int outputs = 0;
+        int features = 0;
+        for (int pos = prefixSize; pos < suffixStart; ) {
+            int prefix = descriptor[pos] & 0xFF;
+            int tag = prefix & 0xFC;
+            assertTrue("Unexpected item at " + pos, tag != ITEM_INPUT);
+            assertTrue("Unexpected item at " + pos, tag != ITEM_COLLECTION);
+            assertTrue("Unexpected item at " + pos, tag != ITEM_END_COLLECTION);
+            assertTrue("Unexpected item at " + pos, tag != ITEM_REPORT_ID);
+            outputs += tag == ITEM_OUTPUT ? 1 : 0;
+            features += tag == ITEM_FEATURE ? 1 : 0;
+            pos += 1 + ((prefix & 0x03) == 3 ? 4 : prefix & 0x03);
+        }
+        assertEquals(4, outputs);
+        assertEquals(2, features);
+    }
+
+    @Test
+    public void standardLayout_matchesTheBaselineSizes() {
+        assertEquals(1, Constants.GAMEPAD_LAYOUT.getReportId());
+        assertEquals(8, Constants.GAMEPAD_LAYOUT.getReportSize());
+        assertEquals(2, Constants.BATTERY_LAYOUT.getReportId());
+        assertEquals(1, Constants.BATTERY_LAYOUT.getReportSize());
+    }
+
+    @Test
+    public void gamepadEncoder_matchesBaselineReport() {
+        ReportEncoder encoder = new ReportEncoder(Constants.GAMEPAD_LAYOUT);
+        assertEquals(18, encoder.getSlotCount());
+        Random random = new Random(12);
+        int[] values = new int[encoder.getSlotCount()];
+        byte[] expected = new byte[8];
+        byte[] actual = new byte[encoder.getReportSize()];
+        for (int i = 0; i < 100_000; i++) {
+            GamepadState s = ReportFormatTest.randomState(random, 255);
+            ReportFormatTest.baselineSetValue(s, expected);
+            boolean[] buttons = {
+                s.a, s.b, s.x, s.y, s.l1, s.r1, s.l3, s.r3, s.start, s.back, s.home
+            };
+            for (int button = 0; button < buttons.length; button++) {
+                values[button] = buttons[button] ? 1 : 0;
+            }
+            values[11] = s.dpad;
+            values[12] = s.lx;
+            values[13] = s.ly;
+            values[14] = s.rx;
+            values[15] = s.ry;
+            values[16] = s.l2;
+            values[17] = s.r2;
+            encoder.encode(values, actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void batteryReport_matchesBaselineReport() {
+        BatteryReport report = new BatteryReport();
+        Random random = new Random(13);
+        for (int i = 0; i <= 11_000; i++) {
+            float level = i <= 1000 ? i / 1000f : random.nextFloat();
+            byte[] expected = {(byte) ((int) Math.ceil(level * 255) & 0xff)};
+            assertArrayEquals("Level " + level, expected, report.setValue(level));
+            assertArrayEquals("Level " + level, expected, report.getReport());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import android.bluetooth.BluetoothHidDevice;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReportRegistry}. */
+@RunWith(JUnit4.class)
+public class ReportRegistryTest {
+    private static final ReportRegistry.GetReportHandler GET_HANDLER = () -> new byte[0];
+    private static final ReportRegistry.SetReportHandler SET_HANDLER =
+            (data, offset) -> BluetoothHidDevice.ERROR_RSP_SUCCESS;
+
+    @Test
+    public void checkDescriptor_acceptsTheReportsOfTheApp() {
+        ReportFormat[] formats = {
+            ReportFormat.STANDARD, ReportFormat.HIGH_RESOLUTION, ReportFormat.COMPACT
+        };
+        for (ReportFormat format : formats) {
+            for (int playerCount = 1; playerCount <= Constants.MAX_PLAYERS; playerCount++) {
+                newAppRegistry(format, playerCount)
+                        .checkDescriptor(format.getReportDescriptor(playerCount));
+            }
+        }
+    }
+
+    @Test
+    public void checkDescriptor_rejectsReportsOfAnotherSize() {
+        ReportRegistry registry = newAppRegistry(ReportFormat.STANDARD, 1);
+        registry.register(
+                BluetoothHidDevice.REPORT_TYPE_FEATURE,
+                Constants.ID_GAMEPAD,
+                Constants.GAMEPAD_LAYOUT.getFeatureReportSize() - 1,
+                GET_HANDLER,
+                SET_HANDLER);
+        assertThrows(
+                IllegalStateException.class,
+                () -> registry.checkDescriptor(ReportFormat.STANDARD.getReportDescriptor(1)));
+    }
+
+    @Test
+    public void checkDescriptor_rejectsUndeclaredReports() {
+        ReportRegistry registry = newAppRegistry(ReportFormat.STANDARD, 1);
+        registry.register(
+                BluetoothHidDevice.REPORT_TYPE_INPUT,
+                Constants.getGamepadReportId(1),
+                ReportFormat.STANDARD.getReportSize(),
+                GET_HANDLER,
+                null);
+        assertThrows(
+                IllegalStateException.class,
+                () -> registry.checkDescriptor(ReportFormat.STANDARD.getReportDescriptor(1)));
+    }
+
+    @Test
+    public void checkDescriptor_rejectsUnregisteredReports() {
+        ReportRegistry registry = newAppRegistry(ReportFormat.STANDARD, 1);
+        registry.unregister(BluetoothHidDevice.REPORT_TYPE_OUTPUT, Constants.ID_GAMEPAD);
+        assertThrows(
+                IllegalStateException.class,
+                () -> registry.checkDescriptor(ReportFormat.STANDARD.getReportDescriptor(1)));
+    }
+
+    @Test
+    public void setReport_acceptsTheDataWithOrWithoutTheReportId() {
+        ReportRegistry registry = newAppRegistry(ReportFormat.STANDARD, 1);
+        ReportRegistry.Report report =
+                registry.find(BluetoothHidDevice.REPORT_TYPE_OUTPUT, Constants.ID_GAMEPAD);
+        int size = Constants.GAMEPAD_LAYOUT.getOutputReportSize();
+        byte[] withId = new byte[size + 1];
+        withId[0] = Constants.ID_GAMEPAD;
+        assertEquals(BluetoothHidDevice.ERROR_RSP_SUCCESS, report.setReport(new byte[size]));
+        assertEquals(BluetoothHidDevice.ERROR_RSP_SUCCESS, report.setReport(withId));
+        assertEquals(
+                BluetoothHidDevice.ERROR_RSP_INVALID_PARAM, report.setReport(new byte[size - 1]));
+    }
+
+    /** Register the reports the same way as {@link HidDeviceApp} and {@link HidDataSender}. */
+    private static ReportRegistry newAppRegistry(ReportFormat format, int playerCount) {
+        ReportRegistry registry = new ReportRegistry();
+        for (int player = 0; player < playerCount; player++) {
+            registry.register(
+                    BluetoothHidDevice.REPORT_TYPE_INPUT,
+                    Constants.getGamepadReportId(player),
+                    format.getReportSize(),
+                    GET_HANDLER,
+                    null);
+        }
+        registry.register(
+                BluetoothHidDevice.REPORT_TYPE_INPUT,
+                Constants.ID_BATTERY,
+                Constants.BATTERY_LAYOUT.getReportSize(),
+                GET_HANDLER,
+                null);
+        registry.register(
+                BluetoothHidDevice.REPORT_TYPE_OUTPUT,
+                Constants.ID_GAMEPAD,
+                new ReportDecoder(
+                                Constants.GAMEPAD_LAYOUT.getOutputFields(),
+                                Constants.GAMEPAD_LAYOUT.getOutputReportSize())
+                        .getReportSize(),
+                null,
+                SET_HANDLER);
+        registry.register(
+                BluetoothHidDevice.REPORT_TYPE_FEATURE,
+                Constants.ID_GAMEPAD,
+                new ReportEncoder(
+                                Constants.GAMEPAD_LAYOUT.getFeatureFields(),
+                                Constants.GAMEPAD_LAYOUT.getFeatureReportSize())
+                        .getReportSize(),
+                GET_HANDLER,
+                SET_HANDLER);
+        return registry;
+    }
+}
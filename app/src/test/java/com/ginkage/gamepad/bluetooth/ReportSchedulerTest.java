@@ -0,0 +1,642 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Ticker;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReportScheduler}. */
+@RunWith(JUnit4.class)
+public class ReportSchedulerTest {
+    private static final ReportFormat FORMAT = ReportFormat.STANDARD;
+
+    /** The default coalescing window, the QoS latency, rounded up. */
+    private static final long WINDOW_MILLIS = 12;
+
+    /** Records the reports and the time they were sent at instead of sending them. */
+    private class FakeSender implements ReportScheduler.ReportSender {
+        final List<PackedState> reports = new ArrayList<>();
+        final List<Long> sendNanos = new ArrayList<>();
+        int result = HidDeviceApp.SEND_OK;
+
+        /** Number of the reports to refuse before {@link #result} is returned again. */
+        int failures;
+
+        /** Refuse the unforced reports that didn't change, like {@link HidDeviceApp} does. */
+        boolean suppressUnchanged;
+
+        @Override
+        public synchronized int sendGamepad(int player, PackedState state, boolean force) {
+            if (suppressUnchanged && !force && !reports.isEmpty() && state.sameAs(last())) {
+                return HidDeviceApp.SEND_UNCHANGED;
+            }
+            PackedState copy = new PackedState();
+            copy.copyFrom(state);
+            reports.add(copy);
+            sendNanos.add(ticker.read());
+            if (failures > 0) {
+                failures--;
+                return HidDeviceApp.SEND_FAILED;
+            }
+            return result;
+        }
+
+        synchronized int size() {
+            return reports.size();
+        }
+
+        synchronized PackedState last() {
+            return reports.get(reports.size() - 1);
+        }
+    }
+
+    /** Runs the tasks on a real thread, like the sender thread does. */
+    private static final class ExecutorTaskRunner implements TaskRunner {
+        private final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+        private final List<Runnable> tasks = new ArrayList<>();
+        private final List<ScheduledFuture<?>> futures = new ArrayList<>();
+        private volatile Thread thread;
+
+        ExecutorTaskRunner() throws InterruptedException {
+            CountDownLatch started = new CountDownLatch(1);
+            executor.execute(
+                    () -> {
+                        thread = Thread.currentThread();
+                        started.countDown();
+                    });
+            started.await();
+        }
+
+        @Override
+        public void post(Runnable task) {
+            postDelayed(task, 0);
+        }
+
+        @Override
+        public synchronized void postDelayed(Runnable task, long delayMillis) {
+            tasks.add(task);
+            futures.add(executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public synchronized void remove(Runnable task) {
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                if (tasks.get(i) == task) {
+                    futures.get(i).cancel(false);
+                    tasks.remove(i);
+                    futures.remove(i);
+                }
+            }
+        }
+
+        @Override
+        public boolean isCurrentThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        Thread getThread() {
+            return thread;
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final FakeTaskRunner taskRunner = new FakeTaskRunner(ticker);
+    private final FakeSender sender = new FakeSender();
+    private final ReportStats reportStats = new ReportStats();
+    private final List<Boolean> idleChanges = new ArrayList<>();
+    private final GamepadState state = new GamepadState();
+    private final AtomicReference<SendSettings> settings =
+            new AtomicReference<>(
+                    SendSettings.create(
+                            TimeUnit.MICROSECONDS.toNanos(
+                                    FORMAT.getQosParameters(1).latencyMicros)));
+    private ReportScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        state.dpad = 8;
+        state.lx = state.ly = state.rx = state.ry = 128;
+        scheduler = newScheduler(taskRunner, ticker, sender);
+    }
+
+    @Test
+    public void publish_sendsOnTheSenderThread() {
+        state.a = true;
+        scheduler.publish(state);
+        assertEquals(0, sender.size());
+
+        taskRunner.runPending();
+        assertEquals(1, sender.size());
+        assertPacked(state, sender.last());
+    }
+
+    @Test
+    public void publish_coalescesTheStatesOfOneWindow() {
+        state.lx = 0;
+        scheduler.publish(state);
+        taskRunner.runPending();
+        assertEquals(1, sender.size());
+
+        // Ten stick movements within the window, only the newest one is sent when it ends.
+        for (int i = 1; i <= 10; i++) {
+            taskRunner.advance(1, TimeUnit.MILLISECONDS);
+            state.lx = 10 * i;
+            scheduler.publish(state);
+        }
+        assertEquals(1, sender.size());
+        taskRunner.advance(WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(2, sender.size());
+        assertPacked(state, sender.last());
+
+        assertEquals(11, reportStats.getReceivedReports());
+        assertEquals(2, reportStats.getTransmittedReports());
+    }
+
+    @Test
+    public void publish_sendsEveryButtonTransitionInOrder() {
+        scheduler.publish(state);
+        taskRunner.runPending();
+        List<PackedState> expected = new ArrayList<>();
+        expected.add(pack(state));
+
+        // A short tap and a stick movement, all within one window, before the sender runs.
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+        state.a = true;
+        scheduler.publish(state);
+        expected.add(pack(state));
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+        state.a = false;
+        scheduler.publish(state);
+        expected.add(pack(state));
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+        state.lx = 200;
+        scheduler.publish(state);
+        expected.add(pack(state));
+
+        // The transitions go out right away. The stick waits for the window, and for the
+        // tokens that the transitions took.
+        taskRunner.runPending();
+        assertReports(expected.subList(0, 3), sender.reports);
+        taskRunner.advance(100, TimeUnit.MILLISECONDS);
+        assertReports(expected, sender.reports);
+    }
+
+    @Test
+    public void keepAlive_doesNotOvertakeTheButtonTransitions() {
+        scheduler.publish(state);
+        taskRunner.runPending();
+        List<PackedState> expected = new ArrayList<>();
+        expected.add(pack(state));
+
+        // The keep-alive is due, and a tap comes in before the sender thread gets to it.
+        ticker.advance(1001, TimeUnit.MILLISECONDS);
+        state.a = true;
+        scheduler.publish(state);
+        expected.add(pack(state));
+        state.a = false;
+        scheduler.publish(state);
+        expected.add(pack(state));
+
+        taskRunner.runPending();
+        assertReports(expected, sender.reports);
+        assertEquals(0, reportStats.getKeepAliveReports());
+
+        // Once the transitions are out, the keep-alive repeats the final state.
+        taskRunner.advance(1001, TimeUnit.MILLISECONDS);
+        expected.add(pack(state));
+        assertReports(expected, sender.reports);
+        assertEquals(1, reportStats.getKeepAliveReports());
+    }
+
+    @Test
+    public void publish_holdsTheStickToTheTokenRate() {
+        // No window, so only the token bucket holds the reports back.
+        configure(0, 0);
+        QosParameters qos = FORMAT.getQosParameters(1);
+        long periodNanos = TimeUnit.SECONDS.toNanos(FORMAT.getReportSize() + 1) / qos.tokenRate;
+
+        for (int i = 0; i < 1000; i++) {
+            state.lx = i % 2 == 0 ? 0 : 255;
+            scheduler.publish(state);
+            taskRunner.advance(1, TimeUnit.MILLISECONDS);
+        }
+
+        int reports = sender.size();
+        long maxReports = TimeUnit.SECONDS.toNanos(1) / periodNanos + 1;
+        assertTrue("Too many reports: " + reports, reports <= maxReports);
+        assertTrue("Too few reports: " + reports, reports >= maxReports * 9 / 10);
+        for (int i = 1; i < reports; i++) {
+            long intervalNanos = sender.sendNanos.get(i) - sender.sendNanos.get(i - 1);
+            assertTrue("Report " + i + " after " + intervalNanos, intervalNanos >= periodNanos);
+        }
+        assertTrue(reportStats.getThrottledReports() > 0);
+    }
+
+    @Test
+    public void publish_sendsTheButtonsDespiteTheTokenRate() {
+        configure(0, 0);
+        for (int i = 0; i < 1000; i++) {
+            state.lx = i % 2 == 0 ? 0 : 255;
+            if (i % 100 == 50) {
+                // The bucket is empty by now, the button must not wait for it.
+                state.a = !state.a;
+                long publishNanos = ticker.read();
+                int reports = sender.size();
+                scheduler.publish(state);
+                taskRunner.runPending();
+                assertEquals(reports + 1, sender.size());
+                assertEquals(publishNanos, (long) sender.sendNanos.get(reports));
+                assertPacked(state, sender.last());
+            } else {
+                scheduler.publish(state);
+            }
+            taskRunner.advance(1, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(reportStats.getThrottledReports() > 0);
+    }
+
+    @Test
+    public void publish_suppressesTheChangesWithinTheDeadBand() {
+        sender.suppressUnchanged = true;
+        scheduler.publish(state);
+        taskRunner.runPending();
+        assertEquals(1, sender.size());
+
+        // The jitter of a finger that holds still.
+        for (int i = 0; i < 10; i++) {
+            taskRunner.advance(WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            state.lx = 128 + i % 2;
+            scheduler.publish(state);
+        }
+        taskRunner.advance(WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        // Every one of them comes out of the filter as the report that was sent already.
+        assertEquals(1, sender.size());
+        assertEquals(10, reportStats.getSuppressedReports());
+        assertEquals(1, reportStats.getTransmittedReports());
+
+        state.lx = 140;
+        scheduler.publish(state);
+        taskRunner.advance(WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(2, sender.size());
+        assertPacked(state, sender.last());
+    }
+
+    @Test
+    public void keepAlive_repeatsTheStateEverySecond() {
+        sender.suppressUnchanged = true;
+        scheduler.publish(state);
+        taskRunner.runPending();
+        // A change within the dead band is not sent, but the keep-alive catches up with it.
+        taskRunner.advance(100, TimeUnit.MILLISECONDS);
+        state.lx = 129;
+        scheduler.publish(state);
+        taskRunner.advance(100, TimeUnit.MILLISECONDS);
+        assertEquals(1, sender.size());
+
+        taskRunner.advance(5, TimeUnit.SECONDS);
+        assertEquals(6, sender.size());
+        assertEquals(5, reportStats.getKeepAliveReports());
+        for (int i = 1; i < sender.size(); i++) {
+            assertPacked(state, sender.reports.get(i));
+            long intervalNanos = sender.sendNanos.get(i) - sender.sendNanos.get(i - 1);
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(1001), intervalNanos);
+        }
+    }
+
+    @Test
+    public void keepAlive_stopsWhenIdle() {
+        scheduler.setIdleTimeout(2500);
+        scheduler.publish(state);
+        taskRunner.runPending();
+        taskRunner.advance(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(true), idleChanges);
+        assertEquals(2, reportStats.getKeepAliveReports());
+        assertEquals(3, sender.size());
+    }
+
+    @Test
+    public void poll_sendsAtTheRequestedRate() {
+        long periodNanos = configure(50, TimeUnit.MILLISECONDS.toMicros(WINDOW_MILLIS));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), periodNanos);
+        scheduler.publish(state);
+        taskRunner.advance(1, TimeUnit.SECONDS);
+
+        // One report every 20 ms, whether the state changes or not.
+        assertEquals(51, sender.size());
+        for (int i = 1; i < sender.size(); i++) {
+            assertEquals(periodNanos, sender.sendNanos.get(i) - sender.sendNanos.get(i - 1));
+        }
+        IntervalStats stats = reportStats.getIntervalStats();
+        assertEquals(50, stats.getCount());
+        assertEquals(periodNanos, stats.getMinNanos());
+        assertEquals(periodNanos, stats.getMaxNanos());
+        assertEquals(periodNanos, stats.getMeanNanos(), 1);
+    }
+
+    @Test
+    public void poll_capsTheRateWithoutDrifting() {
+        // Faster than the token rate allows, so the period is one token period of 11.25 ms.
+        long periodNanos = configure(500, 0);
+        long reportNanos = TimeUnit.SECONDS.toNanos(FORMAT.getReportSize() + 1);
+        assertEquals(reportNanos / FORMAT.getQosParameters(1).tokenRate, periodNanos);
+        scheduler.publish(state);
+        taskRunner.advance(1, TimeUnit.SECONDS);
+
+        // The ticks are rounded to milliseconds, but the rounding error doesn't accumulate.
+        IntervalStats stats = reportStats.getIntervalStats();
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(11), stats.getMinNanos());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(12), stats.getMaxNanos());
+        assertEquals(periodNanos, stats.getMeanNanos(), TimeUnit.MICROSECONDS.toNanos(20));
+        assertEquals(TimeUnit.SECONDS.toNanos(1) / periodNanos + 1, sender.size());
+    }
+
+    @Test
+    public void retry_backsOffUntilTheStackTakesTheReport() {
+        sender.failures = 3;
+        state.lx = 0;
+        scheduler.publish(state);
+        taskRunner.advance(500, TimeUnit.MILLISECONDS);
+
+        // The same report is retried until it goes through, the delay doubles every time.
+        assertEquals(4, sender.size());
+        long retryNanos = TimeUnit.MICROSECONDS.toNanos(FORMAT.getQosParameters(1).latencyMicros);
+        for (int i = 0; i < 3; i++) {
+            assertPacked(state, sender.reports.get(i + 1));
+            long delayMillis = TimeUnit.NANOSECONDS.toMillis(retryNanos << i) + 1;
+            long intervalNanos = sender.sendNanos.get(i + 1) - sender.sendNanos.get(i);
+            assertEquals(delayMillis, TimeUnit.NANOSECONDS.toMillis(intervalNanos));
+        }
+        assertEquals(3, reportStats.getRetriedReports());
+        assertEquals(0, reportStats.getDroppedReports());
+        assertEquals(1, reportStats.getTransmittedReports());
+    }
+
+    @Test
+    public void retry_dropsTheReportAndTheKeepAliveSendsTheNewestState() {
+        sender.failures = 6;
+        state.lx = 0;
+        scheduler.publish(state);
+        taskRunner.advance(20, TimeUnit.MILLISECONDS);
+        // A newer state takes the place of the one that is being retried.
+        state.lx = 255;
+        scheduler.publish(state);
+        taskRunner.advance(500, TimeUnit.MILLISECONDS);
+
+        // Six attempts in all: the first report, the newer one and four retries.
+        assertEquals(6, sender.size());
+        assertPacked(state, sender.last());
+        assertEquals(4, reportStats.getRetriedReports());
+        assertEquals(1, reportStats.getDroppedReports());
+        assertEquals(0, reportStats.getTransmittedReports());
+
+        // The keep-alive doesn't give up, and the host gets the newest state after all.
+        taskRunner.advance(1, TimeUnit.SECONDS);
+        assertEquals(7, sender.size());
+        assertPacked(state, sender.last());
+        assertEquals(1, reportStats.getTransmittedReports());
+        assertEquals(1, reportStats.getKeepAliveReports());
+    }
+
+    @Test
+    public void publish_doesNotWaitForBlockedSender() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FakeSender blockingSender =
+                new FakeSender() {
+                    @Override
+                    public int sendGamepad(int player, PackedState packed, boolean force) {
+                        entered.countDown();
+                        try {
+                            // A binder call that takes forever.
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return super.sendGamepad(player, packed, force);
+                    }
+                };
+        ExecutorTaskRunner senderThread = new ExecutorTaskRunner();
+        try {
+            ReportScheduler scheduler =
+                    newScheduler(senderThread, Ticker.systemTicker(), blockingSender);
+            state.a = true;
+            scheduler.publish(state);
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+            // The sender thread is stuck, the publishing thread must not be.
+            for (int i = 0; i < 100; i++) {
+                state.b = (i & 1) == 0;
+                state.lx = i;
+                scheduler.publish(state);
+            }
+            assertEquals(1, release.getCount());
+            assertEquals(0, blockingSender.size());
+
+            release.countDown();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            PackedState expected = new PackedState();
+            FORMAT.pack(state, expected);
+            while (blockingSender.size() == 0
+                    || FORMAT.getDigitalBits(blockingSender.last())
+                            != FORMAT.getDigitalBits(expected)) {
+                assertTrue("The last state was never sent", System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+        } finally {
+            release.countDown();
+            senderThread.shutdown();
+        }
+    }
+
+    @Test
+    public void wakeUp_notifiesTheListenerOnTheSenderThread() {
+        scheduler.setIdleTimeout(100);
+        taskRunner.advance(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(true), idleChanges);
+
+        state.a = true;
+        scheduler.publish(state);
+        assertEquals(Arrays.asList(true), idleChanges);
+
+        taskRunner.runPending();
+        assertEquals(Arrays.asList(true, false), idleChanges);
+        assertEquals(1, sender.size());
+    }
+
+    @Test
+    public void publish_doesNotWaitForBlockedIdleListener() throws Exception {
+        CountDownLatch idle = new CountDownLatch(1);
+        CountDownLatch waking = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Thread> wakeThread = new AtomicReference<>();
+        ReportScheduler.IdleListener listener =
+                isIdle -> {
+                    if (isIdle) {
+                        idle.countDown();
+                        return;
+                    }
+                    wakeThread.set(Thread.currentThread());
+                    waking.countDown();
+                    try {
+                        // Like a listener that waits for a lock held by a slow connection change.
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                };
+        ExecutorTaskRunner senderThread = new ExecutorTaskRunner();
+        try {
+            ReportScheduler scheduler =
+                    new ReportScheduler(
+                            sender,
+                            reportStats,
+                            new AxisFilter(settings),
+                            settings,
+                            listener,
+                            senderThread,
+                            Ticker.systemTicker(),
+                            FORMAT,
+                            FORMAT.getQosParameters(1),
+                            0);
+            scheduler.setIdleTimeout(1);
+            assertTrue(idle.await(5, TimeUnit.SECONDS));
+
+            state.a = true;
+            scheduler.publish(state);
+            assertTrue(waking.await(5, TimeUnit.SECONDS));
+            assertEquals(senderThread.getThread(), wakeThread.get());
+
+            // The listener is stuck, the publishing thread must not be.
+            for (int i = 0; i < 100; i++) {
+                state.b = (i & 1) == 0;
+                scheduler.publish(state);
+            }
+            assertEquals(1, release.getCount());
+        } finally {
+            release.countDown();
+            senderThread.shutdown();
+        }
+    }
+
+    @Test
+    public void slowDrift_keepsTheSchedulerAwake() {
+        scheduler.setIdleTimeout(100);
+        scheduler.publish(state);
+        // Every step is within the dead band, but together they are a movement.
+        for (int i = 1; i <= 50; i++) {
+            taskRunner.advance(20, TimeUnit.MILLISECONDS);
+            state.lx = 128 + i;
+            scheduler.publish(state);
+        }
+        taskRunner.advance(20, TimeUnit.MILLISECONDS);
+        assertTrue(idleChanges.isEmpty());
+        assertEquals(178, FORMAT.getAxis(sender.last(), AxisFilter.AXIS_LX));
+    }
+
+    @Test
+    public void slowDrift_wakesTheSchedulerUp() {
+        scheduler.setIdleTimeout(100);
+        scheduler.publish(state);
+        taskRunner.advance(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(true), idleChanges);
+        int reports = sender.size();
+
+        state.lx = 129;
+        scheduler.publish(state);
+        taskRunner.advance(20, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(true), idleChanges);
+        assertEquals(reports, sender.size());
+
+        state.lx = 130;
+        scheduler.publish(state);
+        taskRunner.advance(20, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(true, false), idleChanges);
+        assertEquals(130, FORMAT.getAxis(sender.last(), AxisFilter.AXIS_LX));
+    }
+
+    /** Publish new polling settings the way {@link HidDataSender} does. */
+    private long configure(int rateHz, long windowMicros) {
+        long windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        long periodNanos = scheduler.getPollingPeriodNanos(rateHz, windowNanos);
+        settings.set(settings.get().withPolling(periodNanos, windowNanos));
+        scheduler.onSettingsChanged();
+        return periodNanos;
+    }
+
+    private ReportScheduler newScheduler(
+            TaskRunner taskRunner, Ticker ticker, FakeSender sender) {
+        return new ReportScheduler(
+                sender,
+                reportStats,
+                new AxisFilter(settings),
+                settings,
+                idle -> {
+                    synchronized (idleChanges) {
+                        idleChanges.add(idle);
+                    }
+                },
+                taskRunner,
+                ticker,
+                FORMAT,
+                FORMAT.getQosParameters(1),
+                0);
+    }
+
+    private static PackedState pack(GamepadState state) {
+        PackedState packed = new PackedState();
+        FORMAT.pack(state, packed);
+        return packed;
+    }
+
+    private static void assertReports(List<PackedState> expected, List<PackedState> actual) {
+        assertEquals(toString(expected), toString(actual));
+    }
+
+    private static String toString(List<PackedState> reports) {
+        StringBuilder s = new StringBuilder();
+        for (PackedState report : reports) {
+            s.append(String.format("[%016x %016x]", report.high, report.low));
+        }
+        return s.toString();
+    }
+
+    private static void assertPacked(GamepadState expected, PackedState actual) {
+        PackedState packed = new PackedState();
+        FORMAT.pack(expected, packed);
+        assertEquals(packed.low, actual.low);
+        assertEquals(packed.high, actual.high);
+    }
+}
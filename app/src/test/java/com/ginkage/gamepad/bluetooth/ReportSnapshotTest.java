@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Stress tests for {@link ReportSnapshot} and the reports that publish through it. */
+@RunWith(JUnit4.class)
+public class ReportSnapshotTest {
+    private static final int WRITES = 200_000;
+    private static final int READERS = 3;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicBoolean writing = new AtomicBoolean(true);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void read_returnsLastPublishedReport() {
+        ReportSnapshot snapshot = new ReportSnapshot(3);
+        assertArrayEquals(new byte[3], snapshot.read());
+
+        snapshot.publish(new byte[] {1, 2, 3});
+        snapshot.publish(new byte[] {4, 5, 6});
+        assertArrayEquals(new byte[] {4, 5, 6}, snapshot.read());
+    }
+
+    @Test
+    public void read_neverTornOrStale() throws Exception {
+        // Two words, so a torn read could mix the halves of two reports.
+        ReportSnapshot snapshot = new ReportSnapshot(PackedState.MAX_REPORT_SIZE);
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(
+                    executor.submit(
+                            () -> {
+                                int reads = 0;
+                                int last = 0;
+                                do {
+                                    ByteBuffer report = ByteBuffer.wrap(snapshot.read());
+                                    int value = report.getInt(0);
+                                    for (int i = 4; i < PackedState.MAX_REPORT_SIZE; i += 4) {
+                                        assertEquals(value, report.getInt(i));
+                                    }
+                                    // The writer counts up, so the reports must never go back.
+                                    assertTrue(value >= last);
+                                    last = value;
+                                    reads++;
+                                } while (writing.get());
+                                return reads;
+                            }));
+        }
+
+        ByteBuffer report = ByteBuffer.allocate(PackedState.MAX_REPORT_SIZE);
+        for (int i = 0; i < WRITES; i++) {
+            for (int j = 0; j < PackedState.MAX_REPORT_SIZE; j += 4) {
+                report.putInt(j, i);
+            }
+            snapshot.publish(report.array());
+        }
+        writing.set(false);
+        for (Future<Integer> reader : readers) {
+            assertTrue(reader.get(10, TimeUnit.SECONDS) > 0);
+        }
+    }
+
+    @Test
+    public void getReport_consistentWithConcurrentWriters() throws Exception {
+        ReportFormat format = ReportFormat.HIGH_RESOLUTION;
+        int players = Constants.MAX_PLAYERS;
+        GamepadReport[] reports = new GamepadReport[players];
+        for (int player = 0; player < players; player++) {
+            reports[player] = new GamepadReport(format);
+            reports[player].setValue(stateFor(0));
+        }
+
+        // One writer per report, like the players' schedulers, and the binder threads reading.
+        List<Future<Integer>> tasks = new ArrayList<>();
+        for (GamepadReport report : reports) {
+            tasks.add(
+                    executor.submit(
+                            () -> {
+                                for (int i = 0; i < WRITES; i++) {
+                                    report.setValue(stateFor(i & 0xFFFF));
+                                }
+                                return WRITES;
+                            }));
+        }
+        Callable<Integer> reader =
+                () -> {
+                    int reads = 0;
+                    do {
+                        for (GamepadReport report : reports) {
+                            PackedState read = unpack(report.getReport());
+                            int value = format.getAxis(read, AxisFilter.AXIS_LX);
+                            PackedState expected = new PackedState();
+                            format.pack(stateFor(value), expected);
+                            assertEquals(expected.low, read.low);
+                            assertEquals(expected.high, read.high);
+                            reads++;
+                        }
+                    } while (writing.get());
+                    return reads;
+                };
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(executor.submit(reader));
+        }
+
+        for (Future<Integer> task : tasks) {
+            assertEquals(WRITES, (int) task.get(10, TimeUnit.SECONDS));
+        }
+        writing.set(false);
+        for (Future<Integer> task : readers) {
+            assertTrue(task.get(10, TimeUnit.SECONDS) > 0);
+        }
+    }
+
+    /** A state where every field follows from the same value, so any mix is easy to spot. */
+    private static GamepadState stateFor(int value) {
+        GamepadState s = new GamepadState();
+        s.a = (value & 1) != 0;
+        s.b = (value & 2) != 0;
+        s.home = (value & 4) != 0;
+        s.dpad = value % 9;
+        s.lx = s.ly = s.rx = s.ry = s.l2 = s.r2 = value;
+        return s;
+    }
+
+    private static PackedState unpack(byte[] report) {
+        PackedState s = new PackedState();
+        for (int i = 0; i < report.length; i++) {
+            if (i < 8) {
+                s.low |= (report[i] & 0xFFL) << (i * 8);
+            } else {
+                s.high |= (report[i] & 0xFFL) << (i * 8);
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+
+import android.bluetooth.BluetoothHidDevice;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SettingsReport}. */
+@RunWith(JUnit4.class)
+public class SettingsReportTest {
+    private final FakeTaskRunner mainThread = new FakeTaskRunner(new FakeTicker());
+    private final List<String> settings = new ArrayList<>();
+    private final SettingsReport settingsReport =
+            new SettingsReport(
+                    Constants.GAMEPAD_LAYOUT,
+                    (pollingRate, windowMicros, stickDeadBand, triggerDeadBand) ->
+                            settings.add(
+                                    pollingRate
+                                            + "/"
+                                            + windowMicros
+                                            + "/"
+                                            + stickDeadBand
+                                            + "/"
+                                            + triggerDeadBand),
+                    mainThread);
+
+    @Test
+    public void onSetReport_decodesWhatEncodeWrites() {
+        byte[] report = settingsReport.encode(250, 11250, 3, 7);
+        assertEquals(settingsReport.getReportSize(), report.length);
+
+        assertEquals(BluetoothHidDevice.ERROR_RSP_SUCCESS, settingsReport.onSetReport(report, 0));
+        assertEquals(0, settings.size());
+        mainThread.runPending();
+        assertEquals("[250/11250/3/7]", settings.toString());
+
+        // The report may come at an offset, e.g. after the report ID.
+        byte[] data = new byte[report.length + 1];
+        System.arraycopy(report, 0, data, 1, report.length);
+        settingsReport.onSetReport(data, 1);
+        mainThread.runPending();
+        assertEquals("[250/11250/3/7, 250/11250/3/7]", settings.toString());
+    }
+
+    @Test
+    public void encode_clampsTheValuesToTheFields() {
+        // The fields are 16, 16, 8 and 8 bits long.
+        settingsReport.onSetReport(settingsReport.encode(70000, 65536, 256, 1000), 0);
+        mainThread.runPending();
+        settingsReport.onSetReport(settingsReport.encode(-1, -20, -3, Integer.MIN_VALUE), 0);
+        mainThread.runPending();
+        assertEquals("[65535/65535/255/255, 0/0/0/0]", settings.toString());
+    }
+
+    @Test
+    public void onSetReport_appliesOnlyTheLatestSettings() {
+        settingsReport.onSetReport(settingsReport.encode(125, 8000, 1, 0), 0);
+        settingsReport.onSetReport(settingsReport.encode(500, 0, 2, 4), 0);
+        assertEquals(1, mainThread.size());
+
+        mainThread.runPending();
+        assertEquals("[500/0/2/4]", settings.toString());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.ui;
+
+import static org.junit.Assert.assertEquals;
+
+import com.ginkage.gamepad.Benchmark;
+import com.ginkage.gamepad.MicroBenchmark;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ControlGrid}. */
+@RunWith(JUnit4.class)
+public class ControlGridTest {
+    private static final int WIDTH = 2400;
+    private static final int HEIGHT = 1080;
+    private static final int POINT_COUNT = 4096;
+
+    @Test
+    public void find_returnsTheTopmostControl() {
+        // The second control covers the middle of the first one.
+        int[] lefts = {0, 40};
+        int[] tops = {0, 40};
+        int[] rights = {100, 60};
+        int[] bottoms = {100, 60};
+        ControlGrid grid = new ControlGrid(lefts, tops, rights, bottoms);
+        assertEquals(0, grid.find(10, 10));
+        assertEquals(1, grid.find(50, 50));
+        assertEquals(1, grid.find(40, 40));
+        assertEquals(0, grid.find(60, 60));
+        assertEquals(ControlGrid.NONE, grid.find(100, 50));
+        assertEquals(ControlGrid.NONE, grid.find(50, 100));
+        assertEquals(ControlGrid.NONE, grid.find(-1, 50));
+        assertEquals(ControlGrid.NONE, grid.find(5000, 5000));
+    }
+
+    @Test
+    public void find_skipsEmptyControls() {
+        int[] lefts = {0, 10, -50};
+        int[] tops = {0, 10, -50};
+        int[] rights = {100, 10, -10};
+        int[] bottoms = {100, 90, -10};
+        ControlGrid grid = new ControlGrid(lefts, tops, rights, bottoms);
+        assertEquals(0, grid.find(10, 50));
+        assertEquals(0, grid.find(0, 0));
+    }
+
+    @Test
+    public void find_matchesLinearScanForRandomLayouts() {
+        Random random = new Random(22);
+        for (int layout = 0; layout < 200; layout++) {
+            int count = 1 + random.nextInt(100);
+            int[] lefts = new int[count];
+            int[] tops = new int[count];
+            int[] rights = new int[count];
+            int[] bottoms = new int[count];
+            for (int i = 0; i < count; i++) {
+                // Some controls stick out of the screen, or have no area at all.
+                lefts[i] = random.nextInt(WIDTH + 100) - 50;
+                tops[i] = random.nextInt(HEIGHT + 100) - 50;
+                rights[i] = lefts[i] + random.nextInt(WIDTH / 4);
+                bottoms[i] = tops[i] + random.nextInt(HEIGHT / 4);
+            }
+            ControlGrid grid = new ControlGrid(lefts, tops, rights, bottoms);
+            for (int i = 0; i < 1000; i++) {
+                float x = random.nextFloat() * (WIDTH + 200) - 100;
+                float y = random.nextFloat() * (HEIGHT + 200) - 100;
+                assertEquals(
+                        x + ", " + y,
+                        findLinear(lefts, tops, rights, bottoms, x, y),
+                        grid.find(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void find_matchesTheLayoutBounds() {
+        ControlLayout layout = ControlLayout.parse(ControlLayoutTest.denseLayoutText(10, 6));
+        int count = layout.getControls().size();
+        int[][] edges = getEdges(layout);
+        ControlGrid grid = new ControlGrid(edges[0], edges[1], edges[2], edges[3]);
+        for (int control = 0; control < count; control++) {
+            float x = (edges[0][control] + edges[2][control]) / 2f;
+            float y = (edges[1][control] + edges[3][control]) / 2f;
+            assertEquals(control, grid.find(x, y));
+        }
+        // The gaps between the buttons.
+        assertEquals(ControlGrid.NONE, grid.find(edges[2][0], edges[1][0]));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_findInDenseLayout() {
+        ControlLayout layout = ControlLayout.parse(ControlLayoutTest.denseLayoutText(8, 8));
+        int[][] edges = getEdges(layout);
+        ControlGrid grid = new ControlGrid(edges[0], edges[1], edges[2], edges[3]);
+        Random random = new Random(23);
+        float[] xs = new float[POINT_COUNT];
+        float[] ys = new float[POINT_COUNT];
+        for (int i = 0; i < POINT_COUNT; i++) {
+            xs[i] = random.nextFloat() * WIDTH;
+            ys[i] = random.nextFloat() * HEIGHT;
+        }
+        int repeats = 500;
+        int operations = repeats * POINT_COUNT;
+
+        MicroBenchmark.measure(
+                "Linear hit test, 64 controls",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (int i = 0; i < POINT_COUNT; i++) {
+                            sum += findLinear(edges[0], edges[1], edges[2], edges[3], xs[i], ys[i]);
+                        }
+                    }
+                    return sum;
+                });
+        MicroBenchmark.measure(
+                "ControlGrid.find, 64 controls",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (int i = 0; i < POINT_COUNT; i++) {
+                            sum += grid.find(xs[i], ys[i]);
+                        }
+                    }
+                    return sum;
+                });
+    }
+
+    /** @return Left, top, right and bottom edges of the controls on the test screen. */
+    private static int[][] getEdges(ControlLayout layout) {
+        int count = layout.getControls().size();
+        int[][] edges = new int[4][count];
+        int[] bounds = new int[4];
+        for (int control = 0; control < count; control++) {
+            layout.getBounds(control, WIDTH, HEIGHT, bounds);
+            for (int edge = 0; edge < 4; edge++) {
+                edges[edge][control] = bounds[edge];
+            }
+        }
+        return edges;
+    }
+
+    /** The hit test without the index: the last control in the layout order is the topmost. */
+    private static int findLinear(
+            int[] lefts, int[] tops, int[] rights, int[] bottoms, float x, float y) {
+        for (int control = lefts.length - 1; control >= 0; control--) {
+            if (x >= lefts[control]
+                    && x < rights[control]
+                    && y >= tops[control]
+                    && y < bottoms[control]) {
+                return control;
+            }
+        }
+        return ControlGrid.NONE;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.ui;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.ginkage.gamepad.Benchmark;
+import com.ginkage.gamepad.MicroBenchmark;
+import com.ginkage.gamepad.bluetooth.ButtonMap;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ControlLayout}. */
+@RunWith(JUnit4.class)
+public class ControlLayoutTest {
+    /** The layout that the app ships, relative to the module directory. */
+    private static final String STANDARD_LAYOUT = "src/main/assets/layouts/standard.txt";
+
+    @Test
+    public void parse_readsEveryControlType() {
+        ControlLayout layout =
+                ControlLayout.parse(
+                        "# type target left top right bottom\n"
+                                + "\n"
+                                + "button   b      75  84 91.5 100\n"
+                                + "  dpad   dpad   0   40 25   100   square  \n"
+                                + "stick    right  50  40 75   100\n"
+                                + "trigger  r2     50  0  75   20    mirrored\n");
+        List<ControlLayout.Control> controls = layout.getControls();
+        assertEquals(4, controls.size());
+
+        ControlLayout.Control button = controls.get(0);
+        assertEquals(ControlLayout.TYPE_BUTTON, button.type);
+        assertEquals(ButtonMap.BUTTON_B, button.target);
+        assertEquals("B", button.label);
+        assertEquals(75, button.left, 0);
+        assertEquals(84, button.top, 0);
+        assertEquals(91.5, button.right, 0);
+        assertEquals(100, button.bottom, 0);
+        assertFalse(button.square);
+
+        ControlLayout.Control dpad = controls.get(1);
+        assertEquals(ControlLayout.TYPE_DPAD, dpad.type);
+        assertEquals("", dpad.label);
+        assertTrue(dpad.square);
+
+        ControlLayout.Control stick = controls.get(2);
+        assertEquals(ControlLayout.TYPE_STICK, stick.type);
+        assertEquals(ControlLayout.STICK_RIGHT, stick.target);
+
+        ControlLayout.Control trigger = controls.get(3);
+        assertEquals(ControlLayout.TYPE_TRIGGER, trigger.type);
+        assertEquals(ControlLayout.TRIGGER_R2, trigger.target);
+        assertEquals("R2", trigger.label);
+        assertTrue(trigger.mirrored);
+    }
+
+    @Test
+    public void parse_readsTheStandardLayout() throws IOException {
+        String text =
+                new String(Files.readAllBytes(Paths.get(STANDARD_LAYOUT)), StandardCharsets.UTF_8);
+        ControlLayout layout = ControlLayout.parse(text);
+        int[] counts = new int[4];
+        for (ControlLayout.Control control : layout.getControls()) {
+            counts[control.type]++;
+        }
+        // Every button, the D-pad, both sticks and both triggers.
+        assertArrayEquals(new int[] {ButtonMap.BUTTON_COUNT, 1, 2, 2}, counts);
+    }
+
+    @Test
+    public void parse_reportsTheLineOfTheError() {
+        assertParseFails(
+                "Line 2: Unknown control type: knob", "button a 0 0 10 10\nknob a 0 0 1 1");
+        assertParseFails("Line 1: Unknown button: z", "button z 0 0 10 10");
+        assertParseFails("Line 1: Unknown D-pad: left", "dpad left 0 0 10 10");
+        assertParseFails("Line 1: Unknown stick: middle", "stick middle 0 0 10 10");
+        assertParseFails("Line 1: Unknown trigger: l1", "trigger l1 0 0 10 10");
+        assertParseFails("Line 1: Not a number: wide", "button a 0 0 wide 10");
+        assertParseFails("Line 1: Out of range: 101", "button a 0 0 101 10");
+        assertParseFails("Line 1: The control has no area", "button a 10 0 10 10");
+        assertParseFails("Line 1: Unknown option: mirrored", "button a 0 0 10 10 mirrored");
+        assertParseFails("Line 1: Expected: type target left top right bottom", "button a 0 0");
+        assertParseFails("The layout has no controls", "# Nothing here\n\n");
+    }
+
+    @Test
+    public void getBounds_scalesAndSquaresTheControls() {
+        ControlLayout layout =
+                ControlLayout.parse("button a 10 20 30 60\nstick left 0 0 50 100 square\n");
+        int[] bounds = new int[4];
+        layout.getBounds(0, 1000, 500, bounds);
+        assertArrayEquals(new int[] {100, 100, 300, 300}, bounds);
+        layout.getBounds(1, 1000, 500, bounds);
+        assertArrayEquals(new int[] {0, 0, 500, 500}, bounds);
+        layout.getBounds(1, 400, 1000, bounds);
+        assertArrayEquals(new int[] {0, 400, 200, 600}, bounds);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_parseDenseLayout() {
+        String text = denseLayoutText(8, 8);
+        assertEquals(64, ControlLayout.parse(text).getControls().size());
+        int repeats = 2000;
+
+        MicroBenchmark.measure(
+                "ControlLayout.parse, 64 controls",
+                repeats,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        sum += ControlLayout.parse(text).getControls().size();
+                    }
+                    return sum;
+                });
+    }
+
+    /**
+     * Describe a grid of buttons that covers the whole screen, with gaps between them.
+     *
+     * @param columns Number of the buttons across.
+     * @param rows Number of the buttons down.
+     * @return Layout description.
+     */
+    static String denseLayoutText(int columns, int rows) {
+        String[] names = {"a", "b", "x", "y", "l1", "r1", "l3", "r3", "start", "back", "home"};
+        StringBuilder text = new StringBuilder("# type target left top right bottom\n");
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                float left = 100f * column / columns;
+                float top = 100f * row / rows;
+                text.append(
+                        String.format(
+                                Locale.US,
+                                "button %s %.2f %.2f %.2f %.2f\n",
+                                names[(row * columns + column) % names.length],
+                                left,
+                                top,
+                                left + 90f / columns,
+                                top + 90f / rows));
+            }
+        }
+        return text.toString();
+    }
+
+    private static void assertParseFails(String message, String text) {
+        IllegalArgumentException e =
+                assertThrows(IllegalArgumentException.class, () -> ControlLayout.parse(text));
+        assertEquals(message, e.getMessage());
+    }
+}
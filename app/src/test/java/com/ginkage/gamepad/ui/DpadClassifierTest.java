@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.ginkage.gamepad.Benchmark;
+import com.ginkage.gamepad.MicroBenchmark;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DpadClassifier}. */
+@RunWith(JUnit4.class)
+public class DpadClassifierTest {
+    /** Hat switch values of the 16 equal sectors, counter-clockwise from the right. */
+    private static final int[] EIGHT_WAY = {2, 1, 1, 0, 0, 7, 7, 6, 6, 5, 5, 4, 4, 3, 3, 2};
+
+    private static final int SIZE = 400;
+    private static final int OFFSET_COUNT = 4096;
+
+    private final DpadClassifier classifier = new DpadClassifier(0, 45);
+
+    @Test
+    public void classify_matchesAtan2OnEveryPixel() {
+        // Whole and half pixels, the way the activity measures the offset from the center.
+        int center = SIZE / 2;
+        for (int i = 0; i <= 2 * SIZE; i++) {
+            for (int j = 0; j <= 2 * SIZE; j++) {
+                assertMatchesAtan2(i / 2f - center, j / 2f - center);
+            }
+        }
+    }
+
+    @Test
+    public void classify_matchesAtan2OnSubPixelTouches() {
+        Random random = new Random(24);
+        float center = SIZE / 2;
+        for (int i = 0; i < 1_000_000; i++) {
+            float dx = random.nextFloat() * SIZE - center;
+            float dy = random.nextFloat() * SIZE - center;
+            assertMatchesAtan2(dx, dy);
+        }
+        assertMatchesAtan2(-38.006653f, -91.75798f);
+        assertEquals(0, classifier.classify(-38.006653f, -91.75798f, SIZE / 2f));
+    }
+
+    @Test
+    public void classify_matchesAtan2NextToTheBoundaries() {
+        Random random = new Random(25);
+        double[] slopes = {Math.tan(Math.PI / 8), Math.tan(3 * Math.PI / 8)};
+        for (int i = 0; i < 100_000; i++) {
+            float dx = (random.nextFloat() + 0.001f) * SIZE;
+            float dy = (float) (dx * slopes[random.nextInt(2)]);
+            // A few floats to either side of the nearest float on the boundary.
+            for (int step = 0; step < 4; step++) {
+                float above = dy;
+                float below = dy;
+                for (int k = 0; k < step; k++) {
+                    above = Math.nextUp(above);
+                    below = Math.nextDown(below);
+                }
+                for (float y : new float[] {above, below}) {
+                    assertMatchesAtan2(dx, y);
+                    assertMatchesAtan2(-dx, y);
+                    assertMatchesAtan2(dx, -y);
+                    assertMatchesAtan2(-dx, -y);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void classify_readsTheCenterAsRight() {
+        assertEquals(2, classifier.classify(0, 0, SIZE / 2f));
+        assertEquals(2, atan2Direction(0, 0));
+    }
+
+    @Test
+    public void classify_releasesWithinTheDeadZone() {
+        DpadClassifier withDeadZone = new DpadClassifier(0.25f, 45);
+        assertEquals(DpadClassifier.RELEASED, withDeadZone.classify(0, 0, 100));
+        assertEquals(DpadClassifier.RELEASED, withDeadZone.classify(-17.6f, 17.6f, 100));
+        assertEquals(DpadClassifier.RELEASED, withDeadZone.classify(0, 24.99f, 100));
+        assertEquals(4, withDeadZone.classify(0, 25, 100));
+        assertEquals(5, withDeadZone.classify(-17.7f, 17.7f, 100));
+    }
+
+    @Test
+    public void classify_resizesTheDiagonals() {
+        DpadClassifier noDiagonals = new DpadClassifier(0, 0);
+        assertEquals(2, noDiagonals.classify(100, -99, 100));
+        assertEquals(0, noDiagonals.classify(99, -100, 100));
+
+        DpadClassifier wideDiagonals = new DpadClassifier(0, 60);
+        // The diagonals span from 15 to 75 degrees.
+        assertEquals(2, wideDiagonals.classify(100, -26, 100));
+        assertEquals(1, wideDiagonals.classify(100, -27, 100));
+        assertEquals(1, wideDiagonals.classify(27, -100, 100));
+        assertEquals(0, wideDiagonals.classify(26, -100, 100));
+
+        DpadClassifier diagonalsOnly = new DpadClassifier(0, 90);
+        assertEquals(3, diagonalsOnly.classify(100, 1, 100));
+        assertEquals(7, diagonalsOnly.classify(-1, -100, 100));
+    }
+
+    @Test
+    public void constructor_rejectsInvalidParameters() {
+        assertThrows(IllegalArgumentException.class, () -> new DpadClassifier(-0.1f, 45));
+        assertThrows(IllegalArgumentException.class, () -> new DpadClassifier(1, 45));
+        assertThrows(IllegalArgumentException.class, () -> new DpadClassifier(0, -1));
+        assertThrows(IllegalArgumentException.class, () -> new DpadClassifier(0, 91));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_classify() {
+        Random random = new Random(26);
+        float[] dxs = new float[OFFSET_COUNT];
+        float[] dys = new float[OFFSET_COUNT];
+        for (int i = 0; i < OFFSET_COUNT; i++) {
+            dxs[i] = random.nextFloat() * SIZE - SIZE / 2f;
+            dys[i] = random.nextFloat() * SIZE - SIZE / 2f;
+        }
+        int repeats = 1000;
+        int operations = repeats * OFFSET_COUNT;
+
+        MicroBenchmark.measure(
+                "D-pad atan2",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (int i = 0; i < OFFSET_COUNT; i++) {
+                            sum += atan2Direction(dxs[i], dys[i]);
+                        }
+                    }
+                    return sum;
+                });
+        MicroBenchmark.measure(
+                "DpadClassifier.classify",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (int i = 0; i < OFFSET_COUNT; i++) {
+                            sum += classifier.classify(dxs[i], dys[i], SIZE / 2f);
+                        }
+                    }
+                    return sum;
+                });
+    }
+
+    private void assertMatchesAtan2(float dx, float dy) {
+        int expected = atan2Direction(dx, dy);
+        assertEquals(dx + ", " + dy, expected, classifier.classify(dx, dy, SIZE / 2f));
+    }
+
+    /** The direction as the activity used to resolve it, one of 16 equal sectors. */
+    private static int atan2Direction(float dx, float dy) {
+        double theta = Math.atan2(-dy, dx);
+        if (theta < 0) {
+            theta += 2 * Math.PI;
+        }
+        int area = (int) (theta / (Math.PI / 8));
+        return EIGHT_WAY[area];
+    }
+}
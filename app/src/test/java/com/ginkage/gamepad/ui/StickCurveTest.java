@@ -0,0 +1,332 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.ui;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.ginkage.gamepad.Benchmark;
+import com.ginkage.gamepad.MicroBenchmark;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StickCurve}. */
+@RunWith(JUnit4.class)
+public class StickCurveTest {
+    private static final int STANDARD_MAXIMUM = 255;
+    private static final int HIGH_RESOLUTION_MAXIMUM = 65535;
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+    private static final int TOUCH_COUNT = 4096;
+
+    @Test
+    public void map_linearFollowsTheTouch() {
+        for (int maximum : new int[] {STANDARD_MAXIMUM, HIGH_RESOLUTION_MAXIMUM}) {
+            StickCurve curve = new StickCurve.Builder().build(maximum);
+            Reference reference = new Reference();
+            int[] axes = new int[2];
+            for (int x = 0; x <= WIDTH; x++) {
+                curve.map(x, HEIGHT / 2f, WIDTH, HEIGHT, axes);
+                // The plain linear mapping the sticks had before the curve, up to a table step.
+                assertEquals(maximum * x / (double) WIDTH, axes[0], 0.5 + maximum / 4096.0);
+                assertEquals(curve.getCenter(), axes[1]);
+            }
+            assertMatchesReference(curve, reference, maximum);
+        }
+    }
+
+    @Test
+    public void map_keepsTheCenter() {
+        for (int maximum : new int[] {STANDARD_MAXIMUM, HIGH_RESOLUTION_MAXIMUM}) {
+            for (boolean radial : new boolean[] {false, true}) {
+                StickCurve curve =
+                        new StickCurve.Builder().radial(radial).exponent(2).build(maximum);
+                assertEquals((maximum + 1) / 2, curve.getCenter());
+                int[] axes = new int[2];
+                curve.map(WIDTH / 2f, HEIGHT / 2f, WIDTH, HEIGHT, axes);
+                assertArrayEquals(new int[] {curve.getCenter(), curve.getCenter()}, axes);
+            }
+        }
+    }
+
+    @Test
+    public void map_appliesTheDeadZones() {
+        StickCurve curve =
+                new StickCurve.Builder()
+                        .innerDeadZone(0.2f)
+                        .outerDeadZone(0.8f)
+                        .build(STANDARD_MAXIMUM);
+        int[] axes = new int[2];
+        // Within the inner dead zone.
+        curve.map(WIDTH * 0.59f, HEIGHT * 0.41f, WIDTH, HEIGHT, axes);
+        assertArrayEquals(new int[] {128, 128}, axes);
+        // Beyond the outer dead zone.
+        curve.map(WIDTH * 0.91f, HEIGHT * 0.09f, WIDTH, HEIGHT, axes);
+        assertArrayEquals(new int[] {255, 0}, axes);
+        assertMatchesReference(curve, new Reference().deadZones(0.2, 0.8), STANDARD_MAXIMUM);
+    }
+
+    @Test
+    public void map_radialKeepsTheStickInTheCircle() {
+        StickCurve curve = new StickCurve.Builder().radial(true).build(HIGH_RESOLUTION_MAXIMUM);
+        int[] axes = new int[2];
+        // The corner of the square lands on the circle, in the same direction.
+        curve.map(WIDTH, 0, WIDTH, HEIGHT, axes);
+        double half = HIGH_RESOLUTION_MAXIMUM / 2.0;
+        double step = HIGH_RESOLUTION_MAXIMUM / 4096.0;
+        double x = axes[0] - half;
+        double y = axes[1] - half;
+        assertEquals(half, Math.hypot(x, y), 2 * step);
+        assertEquals(-x, y, 2 * step);
+
+        Random random = new Random(25);
+        for (int i = 0; i < 10_000; i++) {
+            curve.map(
+                    random.nextFloat() * 2 * WIDTH - WIDTH / 2f,
+                    random.nextFloat() * 2 * HEIGHT - HEIGHT / 2f,
+                    WIDTH,
+                    HEIGHT,
+                    axes);
+            assertTrue(Math.hypot(axes[0] - half, axes[1] - half) <= half + 2 * step);
+        }
+        assertMatchesReference(curve, new Reference().radial(), HIGH_RESOLUTION_MAXIMUM);
+    }
+
+    @Test
+    public void map_followsThePowerCurve() {
+        for (boolean radial : new boolean[] {false, true}) {
+            StickCurve curve =
+                    new StickCurve.Builder()
+                            .radial(radial)
+                            .innerDeadZone(0.1f)
+                            .exponent(2.5f)
+                            .build(HIGH_RESOLUTION_MAXIMUM);
+            Reference reference = new Reference().deadZones(0.1, 1).exponent(2.5);
+            if (radial) {
+                reference.radial();
+            }
+            assertMatchesReference(curve, reference, HIGH_RESOLUTION_MAXIMUM);
+        }
+    }
+
+    @Test
+    public void map_followsTheCustomCurve() {
+        float[] points = {0, 0.05f, 0.2f, 0.6f, 1};
+        for (boolean radial : new boolean[] {false, true}) {
+            StickCurve curve =
+                    new StickCurve.Builder()
+                            .radial(radial)
+                            .outerDeadZone(0.9f)
+                            .curve(points)
+                            .build(STANDARD_MAXIMUM);
+            Reference reference = new Reference().deadZones(0, 0.9).curve(points);
+            if (radial) {
+                reference.radial();
+            }
+            assertMatchesReference(curve, reference, STANDARD_MAXIMUM);
+        }
+    }
+
+    @Test
+    public void map_followsTheCalibration() {
+        StickCurve curve =
+                new StickCurve.Builder()
+                        .calibration(0.4f, 0.6f, 0.3f, 0.35f)
+                        .build(HIGH_RESOLUTION_MAXIMUM);
+        int[] axes = new int[2];
+        curve.map(WIDTH * 0.4f, HEIGHT * 0.6f, WIDTH, HEIGHT, axes);
+        assertArrayEquals(new int[] {curve.getCenter(), curve.getCenter()}, axes);
+        curve.map(WIDTH * 0.1f, HEIGHT * 0.95f, WIDTH, HEIGHT, axes);
+        assertArrayEquals(new int[] {0, HIGH_RESOLUTION_MAXIMUM}, axes);
+        assertMatchesReference(
+                curve,
+                new Reference().calibration(0.4, 0.6, 0.3, 0.35),
+                HIGH_RESOLUTION_MAXIMUM);
+    }
+
+    @Test
+    public void builder_rejectsInvalidParameters() {
+        assertThrows(
+                IllegalArgumentException.class, () -> new StickCurve.Builder().innerDeadZone(1));
+        assertThrows(
+                IllegalArgumentException.class, () -> new StickCurve.Builder().outerDeadZone(0));
+        assertThrows(IllegalArgumentException.class, () -> new StickCurve.Builder().exponent(0));
+        assertThrows(IllegalArgumentException.class, () -> new StickCurve.Builder().curve(1));
+        assertThrows(
+                IllegalArgumentException.class, () -> new StickCurve.Builder().curve(0, 1.5f));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new StickCurve.Builder().calibration(0.5f, 0.5f, 0, 0.5f));
+        assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        new StickCurve.Builder()
+                                .innerDeadZone(0.5f)
+                                .outerDeadZone(0.5f)
+                                .build(STANDARD_MAXIMUM));
+        assertThrows(IllegalArgumentException.class, () -> new StickCurve.Builder().build(0));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_map() {
+        StickCurve curve =
+                new StickCurve.Builder()
+                        .radial(true)
+                        .innerDeadZone(0.1f)
+                        .exponent(2)
+                        .build(HIGH_RESOLUTION_MAXIMUM);
+        Reference reference = new Reference().radial().deadZones(0.1, 1).exponent(2);
+        Random random = new Random(26);
+        float[] xs = new float[TOUCH_COUNT];
+        float[] ys = new float[TOUCH_COUNT];
+        for (int i = 0; i < TOUCH_COUNT; i++) {
+            xs[i] = random.nextFloat() * WIDTH;
+            ys[i] = random.nextFloat() * HEIGHT;
+        }
+        int repeats = 1000;
+        int operations = repeats * TOUCH_COUNT;
+        double[] values = new double[2];
+        int[] axes = new int[2];
+
+        MicroBenchmark.measure(
+                "Stick curve in double precision",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (int i = 0; i < TOUCH_COUNT; i++) {
+                            reference.map(xs[i], ys[i], WIDTH, HEIGHT, values);
+                            sum += Math.round(values[0] * HIGH_RESOLUTION_MAXIMUM);
+                        }
+                    }
+                    return sum;
+                });
+        MicroBenchmark.measure(
+                "StickCurve.map",
+                operations,
+                () -> {
+                    long sum = 0;
+                    for (int r = 0; r < repeats; r++) {
+                        for (int i = 0; i < TOUCH_COUNT; i++) {
+                            curve.map(xs[i], ys[i], WIDTH, HEIGHT, axes);
+                            sum += axes[0];
+                        }
+                    }
+                    return sum;
+                });
+    }
+
+    /**
+     * Compare the curve with the reference on a grid of touches that goes beyond the stick. The
+     * tables have 4096 steps per half of the axis, so the values may differ by a few of them.
+     */
+    private static void assertMatchesReference(StickCurve curve, Reference reference, int maximum) {
+        double tolerance = 1 + 4.0 * maximum / 8192;
+        int[] axes = new int[2];
+        double[] values = new double[2];
+        for (int i = -20; i <= WIDTH + 20; i += 2) {
+            for (int j = -20; j <= HEIGHT + 20; j += 2) {
+                float x = i + 0.25f;
+                float y = j + 0.75f;
+                curve.map(x, y, WIDTH, HEIGHT, axes);
+                reference.map(x, y, WIDTH, HEIGHT, values);
+                assertEquals(x + ", " + y, values[0] * maximum, axes[0], tolerance);
+                assertEquals(x + ", " + y, values[1] * maximum, axes[1], tolerance);
+            }
+        }
+    }
+
+    /** The stick curve computed directly in double precision. */
+    private static class Reference {
+        private double innerDeadZone;
+        private double outerDeadZone = 1;
+        private boolean radial;
+        private double exponent = 1;
+        private float[] points;
+        private double centerX = 0.5;
+        private double centerY = 0.5;
+        private double radiusX = 0.5;
+        private double radiusY = 0.5;
+
+        Reference deadZones(double inner, double outer) {
+            innerDeadZone = inner;
+            outerDeadZone = outer;
+            return this;
+        }
+
+        Reference radial() {
+            radial = true;
+            return this;
+        }
+
+        Reference exponent(double value) {
+            exponent = value;
+            return this;
+        }
+
+        Reference curve(float... values) {
+            points = values;
+            return this;
+        }
+
+        Reference calibration(double x, double y, double width, double height) {
+            centerX = x;
+            centerY = y;
+            radiusX = width;
+            radiusY = height;
+            return this;
+        }
+
+        /** Map the touch to the axis values from {@code 0} to {@code 1}. */
+        void map(float x, float y, int width, int height, double[] values) {
+            double dx = clamp(((double) x / width - centerX) / radiusX);
+            double dy = clamp(((double) y / height - centerY) / radiusY);
+            if (radial) {
+                double magnitude = Math.hypot(dx, dy);
+                double gain = magnitude > 0 ? apply(Math.min(magnitude, 1)) / magnitude : 0;
+                dx *= gain;
+                dy *= gain;
+            } else {
+                dx = Math.signum(dx) * apply(Math.abs(dx));
+                dy = Math.signum(dy) * apply(Math.abs(dy));
+            }
+            values[0] = (dx + 1) / 2;
+            values[1] = (dy + 1) / 2;
+        }
+
+        private double apply(double deflection) {
+            double t = (deflection - innerDeadZone) / (outerDeadZone - innerDeadZone);
+            t = Math.min(Math.max(t, 0), 1);
+            if (points == null) {
+                return Math.pow(t, exponent);
+            }
+            double position = t * (points.length - 1);
+            int index = Math.min((int) position, points.length - 2);
+            return points[index] + (points[index + 1] - points[index]) * (position - index);
+        }
+
+        private static double clamp(double deflection) {
+            return Math.min(Math.max(deflection, -1), 1);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 Google LLC All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ginkage.gamepad.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.view.MotionEvent;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link TouchDispatcher}. */
+@RunWith(JUnit4.class)
+public class TouchDispatcherTest {
+    private static final int STICK = 0;
+    private static final int BUTTON_A = 1;
+    private static final int BUTTON_B = 2;
+
+    /** A touch event with the pointers given by their IDs and positions. */
+    private static final class FakeEvent implements TouchDispatcher.TouchEvent {
+        private final int action;
+        private final int actionIndex;
+        private final int[] ids;
+        private final float[] positions;
+
+        FakeEvent(int action, int actionIndex, int[] ids, float... positions) {
+            this.action = action;
+            this.actionIndex = actionIndex;
+            this.ids = ids;
+            this.positions = positions;
+        }
+
+        @Override
+        public int getActionMasked() {
+            return action;
+        }
+
+        @Override
+        public int getActionIndex() {
+            return actionIndex;
+        }
+
+        @Override
+        public int getPointerCount() {
+            return ids.length;
+        }
+
+        @Override
+        public int getPointerId(int pointerIndex) {
+            return ids[pointerIndex];
+        }
+
+        @Override
+        public float getX(int pointerIndex) {
+            return positions[2 * pointerIndex];
+        }
+
+        @Override
+        public float getY(int pointerIndex) {
+            return positions[2 * pointerIndex + 1];
+        }
+    }
+
+    private final List<String> changes = new ArrayList<>();
+    private int publishCount;
+    private TouchDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        dispatcher =
+                new TouchDispatcher(
+                        3,
+                        new TouchDispatcher.Callback() {
+                            @Override
+                            public void onControlTouched(int control, float x, float y) {
+                                changes.add(control + "@" + (int) x + "," + (int) y);
+                            }
+
+                            @Override
+                            public void onControlReleased(int control) {
+                                changes.add(control + " up");
+                            }
+
+                            @Override
+                            public void onEventProcessed() {
+                                publishCount++;
+                            }
+                        });
+        dispatcher.setBounds(STICK, 0, 0, 100, 100);
+        dispatcher.setBounds(BUTTON_A, 200, 0, 300, 100);
+        dispatcher.setBounds(BUTTON_B, 300, 0, 400, 100);
+    }
+
+    @Test
+    public void onTouchEvent_pointerUpOfAnotherFingerKeepsTheStick() {
+        assertTrue(dispatch(MotionEvent.ACTION_DOWN, 0, new int[] {0}, 50, 60));
+        assertTrue(dispatch(MotionEvent.ACTION_POINTER_DOWN, 1, new int[] {0, 1}, 50, 60, 250, 50));
+        assertEquals("[0@50,60, 0@50,60, 1@50,50]", changes.toString());
+        changes.clear();
+
+        // The button's finger goes up, the stick stays where it is.
+        assertTrue(dispatch(MotionEvent.ACTION_POINTER_UP, 1, new int[] {0, 1}, 55, 60, 250, 50));
+        assertEquals("[0@55,60, 1 up]", changes.toString());
+        changes.clear();
+
+        // The stick's finger goes up while the button is held again by a new one.
+        dispatch(MotionEvent.ACTION_POINTER_DOWN, 1, new int[] {0, 2}, 55, 60, 260, 50);
+        changes.clear();
+        assertTrue(dispatch(MotionEvent.ACTION_POINTER_UP, 0, new int[] {0, 2}, 55, 60, 260, 50));
+        assertEquals("[0 up, 1@60,50]", changes.toString());
+        changes.clear();
+
+        // The pointer indices shift, the IDs don't.
+        assertFalse(dispatch(MotionEvent.ACTION_MOVE, 0, new int[] {2}, 270, 40));
+        assertEquals("[1@70,40]", changes.toString());
+        changes.clear();
+
+        assertTrue(dispatch(MotionEvent.ACTION_UP, 0, new int[] {2}, 270, 40));
+        assertEquals("[1 up]", changes.toString());
+    }
+
+    @Test
+    public void onTouchEvent_publishesOncePerEvent() {
+        dispatch(MotionEvent.ACTION_DOWN, 0, new int[] {0}, 10, 10);
+        dispatch(MotionEvent.ACTION_POINTER_DOWN, 1, new int[] {0, 1}, 10, 10, 210, 10);
+        dispatch(MotionEvent.ACTION_POINTER_DOWN, 2, new int[] {0, 1, 2}, 10, 10, 210, 10, 310, 10);
+        assertEquals(3, publishCount);
+        changes.clear();
+
+        // All three fingers move in one event.
+        dispatch(MotionEvent.ACTION_MOVE, 0, new int[] {0, 1, 2}, 20, 20, 220, 20, 320, 20);
+        assertEquals("[0@20,20, 1@20,20, 2@20,20]", changes.toString());
+        assertEquals(4, publishCount);
+
+        // A gesture cancel releases everything at once.
+        changes.clear();
+        dispatch(MotionEvent.ACTION_CANCEL, 0, new int[] {0, 1, 2}, 20, 20, 220, 20, 320, 20);
+        assertEquals("[0 up, 1 up, 2 up]", changes.toString());
+        assertEquals(5, publishCount);
+    }
+
+    @Test
+    public void onTouchEvent_ignoresTheFingersOutsideTheControls() {
+        // Nothing is held, so nothing is published.
+        assertFalse(dispatch(MotionEvent.ACTION_DOWN, 0, new int[] {0}, 150, 50));
+        assertFalse(dispatch(MotionEvent.ACTION_MOVE, 0, new int[] {0}, 50, 50));
+        assertEquals(0, publishCount);
+
+        // A control is held by one pointer at most.
+        assertTrue(dispatch(MotionEvent.ACTION_POINTER_DOWN, 1, new int[] {0, 1}, 50, 50, 250, 50));
+        assertFalse(
+                dispatch(
+                        MotionEvent.ACTION_POINTER_DOWN,
+                        2,
+                        new int[] {0, 1, 2},
+                        50, 50, 250, 50, 260, 60));
+        assertEquals("[1@50,50, 1@50,50]", changes.toString());
+
+        // The unbound finger goes up, the button stays held.
+        changes.clear();
+        assertFalse(
+                dispatch(
+                        MotionEvent.ACTION_POINTER_UP,
+                        2,
+                        new int[] {0, 1, 2},
+                        50, 50, 250, 50, 260, 60));
+        assertEquals("[1@50,50]", changes.toString());
+        assertEquals(3, publishCount);
+    }
+
+    private boolean dispatch(int action, int actionIndex, int[] ids, float... positions) {
+        return dispatcher.onTouchEvent(new FakeEvent(action, actionIndex, ids, positions));
+    }
+}